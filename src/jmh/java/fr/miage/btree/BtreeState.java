@@ -0,0 +1,35 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * A tree of each thread, and the indexes of the keys its operations reach, in the order of the distribution.
+ */
+@State(Scope.Thread)
+public class BtreeState extends TreeParams {
+    private static final int SEQUENCE_LENGTH = 1 << 20;
+    private static final long SEED = 42;
+
+    @Param({"UNIFORM", "ZIPFIAN", "SEQUENTIAL"})
+    public KeyDistribution distribution;
+
+    Workload<?> workload;
+    private int[] sequence;
+    private int position;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = keyType.newWorkload(size, this.config());
+        sequence = distribution.sequence(size, SEQUENCE_LENGTH, new Random(SEED));
+    }
+
+    int nextIndex() {
+        return sequence[position++ & (SEQUENCE_LENGTH - 1)];
+    }
+}
@@ -0,0 +1,63 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build of a whole tree : bottom-up from sorted entries, or by one insert per key in ascending or random order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BulkLoadBenchmark {
+
+    @State(Scope.Thread)
+    public static class BuildState extends TreeParams {
+        Workload<?> workload;
+        int[] ascending;
+        int[] shuffled;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            workload = keyType.newWorkload(size, this.config());
+            ascending = KeyDistribution.SEQUENTIAL.sequence(size, size, null);
+            shuffled = ascending.clone();
+            Random random = new Random(42);
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swapped = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swapped;
+            }
+        }
+    }
+
+    @Benchmark
+    public Btree<?, String> bulkLoad(BuildState state) {
+        return state.workload.bulkLoad();
+    }
+
+    @Benchmark
+    public Btree<?, String> insertAscending(BuildState state) {
+        return state.workload.insertAll(state.ascending);
+    }
+
+    @Benchmark
+    public Btree<?, String> insertShuffled(BuildState state) {
+        return state.workload.insertAll(state.shuffled);
+    }
+}
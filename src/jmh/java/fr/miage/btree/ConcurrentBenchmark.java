@@ -0,0 +1,163 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.LongStream;
+
+/**
+ * Searches mixed with updates on a tree shared by 1 to 64 threads, as the ones of the request threads of the application.
+ * The concurrent tree is compared with a tree behind a single read-write lock : the gap is what the optimistic reads
+ * and the node latches bring, it only shows with as many cores as threads.
+ *
+ * The tree holds the even keys, each thread inserts and deletes back the odd keys of its own indexes,
+ * so the size of the tree stays stable and the updates of a thread always apply.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConcurrentBenchmark {
+
+    public enum Locking {
+        /** {@link ConcurrentBtree} */
+        NODE_LATCHES,
+        /** A {@link Btree} whose searches take a shared lock, and updates an exclusive one */
+        TREE_LOCK
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedTree {
+        @Param({"NODE_LATCHES", "TREE_LOCK"})
+        public Locking locking;
+
+        /** Percentage of searches, the rest are updates */
+        @Param({"95", "50", "10"})
+        public int readPercent;
+
+        @Param({"64"})
+        public int order;
+
+        @Param({"1000000"})
+        public int size;
+
+        private Btree<Long, String> btree;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Btree<Long, String> built = Btree.bulkLoad(LongStream.range(0, size)
+                    .mapToObj(index -> Map.entry(2 * index, Workload.VALUE)).iterator(), Btree.DEFAULT_FILL_FACTOR, BtreeConfig.of(order));
+            btree = locking == Locking.NODE_LATCHES ? ConcurrentBtree.of(built) : built;
+        }
+
+        String search(long key) {
+            if (locking == Locking.NODE_LATCHES)
+                return btree.search(key);
+            lock.readLock().lock();
+            try {
+                return btree.search(key);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void toggle(long key, boolean inserted) {
+            if (locking == Locking.TREE_LOCK)
+                lock.writeLock().lock();
+            try {
+                if (inserted)
+                    btree.delete(key);
+                else
+                    btree.insert(key, Workload.VALUE);
+            }
+            finally {
+                if (locking == Locking.TREE_LOCK)
+                    lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The indexes of a thread are the ones congruent to its index, the keys it reads are spread over the whole tree.
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        private static final int OPERATIONS_LENGTH = 1 << 16;
+
+        private int threadIndex;
+        private int threadCount;
+        private boolean[] inserted;
+        private int[] indexes;
+        private boolean[] reads;
+        private int operation;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedTree tree, ThreadParams threadParams) {
+            threadIndex = threadParams.getThreadIndex();
+            threadCount = threadParams.getThreadCount();
+            inserted = new boolean[tree.size / threadCount + 1];
+            Random random = new Random(threadIndex);
+            indexes = new int[OPERATIONS_LENGTH];
+            reads = new boolean[OPERATIONS_LENGTH];
+            for (int i = 0; i < OPERATIONS_LENGTH; i++) {
+                indexes[i] = random.nextInt(tree.size / threadCount);
+                reads[i] = random.nextInt(100) < tree.readPercent;
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String threads1(SharedTree tree, ThreadKeys keys) {
+        return operation(tree, keys);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String threads4(SharedTree tree, ThreadKeys keys) {
+        return operation(tree, keys);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String threads16(SharedTree tree, ThreadKeys keys) {
+        return operation(tree, keys);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String threads64(SharedTree tree, ThreadKeys keys) {
+        return operation(tree, keys);
+    }
+
+    private static String operation(SharedTree tree, ThreadKeys keys) {
+        int operation = keys.operation++ & (ThreadKeys.OPERATIONS_LENGTH - 1);
+        int index = keys.indexes[operation];
+        long key = 2L * (index * keys.threadCount + keys.threadIndex);
+        if (keys.reads[operation])
+            return tree.search(key);
+        tree.toggle(key + 1, keys.inserted[index]);
+        keys.inserted[index] = !keys.inserted[index];
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delete of keys of the tree. A tree empties as it is measured, so each invocation deletes a batch of keys
+ * from a tree rebuilt before it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(2)
+public class DeleteBenchmark {
+    private static final int BATCH = 1000;
+
+    @State(Scope.Thread)
+    public static class DeleteState extends BtreeState {
+        @Setup(Level.Invocation)
+        public void reset() {
+            workload.reset();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delete(DeleteState state) {
+        for (int i = 0; i < BATCH; i++)
+            state.workload.delete(state.nextIndex());
+    }
+}
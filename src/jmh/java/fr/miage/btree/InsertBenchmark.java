@@ -0,0 +1,40 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert of keys missing from the tree, between its keys. The tree is rebuilt before each iteration,
+ * so that it only grows by the inserts of one iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InsertBenchmark {
+
+    @State(Scope.Thread)
+    public static class InsertState extends BtreeState {
+        @Setup(Level.Iteration)
+        public void reset() {
+            workload.reset();
+        }
+    }
+
+    @Benchmark
+    public void insert(InsertState state) {
+        state.workload.insert(state.nextIndex());
+    }
+}
@@ -0,0 +1,70 @@
+package fr.miage.btree;
+
+import java.util.Random;
+
+/**
+ * Order in which a benchmark reaches the keys of a tree, as a sequence of key indexes computed before the measurement.
+ */
+public enum KeyDistribution {
+    /** Every key equally likely */
+    UNIFORM {
+        @Override
+        int[] sequence(int size, int length, Random random) {
+            int[] sequence = new int[length];
+            for (int i = 0; i < length; i++)
+                sequence[i] = random.nextInt(size);
+            return sequence;
+        }
+    },
+    /** A few hot keys take most accesses (theta 0.99 as YCSB), the hot keys are spread across the tree */
+    ZIPFIAN {
+        @Override
+        int[] sequence(int size, int length, Random random) {
+            double theta = 0.99;
+            double zetaN = 0;
+            for (int i = 1; i <= size; i++)
+                zetaN += 1 / Math.pow(i, theta);
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            double alpha = 1 / (1 - theta);
+            double eta = (1 - Math.pow(2.0 / size, 1 - theta)) / (1 - zeta2 / zetaN);
+
+            // rank 0 is the hottest, ranks are mapped to keys by a random permutation
+            int[] keyOfRank = new int[size];
+            for (int i = 0; i < size; i++)
+                keyOfRank[i] = i;
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swapped = keyOfRank[i];
+                keyOfRank[i] = keyOfRank[j];
+                keyOfRank[j] = swapped;
+            }
+
+            int[] sequence = new int[length];
+            for (int i = 0; i < length; i++) {
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                int rank;
+                if (uz < 1)
+                    rank = 0;
+                else if (uz < zeta2)
+                    rank = 1;
+                else
+                    rank = (int) (size * Math.pow(eta * u - eta + 1, alpha));
+                sequence[i] = keyOfRank[Math.min(rank, size - 1)];
+            }
+            return sequence;
+        }
+    },
+    /** Keys in ascending order, then again from the first one */
+    SEQUENTIAL {
+        @Override
+        int[] sequence(int size, int length, Random random) {
+            int[] sequence = new int[length];
+            for (int i = 0; i < length; i++)
+                sequence[i] = i % size;
+            return sequence;
+        }
+    };
+
+    abstract int[] sequence(int size, int length, Random random);
+}
@@ -0,0 +1,32 @@
+package fr.miage.btree;
+
+/**
+ * Type of the keys of the benchmarked trees, the values are always strings.
+ */
+public enum KeyType {
+    LONG(Long.class) {
+        @Override
+        Workload<?> newWorkload(int size, BtreeConfig config) {
+            return new Workload<>(size, config, rank -> (long) rank);
+        }
+    },
+    /** Zero-padded, so that the order of the strings is the order of the ranks */
+    STRING(String.class) {
+        @Override
+        Workload<?> newWorkload(int size, BtreeConfig config) {
+            return new Workload<>(size, config, rank -> String.format("key%010d", rank));
+        }
+    };
+
+    private final Class<?> keyClass;
+
+    KeyType(Class<?> keyClass) {
+        this.keyClass = keyClass;
+    }
+
+    Class<?> getKeyClass() {
+        return keyClass;
+    }
+
+    abstract Workload<?> newWorkload(int size, BtreeConfig config);
+}
@@ -0,0 +1,78 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches mixed with updates, in the proportion of the operation mix. An update inserts a key missing
+ * from the tree or deletes it back, so the size of the tree stays stable.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MixedWorkloadBenchmark {
+
+    public enum OperationMix {
+        READ_ONLY(100),
+        READ_MOSTLY(95),
+        BALANCED(50),
+        WRITE_HEAVY(10);
+
+        private final int readPercent;
+
+        OperationMix(int readPercent) {
+            this.readPercent = readPercent;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MixedState extends BtreeState {
+        private static final int OPERATIONS_LENGTH = 1 << 16;
+
+        @Param({"READ_ONLY", "READ_MOSTLY", "BALANCED", "WRITE_HEAVY"})
+        public OperationMix mix;
+
+        private boolean[] reads;
+        private int operation;
+
+        @Setup(Level.Trial)
+        public void setUpOperations() {
+            Random random = new Random(7);
+            reads = new boolean[OPERATIONS_LENGTH];
+            for (int i = 0; i < OPERATIONS_LENGTH; i++)
+                reads[i] = random.nextInt(100) < mix.readPercent;
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            workload.reset();
+        }
+
+        boolean nextIsRead() {
+            return reads[operation++ & (OPERATIONS_LENGTH - 1)];
+        }
+    }
+
+    @Benchmark
+    public String operation(MixedState state) {
+        if (state.nextIsRead())
+            return state.workload.search(state.nextIndex());
+        state.workload.toggle(state.nextIndex());
+        return null;
+    }
+}
@@ -0,0 +1,25 @@
+package fr.miage.btree;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Parameters of the benchmarked trees, shared by the benchmark states.
+ */
+public abstract class TreeParams {
+    /** Order of the leaves and the internal nodes, "auto" for {@link BtreeConfig#autoTune(Class, Class)} */
+    @Param({"5", "64", "auto"})
+    public String order;
+
+    @Param({"LONG", "STRING"})
+    public KeyType keyType;
+
+    /** Number of keys in the tree */
+    @Param({"10000", "1000000"})
+    public int size;
+
+    BtreeConfig config() {
+        if (order.equals("auto"))
+            return BtreeConfig.autoTune(keyType.getKeyClass(), String.class);
+        return BtreeConfig.of(Integer.parseInt(order));
+    }
+}
@@ -0,0 +1,109 @@
+package fr.miage.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A tree and the keys the benchmarks use on it, created before the measurement.
+ *
+ * The keys are numbered by rank, in key order : the tree holds the keys of even ranks,
+ * the keys of odd ranks are missing from it and used for the inserts. Operations take the index
+ * of a key of the tree, in [0, size[, the key inserted for an index is the one following it.
+ */
+final class Workload<TKey extends Comparable<TKey>> {
+    static final String VALUE = "value";
+
+    private final int size;
+    private final BtreeConfig config;
+    private final List<TKey> keys;
+    private final boolean[] inserted;
+    private Btree<TKey, String> btree;
+
+    Workload(int size, BtreeConfig config, IntFunction<TKey> keyOf) {
+        this.size = size;
+        this.config = config;
+        this.keys = new ArrayList<>(2 * size);
+        for (int rank = 0; rank < 2 * size; rank++)
+            this.keys.add(keyOf.apply(rank));
+        this.inserted = new boolean[size];
+        this.reset();
+    }
+
+    /**
+     * Rebuild the tree with its initial keys, undoing the inserts and deletes.
+     */
+    void reset() {
+        btree = this.bulkLoad();
+        Arrays.fill(inserted, false);
+    }
+
+    Btree<TKey, String> bulkLoad() {
+        return Btree.bulkLoad(this.initialEntries().iterator(), Btree.DEFAULT_FILL_FACTOR, config);
+    }
+
+    /**
+     * Build the tree with one insert per key, in the given order of indexes.
+     */
+    Btree<TKey, String> insertAll(int[] order) {
+        Btree<TKey, String> built = new Btree<>(config);
+        for (int index : order)
+            built.insert(keys.get(2 * index), VALUE);
+        return built;
+    }
+
+    String search(int index) {
+        return btree.search(keys.get(2 * index));
+    }
+
+    String searchMissing(int index) {
+        return btree.search(keys.get(2 * index + 1));
+    }
+
+    /**
+     * Read up to length entries from the key of the index.
+     * @return the number of entries read
+     */
+    int scan(int index, int length) {
+        BtreeCursor<TKey, String> cursor = btree.scanFrom(keys.get(2 * index));
+        int read = 0;
+        while (read < length && cursor.hasNext()) {
+            cursor.next();
+            read++;
+        }
+        return read;
+    }
+
+    void insert(int index) {
+        btree.insert(keys.get(2 * index + 1), VALUE);
+    }
+
+    void delete(int index) {
+        btree.delete(keys.get(2 * index));
+    }
+
+    /**
+     * Insert the key following the index, or delete it if it was inserted : the size of the tree stays stable.
+     */
+    void toggle(int index) {
+        if (inserted[index])
+            btree.delete(keys.get(2 * index + 1));
+        else
+            btree.insert(keys.get(2 * index + 1), VALUE);
+        inserted[index] = !inserted[index];
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    private List<Map.Entry<TKey, String>> initialEntries() {
+        return IntStream.range(0, size)
+                .mapToObj(index -> (Map.Entry<TKey, String>) new AbstractMap.SimpleImmutableEntry<>(keys.get(2 * index), VALUE))
+                .toList();
+    }
+}
@@ -2,67 +2,933 @@ package fr.miage.btree;
 
 import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+@JsonSerialize(using = BtreeSerializer.class)
 @JsonDeserialize(using = BtreeDeserializer.class)
 public class Btree <TKey extends Comparable<TKey>, TValue> {
+    /** Leaves filled at 90% leave room for a few inserts before the first splits */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
 
     @JsonView(Views.Public.class)
     private Node<TKey> root;
 
+    @JsonView(Views.Public.class)
+    private final BtreeConfig config;
+
+    /** Incremented by each snapshot, nodes of an older epoch are copied before being modified */
+    private long epoch;
+
+    /** Updates are appended to the log, when the tree has one */
+    private WriteAheadLog<TKey, TValue> log;
+
+    /** Kept up to date by the updates, counted on first use for a tree over existing nodes (a snapshot) */
+    private BtreeStatistics statistics;
+
+    /** Receives the duration of the operations, when the tree has one */
+    private LatencyRecorder latencyRecorder;
+
+    /** Values found by the last searches, when the config asks for a cache (not for snapshots) */
+    private LookupCache<TKey, TValue> lookupCache;
+
     public Btree() {
-        this.root = new LeafNode<TKey, TValue>();
+        this(BtreeConfig.defaults());
+    }
+
+    /**
+     * @param order the order of both leaf and internal nodes
+     */
+    public Btree(int order) {
+        this(BtreeConfig.of(order));
+    }
+
+    public Btree(int leafOrder, int innerOrder) {
+        this(new BtreeConfig(leafOrder, innerOrder));
+    }
+
+    public Btree(BtreeConfig config) {
+        this.config = config;
+        this.root = LeafNode.create(config);
+        this.statistics = BtreeStatistics.count(config, this.root);
+        this.createLookupCache();
+    }
+
+    /**
+     * Tree over existing nodes, the epoch must be the one of the tree they come from.
+     */
+    Btree(BtreeConfig config, Node<TKey> root, long epoch) {
+        this.config = config;
+        this.root = root;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Build a tree bottom-up from entries already sorted by key, in a single O(n) pass.
+     * @param sortedEntries entries sorted by key, an IllegalArgumentException is thrown otherwise
+     * @param fillFactor the part of each node which is filled, in ]0, 1]
+     */
+    public static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> bulkLoad(
+            Iterator<? extends Map.Entry<TKey, TValue>> sortedEntries, double fillFactor, BtreeConfig config) {
+        return new BtreeBulkLoader<TKey, TValue>(config, fillFactor).load(sortedEntries);
+    }
+
+    public static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> bulkLoad(
+            Iterator<? extends Map.Entry<TKey, TValue>> sortedEntries, double fillFactor) {
+        return bulkLoad(sortedEntries, fillFactor, BtreeConfig.defaults());
+    }
+
+    /**
+     * Build a tree bottom-up from entries in any order, they are sorted first.
+     * The sort is stable and linear on already sorted input, so duplicated keys keep their order.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> bulkLoad(
+            Stream<? extends Map.Entry<TKey, TValue>> entries, double fillFactor, BtreeConfig config) {
+        Iterator<? extends Map.Entry<TKey, TValue>> sortedEntries = entries
+                .sorted((left, right) -> left.getKey().compareTo(right.getKey()))
+                .iterator();
+        return bulkLoad(sortedEntries, fillFactor, config);
+    }
+
+    public static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> bulkLoad(
+            Stream<? extends Map.Entry<TKey, TValue>> entries, double fillFactor) {
+        return bulkLoad(entries, fillFactor, BtreeConfig.defaults());
     }
 
     /**
      * Insert a new key and its associated value into the B+ tree.
+     * When the key is already in the tree, the {@link BtreeConfig.DuplicateKeyPolicy} of the config applies.
      */
     public void insert(TKey key, TValue value) {
-        LeafNode<TKey, TValue> leaf = this.findLeafNodeShouldContainKey(key);
+        if (!this.keepsDuplicates()) {
+            this.insertUnique(key, value);
+            return;
+        }
+        long start = this.startTiming();
+        long logPosition = this.logInsert(key, value);
+        LeafNode<TKey, TValue> leaf = this.findLeafNodeToUpdate(key);
+        this.insertIntoLeaf(leaf, key, value);
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(LatencyRecorder.Operation.INSERT, start);
+    }
+
+    /**
+     * Whether an insert adds an entry next to the ones of its key, otherwise it goes through {@link #insertUnique(Comparable, Object)}.
+     */
+    boolean keepsDuplicates() {
+        return this.config.getDuplicateKeyPolicy() == BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE;
+    }
+
+    /**
+     * Insert an entry as an update of its key, which replaces or rejects the value of a key already in the tree.
+     */
+    void insertUnique(TKey key, TValue value) {
+        BtreeConfig.DuplicateKeyPolicy policy = this.config.getDuplicateKeyPolicy();
+        this.update(key, (k, previous) -> policy.resolve(k, previous, value), false,
+                LatencyRecorder.Operation.INSERT);
+    }
+
+    /**
+     * Insert into the leaf which should contain the key (a leaf of the current epoch), then split up the tree as long as nodes overflow.
+     */
+    void insertIntoLeaf(LeafNode<TKey, TValue> leaf, TKey key, TValue value) {
         leaf.insertKey(key, value);
+        this.statistics.entriesAdded(1);
+        this.countEntries(leaf, key, 1);
 
         if (leaf.isOverflow()) {
-            Node<TKey> n = leaf.dealOverflow();
+            Node<TKey> n = leaf.dealOverflow(this.statistics);
             if (n != null)
                 this.root = n;
         }
     }
 
+    /**
+     * Insert a batch of entries. They are sorted first, then each leaf they fall into is reached once, by a single
+     * descent or from the previous leaf, and takes all its entries in a single merge before being split.
+     * The tree is the same as after inserting the entries one by one in the order given.
+     * With {@link BtreeConfig.DuplicateKeyPolicy#REJECT}, the batch is checked first : no entry is inserted when a key is
+     * already in the tree or twice in the batch.
+     */
+    public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        long logPosition = this.insertBatch(entries);
+        this.invalidateCached(entries);
+        this.awaitDurable(logPosition);
+    }
+
+    /**
+     * Log the entries in the order given, then insert them leaf by leaf.
+     * @return the position to wait for once the entries are inserted
+     */
+    long insertBatch(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        return this.insertBatch(entries, this.config.getDuplicateKeyPolicy());
+    }
+
+    /**
+     * @param policy the policy applied to the keys already in the tree, the one of the config for the inserts
+     */
+    long insertBatch(Collection<? extends Map.Entry<TKey, TValue>> entries, BtreeConfig.DuplicateKeyPolicy policy) {
+        List<Map.Entry<TKey, TValue>> batch = new ArrayList<>(entries);
+        boolean keepsDuplicates = policy == BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE;
+        if (policy == BtreeConfig.DuplicateKeyPolicy.REJECT)
+            this.checkMissing(batch);
+        long logPosition = 0;
+        for (Map.Entry<TKey, TValue> entry : batch) {
+            // an entry which replaces the value of its key is replayed as such, whatever the policy of the replaying tree
+            logPosition = keepsDuplicates ? this.logInsert(entry.getKey(), entry.getValue()) : this.logPut(entry.getKey(), entry.getValue());
+        }
+
+        // the entries of a same key are merged in the reverse order, as each insert goes before the equal keys
+        int[] order = sortedIndexes(batch.stream().map(Map.Entry::getKey).toList(), true);
+        List<Map.Entry<TKey, TValue>> sorted = new ArrayList<>(order.length);
+        for (int index : order) {
+            // otherwise only the last entry given for a key is kept, the first of the key in reverse order
+            Map.Entry<TKey, TValue> entry = batch.get(index);
+            if (keepsDuplicates || sorted.isEmpty() || sorted.get(sorted.size() - 1).getKey().compareTo(entry.getKey()) != 0)
+                sorted.add(entry);
+        }
+
+        LeafNode<TKey, TValue> nextLeaf = null;
+        int from = 0;
+        while (from < sorted.size()) {
+            TKey key = sorted.get(from).getKey();
+            // the leaf following the previous one takes the next keys when it is private and they fall into it,
+            // otherwise a descent finds the leaf and copies the nodes shared with a snapshot
+            LeafNode<TKey, TValue> leaf = nextLeaf;
+            TKey fence = leaf == null || leaf.epoch != this.epoch ? null : this.upperFence(leaf);
+            if (leaf == null || leaf.epoch != this.epoch || !fallsInto(leaf, fence, key)) {
+                leaf = this.findLeafNodeToUpdate(key);
+                fence = this.upperFence(leaf);
+            }
+
+            int to = from + 1;
+            while (to < sorted.size() && fallsInto(leaf, fence, sorted.get(to).getKey()))
+                to++;
+            // taken before the split, the new right parts of the leaf hold none of the next keys
+            nextLeaf = this.nextLeaf(leaf);
+            List<Map.Entry<TKey, TValue>> leafEntries = sorted.subList(from, to);
+            if (!keepsDuplicates)
+                leafEntries = this.replaceInLeaf(leaf, leafEntries);
+            if (!leafEntries.isEmpty())
+                this.insertIntoLeaf(leaf, leafEntries);
+            from = to;
+        }
+        return logPosition;
+    }
+
+    /**
+     * Whether a key goes to a leaf, as by {@link #findLeafNodeToUpdate(Comparable)} : below the upper separator of the leaf,
+     * or equal to it when the leaf holds a key as large (otherwise the entries of the key start at the next leaf).
+     * @param fence the upper separator of the leaf, see {@link #upperFence(Node)}
+     */
+    private static <TKey extends Comparable<TKey>> boolean fallsInto(LeafNode<TKey, ?> leaf, TKey fence, TKey key) {
+        if (fence == null)
+            return true;
+        int cmp = key.compareTo(fence);
+        return cmp < 0 || (cmp == 0 && leaf.getKeyCount() > 0 && !leaf.isAfterLastKey(key));
+    }
+
+    /**
+     * Fail when a key of the batch is already in the tree, or twice in the batch.
+     */
+    void checkMissing(List<? extends Map.Entry<TKey, TValue>> batch) {
+        List<TKey> keys = batch.stream().map(Map.Entry::getKey).toList();
+        TKey previousKey = null;
+        for (int index : sortedIndexes(keys, false)) {
+            TKey key = keys.get(index);
+            if (previousKey != null && previousKey.compareTo(key) == 0)
+                throw new IllegalArgumentException("Key is twice in the batch: " + key);
+            if (this.searchInLeaf(this.findLeafNodeShouldContainKey(key), key) != null)
+                throw new IllegalArgumentException("Key is already in the tree: " + key);
+            previousKey = key;
+        }
+    }
+
+    /**
+     * Replace the values of the keys already in a leaf (a leaf of the current epoch), for the trees which keep a single
+     * entry per key.
+     * @return the entries of the keys missing from the leaf, still sorted
+     */
+    List<Map.Entry<TKey, TValue>> replaceInLeaf(LeafNode<TKey, TValue> leaf, List<Map.Entry<TKey, TValue>> sortedEntries) {
+        List<Map.Entry<TKey, TValue>> missing = new ArrayList<>(sortedEntries.size());
+        for (Map.Entry<TKey, TValue> entry : sortedEntries) {
+            int index = leaf.search(entry.getKey());
+            if (index == -1)
+                missing.add(entry);
+            else
+                leaf.setValue(index, entry.getValue());
+        }
+        return missing;
+    }
+
+    /**
+     * Merge sorted entries into the leaf which should contain them (a leaf of the current epoch).
+     * A leaf overflowing by many entries is cut from its end, into leaves filled as by a bulk load.
+     */
+    void insertIntoLeaf(LeafNode<TKey, TValue> leaf, List<? extends Map.Entry<TKey, TValue>> sortedEntries) {
+        leaf.insertSorted(sortedEntries);
+        this.statistics.entriesAdded(sortedEntries.size());
+        this.countEntries(leaf, sortedEntries.get(0).getKey(), sortedEntries.size());
+        if (!leaf.isOverflow())
+            return;
+
+        int keyCount = leaf.getKeyCount();
+        int maxKeyCount = leaf.getOrder() - 1;
+        int leafCount = (int) Math.ceil(keyCount / Math.max(1.0, maxKeyCount * DEFAULT_FILL_FACTOR));
+        leafCount = Math.max(2, Math.min(leafCount, keyCount / Math.max(1, leaf.getMinKeyCount())));
+        for (int part = leafCount - 1; part > 0; part--) {
+            // the first parts get one key more when the keys can not be evenly split
+            int splitIndex = part * (keyCount / leafCount) + Math.min(part, keyCount % leafCount);
+            Node<TKey> n = leaf.dealOverflow(splitIndex, this.statistics);
+            if (n != null)
+                this.root = n;
+        }
+        leaf.trimToOrder();
+    }
+
     /**
      * Search a key value on the tree and return its associated value.
+     * With a lookup cache, the value is taken from the cache when the key was searched recently.
      */
     public TValue search(TKey key) {
+        long start = this.startTiming();
+        TValue value = this.lookupCache == null ? this.find(key) : this.findCached(key);
+        this.recordLatency(LatencyRecorder.Operation.SEARCH, start);
+        return value;
+    }
+
+    /**
+     * Search the tree itself for a key, overridden by the trees which guard or store their nodes differently.
+     */
+    TValue find(TKey key) {
         LeafNode<TKey, TValue> leaf = this.findLeafNodeShouldContainKey(key);
+        return this.searchInLeaf(leaf, key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private TValue findCached(TKey key) {
+        LookupCache<TKey, TValue> cache = this.lookupCache;
+        Object cached = cache.get(key);
+        if (cached != LookupCache.NOT_CACHED)
+            return (TValue) cached;
+
+        // the stamp is taken before the tree is read, the value is not cached if the key is updated meanwhile
+        long stamp = cache.stamp(key);
+        TValue value = this.find(key);
+        cache.put(key, value, stamp);
+        return value;
+    }
+
+    /**
+     * Search a batch of keys. They are sorted first, then each leaf they fall into is reached once,
+     * by a single descent or from the previous leaf, and searched for all its keys.
+     * @return the values in the order of the keys, null for the missing keys
+     */
+    public List<TValue> searchAll(Collection<TKey> keys) {
+        List<TKey> batch = new ArrayList<>(keys);
+        List<TValue> values = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        LeafNode<TKey, TValue> leaf = null;
+        for (int index : sortedIndexes(batch, false)) {
+            TKey key = batch.get(index);
+            // a key after the last one of the leaf is in the next leaf, or past it
+            if (leaf == null || leaf.getKeyCount() == 0 || leaf.isAfterLastKey(key)) {
+                LeafNode<TKey, TValue> nextLeaf = leaf == null ? null : this.nextLeaf(leaf);
+                if (nextLeaf != null && nextLeaf.getKeyCount() > 0 && !nextLeaf.isAfterLastKey(key))
+                    leaf = nextLeaf;
+                else
+                    leaf = this.findLeafNodeShouldContainKey(key);
+            }
+            values.set(index, this.searchInLeaf(leaf, key));
+        }
+        return values;
+    }
 
+    /**
+     * Indexes of the keys in key order.
+     * @param reverseTies whether equal keys are in reverse order of their indexes instead of in their order
+     */
+    static <TKey extends Comparable<TKey>> int[] sortedIndexes(List<TKey> keys, boolean reverseTies) {
+        // the keys are sorted next to their index, comparing them directly is much faster than through the indexes
+        @SuppressWarnings("unchecked")
+        IndexedKey<TKey>[] indexedKeys = new IndexedKey[keys.size()];
+        for (int i = 0; i < indexedKeys.length; i++) {
+            int index = reverseTies ? indexedKeys.length - 1 - i : i;
+            indexedKeys[i] = new IndexedKey<>(keys.get(index), index);
+        }
+        // the sort is stable : equal keys keep the order of the indexes
+        Arrays.sort(indexedKeys, (left, right) -> left.key().compareTo(right.key()));
+        int[] order = new int[indexedKeys.length];
+        for (int i = 0; i < indexedKeys.length; i++)
+            order[i] = indexedKeys[i].index();
+        return order;
+    }
+
+    private record IndexedKey<TKey>(TKey key, int index) {
+    }
+
+    TValue searchInLeaf(LeafNode<TKey, TValue> leaf, TKey key) {
         int index = leaf.search(key);
         return (index == -1) ? null : leaf.getValue(index);
     }
 
+    /**
+     * All the values of a key : the ones of the entries a tree keeping duplicates holds for the key
+     * (see {@link BtreeConfig.DuplicateKeyPolicy#MULTI_VALUE}), a single one otherwise.
+     */
+    public List<TValue> searchValues(TKey key) {
+        List<TValue> values = new ArrayList<>();
+        BtreeCursor<TKey, TValue> cursor = this.range(key, true, key, true);
+        while (cursor.hasNext())
+            values.add(cursor.next().getValue());
+        return values;
+    }
+
     /**
      * Delete a key and its associated value from the tree.
      */
     public void delete(TKey key) {
-        LeafNode<TKey, TValue> leaf = this.findLeafNodeShouldContainKey(key);
+        long start = this.startTiming();
+        long logPosition = this.logDelete(key);
+        LeafNode<TKey, TValue> leaf = this.findLeafNodeToUpdate(key);
+        this.deleteFromLeaf(leaf, key);
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(LatencyRecorder.Operation.DELETE, start);
+    }
+
+    /**
+     * Delete from the leaf which should contain the key (a leaf of the current epoch), then borrow or merge up the tree as long as nodes underflow.
+     */
+    void deleteFromLeaf(LeafNode<TKey, TValue> leaf, TKey key) {
+        if (!leaf.delete(key))
+            return;
 
-        if (leaf.delete(key) && leaf.isUnderflow()) {
-            Node<TKey> n = leaf.dealUnderflow();
+        this.statistics.entryRemoved();
+        this.countEntries(leaf, key, -1);
+        if (leaf.isUnderflow()) {
+            Node<TKey> n = leaf.dealUnderflow(this.statistics);
             if (n != null)
                 this.root = n;
         }
     }
 
     /**
-     * Search the leaf node which should contain the specified key
+     * Add to the entry counts of the ancestors of a leaf, once entries were added to or removed from it and before it is
+     * split or merged : the splits and merges then count the entries of the nodes they change.
+     * @param key a key of the entries, to find the leaf in its parent
+     */
+    @SuppressWarnings("unchecked")
+    void countEntries(Node<TKey> node, TKey key, long delta) {
+        for (InternalNode<TKey> parent = (InternalNode<TKey>) node.getParent(); parent != null;
+             node = parent, parent = (InternalNode<TKey>) parent.getParent())
+            parent.addToChildEntryCount(parent.indexOfChild(node, key), delta);
+    }
+
+    /* The codes below update the entry of a key in a single descent : the value is replaced in place. A null value
+     * stands for a missing key, as for search : an update to null removes the entry. */
+
+    /**
+     * Associate a value with a key, replacing the value of the key when it is in the tree.
+     * @return the previous value, null when the key was missing
+     */
+    public TValue put(TKey key, TValue value) {
+        return this.update(key, (k, previous) -> value, false, LatencyRecorder.Operation.UPDATE);
+    }
+
+    /**
+     * Insert an entry unless its key is in the tree.
+     * @return the value of the key, null when the entry was inserted
+     */
+    public TValue putIfAbsent(TKey key, TValue value) {
+        return this.update(key, (k, previous) -> previous == null ? value : previous, false, LatencyRecorder.Operation.UPDATE);
+    }
+
+    /**
+     * Replace the value of a key, only when the key is in the tree.
+     * @return the previous value, null when the key is missing and nothing was inserted
+     */
+    public TValue replace(TKey key, TValue value) {
+        return this.update(key, (k, previous) -> previous == null ? null : value, false, LatencyRecorder.Operation.UPDATE);
+    }
+
+    /**
+     * Compute the new value of a key from its current one (null when the key is missing), a null result removing the entry.
+     * The function is called once, it must not update the tree.
+     * @return the new value
+     */
+    public TValue compute(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> remapping) {
+        return this.update(key, remapping, true, LatencyRecorder.Operation.UPDATE);
+    }
+
+    /**
+     * Insert the value when the key is missing, otherwise combine the current value with it, a null result removing the entry.
+     * @return the new value
+     */
+    public TValue merge(TKey key, TValue value, BiFunction<? super TValue, ? super TValue, ? extends TValue> remapping) {
+        return this.update(key, (k, previous) -> previous == null ? value : remapping.apply(previous, value), true,
+                LatencyRecorder.Operation.UPDATE);
+    }
+
+    /**
+     * Update the entry of a key, overridden by the trees which guard or store their nodes differently.
+     * On a tree keeping duplicates, the entry updated is the one search returns.
+     * @param function gets the key and its current value (null when the key is missing), returns the new value
+     * @param returnsNew whether the new value is returned, otherwise the previous one
+     * @param operation the operation the latency is recorded for, INSERT when an insert goes through the update
+     */
+    TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                        LatencyRecorder.Operation operation) {
+        long start = this.startTiming();
+        LeafNode<TKey, TValue> leaf = this.findLeafNodeToUpdate(key);
+        int index = leaf.search(key);
+        TValue previous = index == -1 ? null : leaf.getValue(index);
+        TValue value = function.apply(key, previous);
+        long logPosition = this.updateInLeaf(leaf, index, key, previous, value);
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(operation, start);
+        return returnsNew ? value : previous;
+    }
+
+    /**
+     * Apply the new value of a key to the leaf which should contain it (a leaf of the current epoch) : the value is
+     * replaced in place, or the entry inserted or deleted.
+     * @param index the index of the key in the leaf, -1 when it is missing
+     * @return the position of the log to wait for
+     */
+    long updateInLeaf(LeafNode<TKey, TValue> leaf, int index, TKey key, TValue previous, TValue value) {
+        long logPosition = this.logUpdate(key, previous, value);
+        if (value == previous)
+            return logPosition;
+        if (value == null)
+            this.deleteFromLeaf(leaf, key);
+        else if (index == -1)
+            this.insertIntoLeaf(leaf, key, value);
+        else
+            leaf.setValue(index, value);
+        return logPosition;
+    }
+
+    /**
+     * Read-only view of the tree as it is now, which later updates of the tree do not change.
+     * Taking a snapshot is O(1) : the nodes are shared, and the tree copies a node before its first update
+     * after the snapshot (the node and its ancestors, path copying). A snapshot no longer used is garbage collected.
+     */
+    public Btree<TKey, TValue> snapshot() {
+        this.epoch++;
+        return new BtreeSnapshot<>(this.config, this.root, this.epoch, this.getLogPosition());
+    }
+
+    /**
+     * The node at a path from the root, whose descendants are read down to a depth by a {@link BtreeWindow} :
+     * the node of the tree itself here, which a single thread updates. The trees shared between threads copy the nodes
+     * of the window (see {@link #copyWindow(Node, int, Consumer)}), the trees whose nodes are not all on the heap build
+     * only the nodes of the window.
+     * @param path the indexes of the children to take from the root, empty for the root
+     * @throws IllegalArgumentException if the path does not lead to a node of the tree
+     */
+    Node<TKey> nodeAt(List<Integer> path, int depth) {
+        return nodeAt(this.getRoot(), path);
+    }
+
+    static <TKey extends Comparable<TKey>> Node<TKey> nodeAt(Node<TKey> root, List<Integer> path) {
+        Node<TKey> node = root;
+        for (int index : path) {
+            if (!(node instanceof InternalNode<TKey> internalNode) || index < 0 || index >= internalNode.getChildCount())
+                throw new IllegalArgumentException("Path must lead to a node of the tree: " + path);
+            node = internalNode.getChild(index);
+        }
+        return node;
+    }
+
+    /**
+     * Copy of a node and of its descendants down to a depth, the nodes a window writes : the internal nodes at the depth
+     * are copied without their children, which the window does not read.
+     * @param reading called with each node of the tree before it is read
      */
     @SuppressWarnings("unchecked")
-    private LeafNode<TKey, TValue> findLeafNodeShouldContainKey(TKey key) {
+    static <TKey extends Comparable<TKey>> Node<TKey> copyWindow(Node<TKey> node, int depth, Consumer<Node<TKey>> reading) {
+        reading.accept(node);
+        if (node.getNodeType() == NodeType.LeafNode) {
+            LeafNode<TKey, Object> leaf = (LeafNode<TKey, Object>) node;
+            LeafNode<TKey, Object> copy = new LeafNode<>(leaf.config);
+            for (int i = 0; i < leaf.getKeyCount(); i++) {
+                copy.addKey(leaf.getKey(i));
+                copy.addValue(leaf.getValue(i));
+            }
+            return copy;
+        }
+        InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+        InternalNode<TKey> copy = new InternalNode<>(internalNode.config);
+        for (int i = 0; i < internalNode.getKeyCount(); i++)
+            copy.addKey(internalNode.getKey(i));
+        if (depth > 0) {
+            for (int i = 0; i < internalNode.getChildCount(); i++)
+                copy.addChild(copyWindow(internalNode.getChild(i), depth - 1, reading), internalNode.getChildEntryCount(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Append the updates of the tree to a log, before they are applied. Set before the tree is shared between threads.
+     * @param log the log, replayed on this tree first if it has records, or null to stop logging
+     */
+    public void setLog(WriteAheadLog<TKey, TValue> log) {
+        this.log = log;
+    }
+
+    /**
+     * Append an update to the log, to be called while the update is applied so that records are in the same order.
+     * @return the position to wait for once the update is applied, outside of any lock
+     */
+    long logInsert(TKey key, TValue value) {
+        return this.log == null ? 0 : this.log.appendInsert(key, value);
+    }
+
+    long logDelete(TKey key) {
+        return this.log == null ? 0 : this.log.appendDelete(key);
+    }
+
+    long logPut(TKey key, TValue value) {
+        return this.log == null ? 0 : this.log.appendPut(key, value);
+    }
+
+    /**
+     * Append the update of a key to the log, nothing when its value is unchanged.
+     */
+    long logUpdate(TKey key, TValue previous, TValue value) {
+        if (value == previous)
+            return 0;
+        return value == null ? this.logDelete(key) : this.logPut(key, value);
+    }
+
+    void awaitDurable(long logPosition) {
+        if (this.log != null)
+            this.log.awaitDurable(logPosition);
+    }
+
+    /**
+     * Position of the log matching the current content of the tree, the position a snapshot is checkpointed at.
+     */
+    long getLogPosition() {
+        return this.log == null ? 0 : this.log.getAppendedPosition();
+    }
+
+    /**
+     * Shape of the tree (entries, nodes, height) and count of its structural changes, see {@link BtreeStatistics}.
+     */
+    public BtreeStatistics getStatistics() {
+        BtreeStatistics statistics = this.statistics;
+        if (statistics == null) {
+            // a snapshot is never updated, counting it once is enough
+            statistics = this.countStatistics();
+            this.statistics = statistics;
+        }
+        return statistics;
+    }
+
+    /**
+     * Count the tree from its root, for a tree built node by node : the updates then keep the counters up to date.
+     */
+    void recountStatistics() {
+        this.statistics = this.countStatistics();
+    }
+
+    /**
+     * Statistics known without counting the tree : the ones of the tree the nodes were taken from, or of an index.
+     */
+    void setStatistics(BtreeStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    BtreeStatistics countStatistics() {
+        return BtreeStatistics.count(this.config, this.root);
+    }
+
+    /**
+     * Create the lookup cache asked by the config, for a tree built over existing nodes which is then updated.
+     */
+    void createLookupCache() {
+        this.lookupCache = LookupCache.of(this.config);
+    }
+
+    /**
+     * Cache of the values found by the last searches, see {@link BtreeConfig#withLookupCacheEntries(int)}.
+     * @return the cache and its hit rate, or null when the tree has none
+     */
+    public LookupCache<TKey, TValue> getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * Forget the cached value of a key, once an update of it is applied and before the update returns.
+     * Splits, borrows and merges move entries between nodes without changing the value of any key,
+     * only the keys written are invalidated.
+     */
+    void invalidateCached(TKey key) {
+        if (this.lookupCache != null)
+            this.lookupCache.invalidate(key);
+    }
+
+    void invalidateCached(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        if (this.lookupCache != null) {
+            for (Map.Entry<TKey, TValue> entry : entries)
+                this.lookupCache.invalidate(entry.getKey());
+        }
+    }
+
+    /**
+     * Time the operations of the tree. Set before the tree is shared between threads.
+     * @param latencyRecorder the recorder, or null to stop timing
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * @return the start of an operation to pass to recordLatency, 0 when the tree is not timed
+     */
+    long startTiming() {
+        return this.latencyRecorder == null ? 0 : System.nanoTime();
+    }
+
+    void recordLatency(LatencyRecorder.Operation operation, long start) {
+        if (this.latencyRecorder != null)
+            this.latencyRecorder.record(operation, System.nanoTime() - start);
+    }
+
+    /**
+     * Iterate over the entries between two keys in ascending order.
+     * @param from the lower bound, null to start at the smallest key
+     * @param to the upper bound, null to run until the greatest key
+     */
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        LeafNode<TKey, TValue> leaf = from == null ? this.findEdgeLeaf(false) : this.findLeafNodeShouldContainKey(from);
+        return BtreeCursor.ascending(leaf, from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Iterate over the entries from a key (included) to the end of the tree.
+     */
+    public BtreeCursor<TKey, TValue> scanFrom(TKey from) {
+        return this.range(from, true, null, false);
+    }
+
+    /**
+     * Iterate over the entries in descending order.
+     * @param from the upper bound the scan starts from, null to start at the greatest key
+     * @param to the lower bound the scan stops at, null to run until the smallest key
+     */
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        LeafNode<TKey, TValue> leaf = from == null ? this.findEdgeLeaf(true) : this.findLeafNodeShouldContainKey(from);
+        return BtreeCursor.descending(leaf, from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Iterate over all the entries in descending order.
+     */
+    public BtreeCursor<TKey, TValue> descendingScan() {
+        return this.descendingScan(null, true, null, true);
+    }
+
+    /* The codes below answer order statistics from the entry counts of the children of the internal nodes, in O(log n) */
+
+    /**
+     * Number of entries of the tree.
+     */
+    public long size() {
+        return InternalNode.entryCountOf(this.getRoot());
+    }
+
+    /**
+     * Number of entries whose key is lower than the given one : the position of the first entry of the key in key order.
+     */
+    public long rank(TKey key) {
+        return this.countBefore(key, false);
+    }
+
+    /**
+     * The entry at a position in key order.
+     * @param index the position, from 0 to size() - 1
+     */
+    public Map.Entry<TKey, TValue> select(long index) {
+        if (index < 0 || index >= this.size())
+            throw new IllegalArgumentException("Index must be between 0 and the size of the tree: " + index);
+        return this.cursorAt(index, false, null, false).next();
+    }
+
+    /**
+     * Number of entries between two keys, the bounds as the ones of {@link #range(Comparable, boolean, Comparable, boolean)}.
+     */
+    public long count(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        long first = from == null ? 0 : this.countBefore(from, !fromInclusive);
+        long end = to == null ? this.size() : this.countBefore(to, toInclusive);
+        return Math.max(0, end - first);
+    }
+
+    /**
+     * Iterate over the entries between two keys in ascending order, from the entry at an offset in the range :
+     * a page of the range is reached by a single descent, the entries before it are not read.
+     */
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        long first = from == null ? 0 : this.countBefore(from, !fromInclusive);
+        return this.cursorAt(first + offset, false, to, toInclusive);
+    }
+
+    /**
+     * Iterate over the entries between two keys in descending order, from the entry at an offset in the range.
+     */
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        long end = from == null ? this.size() : this.countBefore(from, fromInclusive);
+        return this.cursorAt(end - 1 - offset, true, to, toInclusive);
+    }
+
+    /**
+     * Number of entries whose key is lower than the given one, or lower or equal when inclusive.
+     */
+    long countBefore(TKey key, boolean inclusive) {
+        long count = 0;
+        Node<TKey> node = this.getRoot();
+        while (node instanceof InternalNode<TKey> internalNode) {
+            // the children on the left of the descent only hold lower keys (or equal ones when inclusive)
+            int index = inclusive ? internalNode.upperBound(key) : internalNode.lowerBound(key);
+            for (int i = 0; i < index; i++)
+                count += internalNode.getChildEntryCount(i);
+            node = internalNode.getChild(index);
+        }
+        return count + (inclusive ? node.upperBound(key) : node.lowerBound(key));
+    }
+
+    /**
+     * Cursor from the entry at a position in key order, empty when the position is out of the tree.
+     */
+    BtreeCursor<TKey, TValue> cursorAt(long position, boolean descending, TKey to, boolean toInclusive) {
+        return BtreeCursor.atPosition(this.getRoot(), position, descending, to, toInclusive);
+    }
+
+    /**
+     * Search the leaf node which should contain the specified key : the leaf of its first entry,
+     * or the leaf a missing key is inserted into.
+     */
+    LeafNode<TKey, TValue> findLeafNodeShouldContainKey(TKey key) {
+        return this.findFirstLeaf(key, false);
+    }
+
+    /**
+     * Search the leaf node which should contain the specified key, for an update :
+     * the nodes on the way which may be shared with a snapshot are replaced by private copies.
+     */
+    LeafNode<TKey, TValue> findLeafNodeToUpdate(TKey key) {
+        if (this.root.epoch != this.epoch)
+            this.root = this.root.privateCopy(this.epoch);
+        return this.findFirstLeaf(key, true);
+    }
+
+    /**
+     * A split leaves the duplicates of its separator on both sides : the descent takes the leftmost child which may hold
+     * the key (lower bound), whose keys may then all be lower. The entries of the key then start at the next leaf,
+     * the first one of the child on the right of the last separator equal to the key.
+     * New entries go before the ones of their key, so the entries of a key are in the same order whatever the shape of the tree.
+     * @param toUpdate whether the nodes on the way are replaced by private copies, the root being private
+     */
+    @SuppressWarnings("unchecked")
+    private LeafNode<TKey, TValue> findFirstLeaf(TKey key, boolean toUpdate) {
+        // the lowest node where the descent did not take the last child
+        InternalNode<TKey> fork = null;
+        int forkIndex = 0;
+        Node<TKey> node = this.root;
+        while (node.getNodeType() == NodeType.InternalNode) {
+            InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+            int index = internalNode.lowerBound(key);
+            if (index < internalNode.getKeyCount()) {
+                fork = internalNode;
+                forkIndex = index;
+            }
+            node = toUpdate ? internalNode.privateChild(index) : internalNode.getChild(index);
+        }
+
+        LeafNode<TKey, TValue> leaf = (LeafNode<TKey, TValue>) node;
+        if (fork == null || leaf.getKeyCount() == 0 || !leaf.isAfterLastKey(key) || fork.getKey(forkIndex).compareTo(key) != 0)
+            return leaf;
+
+        node = toUpdate ? fork.privateChild(forkIndex + 1) : fork.getChild(forkIndex + 1);
+        while (node.getNodeType() == NodeType.InternalNode)
+            node = toUpdate ? ((InternalNode<TKey>) node).privateChild(0) : ((InternalNode<TKey>) node).getChild(0);
+        return (LeafNode<TKey, TValue>) node;
+    }
+
+    /**
+     * Next leaf in key order, followed by the batch operations instead of descending again from the root.
+     */
+    LeafNode<TKey, TValue> nextLeaf(LeafNode<TKey, TValue> leaf) {
+        return leaf.getNextLeaf();
+    }
+
+    /**
+     * Smallest separator on the right of a node : the keys of the node are not greater, null for the rightmost nodes.
+     */
+    @SuppressWarnings("unchecked")
+    TKey upperFence(Node<TKey> node) {
+        for (InternalNode<TKey> parent = (InternalNode<TKey>) node.getParent(); parent != null;
+             node = parent, parent = (InternalNode<TKey>) parent.getParent()) {
+            int index = parent.indexOfChild(node);
+            if (index < parent.getKeyCount())
+                return parent.getKey(index);
+        }
+        return null;
+    }
+
+    /**
+     * Leftmost or rightmost leaf of the tree.
+     */
+    @SuppressWarnings("unchecked")
+    LeafNode<TKey, TValue> findEdgeLeaf(boolean rightmost) {
         Node<TKey> node = this.root;
         while (node.getNodeType() == NodeType.InternalNode) {
-            node = ((InternalNode<TKey>)node).getChild( node.search(key) );
+            InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+            node = internalNode.getChild(rightmost ? internalNode.getChildCount() - 1 : 0);
         }
 
         return (LeafNode<TKey, TValue>)node;
     }
 
+    /**
+     * Rebuild the sibling links of every level, for trees assembled node by node (by an import for instance).
+     */
+    void linkSiblings() {
+        List<Node<TKey>> level = List.of(this.root);
+        while (!level.isEmpty()) {
+            List<Node<TKey>> nextLevel = new ArrayList<>();
+            Node<TKey> previous = null;
+            for (Node<TKey> node : level) {
+                node.setLeftSibling(previous);
+                node.setRightSibling(null);
+                if (previous != null)
+                    previous.setRightSibling(node);
+                previous = node;
+
+                if (node.getNodeType() == NodeType.InternalNode)
+                    nextLevel.addAll(((InternalNode<TKey>) node).getChildren());
+            }
+            level = nextLevel;
+        }
+    }
+
     @Override
     public String toString() {
         return this.root.toString();
@@ -70,5 +936,20 @@ public class Btree <TKey extends Comparable<TKey>, TValue> {
     
     public void setRoot(Node<TKey> root) {
         this.root = root;
+        this.recountStatistics();
+        if (this.lookupCache != null)
+            this.lookupCache.clear();
+    }
+
+    Node<TKey> getRoot() {
+        return root;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    public BtreeConfig getConfig() {
+        return config;
     }
 }
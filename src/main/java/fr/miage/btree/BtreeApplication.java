@@ -1,22 +1,35 @@
 package fr.miage.btree;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import net.datafaker.Faker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -29,7 +42,86 @@ public class BtreeApplication {
 	int index = 0;
 	
 	// The tree key and value are both String, but you can change it to whatever you want, Generic types are used
-	Btree<String, String> bplustree;
+	// Requests are served by several threads, so the tree is a concurrent one and the field is swapped atomically
+	volatile Btree<String, String> bplustree;
+	
+	// times the operations of the served tree and reports its shape, scraped at /actuator/prometheus
+	@Autowired
+	BtreeMetrics metrics;
+	
+	// "heap" keeps the nodes on the heap, "paged" stores them in the pages of a memory-mapped file
+	@Value("${btree.storage:heap}")
+	String storage;
+	
+	@Value("${btree.page-file:btree.pages}")
+	String pageFile;
+	
+	@Value("${btree.page-size:" + PagedBtree.DEFAULT_PAGE_SIZE + "}")
+	int pageSize;
+	
+	// 0 maps the whole page file in memory, otherwise only the pages cached by a buffer pool of this size are
+	@Value("${btree.buffer-pool-bytes:0}")
+	long bufferPoolBytes;
+	
+	@Value("${btree.eviction:CLOCK}")
+	BufferPool.Eviction eviction;
+	
+	// searches of a missing key skip its leaf page when its Bloom filter does not hold the key (0 : no filters)
+	@Value("${btree.leaf-filter-false-positive-rate:0}")
+	double leafFilterFalsePositiveRate;
+	
+	private BufferPool bufferPool;
+	
+	// the leaves of the trees imported from a CSV file store their keys as a shared prefix and packed suffixes
+	@Value("${btree.prefix-compression:true}")
+	boolean prefixCompression;
+	
+	// the updates of a heap tree are logged to this file when it is set, and replayed on startup
+	@Value("${btree.wal-file:}")
+	String walFile;
+	
+	// "write" : each update waits until it is on the disk, "interval" or "size" : the log is synced periodically
+	@Value("${btree.wal-sync:write}")
+	String walSync;
+	
+	@Value("${btree.wal-sync-interval-ms:100}")
+	long walSyncIntervalMillis;
+	
+	@Value("${btree.wal-sync-bytes:1048576}")
+	long walSyncBytes;
+	
+	private WriteAheadLog<String, String> log;
+	
+	// a heap tree is split in this many key ranges, each with its own lock, when it is greater than 1
+	@Value("${btree.shards:1}")
+	int shards;
+	
+	// the values found by the last searches of a heap tree are cached, up to this many keys or bytes (0 : no cache)
+	@Value("${btree.lookup-cache-entries:0}")
+	int lookupCacheEntries;
+	
+	@Value("${btree.lookup-cache-bytes:0}")
+	long lookupCacheBytes;
+	
+	// the nodes of a JSON file are read as the searches reach them, instead of all before the tree is served
+	@Value("${btree.lazy-load:false}")
+	boolean lazyLoad;
+	
+	// the nodes not searched yet are then read by a background thread
+	@Value("${btree.lazy-load-warm-up:true}")
+	boolean lazyLoadWarmUp;
+	
+	private BtreeLazyLoader lazyLoader;
+	
+	// what an insert does with a key already in a new heap tree : MULTI_VALUE adds an entry, REPLACE its value, REJECT fails
+	// a loaded tree keeps the policy saved with it
+	@Value("${btree.duplicate-key-policy:MULTI_VALUE}")
+	BtreeConfig.DuplicateKeyPolicy duplicateKeyPolicy;
+	
+	// built once and shared by the requests rendering the tree, a writer is immutable
+	private final ObjectWriter viewWriter = new ObjectMapper()
+			.disable(MapperFeature.DEFAULT_VIEW_INCLUSION)
+			.writerWithView(Views.Public.class);
 	
 	public static void main(String[] args) {
 		SpringApplication.run(BtreeApplication.class, args);
@@ -41,7 +133,34 @@ public class BtreeApplication {
 	 */
 	@PostConstruct
 	public void init() {
-		bplustree = new Btree<>();
+		if (isPaged()) {
+			// the pages keep every entry inserted, the policy of a heap tree is not stored with them
+			if (duplicateKeyPolicy != BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE)
+				throw new IllegalStateException("btree.duplicate-key-policy=" + duplicateKeyPolicy
+						+ " is not supported with btree.storage=paged");
+			// the page file keeps the tree between runs, there is nothing to rebuild
+			try {
+				bplustree = metrics.instrument(openPagedTree());
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return;
+		}
+		
+		if (!walFile.isEmpty()) {
+			// the tree is the last saved snapshot plus the updates logged since
+			try {
+				bplustree = metrics.instrument(recover());
+				warmUp();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return;
+		}
+		
+		bplustree = metrics.instrument(concurrentTree(new Btree<>()));
 		
 		Faker faker = new Faker();
 		IntStream.range(0, 13).forEach(
@@ -56,60 +175,66 @@ public class BtreeApplication {
 	
 	/**
 	 * This endpoint is used to render the tree in the browser, with a json format
+	 * Only a window of the tree is rendered, the visualizer fetches the nodes below it by their path (see {@link BtreeWindow})
+	 * A snapshot of the tree is rendered, so the JSON is consistent even while other requests update the tree
+	 * Only the nodes of the window are read : the shards of a sharded tree are children of the root, and a paged tree
+	 * reads the pages of the window alone
 	 *
+	 * @param path indexes of the children from the root to the node rendered (comma separated), the root by default
+	 * @param depth levels rendered under the node, clamped so that the window stays bounded
+	 * @param leafPageSize maximum number of entries rendered for each leaf
+	 * @param leafOffset first entry rendered when the node is a leaf
 	 * @return
-	 * @throws JsonProcessingException
 	 */
-	@GetMapping("/")
-	public String index() throws JsonProcessingException {
-		return renderView(bplustree);
+	@GetMapping(value = "/", produces = "application/json")
+	public StreamingResponseBody index(@RequestParam(defaultValue = "") List<Integer> path,
+	                                   @RequestParam(defaultValue = "2") int depth,
+	                                   @RequestParam(defaultValue = "16") int leafPageSize,
+	                                   @RequestParam(defaultValue = "0") int leafOffset) {
+		BtreeWindow window = new BtreeWindow(bplustree, path, depth, leafPageSize, leafOffset);
+		return outputStream -> viewWriter.writeValue(outputStream, window);
 	}
 	
 	/**
 	 * This method is used to illustrate the "add" process
 	 * /!\ take care to change the data type if you change the tree key and value type
 	 *
-	 * @return
-	 * @throws JsonProcessingException
+	 * @return the entry inserted and the shape of the tree
 	 */
 	@GetMapping("/add")
-	public String add() throws JsonProcessingException {
+	public Map<String, Object> add() {
 		
 		Faker faker = new Faker();
 		
-		bplustree.insert(faker.funnyName().name(), faker.address().fullAddress());
+		String key = faker.funnyName().name();
+		String value = faker.address().fullAddress();
+		bplustree.insert(key, value);
 		index++;
 		
-		return renderView(bplustree);
+		return result(Map.of("key", key, "value", value));
 	}
 	
 	/**
 	 * This method is used to illustrate the "delete"
 	 *
-	 * @return
-	 * @throws JsonProcessingException
+	 * @return the shape of the new tree
+	 * @throws IOException
 	 */
 	@GetMapping("/delete")
-	public String delete() throws JsonProcessingException {
-		bplustree = new Btree<>();
+	public Map<String, Object> delete() throws IOException {
+		bplustree = metrics.instrument(newTree());
 		index = 0;
-		return renderView(bplustree);
+		return result(Map.of());
 	}
 	
 	/**
-	 * This method is used to render the tree in the browser, with a json format
-	 *
-	 * @param btree
-	 * @return
-	 * @throws JsonProcessingException
+	 * The result of an update : a few fields and the shape of the tree, the visualizer fetches the nodes it shows from "/"
 	 */
-	public String renderView(Btree btree) throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.disable(MapperFeature.DEFAULT_VIEW_INCLUSION);
-		
-		return mapper
-				       .writerWithView(Views.Public.class)
-				       .writeValueAsString(btree);
+	private Map<String, Object> result(Map<String, Object> fields) {
+		Map<String, Object> result = new LinkedHashMap<>(fields);
+		result.put("entries", bplustree.getStatistics().getEntryCount());
+		result.put("height", bplustree.getStatistics().getHeight());
+		return result;
 	}
 	
 	/**
@@ -183,17 +308,120 @@ public class BtreeApplication {
 				break;
 	}
 	
+	/**
+	 * Stream the entries between two keys, one "key,value" line per entry, in ascending order
+	 * (or descending order when descending is true, from being then the greatest bound).
+	 * Entries are written as the cursor walks the leaves, the result is never built in memory.
+	 * A page of the range is read with offset and limit : the cursor starts at the offset by the entry counts of the tree,
+	 * without walking the entries before it.
+	 *
+	 * @param from the first bound, the scan starts at the edge of the tree when it is missing
+	 * @param to the last bound, the scan runs to the other edge of the tree when it is missing
+	 * @param offset number of entries of the range skipped
+	 * @param limit maximum number of entries written, all the entries of the range when negative
+	 * @return
+	 */
+	@GetMapping(value = "/range", produces = "text/csv")
+	public StreamingResponseBody range(@RequestParam(required = false) String from,
+	                                   @RequestParam(required = false) String to,
+	                                   @RequestParam(defaultValue = "true") boolean fromInclusive,
+	                                   @RequestParam(defaultValue = "true") boolean toInclusive,
+	                                   @RequestParam(defaultValue = "false") boolean descending,
+	                                   @RequestParam(defaultValue = "0") long offset,
+	                                   @RequestParam(defaultValue = "-1") long limit) {
+		if (offset < 0)
+			throw new IllegalArgumentException("Offset must not be negative: " + offset);
+		// a paged tree is scanned in place, the scan fails if the tree is updated meanwhile
+		Btree<String, String> btree = bplustree instanceof PagedBtree ? bplustree : bplustree.snapshot();
+		
+		return outputStream -> {
+			BtreeCursor<String, String> cursor = descending
+					? btree.descendingScan(from, fromInclusive, to, toInclusive, offset)
+					: btree.range(from, fromInclusive, to, toInclusive, offset);
+			
+			Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+			for (long written = 0; (limit < 0 || written < limit) && cursor.hasNext(); written++) {
+				Map.Entry<String, String> entry = cursor.next();
+				writer.write(entry.getKey());
+				writer.write(',');
+				writer.write(entry.getValue());
+				writer.write('\n');
+			}
+			writer.flush();
+		};
+	}
+	
+	/**
+	 * Stream the tree as JSON, in the format of the saved files (which /import reads back)
+	 * A snapshot is written, so the export is consistent even while other requests update the tree
+	 *
+	 * @return
+	 */
+	@GetMapping(value = "/export", produces = "application/json")
+	public StreamingResponseBody export() {
+		Btree<String, String> snapshot = bplustree.snapshot();
+		return outputStream -> writeJson(snapshot, outputStream);
+	}
+	
+	/**
+	 * Search a batch of keys, each leaf of the tree is reached once for all its keys
+	 *
+	 * @param keys JSON array of keys
+	 * @return JSON array of the values of the keys, in the same order (null for the missing keys)
+	 */
+	@PostMapping("/batch")
+	public List<String> searchBatch(@RequestBody List<String> keys) {
+		return bplustree.searchAll(keys);
+	}
+	
+	/**
+	 * Insert a batch of entries, each leaf of the tree is reached once for all its entries
+	 *
+	 * @param entries JSON array of {"key": ..., "value": ...} objects
+	 * @return JSON array of the keys inserted
+	 */
+	@PostMapping(value = "/batch", params = "operation=insert")
+	public List<String> insertBatch(@RequestBody List<Map<String, String>> entries) {
+		List<Map.Entry<String, String>> batch = entries.stream()
+				.filter(entry -> entry.get("key") != null)
+				.map(entry -> Map.entry(entry.get("key"), entry.getOrDefault("value", "")))
+				.toList();
+		bplustree.insertAll(batch);
+		return batch.stream().map(Map.Entry::getKey).toList();
+	}
+	
+	/**
+	 * Save the tree to a file, as JSON (the rendered tree) or in the binary format (only the entries, much faster to save and load)
+	 *
+	 * @param format "json" or "bin"
+	 */
 	@GetMapping("/save")
-	public String saveTree(@RequestParam String filePath) {
-		if (!filePath.endsWith(".json")) {
+	public String saveTree(@RequestParam String filePath, @RequestParam(defaultValue = "json") String format) {
+		boolean binary = "bin".equals(format);
+		if (!binary && !filePath.endsWith(".json")) {
 			return "Error: File path must end with .json";
 		}
+		if (binary && !filePath.endsWith(".bin")) {
+			return "Error: File path must end with .bin";
+		}
 		
 		try {
-			String json = renderView(bplustree);
-			try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-				writer.write("[" + json + "]");
+			Btree<String, String> snapshot = bplustree.snapshot();
+			if (binary) {
+				BtreeBinaryFormat.save(snapshot, Paths.get(filePath), PageCodec.STRING, PageCodec.STRING);
 			}
+			else {
+				// written aside then moved, a lazily loaded tree may still be reading the file it replaces
+				Path file = Paths.get(filePath).toAbsolutePath();
+				Path savingFile = file.resolveSibling(file.getFileName() + ".saving");
+				try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(savingFile))) {
+					writeJson(snapshot, outputStream);
+				}
+				Files.move(savingFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			// the log now only needs the updates the saved snapshot misses
+			if (log != null)
+				log.checkpoint(snapshot.getLogPosition(), Paths.get(filePath));
 			return "Tree saved successfully to " + filePath;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -204,7 +432,7 @@ public class BtreeApplication {
 	/**
 	 * Endpoint to trigger data import from a file.
 	 *
-	 * @param filePath Path to the file (supports only JSON and CSV files for now)
+	 * @param filePath Path to the file (supports only JSON, CSV and binary (.bin) files for now)
 	 * @return String indicating the status of the import.
 	 */
 	@GetMapping("/import")
@@ -214,9 +442,11 @@ public class BtreeApplication {
 				importDataFromJSONFile(filePath);
 			else if(filePath.contains(".csv"))
 				importDataFromCSVFile(filePath);
+			else if(filePath.contains(".bin"))
+				importDataFromBinaryFile(filePath);
 			else
 				return "Failed to import data: Invalid file format";
-			return renderView(bplustree);
+			return "Data imported successfully from " + filePath + " : " + bplustree.getStatistics().getEntryCount() + " entries";
 		}
 		catch(Exception e) {
 			e.printStackTrace();
@@ -225,48 +455,207 @@ public class BtreeApplication {
 	}
 	
 	private void importDataFromJSONFile(String filePath) throws IOException {
-		bplustree = loadJson(filePath);
+		bplustree = metrics.instrument(store(loadJson(filePath), filePath));
+		warmUp();
 	}
 	
-	private static Btree<String, String> loadJson(String filePath) throws IOException {
+	private Btree<String, String> loadJson(String filePath) throws IOException {
+		if (lazyLoad) {
+			// only the root is read now, files saved without an index are read whole
+			BtreeLazyLoader loader = BtreeLazyLoader.open(Paths.get(filePath));
+			if (loader != null) {
+				closeLazyLoader();
+				lazyLoader = loader;
+				return loader.getBtree();
+			}
+		}
+		
 		ObjectMapper mapper = new ObjectMapper();
 		
-		try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-			StringBuilder json = new StringBuilder();
-			String line;
-			while ((line = br.readLine()) != null)
-				json.append(line);
-			
-			// Idk why but as the project uses it in the renderView method, I will just do the same
-			// Btw this method is deprecated
-			mapper.disable(MapperFeature.DEFAULT_VIEW_INCLUSION);
-			
-			return mapper.readValue(json.toString(), new TypeReference<Btree<String, String>>() {});
+		// the file is parsed as it is read, the tree is built node after node
+		return mapper.readValue(new File(filePath), new TypeReference<Btree<String, String>>() {});
+	}
+	
+	/**
+	 * Read in the background the nodes of a lazily loaded tree which were not searched yet
+	 */
+	private void warmUp() {
+		BtreeLazyLoader loader = lazyLoader;
+		if (loader == null || !lazyLoadWarmUp || loader.getPendingNodeCount() == 0)
+			return;
+		Btree<String, String> btree = bplustree;
+		Thread thread = new Thread(() -> loader.warmUp(btree), "btree-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void closeLazyLoader() throws IOException {
+		if (lazyLoader != null)
+			lazyLoader.close();
+		lazyLoader = null;
+	}
+	
+	/**
+	 * Write the tree in the format of the saved files, token by token : the JSON is never built in memory
+	 * The bytes are counted for the nodes to be indexed by their offset, see {@link BtreeLazyLoader}
+	 */
+	private static void writeJson(Btree<String, String> btree, OutputStream outputStream) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		try (JsonGenerator generator = mapper.getFactory().createGenerator(new BtreeSerializer.CountingOutputStream(outputStream))) {
+			generator.writeStartArray();
+			mapper.writeValue(generator, btree);
+			generator.writeEndArray();
 		}
 	}
 	
 	private void importDataFromCSVFile(String filePath) throws IOException {
-		bplustree = loadCSV(filePath);
+		bplustree = metrics.instrument(store(loadCSV(filePath), filePath));
 	}
 	
-	private Btree<String, String> loadCSV(String filePath) throws IOException {
-		Btree<String, String> btree = new Btree<>();
+	private void importDataFromBinaryFile(String filePath) throws IOException {
+		bplustree = metrics.instrument(store(BtreeBinaryFormat.load(Paths.get(filePath), PageCodec.STRING, PageCodec.STRING), filePath));
+	}
+	
+	private boolean isPaged() {
+		return "paged".equals(storage);
+	}
+	
+	/**
+	 * An empty tree of the configured storage, a page file is emptied
+	 */
+	private Btree<String, String> newTree() throws IOException {
+		if (!isPaged())
+			return logged(concurrentTree(new Btree<>()), null);
 		
-		try(BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-			String line;
-			while((line = br.readLine()) != null) {
-				String[] parts = line.split(",");
-				if(parts.length == 2) {
-					String key = parts[0].trim();
-					String value = parts[1].trim();
-					btree.insert(key, value);
-				}
-				else {
-					System.err.println("Invalid line format: " + line);
-				}
-			}
+		closeTree();
+		Files.deleteIfExists(Paths.get(pageFile));
+		return openPagedTree();
+	}
+	
+	/**
+	 * Open the page file, memory-mapped or through the buffer pool
+	 */
+	private PagedBtree<String, String> openPagedTree() throws IOException {
+		PagedBtree<String, String> pagedTree;
+		if (bufferPoolBytes <= 0) {
+			pagedTree = PagedBtree.open(Paths.get(pageFile), pageSize, PageCodec.STRING, PageCodec.STRING);
+		}
+		else {
+			if (bufferPool == null)
+				bufferPool = new BufferPool(bufferPoolBytes, pageSize, eviction);
+			pagedTree = PagedBtree.open(Paths.get(pageFile), bufferPool, PageCodec.STRING, PageCodec.STRING);
 		}
+		pagedTree.setLeafFilters(leafFilterFalsePositiveRate);
+		return pagedTree;
+	}
+	
+	/**
+	 * Move an imported tree to the configured storage
+	 */
+	private Btree<String, String> store(Btree<String, String> importedTree, String filePath) throws IOException {
+		if (!isPaged())
+			return logged(concurrentTree(importedTree), Paths.get(filePath));
 		
+		Btree<String, String> pagedTree = newTree();
+		BtreeCursor<String, String> cursor = importedTree.range(null, true, null, true);
+		while (cursor.hasNext()) {
+			Map.Entry<String, String> entry = cursor.next();
+			pagedTree.insert(entry.getKey(), entry.getValue());
+		}
+		return pagedTree;
+	}
+	
+	/**
+	 * Take over the nodes of a heap tree built by a single thread, for the requests to share it
+	 * A tree holding entries keeps the duplicate key policy it was saved with : its log was written under this policy,
+	 * and the duplicates of a tree keeping them could not be reached under a unique key one. The configured policy
+	 * applies to new and empty trees.
+	 */
+	private Btree<String, String> concurrentTree(Btree<String, String> btree) {
+		BtreeConfig config = withLookupCache(btree.getConfig());
+		if (btree.getStatistics().getEntryCount() == 0)
+			config = config.withDuplicateKeyPolicy(duplicateKeyPolicy);
+		else if (config.getDuplicateKeyPolicy() != duplicateKeyPolicy)
+			System.err.println("The tree keeps its duplicate key policy " + config.getDuplicateKeyPolicy()
+					+ ", btree.duplicate-key-policy=" + duplicateKeyPolicy + " only applies to new trees");
+		if (shards > 1)
+			return ShardedBtree.of(btree, shards, config);
+		return ConcurrentBtree.of(btree, config);
+	}
+	
+	/**
+	 * The config of a tree, with the lookup cache of the application (a cap in bytes is preferred to a cap in entries)
+	 */
+	private BtreeConfig withLookupCache(BtreeConfig config) {
+		if (lookupCacheBytes > 0)
+			return config.withLookupCacheBytes(lookupCacheBytes);
+		if (lookupCacheEntries > 0)
+			return config.withLookupCacheEntries(lookupCacheEntries);
+		return config.withoutLookupCache();
+	}
+	
+	/**
+	 * Log the updates of a new heap tree, which starts from the given file (an empty tree when it is null)
+	 */
+	private Btree<String, String> logged(Btree<String, String> btree, Path snapshotFile) throws IOException {
+		if (log != null) {
+			btree.setLog(log);
+			log.checkpoint(btree.getLogPosition(), snapshotFile);
+		}
+		return btree;
+	}
+	
+	/**
+	 * Load the snapshot the log starts from, and replay the logged updates on it
+	 */
+	private Btree<String, String> recover() throws IOException {
+		log = WriteAheadLog.open(Paths.get(walFile), PageCodec.STRING, PageCodec.STRING, walSyncPolicy());
+		Path snapshotFile = log.getSnapshotFile();
+		Btree<String, String> btree;
+		if (snapshotFile == null)
+			btree = concurrentTree(new Btree<>());
+		else if (snapshotFile.toString().endsWith(".csv"))
+			btree = concurrentTree(loadCSV(snapshotFile.toString()));
+		else if (snapshotFile.toString().endsWith(".bin"))
+			btree = concurrentTree(BtreeBinaryFormat.load(snapshotFile, PageCodec.STRING, PageCodec.STRING));
+		else
+			btree = concurrentTree(loadJson(snapshotFile.toString()));
+		
+		log.replay(btree);
+		btree.setLog(log);
 		return btree;
 	}
+	
+	private WriteAheadLog.SyncPolicy walSyncPolicy() {
+		if ("interval".equals(walSync))
+			return WriteAheadLog.SyncPolicy.every(Duration.ofMillis(walSyncIntervalMillis));
+		if ("size".equals(walSync))
+			return WriteAheadLog.SyncPolicy.everyBytes(walSyncBytes);
+		return WriteAheadLog.SyncPolicy.everyWrite();
+	}
+	
+	public void closeTree() throws IOException {
+		if (bplustree instanceof PagedBtree<String, String> pagedTree)
+			pagedTree.close();
+	}
+	
+	@PreDestroy
+	public void close() throws IOException {
+		closeTree();
+		closeLazyLoader();
+		if (log != null)
+			log.close();
+	}
+	
+	private Btree<String, String> loadCSV(String filePath) throws IOException {
+		// wide nodes keep big trees shallow, the small default order is only kept for the visualizer
+		// the file is parsed in parallel chunks, then the tree is built bottom-up from the merged entries
+		BtreeConfig config = BtreeConfig.autoTune(String.class, String.class);
+		if (prefixCompression)
+			config = config.withPrefixCompression();
+		CsvLoader.Result result = CsvLoader.load(Paths.get(filePath), Btree.DEFAULT_FILL_FACTOR, config);
+		if (result.getMalformedLineCount() > 0)
+			System.err.println(result.getMalformedLineCount() + " invalid lines skipped in " + filePath + ", first ones: " + result.getMalformedLines());
+		return result.getBtree();
+	}
 }
\ No newline at end of file
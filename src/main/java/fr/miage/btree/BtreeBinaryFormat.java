@@ -0,0 +1,225 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file of the entries of a tree, much more compact and faster to write and read than the JSON export.
+ *
+ * Only the leaves are saved, as the sequence of their entries in key order : the internal nodes are rebuilt
+ * bottom-up when the file is loaded. The layout is a header (magic, version, node orders and config flags : prefix
+ * compression and duplicate key policy), the entries
+ * (each one prefixed by its length, then its key and its value as encoded by a {@link PageCodec}), and a trailer
+ * (number of entries and CRC32 of the header and the entries).
+ * Files are written and read through a single buffer : the entries are never all in memory besides the tree.
+ * Files of version 1 have no config flags.
+ */
+public final class BtreeBinaryFormat {
+    private static final int MAGIC = 0x42505453; // "BPTS"
+    private static final int VERSION = 2;
+    private static final int VERSION_1_HEADER_BYTES = 16;
+    private static final int HEADER_BYTES = 20;
+    private static final int PREFIX_COMPRESSION_FLAG = 1;
+    // no flag for MULTI_VALUE, the policy of the files saved before the policy was saved
+    private static final int REPLACE_FLAG = 2;
+    private static final int REJECT_FLAG = 4;
+    private static final int TRAILER_BYTES = 12;
+    private static final int ENTRY_LENGTH_BYTES = 4;
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private BtreeBinaryFormat() {
+    }
+
+    /**
+     * Save the entries of a tree, a snapshot for a tree updated meanwhile.
+     * @return the number of entries saved
+     */
+    public static <TKey extends Comparable<TKey>, TValue> long save(
+            Btree<TKey, TValue> btree, Path file, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            CRC32 crc = new CRC32();
+
+            BtreeConfig config = btree.getConfig();
+            int flags = flagsOf(config);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(config.getLeafOrder()).putInt(config.getInnerOrder()).putInt(flags);
+
+            long count = 0;
+            BtreeCursor<TKey, TValue> cursor = btree.range(null, true, null, true);
+            while (cursor.hasNext()) {
+                Map.Entry<TKey, TValue> entry = cursor.next();
+                int keyBytes = keyCodec.size(entry.getKey());
+                int entryBytes = keyBytes + valueCodec.size(entry.getValue());
+                if (entryBytes + ENTRY_LENGTH_BYTES > BUFFER_BYTES)
+                    throw new IllegalArgumentException("Entry of " + entryBytes + " bytes, at most "
+                            + (BUFFER_BYTES - ENTRY_LENGTH_BYTES) + " bytes can be saved");
+                if (buffer.remaining() < ENTRY_LENGTH_BYTES + entryBytes)
+                    writeBuffer(channel, buffer, crc);
+
+                int offset = buffer.position() + ENTRY_LENGTH_BYTES;
+                buffer.putInt(entryBytes);
+                keyCodec.write(buffer, offset, entry.getKey());
+                valueCodec.write(buffer, offset + keyBytes, entry.getValue());
+                buffer.position(offset + entryBytes);
+                count++;
+            }
+            writeBuffer(channel, buffer, crc);
+
+            buffer.putLong(count).putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+            return count;
+        }
+    }
+
+    private static void writeBuffer(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Load a saved tree, built bottom-up with the node orders it was saved with.
+     * @throws IOException if the file is not a saved tree, or is corrupted
+     */
+    public static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> load(
+            Path file, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = channel.size() - TRAILER_BYTES;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            int version = end < VERSION_1_HEADER_BYTES || channel.read(header, 0) < VERSION_1_HEADER_BYTES
+                    || header.getInt(0) != MAGIC ? -1 : header.getInt(4);
+            int headerBytes = version == 1 ? VERSION_1_HEADER_BYTES : HEADER_BYTES;
+            if ((version != 1 && version != VERSION) || end < headerBytes || header.position() < headerBytes)
+                throw new IOException("Not a saved tree, or written by another version: " + file);
+            int flags = version == 1 ? 0 : header.getInt(16);
+            BtreeConfig config = configOf(header.getInt(8), header.getInt(12), flags);
+
+            EntryReader<TKey, TValue> entries = new EntryReader<>(channel, headerBytes, end, keyCodec, valueCodec);
+            entries.crc.update(header.array(), 0, headerBytes);
+            Btree<TKey, TValue> btree;
+            try {
+                btree = Btree.bulkLoad(entries, Btree.DEFAULT_FILL_FACTOR, config);
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, end + trailer.position()) < 0)
+                    throw new IOException("Truncated tree file: " + file);
+            }
+            if (trailer.getLong(0) != entries.count || trailer.getInt(8) != (int) entries.crc.getValue())
+                throw new IOException("Corrupted tree file: " + file);
+            return btree;
+        }
+    }
+
+    private static int flagsOf(BtreeConfig config) {
+        int flags = config.isPrefixCompression() ? PREFIX_COMPRESSION_FLAG : 0;
+        return switch (config.getDuplicateKeyPolicy()) {
+            case MULTI_VALUE -> flags;
+            case REPLACE -> flags | REPLACE_FLAG;
+            case REJECT -> flags | REJECT_FLAG;
+        };
+    }
+
+    private static BtreeConfig configOf(int leafOrder, int innerOrder, int flags) throws IOException {
+        if ((flags & REPLACE_FLAG) != 0 && (flags & REJECT_FLAG) != 0)
+            throw new IOException("Invalid config flags: " + flags);
+        BtreeConfig.DuplicateKeyPolicy policy = (flags & REPLACE_FLAG) != 0 ? BtreeConfig.DuplicateKeyPolicy.REPLACE
+                : (flags & REJECT_FLAG) != 0 ? BtreeConfig.DuplicateKeyPolicy.REJECT : BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE;
+        return new BtreeConfig(leafOrder, innerOrder, (flags & PREFIX_COMPRESSION_FLAG) != 0).withDuplicateKeyPolicy(policy);
+    }
+
+    /**
+     * Decode the entries of a file as they are iterated, refilling a single buffer.
+     */
+    private static final class EntryReader<TKey extends Comparable<TKey>, TValue> implements Iterator<Map.Entry<TKey, TValue>> {
+        private final FileChannel channel;
+        private final long end;
+        private final PageCodec<TKey> keyCodec;
+        private final PageCodec<TValue> valueCodec;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private long count;
+
+        private EntryReader(FileChannel channel, long position, long end, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.buffer.limit(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return buffer.hasRemaining() || position < end;
+        }
+
+        @Override
+        public Map.Entry<TKey, TValue> next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+
+            this.ensure(ENTRY_LENGTH_BYTES);
+            int entryBytes = buffer.getInt(buffer.position());
+            if (entryBytes < 0 || entryBytes > BUFFER_BYTES - ENTRY_LENGTH_BYTES)
+                throw new UncheckedIOException(new IOException("Corrupted entry of " + entryBytes + " bytes"));
+            this.ensure(ENTRY_LENGTH_BYTES + entryBytes);
+
+            int offset = buffer.position() + ENTRY_LENGTH_BYTES;
+            TKey key = keyCodec.read(buffer, offset);
+            TValue value = valueCodec.read(buffer, offset + keyCodec.length(buffer, offset));
+            buffer.position(offset + entryBytes);
+            count++;
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+
+        /**
+         * Read the file until the buffer holds the given number of bytes after its position.
+         */
+        private void ensure(int bytes) {
+            if (buffer.remaining() >= bytes)
+                return;
+            buffer.compact();
+            try {
+                while (buffer.position() < bytes) {
+                    int limit = (int) Math.min(buffer.capacity(), buffer.position() + end - position);
+                    if (limit < bytes)
+                        throw new IOException("Truncated tree file");
+                    int start = buffer.position();
+                    buffer.limit(limit);
+                    int read = channel.read(buffer, position);
+                    if (read < 0)
+                        throw new IOException("Truncated tree file");
+                    crc.update(buffer.array(), start, read);
+                    position += read;
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                buffer.flip();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fr.miage.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a B+ tree bottom-up from entries sorted by key, in a single pass :
+ * leaves are packed from left to right and linked as they are filled, then each internal level is built
+ * over the level below until a single root is left.
+ * Compared to one insert per entry, there is no descent, no split, and the fill of the nodes is chosen.
+ */
+class BtreeBulkLoader<TKey extends Comparable<TKey>, TValue> {
+    private final BtreeConfig config;
+    private final double fillFactor;
+
+    BtreeBulkLoader(BtreeConfig config, double fillFactor) {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("Fill factor must be in ]0, 1]: " + fillFactor);
+        this.config = config;
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * @param sortedEntries entries sorted by key, duplicated keys are kept in the given order
+     * @throws IllegalArgumentException if a key is smaller than the previous one
+     */
+    Btree<TKey, TValue> load(Iterator<? extends Map.Entry<TKey, TValue>> sortedEntries) {
+        Btree<TKey, TValue> btree = new Btree<>(config);
+
+        List<Node<TKey>> level = this.buildLeaves(sortedEntries);
+        if (level.isEmpty())
+            return btree;
+
+        while (level.size() > 1)
+            level = this.buildInternalLevel(level);
+
+        btree.setRoot(level.get(0));
+        return btree;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Node<TKey>> buildLeaves(Iterator<? extends Map.Entry<TKey, TValue>> sortedEntries) {
+        List<Node<TKey>> leaves = new ArrayList<>();
+        int entriesPerLeaf = this.nodeFill(config.getLeafOrder() - 1, minKeyCount(config.getLeafOrder()));
+
+        LeafNode<TKey, TValue> leaf = null;
+        TKey previousKey = null;
+        while (sortedEntries.hasNext()) {
+            Map.Entry<TKey, TValue> entry = sortedEntries.next();
+            TKey key = entry.getKey();
+            if (previousKey != null && previousKey.compareTo(key) > 0)
+                throw new IllegalArgumentException("Entries are not sorted: " + key + " comes after " + previousKey);
+            previousKey = key;
+
+            if (leaf == null || leaf.getKeyCount() == entriesPerLeaf) {
+                LeafNode<TKey, TValue> newLeaf = LeafNode.create(config);
+                link(leaf, newLeaf);
+                leaves.add(newLeaf);
+                leaf = newLeaf;
+            }
+            leaf.addKey(key);
+            leaf.addValue(entry.getValue());
+        }
+
+        // the last leaf gets what is left, rebalance it with its left neighbour if it is under the minimum
+        int leafCount = leaves.size();
+        if (leafCount > 1 && leaf.isUnderflow()) {
+            LeafNode<TKey, TValue> previousLeaf = (LeafNode<TKey, TValue>) leaves.get(leafCount - 2);
+            if (previousLeaf.getKeyCount() + leaf.getKeyCount() <= config.getLeafOrder() - 1) {
+                previousLeaf.fusionWithSibling(null, leaf);
+                leaves.remove(leafCount - 1);
+            }
+            else {
+                while (leaf.isUnderflow())
+                    leaf.transferFromSibling(null, previousLeaf, previousLeaf.getKeyCount() - 1);
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Group the nodes of a level under new internal nodes, the separator of a child is the shortest key
+     * above the keys on its left and not above its smallest key (see {@link LeafNode#separator}).
+     */
+    private List<Node<TKey>> buildInternalLevel(List<Node<TKey>> children) {
+        int order = config.getInnerOrder();
+        int[] groupSizes = this.groupSizes(children.size(), this.nodeFill(order, minKeyCount(order) + 1),
+                minKeyCount(order) + 1, order);
+
+        List<Node<TKey>> level = new ArrayList<>(groupSizes.length);
+        InternalNode<TKey> previousNode = null;
+        int childIndex = 0;
+        for (int groupSize : groupSizes) {
+            InternalNode<TKey> node = new InternalNode<>(config);
+            for (int i = 0; i < groupSize; i++) {
+                Node<TKey> child = children.get(childIndex++);
+                if (i > 0)
+                    node.addKey(separatorOf(child));
+                node.addChild(child);
+            }
+            link(previousNode, node);
+            level.add(node);
+            previousNode = node;
+        }
+        return level;
+    }
+
+    /**
+     * Split count items into groups of fill items, the last group is merged with or balanced against
+     * the one before if it would get less than min items.
+     */
+    private int[] groupSizes(int count, int fill, int min, int max) {
+        int groupCount = (count + fill - 1) / fill;
+        int[] sizes = new int[groupCount];
+        for (int i = 0; i < groupCount; i++)
+            sizes[i] = fill;
+        int last = count - (groupCount - 1) * fill;
+        sizes[groupCount - 1] = last;
+
+        if (groupCount > 1 && last < min) {
+            int total = fill + last;
+            if (total <= max) {
+                int[] merged = new int[groupCount - 1];
+                System.arraycopy(sizes, 0, merged, 0, groupCount - 1);
+                merged[groupCount - 2] = total;
+                return merged;
+            }
+            sizes[groupCount - 2] = total - total / 2;
+            sizes[groupCount - 1] = total / 2;
+        }
+        return sizes;
+    }
+
+    /**
+     * Number of items put in a node : the capacity scaled by the fill factor, but never under the minimum.
+     */
+    private int nodeFill(int capacity, int min) {
+        int fill = (int) Math.round(capacity * fillFactor);
+        return Math.max(Math.max(fill, min), 1);
+    }
+
+    private static int minKeyCount(int order) {
+        return (order - 1) / 2;
+    }
+
+    private static <TKey extends Comparable<TKey>> TKey separatorOf(Node<TKey> node) {
+        while (node.getNodeType() == NodeType.InternalNode)
+            node = ((InternalNode<TKey>) node).getChild(0);
+        // leaves are already linked, the leaf on the left holds the greatest key of the previous subtree
+        LeafNode<TKey, ?> leaf = (LeafNode<TKey, ?>) node;
+        return LeafNode.separatorAfter(leaf.getPreviousLeaf(), leaf);
+    }
+
+    private static <TKey extends Comparable<TKey>> void link(Node<TKey> left, Node<TKey> right) {
+        if (left == null)
+            return;
+        left.setRightSibling(right);
+        right.setLeftSibling(left);
+    }
+}
@@ -0,0 +1,220 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.annotation.JsonView;
+
+/**
+ * Node capacities of a B+ tree.
+ * The order of a node is its maximum number of children, so a node holds at most (order - 1) keys.
+ * Leaves and internal nodes have their own order, a config is immutable and can be shared by several trees.
+ * The leaves of a tree with String keys can store their keys prefix-compressed, see {@link #withPrefixCompression()}.
+ * A tree can keep the results of its last lookups in a bounded cache, see {@link #withLookupCacheEntries(int)}.
+ * What an insert does with a key already in the tree is the {@link DuplicateKeyPolicy} of the config.
+ */
+public class BtreeConfig {
+    public static final int DEFAULT_ORDER = 5;
+    public static final int MIN_ORDER = 3;
+    public static final int MAX_ORDER = 4096;
+
+    /** Default node size targeted by {@link #autoTune(Class, Class)}, a few cache lines / a small page */
+    public static final int DEFAULT_TARGET_NODE_BYTES = 4096;
+
+    // Rough per-object costs on a 64 bits JVM with compressed oops
+    private static final int REFERENCE_BYTES = 4;
+    private static final int OBJECT_HEADER_BYTES = 16;
+    private static final int AVERAGE_STRING_LENGTH = 16;
+
+    /**
+     * What {@link Btree#insert(Comparable, Object)} and {@link Btree#insertAll(java.util.Collection)} do with a key
+     * already in the tree. The other updates (put, compute, merge...) always keep a single entry per key.
+     */
+    public enum DuplicateKeyPolicy {
+        /** A new entry is added next to the ones of the key, {@link Btree#searchValues(Comparable)} returns them all */
+        MULTI_VALUE,
+        /** The value of the key is replaced in place, as by {@link Btree#put(Comparable, Object)} */
+        REPLACE,
+        /** The insert fails with an IllegalArgumentException, the tree is left unchanged */
+        REJECT;
+
+        /**
+         * The value an insert leaves for a key, null removing the entry : the policy as an update of a key
+         * ({@link #MULTI_VALUE} adds entries instead).
+         */
+        <TKey, TValue> TValue resolve(TKey key, TValue previous, TValue value) {
+            if (this == REJECT && previous != null)
+                throw new IllegalArgumentException("Key is already in the tree: " + key);
+            return value;
+        }
+    }
+
+    @JsonView(Views.Public.class)
+    private final int leafOrder;
+    @JsonView(Views.Public.class)
+    private final int innerOrder;
+    private final boolean prefixCompression;
+    /** Capacity of the lookup cache of the trees, in entries or in bytes, 0 when they have none */
+    private final long lookupCacheCapacity;
+    private final boolean lookupCacheInBytes;
+    private final DuplicateKeyPolicy duplicateKeyPolicy;
+
+    public BtreeConfig(int leafOrder, int innerOrder) {
+        this(leafOrder, innerOrder, false);
+    }
+
+    /**
+     * @param prefixCompression store the keys of a leaf as their common prefix and their packed suffixes,
+     *                          for trees with String keys only
+     */
+    public BtreeConfig(int leafOrder, int innerOrder, boolean prefixCompression) {
+        this(leafOrder, innerOrder, prefixCompression, 0, false, DuplicateKeyPolicy.MULTI_VALUE);
+    }
+
+    private BtreeConfig(int leafOrder, int innerOrder, boolean prefixCompression, long lookupCacheCapacity, boolean lookupCacheInBytes,
+                        DuplicateKeyPolicy duplicateKeyPolicy) {
+        checkOrder(leafOrder);
+        checkOrder(innerOrder);
+        if (lookupCacheCapacity < 0)
+            throw new IllegalArgumentException("Lookup cache capacity must be positive or 0: " + lookupCacheCapacity);
+        this.leafOrder = leafOrder;
+        this.innerOrder = innerOrder;
+        this.prefixCompression = prefixCompression;
+        this.lookupCacheCapacity = lookupCacheCapacity;
+        this.lookupCacheInBytes = lookupCacheInBytes;
+        this.duplicateKeyPolicy = duplicateKeyPolicy;
+    }
+
+    public static BtreeConfig defaults() {
+        return new BtreeConfig(DEFAULT_ORDER, DEFAULT_ORDER);
+    }
+
+    public static BtreeConfig of(int order) {
+        return new BtreeConfig(order, order);
+    }
+
+    public static BtreeConfig autoTune(Class<?> keyType, Class<?> valueType) {
+        return autoTune(keyType, valueType, DEFAULT_TARGET_NODE_BYTES);
+    }
+
+    /**
+     * Pick the node orders so that a node (its arrays and the keys / values it references) weighs about targetNodeBytes.
+     * Wider nodes mean a shallower tree, so fewer pointer chases per lookup.
+     * @param keyType the key class, used to estimate the size of a key
+     * @param valueType the value class, used to estimate the size of a value
+     * @param targetNodeBytes the wanted size of a node in bytes
+     */
+    public static BtreeConfig autoTune(Class<?> keyType, Class<?> valueType, int targetNodeBytes) {
+        if (targetNodeBytes <= 0)
+            throw new IllegalArgumentException("Target node size must be positive: " + targetNodeBytes);
+
+        int keyBytes = REFERENCE_BYTES + estimateObjectBytes(keyType);
+        int valueBytes = REFERENCE_BYTES + estimateObjectBytes(valueType);
+
+        // a leaf entry is a key and a value, an internal entry is a key and a child pointer
+        int leafOrder = clampOrder(targetNodeBytes / (keyBytes + valueBytes) + 1);
+        int innerOrder = clampOrder(targetNodeBytes / (keyBytes + REFERENCE_BYTES) + 1);
+
+        return new BtreeConfig(leafOrder, innerOrder);
+    }
+
+    static int estimateObjectBytes(Class<?> type) {
+        if (type == Byte.class || type == Boolean.class || type == Character.class || type == Short.class
+                || type == Integer.class || type == Float.class)
+            return OBJECT_HEADER_BYTES;
+        if (type == Long.class || type == Double.class)
+            return OBJECT_HEADER_BYTES + 8;
+        if (type == String.class)
+            return 2 * OBJECT_HEADER_BYTES + 8 + AVERAGE_STRING_LENGTH;
+        // unknown type, assume a small object with a few fields
+        return 2 * OBJECT_HEADER_BYTES;
+    }
+
+    private static int clampOrder(int order) {
+        return Math.max(MIN_ORDER, Math.min(MAX_ORDER, order));
+    }
+
+    private static void checkOrder(int order) {
+        if (order < MIN_ORDER || order > MAX_ORDER)
+            throw new IllegalArgumentException("Node order must be between " + MIN_ORDER + " and " + MAX_ORDER + ": " + order);
+    }
+
+    public int getLeafOrder() {
+        return leafOrder;
+    }
+
+    public int getInnerOrder() {
+        return innerOrder;
+    }
+
+    public boolean isPrefixCompression() {
+        return prefixCompression;
+    }
+
+    /**
+     * Same orders, with prefix-compressed leaves : the prefix shared by the keys of a leaf is stored once
+     * and the rest of the keys are packed in a single char array, so no String is kept per key.
+     * Lookups compare the stored chars with the searched key. Only for trees with String keys.
+     */
+    public BtreeConfig withPrefixCompression() {
+        return new BtreeConfig(leafOrder, innerOrder, true, lookupCacheCapacity, lookupCacheInBytes, duplicateKeyPolicy);
+    }
+
+    /**
+     * Capacity of the lookup cache, in entries or in bytes (see {@link #isLookupCacheInBytes()}), 0 when there is none.
+     */
+    public long getLookupCacheCapacity() {
+        return lookupCacheCapacity;
+    }
+
+    public boolean isLookupCacheInBytes() {
+        return lookupCacheInBytes;
+    }
+
+    /**
+     * Same config, for trees which keep the values found by their last searches in a cache of at most maxEntries keys
+     * (see {@link LookupCache}). Updates invalidate the keys they write, so a search never returns a stale value.
+     * The cache is kept by the tree only : snapshots and saved trees have none.
+     * @param maxEntries the number of keys cached, 0 for no cache
+     */
+    public BtreeConfig withLookupCacheEntries(int maxEntries) {
+        return new BtreeConfig(leafOrder, innerOrder, prefixCompression, maxEntries, false, duplicateKeyPolicy);
+    }
+
+    /**
+     * Same config, with a lookup cache whose keys and values weigh about maxBytes at most.
+     * @param maxBytes the estimated size of the cached keys and values, 0 for no cache
+     */
+    public BtreeConfig withLookupCacheBytes(long maxBytes) {
+        return new BtreeConfig(leafOrder, innerOrder, prefixCompression, maxBytes, true, duplicateKeyPolicy);
+    }
+
+    public BtreeConfig withoutLookupCache() {
+        return new BtreeConfig(leafOrder, innerOrder, prefixCompression, 0, false, duplicateKeyPolicy);
+    }
+
+    public DuplicateKeyPolicy getDuplicateKeyPolicy() {
+        return duplicateKeyPolicy;
+    }
+
+    /**
+     * Same config, for trees whose inserts of a key already in the tree follow the given policy.
+     */
+    public BtreeConfig withDuplicateKeyPolicy(DuplicateKeyPolicy duplicateKeyPolicy) {
+        if (duplicateKeyPolicy == null)
+            throw new IllegalArgumentException("Duplicate key policy must not be null");
+        return new BtreeConfig(leafOrder, innerOrder, prefixCompression, lookupCacheCapacity, lookupCacheInBytes, duplicateKeyPolicy);
+    }
+
+    /**
+     * Check that the trees of another config have the same nodes, so that they can take over the nodes of a tree of this one.
+     */
+    void checkSameNodes(BtreeConfig other) {
+        if (other.leafOrder != leafOrder || other.innerOrder != innerOrder || other.prefixCompression != prefixCompression)
+            throw new IllegalArgumentException("Config must have the node orders and leaf layout of the tree: " + other);
+    }
+
+    @Override
+    public String toString() {
+        return "BtreeConfig{leafOrder=" + leafOrder + ", innerOrder=" + innerOrder + ", prefixCompression=" + prefixCompression
+                + ", lookupCache=" + (lookupCacheCapacity == 0 ? "none" : lookupCacheCapacity + (lookupCacheInBytes ? " bytes" : " entries"))
+                + ", duplicateKeyPolicy=" + duplicateKeyPolicy + "}";
+    }
+}
@@ -0,0 +1,172 @@
+package fr.miage.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the entries of a tree in key order, ascending or descending, between optional bounds.
+ * The cursor descends once to its first leaf, then follows the links between leaves.
+ * The tree must not be modified while the cursor is in use, except for a cursor on a snapshot.
+ */
+public class BtreeCursor<TKey extends Comparable<TKey>, TValue> implements Iterator<Map.Entry<TKey, TValue>> {
+    private final boolean descending;
+    /** Bound the cursor stops at, null when the scan runs to the end of the tree */
+    private final TKey endKey;
+    private final boolean endInclusive;
+
+    /** Moves from leaf to leaf instead of the links, null when the cursor follows the links */
+    private final LeafNavigator<TKey, TValue> navigator;
+
+    private LeafNode<TKey, TValue> leaf;
+    private int index;
+
+    private BtreeCursor(LeafNode<TKey, TValue> leaf, int index, boolean descending, TKey endKey, boolean endInclusive,
+                        LeafNavigator<TKey, TValue> navigator) {
+        this.leaf = leaf;
+        this.index = index;
+        this.descending = descending;
+        this.endKey = endKey;
+        this.endInclusive = endInclusive;
+        this.navigator = navigator;
+        this.skipExhaustedLeaves();
+    }
+
+    private BtreeCursor(LeafNode<TKey, TValue> leaf, int index, boolean descending, TKey endKey, boolean endInclusive) {
+        this(leaf, index, descending, endKey, endInclusive, null);
+    }
+
+    /**
+     * Cursor over the keys between from and to in ascending order.
+     * @param leaf the leaf of the first entry of from (see {@link Btree#findLeafNodeShouldContainKey(Comparable)}),
+     *             or the leftmost leaf if from is null
+     */
+    static <TKey extends Comparable<TKey>, TValue> BtreeCursor<TKey, TValue> ascending(
+            LeafNode<TKey, TValue> leaf, TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        if (from == null)
+            return new BtreeCursor<>(leaf, 0, false, to, toInclusive);
+
+        int index = fromInclusive ? leaf.lowerBound(from) : leaf.upperBound(from);
+        BtreeCursor<TKey, TValue> cursor = new BtreeCursor<>(leaf, index, false, to, toInclusive);
+        if (!fromInclusive)
+            cursor.skipKey(from);
+        return cursor;
+    }
+
+    /**
+     * Cursor over the keys between from and to in descending order, from being the greatest bound.
+     * @param leaf the leaf which should contain from, or the rightmost leaf if from is null
+     */
+    static <TKey extends Comparable<TKey>, TValue> BtreeCursor<TKey, TValue> descending(
+            LeafNode<TKey, TValue> leaf, TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        if (from == null)
+            return new BtreeCursor<>(leaf, leaf.getKeyCount() - 1, true, to, toInclusive);
+
+        int index = (fromInclusive ? leaf.upperBound(from) : leaf.lowerBound(from)) - 1;
+
+        // duplicates of from can continue at the beginning of the next leaves
+        while (fromInclusive && index == leaf.getKeyCount() - 1 && leaf.getNextLeaf() != null
+                && leaf.getNextLeaf().getKey(0).compareTo(from) <= 0) {
+            leaf = leaf.getNextLeaf();
+            index = leaf.upperBound(from) - 1;
+        }
+
+        BtreeCursor<TKey, TValue> cursor = new BtreeCursor<>(leaf, index, true, to, toInclusive);
+        if (!fromInclusive)
+            cursor.skipKey(from);
+        return cursor;
+    }
+
+    /**
+     * Cursor which moves from leaf to leaf through the parents, for nodes whose links can not be trusted
+     * (the nodes of a snapshot). The descent goes straight to the leaf of the first entry, duplicates included.
+     * @param from the bound the scan starts from, null to start at the edge of the tree
+     */
+    static <TKey extends Comparable<TKey>, TValue> BtreeCursor<TKey, TValue> fromRoot(
+            Node<TKey> root, boolean descending, TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        LeafPath<TKey, TValue> path = new LeafPath<>(root);
+        if (from == null) {
+            LeafNode<TKey, TValue> leaf = path.descendToEdge(descending);
+            return new BtreeCursor<>(leaf, descending ? leaf.getKeyCount() - 1 : 0, descending, to, toInclusive, path);
+        }
+
+        // an ascending scan starts at the first key >= from (> from if excluded),
+        // a descending one right before the first key > from (>= from if excluded)
+        boolean lowerBound = descending != fromInclusive;
+        LeafNode<TKey, TValue> leaf = path.descend(from, lowerBound);
+        int index = lowerBound ? leaf.lowerBound(from) : leaf.upperBound(from);
+        return new BtreeCursor<>(leaf, descending ? index - 1 : index, descending, to, toInclusive, path);
+    }
+
+    /**
+     * Cursor from the entry at a position in key order, found by the entry counts of the internal nodes :
+     * as a cursor from the root, it moves from leaf to leaf through the parents.
+     * @param position the position of the first entry, the cursor is empty when it is out of the tree
+     */
+    static <TKey extends Comparable<TKey>, TValue> BtreeCursor<TKey, TValue> atPosition(
+            Node<TKey> root, long position, boolean descending, TKey to, boolean toInclusive) {
+        LeafPath<TKey, TValue> path = new LeafPath<>(root);
+        LeafNode<TKey, TValue> leaf = path.descendToPosition(position);
+        return new BtreeCursor<>(leaf, path.getIndexInLeaf(), descending, to, toInclusive, path);
+    }
+
+    /**
+     * Cursor starting at a position of a leaf, the navigator gives the leaves around it.
+     */
+    static <TKey extends Comparable<TKey>, TValue> BtreeCursor<TKey, TValue> overLeaves(
+            LeafNavigator<TKey, TValue> navigator, LeafNode<TKey, TValue> leaf, int index,
+            boolean descending, TKey to, boolean toInclusive) {
+        return new BtreeCursor<>(leaf, index, descending, to, toInclusive, navigator);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (leaf == null)
+            return false;
+        if (endKey == null)
+            return true;
+
+        int cmp = leaf.getKey(index).compareTo(endKey);
+        if (descending)
+            cmp = -cmp;
+        return cmp < 0 || (cmp == 0 && endInclusive);
+    }
+
+    @Override
+    public Map.Entry<TKey, TValue> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Map.Entry<TKey, TValue> entry = new AbstractMap.SimpleImmutableEntry<>(leaf.getKey(index), leaf.getValue(index));
+        index += descending ? -1 : 1;
+        this.skipExhaustedLeaves();
+        return entry;
+    }
+
+    /**
+     * Step over the duplicates of an excluded bound which a split left in a neighbour leaf.
+     */
+    private void skipKey(TKey key) {
+        while (leaf != null && leaf.getKey(index).compareTo(key) == 0) {
+            index += descending ? -1 : 1;
+            this.skipExhaustedLeaves();
+        }
+    }
+
+    /**
+     * Move to the neighbour leaf while the current position is out of the current leaf.
+     */
+    private void skipExhaustedLeaves() {
+        while (leaf != null && (index < 0 || index >= leaf.getKeyCount())) {
+            if (descending) {
+                leaf = navigator == null ? leaf.getPreviousLeaf() : navigator.previousLeaf();
+                index = leaf == null ? -1 : leaf.getKeyCount() - 1;
+            }
+            else {
+                leaf = navigator == null ? leaf.getNextLeaf() : navigator.nextLeaf();
+                index = 0;
+            }
+        }
+    }
+}
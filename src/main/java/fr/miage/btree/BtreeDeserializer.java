@@ -1,68 +1,157 @@
 package fr.miage.btree;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Reads a tree token by token : nodes are built as they are read, the document is never loaded as a whole.
+ * The tree may be wrapped in an array, as the files written by the save endpoint.
+ */
 public class BtreeDeserializer extends JsonDeserializer<Btree<String, String>> {
-	
+
 	@Override
 	public Btree<String, String> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-		JsonNode rootNode = jsonParser.getCodec().readTree(jsonParser);
-		
-		if (rootNode.isArray() && rootNode.size() == 1) {
-			JsonNode treeNode = rootNode.get(0).get("root");
-			
-			Btree<String, String> bplustree = new Btree<>();
-			Node<String> root = parseNode(treeNode);
-			
-			if (root != null) {
-				bplustree.setRoot(root);
-				return bplustree;
+		boolean wrapped = jsonParser.currentToken() == JsonToken.START_ARRAY;
+		if (wrapped)
+			jsonParser.nextToken();
+		if (jsonParser.currentToken() != JsonToken.START_OBJECT)
+			throw new IOException("Invalid JSON format for Bplustree.");
+
+		BtreeConfig config = null;
+		Node<String> root = null;
+		TokenBuffer bufferedRoot = null;
+		while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jsonParser.currentName();
+			jsonParser.nextToken();
+			if (field.equals("config")) {
+				config = parseConfig(jsonParser);
+			}
+			else if (field.equals("root") && config != null) {
+				root = parseNode(jsonParser, config);
 			}
+			else if (field.equals("root")) {
+				// trees saved by older versions have their config after the root, which is kept until then
+				bufferedRoot = new TokenBuffer(jsonParser, deserializationContext);
+				bufferedRoot.copyCurrentStructure(jsonParser);
+			}
+			else {
+				jsonParser.skipChildren();
+			}
+		}
+
+		if (wrapped && jsonParser.nextToken() != JsonToken.END_ARRAY)
+			throw new IOException("Invalid JSON format for Bplustree.");
+
+		// trees saved before the node order was configurable have no config, they use the default order
+		if (config == null)
+			config = BtreeConfig.defaults();
+		if (bufferedRoot != null) {
+			JsonParser rootParser = bufferedRoot.asParser(jsonParser.getCodec());
+			rootParser.nextToken();
+			root = parseNode(rootParser, config);
+		}
+		if (root == null)
+			throw new IOException("Invalid JSON format for Bplustree.");
+
+		Btree<String, String> bplustree = new Btree<>(config);
+		bplustree.setRoot(root);
+		bplustree.linkSiblings();
+		return bplustree;
+	}
+
+	static BtreeConfig parseConfig(JsonParser jsonParser) throws IOException {
+		int leafOrder = BtreeConfig.DEFAULT_ORDER;
+		int innerOrder = BtreeConfig.DEFAULT_ORDER;
+		boolean prefixCompression = false;
+		BtreeConfig.DuplicateKeyPolicy duplicateKeyPolicy = BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE;
+		while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jsonParser.currentName();
+			jsonParser.nextToken();
+			if (field.equals("leafOrder"))
+				leafOrder = jsonParser.getValueAsInt();
+			else if (field.equals("innerOrder"))
+				innerOrder = jsonParser.getValueAsInt();
+			else if (field.equals("prefixCompression"))
+				prefixCompression = jsonParser.getValueAsBoolean();
+			else if (field.equals("duplicateKeyPolicy"))
+				duplicateKeyPolicy = parseDuplicateKeyPolicy(jsonParser.getValueAsString());
+			else
+				jsonParser.skipChildren();
 		}
-		
-		throw new IOException("Invalid JSON format for Bplustree.");
+		return new BtreeConfig(leafOrder, innerOrder, prefixCompression).withDuplicateKeyPolicy(duplicateKeyPolicy);
 	}
-	
-	private Node<String> parseNode(JsonNode node) {
-		String nodeType = node.get("nodeType").asText();
-		JsonNode keysNode = node.get("keys");
-		
-		Node<String> parsedNode = null;
-		
-		if (nodeType.equals("InternalNode"))
-			parsedNode = new InternalNode<>();
-		else if (nodeType.equals("LeafNode"))
-			parsedNode = new LeafNode<>();
-		
-		if (parsedNode != null) {
-			for (JsonNode keyNode : keysNode)
-				parsedNode.addKey(keyNode.asText());
-			
-			if (node.has("children")) {
-				JsonNode childrenNode = node.get("children");
-				if (childrenNode.isArray()) {
-					for (JsonNode childNode : childrenNode) {
-						Node<String> child = parseNode(childNode);
-						if (child != null) {
-							if (nodeType.equals("LeafNode")) {
-								JsonNode valuesNode = childNode.get("values");
-								if (valuesNode.isArray()) {
-									LeafNode<String, String> leafNode = (LeafNode<String, String>) child;
-									for (JsonNode valueNode : valuesNode)
-										leafNode.addValue(valueNode.asText());
-								}
-							}
-							((InternalNode<String>) parsedNode).addChild(child);
-						}
-					}
+
+	private static BtreeConfig.DuplicateKeyPolicy parseDuplicateKeyPolicy(String name) throws IOException {
+		for (BtreeConfig.DuplicateKeyPolicy policy : BtreeConfig.DuplicateKeyPolicy.values()) {
+			if (policy.name().equals(name))
+				return policy;
+		}
+		throw new IOException("Unknown duplicate key policy: " + name);
+	}
+
+	/**
+	 * Parse the node starting at the current token, its values are attached to it when it is a leaf.
+	 */
+	private Node<String> parseNode(JsonParser jsonParser, BtreeConfig config) throws IOException {
+		if (jsonParser.currentToken() != JsonToken.START_OBJECT)
+			throw new IOException("Invalid JSON format for Bplustree node.");
+
+		String nodeType = null;
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		List<Node<String>> children = new ArrayList<>();
+		while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jsonParser.currentName();
+			jsonParser.nextToken();
+			switch (field) {
+				case "nodeType" -> nodeType = jsonParser.getText();
+				case "keys" -> parseStrings(jsonParser, keys);
+				case "values" -> parseStrings(jsonParser, values);
+				case "children" -> {
+					while (jsonParser.nextToken() != JsonToken.END_ARRAY)
+						children.add(parseNode(jsonParser, config));
 				}
+				default -> jsonParser.skipChildren();
 			}
 		}
-		return parsedNode;
+
+		if ("LeafNode".equals(nodeType))
+			return newLeaf(config, keys, values);
+		if ("InternalNode".equals(nodeType)) {
+			if (children.size() != keys.size() + 1)
+				throw new IOException("Invalid internal node : " + keys.size() + " keys and " + children.size() + " children");
+			InternalNode<String> internalNode = new InternalNode<>(config);
+			for (String key : keys)
+				internalNode.addKey(key);
+			for (Node<String> child : children)
+				internalNode.addChild(child);
+			return internalNode;
+		}
+		throw new IOException("Invalid node type : " + nodeType);
+	}
+
+	static LeafNode<String, String> newLeaf(BtreeConfig config, List<String> keys, List<String> values) throws IOException {
+		if (values.size() != keys.size())
+			throw new IOException("Invalid leaf : " + keys.size() + " keys and " + values.size() + " values");
+		LeafNode<String, String> leafNode = LeafNode.create(config);
+		for (int i = 0; i < keys.size(); i++) {
+			leafNode.addKey(keys.get(i));
+			leafNode.addValue(values.get(i));
+		}
+		return leafNode;
+	}
+
+	static void parseStrings(JsonParser jsonParser, List<String> strings) throws IOException {
+		if (jsonParser.currentToken() != JsonToken.START_ARRAY)
+			throw new IOException("Invalid JSON format for Bplustree node.");
+		while (jsonParser.nextToken() != JsonToken.END_ARRAY)
+			strings.add(jsonParser.getValueAsString());
 	}
 }
@@ -0,0 +1,274 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens a tree saved as JSON without reading it whole : the root is read first, then the children of an internal node
+ * the first time a search (or any walk of the tree) goes through it, at the offsets indexed by {@link BtreeSerializer}.
+ * The first searches only wait for the nodes they go through, the nodes never searched are never read.
+ *
+ * The tree opened is a snapshot : a tree taking over its nodes ({@link ConcurrentBtree#of(Btree)}) copies them before
+ * updating them, and a node is read before it is copied. {@link #warmUp(Btree)} reads the nodes left, in the background.
+ * The file stays open until all its nodes are read or the loader is closed : it must not be written meanwhile,
+ * only replaced (a new file moved to its path).
+ */
+public final class BtreeLazyLoader implements Closeable {
+    /** Bytes read from the end of the file to find the index, which holds a few numbers */
+    private static final int INDEX_MAX_BYTES = 4096;
+    private static final String INDEX_FIELD = "\"index\":";
+
+    private final FileChannel channel;
+    private final JsonFactory factory = new JsonFactory();
+    private BtreeConfig config;
+    private Btree<String, String> btree;
+
+    /** Internal nodes whose children are not read yet, the file is closed once there are none left */
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private BtreeLazyLoader(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Read the config and the root of a tree saved as JSON.
+     * @return the loader, or null when the file has no index (saved by an older version, or not to a file) and must be read whole
+     */
+    public static BtreeLazyLoader open(Path file) throws IOException {
+        BtreeLazyLoader loader = new BtreeLazyLoader(FileChannel.open(file, StandardOpenOption.READ));
+        try {
+            if (loader.readTree())
+                return loader;
+        }
+        catch (IOException | RuntimeException e) {
+            loader.close();
+            throw e;
+        }
+        loader.close();
+        return null;
+    }
+
+    /**
+     * Read-only tree, whose nodes are read as they are needed.
+     */
+    public Btree<String, String> getBtree() {
+        return btree;
+    }
+
+    /**
+     * Internal nodes whose children were not read yet.
+     */
+    public long getPendingNodeCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Read the nodes not read yet, walking a snapshot of the tree which took over the nodes :
+     * called from a background thread once the tree is served, the nodes dropped by the updates are not read.
+     */
+    public void warmUp(Btree<String, String> btree) {
+        if (pendingCount.get() == 0)
+            return;
+
+        // level by level, the upper nodes are shared by more searches
+        Deque<InternalNode<String>> nodes = new ArrayDeque<>();
+        if (btree.snapshot().getRoot() instanceof InternalNode<String> root)
+            nodes.add(root);
+        while (!nodes.isEmpty() && pendingCount.get() > 0) {
+            InternalNode<String> node = nodes.poll();
+            for (int i = 0; i < node.getChildCount(); i++) {
+                if (node.getChild(i) instanceof InternalNode<String> child)
+                    nodes.add(child);
+            }
+        }
+    }
+
+    /**
+     * Close the file : the nodes not read yet can no longer be, a search reaching one fails.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /* The codes below read the file */
+
+    /**
+     * Read the config, the index and the root.
+     * @return false when the file has no index
+     */
+    private boolean readTree() throws IOException {
+        long size = channel.size();
+        long tailOffset = Math.max(0, size - INDEX_MAX_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate((int) (size - tailOffset));
+        while (tail.hasRemaining() && channel.read(tail, tailOffset + tail.position()) >= 0);
+        // one char per byte, the index of a char is the offset of its byte
+        String tailText = new String(tail.array(), 0, tail.position(), StandardCharsets.ISO_8859_1);
+        // the index follows the root, a field name in a key or value would have its quotes escaped
+        int indexField = tailText.lastIndexOf(INDEX_FIELD);
+        if (indexField < 1 || tailText.charAt(indexField - 1) != ',')
+            return false;
+
+        try (JsonParser parser = this.parserAt(0)) {
+            if (parser.nextToken() == JsonToken.START_ARRAY)
+                parser.nextToken();
+            if (parser.currentToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME
+                    || !parser.currentName().equals("config") || parser.nextToken() != JsonToken.START_OBJECT)
+                return false;
+            this.config = BtreeDeserializer.parseConfig(parser);
+        }
+
+        long rootOffset = -1;
+        long rootChildrenOffset = 0;
+        long entries = 0;
+        long nodes = 0;
+        long leaves = 0;
+        int height = 0;
+        try (JsonParser parser = this.parserAt(tailOffset + indexField + INDEX_FIELD.length())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "root" -> rootOffset = parser.getLongValue();
+                    case "rootChildren" -> rootChildrenOffset = parser.getLongValue();
+                    case "entries" -> entries = parser.getLongValue();
+                    case "nodes" -> nodes = parser.getLongValue();
+                    case "leaves" -> leaves = parser.getLongValue();
+                    case "height" -> height = parser.getIntValue();
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        if (rootOffset < 0)
+            return false;
+
+        Node<String> root = this.readNode(rootOffset, rootChildrenOffset);
+        // the nodes read are of epoch 0, the tree taking them over copies them before its updates
+        this.btree = new BtreeSnapshot<>(config, root, 1, 0);
+        this.btree.setStatistics(new BtreeStatistics(config.getLeafOrder() - 1, entries, nodes, leaves, height));
+        if (pendingCount.get() == 0)
+            channel.close();
+        return true;
+    }
+
+    /**
+     * Read a node : the entries of a leaf, or the keys of an internal node whose children are read when first needed.
+     * @param childrenOffset the offset of the child offsets of an internal node
+     */
+    private Node<String> readNode(long offset, long childrenOffset) throws IOException {
+        String nodeType = null;
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        try (JsonParser parser = this.parserAt(offset)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Invalid index : no node at offset " + offset);
+            // the nodes are written with their type and keys first, the children are not read
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("children"))
+                    break;
+                switch (field) {
+                    case "nodeType" -> nodeType = parser.getText();
+                    case "keys" -> BtreeDeserializer.parseStrings(parser, keys);
+                    case "values" -> BtreeDeserializer.parseStrings(parser, values);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        if ("LeafNode".equals(nodeType))
+            return BtreeDeserializer.newLeaf(config, keys, values);
+        if (!"InternalNode".equals(nodeType))
+            throw new IOException("Invalid node type : " + nodeType);
+
+        InternalNode<String> internalNode = new InternalNode<>(config);
+        for (String key : keys)
+            internalNode.addKey(key);
+        pendingCount.incrementAndGet();
+        internalNode.setChildLoader(node -> this.readChildren(node, childrenOffset));
+        return internalNode;
+    }
+
+    /**
+     * Read the children of a node and link them to each other.
+     */
+    private void readChildren(InternalNode<String> node, long childrenOffset) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        try (JsonParser parser = this.parserAt(childrenOffset)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+                throw new IOException("Invalid index : no child offsets at offset " + childrenOffset);
+            while (parser.nextToken() != JsonToken.END_ARRAY)
+                offsets.add(parser.getLongValue());
+        }
+        if (offsets.size() != 3 * (node.getKeyCount() + 1))
+            throw new IOException("Invalid index : " + node.getKeyCount() + " keys and " + offsets.size() / 3 + " children");
+
+        // all read before the first is added, a node which failed to be read is read again by the next search
+        List<Node<String>> children = new ArrayList<>(offsets.size() / 3);
+        for (int i = 0; i < offsets.size(); i += 3)
+            children.add(this.readNode(offsets.get(i), offsets.get(i + 1)));
+
+        Node<String> previous = null;
+        for (int i = 0; i < children.size(); i++) {
+            Node<String> child = children.get(i);
+            // the entries of a child are known before its own children are read
+            node.addChild(child, offsets.get(3 * i + 2));
+            // the children of other nodes are not linked, scans of the snapshot walk down from the root
+            if (previous != null) {
+                previous.setRightSibling(child);
+                child.setLeftSibling(previous);
+            }
+            previous = child;
+        }
+
+        if (pendingCount.decrementAndGet() == 0)
+            channel.close();
+    }
+
+    private JsonParser parserAt(long offset) throws IOException {
+        return factory.createParser(new ChannelInputStream(offset));
+    }
+
+    /**
+     * Stream over the file from an offset, read by position : the nodes of several searches are read at the same time.
+     */
+    private final class ChannelInputStream extends InputStream {
+        private long position;
+
+        private ChannelInputStream(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) <= 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (read > 0)
+                position += read;
+            return read;
+        }
+    }
+}
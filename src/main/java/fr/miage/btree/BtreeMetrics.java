@@ -0,0 +1,152 @@
+package fr.miage.btree;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters of the tree served by the application, exposed by the actuator (/actuator/prometheus) :
+ * <ul>
+ *     <li>btree.operation : latency histogram of insert, search and delete (tag operation);</li>
+ *     <li>btree.splits, btree.borrows, btree.merges, btree.root.changes : structural changes;</li>
+ *     <li>btree.height, btree.nodes, btree.leaves, btree.entries, btree.leaf.fill : shape of the tree;</li>
+ *     <li>btree.cache.hits, btree.cache.misses, btree.cache.evictions, btree.cache.entries, btree.cache.hit.ratio :
+ *     lookup cache of the tree, 0 when it has none;</li>
+ *     <li>btree.leaf.filter.skips, btree.leaf.filter.false.positives, btree.leaf.filter.false.positive.ratio,
+ *     btree.leaf.filter.target.false.positive.ratio, btree.leaf.filter.bytes : leaf filters of a paged tree,
+ *     0 when it has none.</li>
+ * </ul>
+ * Every meter reads the {@link BtreeStatistics} the tree keeps up to date (or its {@link LookupCache} and
+ * {@link LeafFilters}), the tree is never walked.
+ * The counters start again from zero when the application replaces its tree (by an import for instance).
+ */
+@Component
+public class BtreeMetrics implements MeterBinder, LatencyRecorder {
+    /** Lookups of a large tree take about a microsecond, synced inserts up to a few milliseconds */
+    private static final Duration MIN_EXPECTED_LATENCY = Duration.ofNanos(100);
+    private static final Duration MAX_EXPECTED_LATENCY = Duration.ofSeconds(1);
+
+    private volatile Btree<?, ?> btree;
+    /** Filled once the meters are bound to the registry, operations are not timed before */
+    private volatile Map<Operation, Timer> timers;
+
+    /**
+     * Time the operations of a tree and report its statistics, instead of the ones of the previous tree.
+     * @return the tree
+     */
+    public <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> instrument(Btree<TKey, TValue> btree) {
+        btree.setLatencyRecorder(this);
+        this.btree = btree;
+        return btree;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Map<Operation, Timer> timers = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            timers.put(operation, Timer.builder("btree.operation")
+                    .description("Duration of the operations of the tree")
+                    .tag("operation", operation.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                    .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                    .register(registry));
+        }
+        this.timers = timers;
+
+        counter(registry, "btree.splits", "Nodes split by inserts", BtreeStatistics::getSplitCount);
+        counter(registry, "btree.borrows", "Keys borrowed from a sibling by deletes", BtreeStatistics::getBorrowCount);
+        counter(registry, "btree.merges", "Nodes merged with a sibling by deletes", BtreeStatistics::getMergeCount);
+        counter(registry, "btree.root.changes", "Roots split or collapsed", BtreeStatistics::getRootChangeCount);
+
+        gauge(registry, "btree.height", "Number of levels of the tree", BtreeStatistics::getHeight);
+        gauge(registry, "btree.nodes", "Number of nodes of the tree", BtreeStatistics::getNodeCount);
+        gauge(registry, "btree.leaves", "Number of leaves of the tree", BtreeStatistics::getLeafCount);
+        gauge(registry, "btree.entries", "Number of entries of the tree", BtreeStatistics::getEntryCount);
+        gauge(registry, "btree.leaf.fill", "Average part of the leaves which is used", BtreeStatistics::getAverageLeafFill);
+
+        cacheCounter(registry, "btree.cache.hits", "Searches answered by the lookup cache", LookupCache::getHitCount);
+        cacheCounter(registry, "btree.cache.misses", "Searches which missed the lookup cache", LookupCache::getMissCount);
+        cacheCounter(registry, "btree.cache.evictions", "Keys evicted from the lookup cache", LookupCache::getEvictionCount);
+        cacheGauge(registry, "btree.cache.entries", "Number of keys in the lookup cache", LookupCache::getEntryCount);
+        cacheGauge(registry, "btree.cache.hit.ratio", "Part of the searches answered by the lookup cache",
+                cache -> Double.isNaN(cache.getHitRate()) ? 0 : cache.getHitRate());
+
+        filterCounter(registry, "btree.leaf.filter.skips", "Searches of a missing key which did not read its leaf",
+                LeafFilters::getSkipCount);
+        filterCounter(registry, "btree.leaf.filter.false.positives", "Searches of a missing key which read its leaf",
+                LeafFilters::getFalsePositiveCount);
+        filterGauge(registry, "btree.leaf.filter.false.positive.ratio", "Observed false positive rate of the leaf filters",
+                filters -> Double.isNaN(filters.getObservedFalsePositiveRate()) ? 0 : filters.getObservedFalsePositiveRate());
+        filterGauge(registry, "btree.leaf.filter.target.false.positive.ratio", "False positive rate the leaf filters are sized for",
+                LeafFilters::getFalsePositiveRate);
+        filterGauge(registry, "btree.leaf.filter.bytes", "Heap taken by the leaf filters", LeafFilters::getBytes);
+    }
+
+    private void counter(MeterRegistry registry, String name, String description, ToDoubleFunction<BtreeStatistics> count) {
+        FunctionCounter.builder(name, this, metrics -> metrics.read(btree -> count.applyAsDouble(btree.getStatistics())))
+                .description(description)
+                .register(registry);
+    }
+
+    private void gauge(MeterRegistry registry, String name, String description, ToDoubleFunction<BtreeStatistics> value) {
+        Gauge.builder(name, this, metrics -> metrics.read(btree -> value.applyAsDouble(btree.getStatistics())))
+                .description(description)
+                .register(registry);
+    }
+
+    private void cacheCounter(MeterRegistry registry, String name, String description, ToDoubleFunction<LookupCache<?, ?>> count) {
+        FunctionCounter.builder(name, this, metrics -> metrics.read(btree -> readCache(btree, count)))
+                .description(description)
+                .register(registry);
+    }
+
+    private void cacheGauge(MeterRegistry registry, String name, String description, ToDoubleFunction<LookupCache<?, ?>> value) {
+        Gauge.builder(name, this, metrics -> metrics.read(btree -> readCache(btree, value)))
+                .description(description)
+                .register(registry);
+    }
+
+    private void filterCounter(MeterRegistry registry, String name, String description, ToDoubleFunction<LeafFilters> count) {
+        FunctionCounter.builder(name, this, metrics -> metrics.read(btree -> readFilters(btree, count)))
+                .description(description)
+                .register(registry);
+    }
+
+    private void filterGauge(MeterRegistry registry, String name, String description, ToDoubleFunction<LeafFilters> value) {
+        Gauge.builder(name, this, metrics -> metrics.read(btree -> readFilters(btree, value)))
+                .description(description)
+                .register(registry);
+    }
+
+    private static double readFilters(Btree<?, ?> btree, ToDoubleFunction<LeafFilters> value) {
+        LeafFilters filters = btree instanceof PagedBtree<?, ?> pagedTree ? pagedTree.getLeafFilters() : null;
+        return filters == null ? 0 : value.applyAsDouble(filters);
+    }
+
+    private static double readCache(Btree<?, ?> btree, ToDoubleFunction<LookupCache<?, ?>> value) {
+        LookupCache<?, ?> cache = btree.getLookupCache();
+        return cache == null ? 0 : value.applyAsDouble(cache);
+    }
+
+    private double read(ToDoubleFunction<Btree<?, ?>> value) {
+        Btree<?, ?> btree = this.btree;
+        return btree == null ? Double.NaN : value.applyAsDouble(btree);
+    }
+
+    @Override
+    public void record(Operation operation, long nanos) {
+        Map<Operation, Timer> timers = this.timers;
+        if (timers != null)
+            timers.get(operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,171 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a tree token by token, node after node : written to a stream, the JSON is never built in memory.
+ * The config is written before the root, so that the nodes can be built as they are read (see {@link BtreeDeserializer}).
+ *
+ * Written to a {@link CountingOutputStream}, the tree is also indexed for {@link BtreeLazyLoader} : each internal node
+ * ends with the offsets of its children in the stream and their entry counts, and the document with the offsets of the root
+ * and the shape of the tree.
+ */
+public class BtreeSerializer extends JsonSerializer<Btree<?, ?>> {
+
+	@Override
+	public void serialize(Btree<?, ?> btree, JsonGenerator generator, SerializerProvider provider) throws IOException {
+		generator.writeStartObject();
+
+		generator.writeObjectFieldStart("config");
+		generator.writeNumberField("leafOrder", btree.getConfig().getLeafOrder());
+		generator.writeNumberField("innerOrder", btree.getConfig().getInnerOrder());
+		if (btree.getConfig().isPrefixCompression())
+			generator.writeBooleanField("prefixCompression", true);
+		if (btree.getConfig().getDuplicateKeyPolicy() != BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE)
+			generator.writeStringField("duplicateKeyPolicy", btree.getConfig().getDuplicateKeyPolicy().name());
+		generator.writeEndObject();
+
+		// offsets are only known when the bytes written are counted from the start of the stream
+		Index index = generator.getOutputTarget() instanceof CountingOutputStream output && generator.getOutputBuffered() >= 0
+				? new Index(output, generator) : null;
+
+		generator.writeFieldName("root");
+		long[] rootOffsets = writeNode(btree.getRoot(), generator, provider, index, 1);
+
+		if (index != null) {
+			generator.writeObjectFieldStart("index");
+			generator.writeNumberField("root", rootOffsets[0]);
+			generator.writeNumberField("rootChildren", rootOffsets[1]);
+			generator.writeNumberField("entries", index.entries);
+			generator.writeNumberField("nodes", index.nodes);
+			generator.writeNumberField("leaves", index.leaves);
+			generator.writeNumberField("height", index.height);
+			generator.writeEndObject();
+		}
+
+		generator.writeEndObject();
+	}
+
+	/**
+	 * @return the offsets of the node and of its child offsets (0 for a leaf), and its entry count, when the tree is indexed
+	 */
+	private long[] writeNode(Node<?> node, JsonGenerator generator, SerializerProvider provider, Index index, int depth) throws IOException {
+		generator.writeStartObject();
+		long[] offsets = index == null ? null : new long[] {index.lastByte(), 0, 0};
+		generator.writeStringField("nodeType", node.getNodeType().name());
+
+		generator.writeArrayFieldStart("keys");
+		for (int i = 0; i < node.getKeyCount(); i++)
+			writeValue(node.getKey(i), generator, provider);
+		generator.writeEndArray();
+
+		if (node instanceof LeafNode<?, ?> leaf) {
+			generator.writeArrayFieldStart("values");
+			for (int i = 0; i < leaf.getKeyCount(); i++)
+				writeValue(leaf.getValue(i), generator, provider);
+			generator.writeEndArray();
+			if (index != null) {
+				offsets[2] = leaf.getKeyCount();
+				index.leafWritten(leaf.getKeyCount(), depth);
+			}
+		}
+		else {
+			InternalNode<?> internalNode = (InternalNode<?>) node;
+			long[] childOffsets = index == null ? null : new long[3 * internalNode.getChildCount()];
+			generator.writeArrayFieldStart("children");
+			for (int i = 0; i < internalNode.getChildCount(); i++) {
+				long[] child = writeNode(internalNode.getChild(i), generator, provider, index, depth + 1);
+				if (index != null) {
+					System.arraycopy(child, 0, childOffsets, 3 * i, 3);
+					offsets[2] += child[2];
+				}
+			}
+			generator.writeEndArray();
+
+			if (index != null) {
+				// after the children, their offsets are only known once they are written
+				generator.writeArrayFieldStart("childOffsets");
+				offsets[1] = index.lastByte();
+				for (long offset : childOffsets)
+					generator.writeNumber(offset);
+				generator.writeEndArray();
+				index.nodes++;
+			}
+		}
+
+		generator.writeEndObject();
+		return offsets;
+	}
+
+	static void writeValue(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+		if (value instanceof String string)
+			generator.writeString(string);
+		else
+			provider.defaultSerializeValue(value, generator);
+	}
+
+	/**
+	 * Stream counting the bytes written to it, for the tree to be indexed by their offset.
+	 * It must wrap the stream from its first byte, the file the tree is saved to for instance.
+	 */
+	static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Position of the generator in the stream, and shape of the tree counted as it is written.
+	 */
+	private static final class Index {
+		private final CountingOutputStream output;
+		private final JsonGenerator generator;
+		private long entries;
+		private long nodes;
+		private long leaves;
+		private int height;
+
+		private Index(CountingOutputStream output, JsonGenerator generator) {
+			this.output = output;
+			this.generator = generator;
+		}
+
+		/**
+		 * Offset of the last byte written, the bracket or brace opening the object or array just started.
+		 */
+		private long lastByte() {
+			return output.getCount() + generator.getOutputBuffered() - 1;
+		}
+
+		private void leafWritten(int keyCount, int depth) {
+			entries += keyCount;
+			nodes++;
+			leaves++;
+			height = Math.max(height, depth);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package fr.miage.btree;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Read-only view returned by {@link Btree#snapshot()}.
+ * The nodes are shared with the tree, which keeps their links up to date for itself only :
+ * scans walk down from the root of the snapshot instead of following the links between leaves.
+ */
+final class BtreeSnapshot<TKey extends Comparable<TKey>, TValue> extends Btree<TKey, TValue> {
+    private final long logPosition;
+
+    BtreeSnapshot(BtreeConfig config, Node<TKey> root, long epoch, long logPosition) {
+        super(config, root, epoch);
+        this.logPosition = logPosition;
+    }
+
+    @Override
+    public void insert(TKey key, TValue value) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    @Override
+    public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    @Override
+    public void delete(TKey key) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    @Override
+    TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                        LatencyRecorder.Operation operation) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    @Override
+    public void setRoot(Node<TKey> root) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    @Override
+    public void setLog(WriteAheadLog<TKey, TValue> log) {
+        throw new UnsupportedOperationException("A snapshot is read-only");
+    }
+
+    /**
+     * The position of the log of the tree when the snapshot was taken.
+     */
+    @Override
+    long getLogPosition() {
+        return logPosition;
+    }
+
+    /**
+     * The links between leaves are the ones of the live tree, batch searches descend from the root of the snapshot.
+     */
+    @Override
+    LeafNode<TKey, TValue> nextLeaf(LeafNode<TKey, TValue> leaf) {
+        return null;
+    }
+
+    /**
+     * A snapshot never changes, it is its own snapshot.
+     */
+    @Override
+    public Btree<TKey, TValue> snapshot() {
+        return this;
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return BtreeCursor.fromRoot(this.getRoot(), false, from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return BtreeCursor.fromRoot(this.getRoot(), true, from, fromInclusive, to, toInclusive);
+    }
+}
@@ -0,0 +1,213 @@
+package fr.miage.btree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shape of a tree and count of its structural changes, kept up to date by the updates :
+ * reading them never walks the tree, so they can be polled by a monitoring system.
+ *
+ * Counters are adders, as the writers of a concurrent tree update different leaves at the same time : entries are
+ * added and removed under its shared lock, and leaves split under it too, into a parent which has room left.
+ * The height only changes with the root, under the exclusive lock of a concurrent tree.
+ * A reader may see the counters of an update in progress.
+ */
+public final class BtreeStatistics {
+    /** Number of keys a leaf holds when it is full, 0 when leaves are not sized in keys */
+    private final int leafCapacity;
+
+    private final LongAdder entryCount = new LongAdder();
+    private final LongAdder nodeCount = new LongAdder();
+    private final LongAdder leafCount = new LongAdder();
+    private volatile int height;
+
+    private final LongAdder splitCount = new LongAdder();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder mergeCount = new LongAdder();
+    private final LongAdder rootChangeCount = new LongAdder();
+
+    BtreeStatistics(int leafCapacity, long entryCount, long nodeCount, long leafCount, int height) {
+        this.leafCapacity = leafCapacity;
+        this.entryCount.add(entryCount);
+        this.nodeCount.add(nodeCount);
+        this.leafCount.add(leafCount);
+        this.height = height;
+    }
+
+    /**
+     * Count the nodes and entries of a tree once, its updates are then counted as they are applied.
+     */
+    static <TKey extends Comparable<TKey>> BtreeStatistics count(BtreeConfig config, Node<TKey> root) {
+        long entries = 0;
+        long nodes = 0;
+        long leaves = 0;
+        int height = 0;
+        List<Node<TKey>> level = List.of(root);
+        while (!level.isEmpty()) {
+            height++;
+            List<Node<TKey>> nextLevel = new ArrayList<>();
+            for (Node<TKey> node : level) {
+                nodes++;
+                if (node.getNodeType() == NodeType.InternalNode) {
+                    nextLevel.addAll(((InternalNode<TKey>) node).getChildren());
+                }
+                else {
+                    leaves++;
+                    entries += node.getKeyCount();
+                }
+            }
+            level = nextLevel;
+        }
+        return new BtreeStatistics(config.getLeafOrder() - 1, entries, nodes, leaves, height);
+    }
+
+    /**
+     * Statistics of a tree taking over the nodes of another one : the same shape, without the changes counted so far.
+     */
+    static BtreeStatistics shapeOf(BtreeConfig config, BtreeStatistics other) {
+        return new BtreeStatistics(config.getLeafOrder() - 1, other.getEntryCount(), other.getNodeCount(),
+                other.getLeafCount(), other.getHeight());
+    }
+
+    /**
+     * Statistics of a tree split in several trees (the shards of a {@link ShardedBtree}) : the sums of theirs,
+     * and the height of the highest one.
+     */
+    static BtreeStatistics sum(BtreeConfig config, Collection<BtreeStatistics> parts) {
+        long entries = 0;
+        long nodes = 0;
+        long leaves = 0;
+        int height = 0;
+        for (BtreeStatistics part : parts) {
+            entries += part.getEntryCount();
+            nodes += part.getNodeCount();
+            leaves += part.getLeafCount();
+            height = Math.max(height, part.getHeight());
+        }
+        BtreeStatistics statistics = new BtreeStatistics(config.getLeafOrder() - 1, entries, nodes, leaves, height);
+        for (BtreeStatistics part : parts)
+            statistics.addChanges(part);
+        return statistics;
+    }
+
+    /**
+     * Carry over the structural changes of another tree, the one this tree was rebuilt from.
+     */
+    void addChanges(BtreeStatistics other) {
+        this.splitCount.add(other.getSplitCount());
+        this.borrowCount.add(other.getBorrowCount());
+        this.mergeCount.add(other.getMergeCount());
+        this.rootChangeCount.add(other.getRootChangeCount());
+    }
+
+    /* The codes below are called by the updates */
+
+    void entriesAdded(long count) {
+        this.entryCount.add(count);
+    }
+
+    void entryRemoved() {
+        this.entryCount.decrement();
+    }
+
+    /**
+     * A node was split in two.
+     */
+    void nodeSplit(boolean leaf) {
+        this.splitCount.increment();
+        this.nodeCount.increment();
+        if (leaf)
+            this.leafCount.increment();
+    }
+
+    /**
+     * An underflowing node took a key from a sibling.
+     */
+    void keyBorrowed() {
+        this.borrowCount.increment();
+    }
+
+    /**
+     * Two sibling nodes were merged into one.
+     */
+    void nodesMerged(boolean leaf) {
+        this.mergeCount.increment();
+        this.nodeCount.decrement();
+        if (leaf)
+            this.leafCount.decrement();
+    }
+
+    /**
+     * The root was split, a new root was added above it.
+     */
+    void rootSplit() {
+        this.rootChangeCount.increment();
+        this.nodeCount.increment();
+        this.height++;
+    }
+
+    /**
+     * The root was left with a single child, which replaced it.
+     */
+    void rootCollapsed() {
+        this.rootChangeCount.increment();
+        this.nodeCount.decrement();
+        this.height--;
+    }
+
+    /* The codes below read the counters */
+
+    public long getEntryCount() {
+        return entryCount.sum();
+    }
+
+    public long getNodeCount() {
+        return nodeCount.sum();
+    }
+
+    public long getLeafCount() {
+        return leafCount.sum();
+    }
+
+    /**
+     * Number of levels, 1 for a tree which is a single leaf.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public long getSplitCount() {
+        return splitCount.sum();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getMergeCount() {
+        return mergeCount.sum();
+    }
+
+    public long getRootChangeCount() {
+        return rootChangeCount.sum();
+    }
+
+    /**
+     * Average part of the leaves which is used, in [0, 1], or NaN when leaves are not sized in keys (pages).
+     */
+    public double getAverageLeafFill() {
+        long leaves = this.getLeafCount();
+        if (leafCapacity == 0 || leaves == 0)
+            return Double.NaN;
+        return (double) this.getEntryCount() / ((double) leaves * leafCapacity);
+    }
+
+    @Override
+    public String toString() {
+        return "BtreeStatistics{entries=" + getEntryCount() + ", nodes=" + getNodeCount() + ", leaves=" + getLeafCount()
+                + ", height=" + getHeight() + ", splits=" + getSplitCount() + ", borrows=" + getBorrowCount()
+                + ", merges=" + getMergeCount() + ", rootChanges=" + getRootChangeCount() + "}";
+    }
+}
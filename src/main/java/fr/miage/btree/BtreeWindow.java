@@ -0,0 +1,136 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Part of a tree rendered by the visualizer : the node at a path from the root, and its descendants down to a depth.
+ * The internal nodes at the depth are written without their children, with their path to fetch them next,
+ * and at most a page of the entries of each leaf is written. The output is bounded whatever the size of the tree :
+ * the depth is clamped to the levels of at most {@link #MAX_NODES} nodes, and only the nodes written are read
+ * (see {@link Btree#nodeAt(List, int)}), the pages of a paged tree or the shards of a sharded tree are not copied.
+ *
+ * The nodes are written in the format of {@link BtreeSerializer}, with their path and their number of keys or children.
+ */
+@JsonSerialize(using = BtreeWindow.Serializer.class)
+public final class BtreeWindow {
+    /** Nodes a window writes at most, for a full tree of the inner order of the config */
+    static final int MAX_NODES = 1 << 16;
+
+    private final Btree<?, ?> btree;
+    private final List<Integer> path;
+    private final Node<?> node;
+    private final int depth;
+    private final int leafPageSize;
+    private final int leafOffset;
+
+    /**
+     * @param btree the tree, the window reads copies of its nodes when it is updated meanwhile
+     * @param path the indexes of the children to take from the root down to the node, empty for the root
+     * @param depth the levels written under the node, 0 for the node alone, clamped to the levels which fit in the window
+     * @param leafPageSize the maximum number of entries written for each leaf
+     * @param leafOffset the first entry written when the node is a leaf, to page through it
+     */
+    public BtreeWindow(Btree<?, ?> btree, List<Integer> path, int depth, int leafPageSize, int leafOffset) {
+        if (depth < 0)
+            throw new IllegalArgumentException("Depth must not be negative: " + depth);
+        if (leafPageSize < 1)
+            throw new IllegalArgumentException("Leaf page size must be at least 1: " + leafPageSize);
+        if (leafOffset < 0)
+            throw new IllegalArgumentException("Leaf offset must not be negative: " + leafOffset);
+
+        this.depth = Math.min(depth, maxDepth(btree.getConfig()));
+        // the node is found before anything is written, a wrong path fails the request instead of cutting the output
+        this.node = btree.nodeAt(path, this.depth);
+        this.btree = btree;
+        this.path = List.copyOf(path);
+        this.leafPageSize = leafPageSize;
+        this.leafOffset = leafOffset;
+    }
+
+    /**
+     * Levels under a node which hold at most MAX_NODES nodes, at least one.
+     */
+    static int maxDepth(BtreeConfig config) {
+        int depth = 1;
+        long nodes = config.getInnerOrder();
+        while (nodes * config.getInnerOrder() <= MAX_NODES) {
+            nodes *= config.getInnerOrder();
+            depth++;
+        }
+        return depth;
+    }
+
+    public static class Serializer extends JsonSerializer<BtreeWindow> {
+
+        @Override
+        public void serialize(BtreeWindow window, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+
+            generator.writeObjectFieldStart("config");
+            generator.writeNumberField("leafOrder", window.btree.getConfig().getLeafOrder());
+            generator.writeNumberField("innerOrder", window.btree.getConfig().getInnerOrder());
+            generator.writeEndObject();
+            generator.writeNumberField("entries", window.btree.getStatistics().getEntryCount());
+            generator.writeNumberField("height", window.btree.getStatistics().getHeight());
+            generator.writeNumberField("depth", window.depth);
+
+            generator.writeFieldName("node");
+            writeNode(window, window.node, window.path.stream().mapToInt(Integer::intValue).toArray(), 0,
+                    window.leafOffset, generator, provider);
+
+            generator.writeEndObject();
+        }
+
+        private void writeNode(BtreeWindow window, Node<?> node, int[] path, int depth, int leafOffset,
+                               JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("nodeType", node.getNodeType().name());
+            generator.writeFieldName("path");
+            generator.writeArray(path, 0, path.length);
+
+            if (node instanceof LeafNode<?, ?> leaf) {
+                int from = Math.min(leafOffset, leaf.getKeyCount());
+                int to = (int) Math.min((long) from + window.leafPageSize, leaf.getKeyCount());
+                generator.writeNumberField("keyCount", leaf.getKeyCount());
+                generator.writeNumberField("offset", from);
+                generator.writeArrayFieldStart("keys");
+                for (int i = from; i < to; i++)
+                    BtreeSerializer.writeValue(leaf.getKey(i), generator, provider);
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("values");
+                for (int i = from; i < to; i++)
+                    BtreeSerializer.writeValue(leaf.getValue(i), generator, provider);
+                generator.writeEndArray();
+            }
+            else {
+                InternalNode<?> internalNode = (InternalNode<?>) node;
+                generator.writeArrayFieldStart("keys");
+                for (int i = 0; i < internalNode.getKeyCount(); i++)
+                    BtreeSerializer.writeValue(internalNode.getKey(i), generator, provider);
+                generator.writeEndArray();
+                // a node at the depth is written without reading its children
+                generator.writeNumberField("childCount", internalNode.getKeyCount() + 1);
+
+                // below the depth, the children are fetched by their path
+                if (depth < window.depth) {
+                    generator.writeArrayFieldStart("children");
+                    for (int i = 0; i < internalNode.getChildCount(); i++) {
+                        int[] childPath = Arrays.copyOf(path, path.length + 1);
+                        childPath[path.length] = i;
+                        writeNode(window, internalNode.getChild(i), childPath, depth + 1, 0, generator, provider);
+                    }
+                    generator.writeEndArray();
+                }
+            }
+
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache of pages, shared by the page stores attached to it (one per tree).
+ * The pool allocates its frames once, from a byte budget : its memory use does not depend on the size of the trees.
+ *
+ * A pinned page stays in its frame until it is unpinned. When a page which is not cached is pinned, an unpinned frame
+ * is chosen by the eviction policy, written back first if it is dirty, and reused.
+ * Pages classified as hot when they are unpinned (internal nodes for a {@link PagedBtree}) are evicted only when
+ * every unpinned frame holds a hot page, so cold leaves are evicted first.
+ */
+public class BufferPool {
+
+    public enum Eviction {
+        /** Second chance : a hand sweeps the frames and evicts the first one not referenced since its last pass */
+        CLOCK,
+        /** Evict the page whose K-th most recent access is the oldest, pages accessed less than K times first */
+        LRU_K
+    }
+
+    public static final int DEFAULT_K = 2;
+    /** Frames a single operation may pin at the same time, the pool must have room for a few of them */
+    private static final int MIN_FRAMES = 16;
+
+    private final int pageSize;
+    private final Eviction eviction;
+    private final int k;
+
+    private final ByteBuffer[] frames;
+    private final PooledPageStore[] frameStores;
+    private final int[] framePages;
+    private final int[] pinCounts;
+    private final boolean[] dirty;
+    private final boolean[] hot;
+    /** CLOCK : set on each access, cleared by the hand */
+    private final boolean[] referenced;
+    /** LRU-K : the K last access times of each frame, most recent first */
+    private final long[][] accessHistory;
+    private final Map<Long, Integer> pageTable = new HashMap<>();
+
+    private int clockHand;
+    private long accessTime;
+    private int nextStoreId;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * @param capacityBytes the memory given to the frames, capacityBytes / pageSize frames are allocated
+     */
+    public BufferPool(long capacityBytes, int pageSize, Eviction eviction) {
+        this(capacityBytes, pageSize, eviction, DEFAULT_K);
+    }
+
+    public BufferPool(long capacityBytes, int pageSize, Eviction eviction, int k) {
+        PageFileHeader.checkPageSize(pageSize);
+        long frameCount = capacityBytes / pageSize;
+        if (frameCount < MIN_FRAMES || frameCount > Integer.MAX_VALUE / pageSize)
+            throw new IllegalArgumentException("A pool of " + capacityBytes + " bytes holds " + frameCount
+                    + " pages of " + pageSize + " bytes, it must hold at least " + MIN_FRAMES + " pages and less than 2 GB");
+        if (k < 1)
+            throw new IllegalArgumentException("K must be positive: " + k);
+
+        this.pageSize = pageSize;
+        this.eviction = eviction;
+        this.k = k;
+
+        int count = (int) frameCount;
+        ByteBuffer memory = ByteBuffer.allocate(count * pageSize);
+        this.frames = new ByteBuffer[count];
+        for (int i = 0; i < count; i++)
+            this.frames[i] = memory.slice(i * pageSize, pageSize);
+        this.frameStores = new PooledPageStore[count];
+        this.framePages = new int[count];
+        this.pinCounts = new int[count];
+        this.dirty = new boolean[count];
+        this.hot = new boolean[count];
+        this.referenced = new boolean[count];
+        this.accessHistory = eviction == Eviction.LRU_K ? new long[count][k] : null;
+    }
+
+    /**
+     * Cache the pages of a store in this pool.
+     * @param isHot tells from its content whether a page should be kept longer than the others
+     */
+    public synchronized PageStore attach(PageStore store, Predicate<ByteBuffer> isHot) {
+        if (store.getPageSize() != pageSize)
+            throw new IllegalArgumentException("The store has pages of " + store.getPageSize() + " bytes, the pool of " + pageSize);
+        return new PooledPageStore(nextStoreId++, store, isHot);
+    }
+
+    public PageStore attach(PageStore store) {
+        return this.attach(store, page -> false);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    private synchronized ByteBuffer pin(PooledPageStore store, int pageId) {
+        Integer cachedFrame = pageTable.get(store.pageKey(pageId));
+        int frame;
+        if (cachedFrame != null) {
+            hits++;
+            frame = cachedFrame;
+        }
+        else {
+            misses++;
+            frame = this.freeFrame();
+            ByteBuffer page = store.storage.pin(pageId);
+            try {
+                frames[frame].put(0, page, 0, pageSize);
+            }
+            finally {
+                store.storage.unpin(pageId, false);
+            }
+            frameStores[frame] = store;
+            framePages[frame] = pageId;
+            dirty[frame] = false;
+            hot[frame] = false;
+            if (accessHistory != null)
+                Arrays.fill(accessHistory[frame], 0);
+            pageTable.put(store.pageKey(pageId), frame);
+        }
+
+        pinCounts[frame]++;
+        this.recordAccess(frame);
+        return frames[frame];
+    }
+
+    private synchronized void unpin(PooledPageStore store, int pageId, boolean dirtied) {
+        Integer frame = pageTable.get(store.pageKey(pageId));
+        if (frame == null || pinCounts[frame] == 0)
+            throw new IllegalStateException("Page " + pageId + " is not pinned");
+        dirty[frame] |= dirtied;
+        hot[frame] = store.isHot.test(frames[frame]);
+        pinCounts[frame]--;
+    }
+
+    private void recordAccess(int frame) {
+        referenced[frame] = true;
+        if (accessHistory != null) {
+            long[] history = accessHistory[frame];
+            System.arraycopy(history, 0, history, 1, k - 1);
+            history[0] = ++accessTime;
+        }
+    }
+
+    /**
+     * An empty frame, or the frame of the page chosen by the eviction policy after it was written back.
+     */
+    private int freeFrame() {
+        int frame = eviction == Eviction.CLOCK ? this.clockVictim() : this.lruKVictim();
+        PooledPageStore store = frameStores[frame];
+        if (store != null) {
+            evictions++;
+            this.writeBack(frame);
+            pageTable.remove(store.pageKey(framePages[frame]));
+            frameStores[frame] = null;
+        }
+        return frame;
+    }
+
+    private int clockVictim() {
+        // hot pages get a pass only while there are cold ones to evict : after two full sweeps, anything unpinned goes
+        for (int step = 0; step < 4 * frames.length; step++) {
+            int frame = clockHand;
+            clockHand = (clockHand + 1) % frames.length;
+            if (frameStores[frame] == null)
+                return frame;
+            if (pinCounts[frame] > 0)
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (hot[frame] && step < 2 * frames.length)
+                continue;
+            return frame;
+        }
+        throw new IllegalStateException("All the " + frames.length + " frames of the buffer pool are pinned");
+    }
+
+    private int lruKVictim() {
+        int victim = -1;
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (frameStores[frame] == null)
+                return frame;
+            if (pinCounts[frame] > 0)
+                continue;
+            if (victim == -1 || this.evictsBefore(frame, victim))
+                victim = frame;
+        }
+        if (victim == -1)
+            throw new IllegalStateException("All the " + frames.length + " frames of the buffer pool are pinned");
+        return victim;
+    }
+
+    /**
+     * Cold before hot, then the oldest K-th access (0 when the page has fewer accesses), then the oldest last access.
+     */
+    private boolean evictsBefore(int frame, int other) {
+        if (hot[frame] != hot[other])
+            return !hot[frame];
+        long kthAccess = accessHistory[frame][k - 1];
+        long otherKthAccess = accessHistory[other][k - 1];
+        if (kthAccess != otherKthAccess)
+            return kthAccess < otherKthAccess;
+        return accessHistory[frame][0] < accessHistory[other][0];
+    }
+
+    private void writeBack(int frame) {
+        if (!dirty[frame])
+            return;
+        PooledPageStore store = frameStores[frame];
+        ByteBuffer page = store.storage.pin(framePages[frame]);
+        try {
+            page.put(0, frames[frame], 0, pageSize);
+        }
+        finally {
+            store.storage.unpin(framePages[frame], true);
+        }
+        dirty[frame] = false;
+        writeBacks++;
+    }
+
+    private synchronized void flush(PooledPageStore store) throws IOException {
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (frameStores[frame] == store)
+                this.writeBack(frame);
+        }
+        store.storage.flush();
+    }
+
+    /**
+     * Drop a page from the pool without writing it back, once it is freed by its store.
+     */
+    private synchronized void discard(PooledPageStore store, int pageId) {
+        Integer frame = pageTable.remove(store.pageKey(pageId));
+        if (frame != null)
+            frameStores[frame] = null;
+    }
+
+    private synchronized void detach(PooledPageStore store) {
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (frameStores[frame] == store) {
+                pageTable.remove(store.pageKey(framePages[frame]));
+                frameStores[frame] = null;
+            }
+        }
+    }
+
+    /**
+     * A store as seen through the pool : pages are pinned in the frames of the pool, the rest goes to the store.
+     */
+    private final class PooledPageStore implements PageStore {
+        private final long storeKey;
+        private final PageStore storage;
+        private final Predicate<ByteBuffer> isHot;
+
+        private PooledPageStore(int storeId, PageStore storage, Predicate<ByteBuffer> isHot) {
+            this.storeKey = (long) storeId << 32;
+            this.storage = storage;
+            this.isHot = isHot;
+        }
+
+        private long pageKey(int pageId) {
+            return storeKey | (pageId & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public ByteBuffer pin(int pageId) {
+            return BufferPool.this.pin(this, pageId);
+        }
+
+        @Override
+        public void unpin(int pageId, boolean dirty) {
+            BufferPool.this.unpin(this, pageId, dirty);
+        }
+
+        @Override
+        public int allocatePage() {
+            return storage.allocatePage();
+        }
+
+        @Override
+        public void freePage(int pageId) {
+            BufferPool.this.discard(this, pageId);
+            storage.freePage(pageId);
+        }
+
+        @Override
+        public int getRootPageId() {
+            return storage.getRootPageId();
+        }
+
+        @Override
+        public void setRootPageId(int pageId) {
+            storage.setRootPageId(pageId);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            BufferPool.this.flush(this);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+            BufferPool.this.detach(this);
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,755 @@
+package fr.miage.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe B+ tree.
+ *
+ * The nodes above the parents of the leaves are guarded by a tree lock, the leaves and their parents by node latches :
+ * <ul>
+ *     <li>readers descend without locking, then validate that neither the tree nor the leaf and the parent they read
+ *     changed meanwhile (optimistic reads). Only when a writer got in the way do they retry under shared locks.</li>
+ *     <li>writers descend under the shared tree lock, then latch their leaf exclusively and its parent. When the update
+ *     stays inside the leaf, the parent is latched shared : writers of other leaves, even under the same parent,
+ *     are not blocked. A leaf which splits into a parent with room left latches its parent exclusively,
+ *     the nodes above do not change.</li>
+ *     <li>updates which change the nodes above the parents (a parent which splits, a borrow or a fusion in
+ *     dealUnderflow), or which have to copy nodes shared with a snapshot, take the tree lock exclusively.</li>
+ *     <li>scans and exports read a snapshot, which does not block writers. Ranks and counts are read under the shared
+ *     tree lock, by the entry counts of the nodes.</li>
+ * </ul>
+ * Latches are striped : nodes are mapped by identity to a fixed pool of locks, so nodes carry no lock.
+ * A leaf and its parent are latched in the order of their stripes, and a thread latches no other node
+ * while it holds them : latches can not deadlock.
+ */
+public class ConcurrentBtree<TKey extends Comparable<TKey>, TValue> extends Btree<TKey, TValue> {
+    private static final int LATCH_STRIPES = 256;
+    /** Descents under the shared tree lock which splits may disturb before the writer takes the exclusive lock */
+    private static final int LATCH_ATTEMPTS = 8;
+
+    private final StampedLock treeLock = new StampedLock();
+    private final StampedLock[] nodeLatches = new StampedLock[LATCH_STRIPES];
+
+    public ConcurrentBtree() {
+        this(BtreeConfig.defaults());
+    }
+
+    public ConcurrentBtree(BtreeConfig config) {
+        super(config);
+        for (int i = 0; i < LATCH_STRIPES; i++)
+            nodeLatches[i] = new StampedLock();
+    }
+
+    private ConcurrentBtree(BtreeConfig config, Node<TKey> root, long epoch, BtreeStatistics statistics) {
+        super(config, root, epoch);
+        for (int i = 0; i < LATCH_STRIPES; i++)
+            nodeLatches[i] = new StampedLock();
+        // the shape is taken from the tree instead of counted, the nodes of a lazily loaded tree are not all read yet
+        this.setStatistics(BtreeStatistics.shapeOf(config, statistics));
+        this.createLookupCache();
+    }
+
+    /**
+     * Take over the nodes of a tree built by a single thread (by a bulk load or an import for instance).
+     * The given tree must not be updated afterwards, its snapshots stay valid.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> ConcurrentBtree<TKey, TValue> of(Btree<TKey, TValue> btree) {
+        return of(btree, btree.getConfig());
+    }
+
+    /**
+     * Take over the nodes of a tree with another config, to add a lookup cache for instance.
+     * @param config a config with the node orders and the leaf layout of the tree
+     */
+    public static <TKey extends Comparable<TKey>, TValue> ConcurrentBtree<TKey, TValue> of(Btree<TKey, TValue> btree, BtreeConfig config) {
+        btree.getConfig().checkSameNodes(config);
+        return new ConcurrentBtree<>(config, btree.getRoot(), btree.getEpoch(), btree.getStatistics());
+    }
+
+    @Override
+    TValue find(TKey key) {
+        long stamp = treeLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                LeafAccess access = new LeafAccess(key);
+                access.descend();
+                if (!access.startsInNextSubtree()) {
+                    TValue value = this.searchInLeaf(access.leaf, key);
+                    if (access.validate() && treeLock.validate(stamp))
+                        return value;
+                }
+            }
+            catch (RuntimeException e) {
+                // the nodes were read while a writer was moving entries, retry under locks
+            }
+        }
+
+        stamp = treeLock.readLock();
+        try {
+            LeafAccess access = this.latchLeaf(key, false, false);
+            if (access != null) {
+                try {
+                    return this.searchInLeaf(access.leaf, key);
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+
+        // the entries of the key start under another parent than the one the descent reaches
+        stamp = treeLock.writeLock();
+        try {
+            return super.find(key);
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * With a log, the update is appended under the same locks as it is applied, and the writer waits for the log
+     * once it released them.
+     */
+    @Override
+    public void insert(TKey key, TValue value) {
+        if (!this.keepsDuplicates()) {
+            this.insertUnique(key, value);
+            return;
+        }
+        long start = this.startTiming();
+        long logPosition = 0;
+        boolean inserted = false;
+        long stamp = treeLock.readLock();
+        try {
+            LeafAccess access = this.latchLeaf(key, true, true);
+            if (access != null) {
+                try {
+                    // the leaf has room left, or splits into a parent which has : the nodes above do not change
+                    LeafNode<TKey, TValue> leaf = access.leaf;
+                    if (leaf.epoch == this.getEpoch()
+                            && (leaf.getKeyCount() < leaf.getOrder() - 1 || access.canTakeSplit())) {
+                        logPosition = this.logInsert(key, value);
+                        this.insertIntoLeaf(leaf, key, value);
+                        inserted = true;
+                    }
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+
+        if (!inserted) {
+            // the parent will split too, or the leaf is shared with a snapshot and will be copied with its ancestors
+            stamp = treeLock.writeLock();
+            try {
+                logPosition = this.logInsert(key, value);
+                this.insertIntoLeaf(this.findLeafNodeToUpdate(key), key, value);
+            }
+            finally {
+                treeLock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(LatencyRecorder.Operation.INSERT, start);
+    }
+
+    @Override
+    public void delete(TKey key) {
+        long start = this.startTiming();
+        long logPosition = 0;
+        boolean deleted = false;
+        long stamp = treeLock.readLock();
+        try {
+            LeafAccess access = this.latchLeaf(key, true, false);
+            if (access != null) {
+                try {
+                    // the leaf is the root or will stay above its minimum, the delete can not propagate to other nodes
+                    LeafNode<TKey, TValue> leaf = access.leaf;
+                    if (leaf.epoch == this.getEpoch()
+                            && (leaf.getParent() == null || leaf.getKeyCount() > leaf.getMinKeyCount())) {
+                        logPosition = this.logDelete(key);
+                        this.deleteFromLeaf(leaf, key);
+                        deleted = true;
+                    }
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+
+        if (!deleted) {
+            // the leaf may borrow from or merge with a sibling, or has to be copied first
+            stamp = treeLock.writeLock();
+            try {
+                logPosition = this.logDelete(key);
+                this.deleteFromLeaf(this.findLeafNodeToUpdate(key), key);
+            }
+            finally {
+                treeLock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(LatencyRecorder.Operation.DELETE, start);
+    }
+
+    /**
+     * As an insert or a delete, the update is done under the shared tree lock and the latch of its leaf when the leaf
+     * can take an entry more or lose one without splitting or merging : the function, called once, is then called
+     * under the latch and must be short.
+     */
+    @Override
+    TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                        LatencyRecorder.Operation operation) {
+        long start = this.startTiming();
+        long logPosition = 0;
+        boolean updated = false;
+        TValue previous = null;
+        TValue value = null;
+        long stamp = treeLock.readLock();
+        try {
+            LeafAccess access = this.latchLeaf(key, true, false);
+            if (access != null) {
+                try {
+                    // whether the entry is replaced, inserted or deleted, the update can not propagate to other nodes
+                    LeafNode<TKey, TValue> leaf = access.leaf;
+                    if (leaf.epoch == this.getEpoch() && leaf.getKeyCount() < leaf.getOrder() - 1
+                            && (leaf.getParent() == null || leaf.getKeyCount() > leaf.getMinKeyCount())) {
+                        int index = leaf.search(key);
+                        previous = index == -1 ? null : leaf.getValue(index);
+                        value = function.apply(key, previous);
+                        logPosition = this.updateInLeaf(leaf, index, key, previous, value);
+                        updated = true;
+                    }
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+
+        if (!updated) {
+            stamp = treeLock.writeLock();
+            try {
+                LeafNode<TKey, TValue> leaf = this.findLeafNodeToUpdate(key);
+                int index = leaf.search(key);
+                previous = index == -1 ? null : leaf.getValue(index);
+                value = function.apply(key, previous);
+                logPosition = this.updateInLeaf(leaf, index, key, previous, value);
+            }
+            finally {
+                treeLock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        this.recordLatency(operation, start);
+        return returnsNew ? value : previous;
+    }
+
+    /**
+     * The batch is applied under the exclusive tree lock : it may split many leaves. With a log, the writer waits
+     * for the log once it released the lock.
+     */
+    @Override
+    public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        long logPosition;
+        long stamp = treeLock.writeLock();
+        try {
+            logPosition = this.insertBatch(entries);
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+        this.invalidateCached(entries);
+        this.awaitDurable(logPosition);
+    }
+
+    /**
+     * The keys are sorted, then each leaf they fall into is latched once, under the shared tree lock, and searched
+     * for all its keys : no snapshot is taken, the writers of the other leaves go on.
+     */
+    @Override
+    public List<TValue> searchAll(Collection<TKey> keys) {
+        List<TKey> batch = new ArrayList<>(keys);
+        List<TValue> values = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        int[] order = sortedIndexes(batch, false);
+        // the keys whose entries start under another parent than the one the descent reaches, see find
+        List<Integer> others = new ArrayList<>();
+        int position = 0;
+        while (position < order.length) {
+            long stamp = treeLock.readLock();
+            try {
+                LeafAccess access = this.latchLeaf(batch.get(order[position]), false, false);
+                if (access == null) {
+                    others.add(order[position++]);
+                    continue;
+                }
+                try {
+                    // a key after the last one of the leaf is in the next leaf, or past it
+                    LeafNode<TKey, TValue> leaf = access.leaf;
+                    do {
+                        values.set(order[position], this.searchInLeaf(leaf, batch.get(order[position])));
+                        position++;
+                    } while (position < order.length && leaf.getKeyCount() > 0 && !leaf.isAfterLastKey(batch.get(order[position])));
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+            finally {
+                treeLock.unlockRead(stamp);
+            }
+        }
+        for (int index : others)
+            values.set(index, this.find(batch.get(index)));
+        return values;
+    }
+
+    /**
+     * The snapshot waits for the updates in progress, it can then be read while writers continue.
+     */
+    @Override
+    public Btree<TKey, TValue> snapshot() {
+        long stamp = treeLock.writeLock();
+        try {
+            return super.snapshot();
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The entries between two keys, read from a snapshot : the cursor can be used while writers continue.
+     */
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.snapshot().range(from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.snapshot().descendingScan(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * The entry count kept by the updates, no snapshot is taken.
+     */
+    @Override
+    public long size() {
+        return this.getStatistics().getEntryCount();
+    }
+
+    /**
+     * Read under the shared tree lock, by the entry counts of the nodes : no snapshot is taken, see {@link CountedDescent}.
+     * The ranks of rank and count are those of this method : count ranks its two bounds one after the other,
+     * an update which lands between the two descents is only seen by the second one.
+     */
+    @Override
+    long countBefore(TKey key, boolean inclusive) {
+        Long count = this.readByCounts(new CountedDescent<>() {
+            @Override
+            int childIndex(InternalNode<TKey> node) {
+                int index = inclusive ? node.upperBound(key) : node.lowerBound(key);
+                for (int i = 0; i < index; i++)
+                    before += node.getChildEntryCount(i);
+                return index;
+            }
+
+            @Override
+            Long inLeaf(LeafNode<TKey, TValue> leaf) {
+                return before + (inclusive ? leaf.upperBound(key) : leaf.lowerBound(key));
+            }
+        });
+        if (count != null)
+            return count;
+
+        long stamp = treeLock.writeLock();
+        try {
+            return super.countBefore(key, inclusive);
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Map.Entry<TKey, TValue> select(long index) {
+        if (index < 0 || index >= this.size())
+            throw new IllegalArgumentException("Index must be between 0 and the size of the tree: " + index);
+        Map.Entry<TKey, TValue> entry = this.readByCounts(new CountedDescent<>() {
+            @Override
+            int childIndex(InternalNode<TKey> node) {
+                int child = 0;
+                long count;
+                while (child < node.getChildCount() - 1 && index - before >= (count = node.getChildEntryCount(child))) {
+                    before += count;
+                    child++;
+                }
+                return child;
+            }
+
+            @Override
+            Map.Entry<TKey, TValue> inLeaf(LeafNode<TKey, TValue> leaf) {
+                long indexInLeaf = index - before;
+                // entries deleted by other writers since the size was read
+                if (indexInLeaf < 0 || indexInLeaf >= leaf.getKeyCount())
+                    return null;
+                return new AbstractMap.SimpleImmutableEntry<>(leaf.getKey((int) indexInLeaf), leaf.getValue((int) indexInLeaf));
+            }
+        });
+        if (entry != null)
+            return entry;
+
+        long stamp = treeLock.writeLock();
+        try {
+            return super.select(index);
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The cursor reads a snapshot as the ranges, the position of the offset is counted in it.
+     */
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        return this.snapshot().range(from, fromInclusive, to, toInclusive, offset);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        return this.snapshot().descendingScan(from, fromInclusive, to, toInclusive, offset);
+    }
+
+    /**
+     * The nodes of the window are copied under the shared tree lock, without a snapshot : the leaves and their parents
+     * are read optimistically, the copy is taken again when a writer updated one of them meanwhile.
+     */
+    @Override
+    Node<TKey> nodeAt(List<Integer> path, int depth) {
+        long stamp = treeLock.readLock();
+        try {
+            long[] stamps = new long[LATCH_STRIPES];
+            for (int attempt = 0; attempt < LATCH_ATTEMPTS; attempt++) {
+                Arrays.fill(stamps, -1);
+                Consumer<Node<TKey>> reading = node -> {
+                    int stripe = stripeOf(node);
+                    if (stamps[stripe] == -1)
+                        stamps[stripe] = nodeLatches[stripe].tryOptimisticRead();
+                };
+                try {
+                    Node<TKey> node = this.getRoot();
+                    for (int index : path) {
+                        reading.accept(node);
+                        node = nodeAt(node, List.of(index));
+                    }
+                    Node<TKey> copy = copyWindow(node, depth, reading);
+                    if (this.validate(stamps))
+                        return copy;
+                }
+                catch (IllegalArgumentException e) {
+                    if (this.validate(stamps))
+                        throw e;
+                }
+                catch (RuntimeException e) {
+                    // a node read while a writer was moving its entries
+                }
+            }
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+
+        stamp = treeLock.writeLock();
+        try {
+            return copyWindow(nodeAt(this.getRoot(), path), depth, node -> { });
+        }
+        finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Whether no node of the stripes read was latched exclusively since its stamp was taken.
+     */
+    private boolean validate(long[] stamps) {
+        for (int stripe = 0; stripe < LATCH_STRIPES; stripe++) {
+            if (stamps[stripe] != -1 && (stamps[stripe] == 0 || !nodeLatches[stripe].validate(stamps[stripe])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Descend by the entry counts under the shared tree lock, then read the leaf reached with its parent latched.
+     * @return null when splits disturbed every descent, or when the leaf has no answer : the caller then reads
+     *         under the exclusive tree lock
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R readByCounts(CountedDescent<R> descent) {
+        long stamp = treeLock.readLock();
+        try {
+            for (int attempt = 0; attempt < LATCH_ATTEMPTS; attempt++) {
+                InternalNode<TKey> parent = null;
+                long beforeParent = 0;
+                descent.before = 0;
+                Node<TKey> node = this.getRoot();
+                try {
+                    while (node.getNodeType() == NodeType.InternalNode) {
+                        parent = (InternalNode<TKey>) node;
+                        beforeParent = descent.before;
+                        node = parent.getChild(descent.childIndex(parent));
+                    }
+                }
+                catch (RuntimeException e) {
+                    // a parent read while a split was moving its children
+                    continue;
+                }
+
+                LeafAccess access = new LeafAccess(parent, (LeafNode<TKey, TValue>) node);
+                access.latchNodes(false, false);
+                try {
+                    // the parent is read again once latched, a split may have moved the leaf reached
+                    if (parent != null) {
+                        descent.before = beforeParent;
+                        if (parent.getChild(descent.childIndex(parent)) != access.leaf)
+                            continue;
+                    }
+                    return descent.inLeaf(access.leaf);
+                }
+                finally {
+                    access.unlatch();
+                }
+            }
+            return null;
+        }
+        finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Latch the leaf which should contain a key and its parent, under the shared tree lock. The descent is retried
+     * when a split moved the key before the nodes were latched.
+     * @param exclusive whether the leaf is latched exclusively, to update it
+     * @param splits whether the leaf may split : the parent is then latched exclusively when the leaf is full
+     * @return null when the entries of the key start under another parent (see {@link LeafAccess#startsInNextSubtree()}),
+     *         or when splits disturbed every descent : the caller then takes the exclusive tree lock
+     */
+    private LeafAccess latchLeaf(TKey key, boolean exclusive, boolean splits) {
+        LeafAccess access = new LeafAccess(key);
+        for (int attempt = 0; attempt < LATCH_ATTEMPTS; attempt++) {
+            try {
+                access.descend();
+            }
+            catch (RuntimeException e) {
+                // a parent read while a split was moving its children
+                continue;
+            }
+            boolean parentExclusive = splits && access.isLeafFull();
+            if (!access.latch(parentExclusive, exclusive))
+                continue;
+
+            // the leaf was filled by another writer before it was latched
+            if (splits && !parentExclusive && access.isLeafFull()) {
+                access.unlatch();
+                continue;
+            }
+            if (access.startsInNextSubtree()) {
+                access.unlatch();
+                return null;
+            }
+            return access;
+        }
+        return null;
+    }
+
+    private int stripeOf(Node<TKey> node) {
+        int hash = System.identityHashCode(node);
+        return (hash ^ (hash >>> 16)) & (LATCH_STRIPES - 1);
+    }
+
+    /**
+     * The leaf which should contain a key and its parent : the nodes updated under the shared tree lock,
+     * by the writers of the leaf and by the splits of the leaves under the parent.
+     */
+    private final class LeafAccess {
+        private final TKey key;
+        private InternalNode<TKey> parent;
+        private LeafNode<TKey, TValue> leaf;
+        /** Separator of the lowest node above the parent where the descent did not take the last child, if any */
+        private TKey forkKey;
+
+        private long parentStamp;
+        private long leafStamp;
+        /** Latches held, the parent one is not set when the parent shares the stripe of the leaf */
+        private StampedLock parentLatch;
+        private StampedLock leafLatch;
+        private boolean parentExclusive;
+
+        LeafAccess(TKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Access to a leaf reached by the entry counts rather than by a key.
+         */
+        LeafAccess(InternalNode<TKey> parent, LeafNode<TKey, TValue> leaf) {
+            this.key = null;
+            this.parent = parent;
+            this.leaf = leaf;
+        }
+
+        /**
+         * Descend to the leaf without latching, taking optimistic stamps of the parent and the leaf before reading them.
+         * The nodes above the parent do not change under the shared tree lock, or are checked by the stamp of the tree
+         * lock for an optimistic read.
+         */
+        @SuppressWarnings("unchecked")
+        void descend() {
+            this.parent = null;
+            this.forkKey = null;
+            Node<TKey> node = ConcurrentBtree.this.getRoot();
+            while (node.getNodeType() == NodeType.InternalNode) {
+                InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+                long stamp = nodeLatches[stripeOf(internalNode)].tryOptimisticRead();
+                int index = internalNode.lowerBound(key);
+                node = internalNode.getChild(index);
+                if (node.getNodeType() == NodeType.LeafNode) {
+                    this.parent = internalNode;
+                    this.parentStamp = stamp;
+                }
+                else if (index < internalNode.getKeyCount())
+                    this.forkKey = internalNode.getKey(index);
+            }
+            this.leaf = (LeafNode<TKey, TValue>) node;
+            this.leafStamp = nodeLatches[stripeOf(this.leaf)].tryOptimisticRead();
+        }
+
+        /**
+         * Whether the leaf and its parent did not change since the descent read them.
+         */
+        boolean validate() {
+            return leafStamp != 0 && nodeLatches[stripeOf(leaf)].validate(leafStamp)
+                    && (parent == null || parentStamp != 0 && nodeLatches[stripeOf(parent)].validate(parentStamp));
+        }
+
+        /**
+         * Latch the parent and the leaf in the order of their stripes, then check the parent still leads to the leaf.
+         * @return false when a split moved the key meanwhile, nothing is latched then
+         */
+        boolean latch(boolean parentExclusive, boolean leafExclusive) {
+            this.latchNodes(parentExclusive, leafExclusive);
+            boolean routed = parent == null ? ConcurrentBtree.this.getRoot() == leaf
+                    : leaf.getParent() == parent && parent.getChild(parent.lowerBound(key)) == leaf;
+            if (!routed)
+                this.unlatch();
+            return routed;
+        }
+
+        /**
+         * Latch the parent and the leaf in the order of their stripes, as every writer does.
+         */
+        void latchNodes(boolean parentExclusive, boolean leafExclusive) {
+            int leafStripe = stripeOf(leaf);
+            int parentStripe = parent == null ? leafStripe : stripeOf(parent);
+            this.parentExclusive = parentExclusive;
+            this.leafLatch = nodeLatches[leafStripe];
+            this.parentLatch = parentStripe == leafStripe ? null : nodeLatches[parentStripe];
+            if (parentLatch == null) {
+                leafStamp = lock(leafLatch, leafExclusive || (parent != null && parentExclusive));
+            }
+            else if (parentStripe < leafStripe) {
+                parentStamp = lock(parentLatch, parentExclusive);
+                leafStamp = lock(leafLatch, leafExclusive);
+            }
+            else {
+                leafStamp = lock(leafLatch, leafExclusive);
+                parentStamp = lock(parentLatch, parentExclusive);
+            }
+        }
+
+        private long lock(StampedLock latch, boolean exclusive) {
+            return exclusive ? latch.writeLock() : latch.readLock();
+        }
+
+        void unlatch() {
+            leafLatch.unlock(leafStamp);
+            if (parentLatch != null)
+                parentLatch.unlock(parentStamp);
+        }
+
+        boolean isLeafFull() {
+            return leaf.getKeyCount() >= leaf.getOrder() - 1;
+        }
+
+        /**
+         * Whether the full leaf can split under the latches : the parent, latched exclusively, takes the new leaf
+         * without splitting. A root leaf splits into a new root, under the exclusive tree lock.
+         */
+        boolean canTakeSplit() {
+            return parent != null && parentExclusive && parent.epoch == ConcurrentBtree.this.getEpoch()
+                    && leaf.getKeyCount() == leaf.getOrder() - 1 && parent.getKeyCount() < parent.getOrder() - 1;
+        }
+
+        /**
+         * Whether the leaf reached holds keys lower than the key alone, after a separator equal to the key :
+         * the entries of the key then start at the next leaf (see {@link Btree#findLeafNodeShouldContainKey(Comparable)}),
+         * which may be under another parent.
+         */
+        boolean startsInNextSubtree() {
+            int index = parent == null ? 0 : parent.lowerBound(key);
+            TKey separator = parent != null && index < parent.getKeyCount() ? parent.getKey(index) : forkKey;
+            return separator != null && leaf.getKeyCount() > 0 && leaf.isAfterLastKey(key) && separator.compareTo(key) == 0;
+        }
+    }
+
+    /**
+     * A descent by the entry counts of the children, which adds up the entries on its left as it goes.
+     * Under the shared tree lock, the nodes above the parents of the leaves only change by their entry counts,
+     * which the writers of other leaves update one by one : the counts read hold the updates finished before the read
+     * and, of those in progress, the ones already counted at each level.
+     */
+    private abstract class CountedDescent<R> {
+        /** Entries on the left of the descent */
+        long before;
+
+        /**
+         * The child to descend to, the counts of the children before it are added to before.
+         */
+        abstract int childIndex(InternalNode<TKey> node);
+
+        /**
+         * The answer read in the leaf reached, null when there is none under the latches.
+         */
+        abstract R inLeaf(LeafNode<TKey, TValue> leaf);
+    }
+}
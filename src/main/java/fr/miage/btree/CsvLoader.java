@@ -0,0 +1,293 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a "key,value" CSV file into a tree, in stages :
+ * <ol>
+ *     <li>the file is cut into chunks ending at a line break, each chunk is memory-mapped;</li>
+ *     <li>the chunks are parsed in parallel on a fork-join pool, by scanning their bytes for the separators
+ *     (no String.split), then the rows of each chunk are sorted by key;</li>
+ *     <li>the sorted chunks are merged into a single sorted stream, which feeds the bottom-up bulk load.</li>
+ * </ol>
+ * A valid line holds a single comma once trailing commas are removed, the key and the value are trimmed
+ * (the rules of the former split(",") based loader). Duplicated keys keep the order of the file.
+ * Malformed lines are counted, the first ones are kept for the report.
+ */
+public final class CsvLoader {
+    public static final int DEFAULT_CHUNK_BYTES = 64 * 1024 * 1024;
+    /** Malformed lines kept to be reported, the others are only counted */
+    public static final int MAX_REPORTED_LINES = 10;
+    private static final int BOUNDARY_SCAN_BYTES = 8192;
+
+    /**
+     * The tree built from a file, and what was skipped.
+     */
+    public static final class Result {
+        private final Btree<String, String> btree;
+        private final long rowCount;
+        private final long malformedLineCount;
+        private final List<String> malformedLines;
+
+        private Result(Btree<String, String> btree, long rowCount, long malformedLineCount, List<String> malformedLines) {
+            this.btree = btree;
+            this.rowCount = rowCount;
+            this.malformedLineCount = malformedLineCount;
+            this.malformedLines = malformedLines;
+        }
+
+        public Btree<String, String> getBtree() {
+            return btree;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public long getMalformedLineCount() {
+            return malformedLineCount;
+        }
+
+        /**
+         * The first malformed lines, as "line number: content".
+         */
+        public List<String> getMalformedLines() {
+            return malformedLines;
+        }
+    }
+
+    private CsvLoader() {
+    }
+
+    public static Result load(Path file, double fillFactor, BtreeConfig config) throws IOException {
+        return load(file, fillFactor, config, DEFAULT_CHUNK_BYTES, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param chunkBytes the size of the chunks parsed in parallel, a chunk is extended to the end of its last line
+     * @param pool the pool parsing and sorting the chunks
+     */
+    public static Result load(Path file, double fillFactor, BtreeConfig config, int chunkBytes, ForkJoinPool pool) throws IOException {
+        if (chunkBytes <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkBytes);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Callable<Chunk>> tasks = new ArrayList<>();
+            long start = 0;
+            long size = channel.size();
+            while (start < size) {
+                long end = lineEnd(channel, Math.min(size, start + chunkBytes), size);
+                long chunkStart = start;
+                tasks.add(() -> Chunk.parse(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, end - chunkStart)));
+                start = end;
+            }
+
+            List<Chunk> chunks = new ArrayList<>();
+            try {
+                for (Future<Chunk> future : pool.invokeAll(tasks))
+                    chunks.add(future.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file, e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause)
+                    throw cause;
+                if (e.getCause() instanceof UncheckedIOException cause)
+                    throw cause.getCause();
+                throw new IllegalStateException("Can not load " + file, e.getCause());
+            }
+
+            // line numbers of the malformed lines are known once the lines of the previous chunks are counted
+            long rowCount = 0;
+            long malformedLineCount = 0;
+            long firstLine = 1;
+            List<String> malformedLines = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                rowCount += chunk.keys.size();
+                malformedLineCount += chunk.malformedLineCount;
+                for (int i = 0; i < chunk.malformedLines.size() && malformedLines.size() < MAX_REPORTED_LINES; i++)
+                    malformedLines.add((firstLine + chunk.malformedLineIndexes.get(i)) + ": " + chunk.malformedLines.get(i));
+                firstLine += chunk.lineCount;
+            }
+
+            Btree<String, String> btree = Btree.bulkLoad(new MergingIterator(chunks), fillFactor, config);
+            return new Result(btree, rowCount, malformedLineCount, Collections.unmodifiableList(malformedLines));
+        }
+    }
+
+    /**
+     * Position after the first line break at or after position, or the end of the file.
+     */
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_BYTES);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * The rows of a chunk sorted by key, as parallel lists : an index is sorted instead of entries.
+     */
+    private static final class Chunk {
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private int[] order;
+        private long lineCount;
+        private long malformedLineCount;
+        private final List<Long> malformedLineIndexes = new ArrayList<>();
+        private final List<String> malformedLines = new ArrayList<>();
+
+        private static Chunk parse(MappedByteBuffer buffer) {
+            Chunk chunk = new Chunk();
+            int limit = buffer.limit();
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                int comma = -1;
+                int commas = 0;
+                while (lineEnd < limit && !isLineBreak(buffer.get(lineEnd))) {
+                    if (buffer.get(lineEnd) == ',') {
+                        commas++;
+                        if (comma == -1)
+                            comma = lineEnd;
+                    }
+                    lineEnd++;
+                }
+                chunk.parseLine(buffer, lineStart, lineEnd, comma, commas);
+                // same lines as a BufferedReader : a line ends at '\n', '\r' or "\r\n"
+                lineStart = lineEnd + 1;
+                if (lineEnd < limit && buffer.get(lineEnd) == '\r' && lineStart < limit && buffer.get(lineStart) == '\n')
+                    lineStart++;
+            }
+            chunk.sort();
+            return chunk;
+        }
+
+        private static boolean isLineBreak(byte b) {
+            return b == '\n' || b == '\r';
+        }
+
+        private void parseLine(ByteBuffer buffer, int start, int end, int comma, int commas) {
+            // split(",") drops the trailing empty fields
+            int contentEnd = end;
+            while (contentEnd > start && buffer.get(contentEnd - 1) == ',') {
+                contentEnd--;
+                commas--;
+            }
+
+            if (commas == 1) {
+                keys.add(trimmed(buffer, start, comma));
+                values.add(trimmed(buffer, comma + 1, contentEnd));
+            }
+            else {
+                malformedLineCount++;
+                if (malformedLines.size() < MAX_REPORTED_LINES) {
+                    malformedLineIndexes.add(lineCount);
+                    malformedLines.add(decode(buffer, start, end));
+                }
+            }
+            lineCount++;
+        }
+
+        private void sort() {
+            Integer[] indexes = new Integer[keys.size()];
+            for (int i = 0; i < indexes.length; i++)
+                indexes[i] = i;
+            // stable : duplicated keys stay in the order of the file
+            Arrays.sort(indexes, Comparator.comparing(keys::get));
+            order = new int[indexes.length];
+            for (int i = 0; i < indexes.length; i++)
+                order[i] = indexes[i];
+        }
+
+        private static String trimmed(ByteBuffer buffer, int start, int end) {
+            while (start < end && (buffer.get(start) & 0xFF) <= ' ')
+                start++;
+            while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ')
+                end--;
+            return decode(buffer, start, end);
+        }
+
+        private static String decode(ByteBuffer buffer, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Merge of the sorted chunks, a key found in several chunks comes first from the earliest chunk.
+     */
+    private static final class MergingIterator implements Iterator<Map.Entry<String, String>> {
+        private final List<Chunk> chunks;
+        private final int[] positions;
+        private final PriorityQueue<Integer> heads;
+
+        private MergingIterator(List<Chunk> chunks) {
+            this.chunks = chunks;
+            this.positions = new int[chunks.size()];
+            this.heads = new PriorityQueue<>(Math.max(1, chunks.size()), Comparator
+                    .comparing((Integer chunk) -> this.headKey(chunk))
+                    .thenComparing(chunk -> chunk));
+            for (int i = 0; i < chunks.size(); i++) {
+                if (!chunks.get(i).keys.isEmpty())
+                    heads.add(i);
+            }
+        }
+
+        private String headKey(int chunk) {
+            Chunk head = chunks.get(chunk);
+            return head.keys.get(head.order[positions[chunk]]);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            Integer chunkIndex = heads.poll();
+            if (chunkIndex == null)
+                throw new NoSuchElementException();
+
+            Chunk chunk = chunks.get(chunkIndex);
+            int row = chunk.order[positions[chunkIndex]++];
+            if (positions[chunkIndex] < chunk.keys.size())
+                heads.add(chunkIndex);
+            return new AbstractMap.SimpleImmutableEntry<>(chunk.keys.get(row), chunk.values.get(row));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pages of a file read and written with explicit I/O, without any cache : a pin reads the page, the last unpin
+ * writes it back if it is dirty. Meant to be used behind a {@link BufferPool}, which then is the only copy of
+ * the pages in memory, with a bounded size.
+ */
+public class FilePageStore implements PageStore {
+    private final FileChannel channel;
+    private final int pageSize;
+    /** Page 0, kept in memory and written by flush */
+    private final ByteBuffer meta;
+    private final Map<Integer, PinnedPage> pinnedPages = new HashMap<>();
+
+    private int pageCount;
+    private int freeListHead;
+
+    /**
+     * Open the store saved in a file, or create it when the file is missing or empty.
+     * @param pageSize the size of the pages of a new store, it must match the one of an existing store
+     */
+    public static FilePageStore open(Path file, int pageSize) throws IOException {
+        return new FilePageStore(FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), pageSize);
+    }
+
+    private FilePageStore(FileChannel channel, int pageSize) throws IOException {
+        PageFileHeader.checkPageSize(pageSize);
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.meta = ByteBuffer.allocate(pageSize);
+
+        if (channel.size() == 0) {
+            PageFileHeader.initialize(this.meta, pageSize);
+        }
+        else {
+            try {
+                this.read(0, this.meta);
+                PageFileHeader.validate(this.meta, pageSize);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        this.pageCount = this.meta.getInt(PageFileHeader.PAGE_COUNT_OFFSET);
+        this.freeListHead = this.meta.getInt(PageFileHeader.FREE_LIST_OFFSET);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public synchronized ByteBuffer pin(int pageId) {
+        PinnedPage pinnedPage = pinnedPages.get(pageId);
+        if (pinnedPage == null) {
+            pinnedPage = new PinnedPage(ByteBuffer.allocate(pageSize));
+            this.readUnchecked(pageId, pinnedPage.buffer);
+            pinnedPages.put(pageId, pinnedPage);
+        }
+        pinnedPage.pinCount++;
+        return pinnedPage.buffer;
+    }
+
+    @Override
+    public synchronized void unpin(int pageId, boolean dirty) {
+        PinnedPage pinnedPage = pinnedPages.get(pageId);
+        if (pinnedPage == null)
+            throw new IllegalStateException("Page " + pageId + " is not pinned");
+        pinnedPage.dirty |= dirty;
+        if (--pinnedPage.pinCount > 0)
+            return;
+
+        pinnedPages.remove(pageId);
+        if (pinnedPage.dirty)
+            this.writeUnchecked(pageId, pinnedPage.buffer);
+    }
+
+    @Override
+    public synchronized int allocatePage() {
+        int pageId;
+        if (freeListHead != NO_PAGE) {
+            // a free page holds the number of the next free page
+            pageId = freeListHead;
+            ByteBuffer next = ByteBuffer.allocate(Integer.BYTES);
+            this.readUnchecked(pageId, next);
+            freeListHead = next.getInt(0);
+            meta.putInt(PageFileHeader.FREE_LIST_OFFSET, freeListHead);
+        }
+        else {
+            pageId = pageCount++;
+            meta.putInt(PageFileHeader.PAGE_COUNT_OFFSET, pageCount);
+        }
+        return pageId;
+    }
+
+    @Override
+    public synchronized void freePage(int pageId) {
+        ByteBuffer next = ByteBuffer.allocate(Integer.BYTES);
+        next.putInt(0, freeListHead);
+        this.writeUnchecked(pageId, next);
+        freeListHead = pageId;
+        meta.putInt(PageFileHeader.FREE_LIST_OFFSET, freeListHead);
+    }
+
+    @Override
+    public synchronized int getRootPageId() {
+        return meta.getInt(PageFileHeader.ROOT_OFFSET);
+    }
+
+    @Override
+    public synchronized void setRootPageId(int pageId) {
+        meta.putInt(PageFileHeader.ROOT_OFFSET, pageId);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        this.write(0, meta);
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.flush();
+        channel.close();
+    }
+
+    /**
+     * Read the start of a page into the buffer, up to its limit. Bytes past the end of the file read as zeros.
+     */
+    private void read(int pageId, ByteBuffer buffer) throws IOException {
+        ByteBuffer target = buffer.duplicate().clear().limit(buffer.limit());
+        long position = (long) pageId * pageSize;
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0)
+                break;
+        }
+    }
+
+    private void write(int pageId, ByteBuffer buffer) throws IOException {
+        ByteBuffer source = buffer.duplicate().clear().limit(buffer.limit());
+        long position = (long) pageId * pageSize;
+        while (source.hasRemaining())
+            channel.write(source, position + source.position());
+    }
+
+    private void readUnchecked(int pageId, ByteBuffer buffer) {
+        try {
+            this.read(pageId, buffer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Can not read page " + pageId, e);
+        }
+    }
+
+    private void writeUnchecked(int pageId, ByteBuffer buffer) {
+        try {
+            this.write(pageId, buffer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Can not write page " + pageId, e);
+        }
+    }
+
+    private static final class PinnedPage {
+        private final ByteBuffer buffer;
+        private int pinCount;
+        private boolean dirty;
+
+        private PinnedPage(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -2,63 +2,259 @@ package fr.miage.btree;
 
 import com.fasterxml.jackson.annotation.JsonView;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
-    @JsonView(Views.Public.class)
-    protected List<Node> children;
+    /** Updates the entry counts of the nodes shared by the writers of different leaves of a concurrent tree */
+    private static final VarHandle ENTRY_COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** Fixed-capacity child storage, only the first childCount slots are used */
+    protected Node<TKey>[] children;
+    protected int childCount;
+    /** Number of entries under each child, moved along with the children */
+    protected long[] childEntryCounts;
+    /** Reads the children the first time they are needed, for a node loaded lazily (null once they are read) */
+    private volatile ChildLoader<TKey> childLoader;
 
     public InternalNode() {
-        this.keys = new ArrayList<TKey>();
-        this.children = new ArrayList<Node>();
+        this(BtreeConfig.defaults());
+    }
+
+    @SuppressWarnings("unchecked")
+    public InternalNode(BtreeConfig config) {
+        super(config);
+        this.children = new Node[this.keys.length + 1];
+        this.childEntryCounts = new long[this.keys.length + 1];
+        this.childCount = 0;
     }
 
     public Node<TKey> getChild(int index) {
-        return (Node<TKey>)this.children.get(index);
+        this.loadChildren();
+        return this.children[index];
+    }
+
+    public int getChildCount() {
+        this.loadChildren();
+        return this.childCount;
+    }
+
+    /**
+     * Reads the children of a node whose keys were loaded alone, see {@link BtreeLazyLoader}.
+     */
+    interface ChildLoader<TKey extends Comparable<TKey>> {
+        /**
+         * Add the children to the node, and link the ones next to each other.
+         */
+        void loadChildren(InternalNode<TKey> node) throws IOException;
+    }
+
+    /**
+     * Leave the children of the node unread until they are first needed.
+     * Only nodes of an old epoch have a loader : the nodes updated are copies, whose children were read to be copied.
+     */
+    void setChildLoader(ChildLoader<TKey> childLoader) {
+        this.childLoader = childLoader;
+    }
+
+    boolean isLoaded() {
+        return this.childLoader == null;
+    }
+
+    /**
+     * Read the children if they are not yet, the volatile loader publishes them to the threads which see it null.
+     */
+    private void loadChildren() {
+        if (this.childLoader != null)
+            this.loadChildrenOnce();
     }
-    
-    public List<Node> getChildren() {
-        return children;
+
+    private synchronized void loadChildrenOnce() {
+        ChildLoader<TKey> loader = this.childLoader;
+        if (loader == null)
+            return;
+        try {
+            loader.loadChildren(this);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Failed to load the children of a node", e);
+        }
+        this.childLoader = null;
+    }
+
+    /**
+     * Read-only view of the children, used by the JSON serialization.
+     */
+    @JsonView(Views.Public.class)
+    public List<Node<TKey>> getChildren() {
+        this.loadChildren();
+        return Collections.unmodifiableList(Arrays.asList(this.children).subList(0, this.childCount));
     }
-    
-    public void setChildren(List<Node> children) {
-        this.children = children;
+
+    public void setChildren(List<Node<TKey>> children) {
+        this.ensureCapacity(children.size() - 1);
+        Arrays.fill(this.children, null);
+        Arrays.fill(this.childEntryCounts, 0);
+        this.childCount = 0;
+        for (Node<TKey> child : children)
+            this.addChild(child);
     }
 
     public void addChild( Node<TKey> child) {
-        this.children.add(child);
+        this.addChild(child, child == null ? 0 : entryCountOf(child));
+    }
+
+    /**
+     * Add a child of another tree, which keeps its parent : under a node built to be read only, see {@link ShardedBtree}.
+     */
+    void addSharedChild(Node<TKey> child) {
+        this.ensureCapacity(this.childCount);
+        this.childEntryCounts[this.childCount] = entryCountOf(child);
+        this.children[this.childCount++] = child;
+    }
+
+    /**
+     * Add a child whose number of entries is known, a child whose children are not read yet for instance.
+     */
+    void addChild(Node<TKey> child, long entryCount) {
+        this.ensureCapacity(this.childCount);
+        this.childEntryCounts[this.childCount] = entryCount;
+        this.children[this.childCount++] = child;
         if (child != null)
             child.setParent(this);
     }
 
+    /* The codes below count the entries under the nodes, for the order statistics of the tree */
+
+    /**
+     * Number of entries under a node, in O(order).
+     */
+    static <TKey extends Comparable<TKey>> long entryCountOf(Node<TKey> node) {
+        if (!(node instanceof InternalNode<TKey> internalNode))
+            return node.getKeyCount();
+        long count = 0;
+        for (int i = 0; i < internalNode.getChildCount(); i++)
+            count += internalNode.getChildEntryCount(i);
+        return count;
+    }
+
+    long getChildEntryCount(int index) {
+        this.loadChildren();
+        return (long) ENTRY_COUNTS.getOpaque(this.childEntryCounts, index);
+    }
+
+    /**
+     * Entries were added to or removed from a child : atomic, as writers of different leaves update their ancestors
+     * under the shared lock of a concurrent tree.
+     */
+    void addToChildEntryCount(int index, long delta) {
+        ENTRY_COUNTS.getAndAdd(this.childEntryCounts, index, delta);
+    }
+
+    /**
+     * Count again the entries of a child, whose entries were moved by a split, a borrow or a merge.
+     */
+    private void recountChild(int index) {
+        this.childEntryCounts[index] = entryCountOf(this.children[index]);
+    }
+
     public void setChild(int index, Node<TKey> child) {
-        this.children.add(index,child);
+        this.children[index] = child;
         if (child != null)
             child.setParent(this);
     }
 
+    /**
+     * The child at index, replaced by a private copy first if it is older than this node.
+     * Only called on nodes of the current epoch, which are not shared with any snapshot.
+     */
+    Node<TKey> privateChild(int index) {
+        this.loadChildren();
+        Node<TKey> child = this.children[index];
+        if (child.epoch != this.epoch) {
+            child = child.privateCopy(this.epoch);
+            this.setChild(index, child);
+        }
+        return child;
+    }
+
+    Node<TKey> privateChild(Node<TKey> child) {
+        return child.epoch == this.epoch ? child : this.privateChild(this.indexOfChild(child));
+    }
+
+    /**
+     * Shift the children after index to the right and write the child at index.
+     */
+    private void insertChildAt(int index, Node<TKey> child) {
+        this.ensureCapacity(this.childCount);
+        System.arraycopy(this.children, index, this.children, index + 1, this.childCount - index);
+        System.arraycopy(this.childEntryCounts, index, this.childEntryCounts, index + 1, this.childCount - index);
+        this.childCount++;
+        this.setChild(index, child);
+        this.recountChild(index);
+    }
+
+    private void removeChildAt(int index) {
+        System.arraycopy(this.children, index + 1, this.children, index, this.childCount - index - 1);
+        System.arraycopy(this.childEntryCounts, index + 1, this.childEntryCounts, index, this.childCount - index - 1);
+        this.children[--this.childCount] = null;
+        this.childEntryCounts[this.childCount] = 0;
+    }
+
+    @Override
+    protected void ensureCapacity(int keyCapacity) {
+        super.ensureCapacity(keyCapacity);
+        if (keyCapacity + 1 > this.children.length) {
+            this.children = Arrays.copyOf(this.children, this.keys.length + 1);
+            this.childEntryCounts = Arrays.copyOf(this.childEntryCounts, this.keys.length + 1);
+        }
+    }
+
     @Override
     public NodeType getNodeType() {
         return NodeType.InternalNode;
     }
 
+    @Override
+    protected int getOrder() {
+        return this.config.getInnerOrder();
+    }
+
     @Override
     public int search(TKey key) {
-        int index = 0;
-        for (index = 0; index < this.getKeyCount(); index++) {
-            int cmp = this.getKey(index).compareTo(key);
-            if (cmp == 0) {
-                return index + 1;
-            }
-            else if (cmp > 0) {
-                return index;
-            }
-        }
+        int index = this.lowerBound(key);
+
+        // the right subtree of an equal separator, a split may also leave duplicates at the end of the left one
+        if (index < this.getKeyCount() && this.getKey(index).compareTo(key) == 0)
+            return index + 1;
 
         return index;
     }
 
+    /**
+     * Index of a child holding a key : the child the key routes to, unless the key is a duplicate left in another child.
+     */
+    int indexOfChild(Node<TKey> child, TKey key) {
+        int index = this.search(key);
+        return index < this.childCount && this.children[index] == child ? index : this.indexOfChild(child);
+    }
+
+    /**
+     * Index of a child, found by identity.
+     */
+    protected int indexOfChild(Node<TKey> child) {
+        this.loadChildren();
+        int index = 0;
+        while (index < this.childCount && this.children[index] != child)
+            index++;
+        return index;
+    }
+
 
     /**
      * Insert a new key and its associated value into the B+ tree.
@@ -68,11 +264,13 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
      * @param rightChild the child node contains keys greater than the new key
      */
     private void insertAt(int index, TKey key, Node<TKey> leftChild, Node<TKey> rightChild) {
+        // a new root has no child yet, otherwise the left child is already at index
+        if (this.childCount == 0)
+            this.addChild(leftChild);
+
         // insert the new key
-        this.setKey(index, key);
-        if (!this.children.contains(leftChild))
-            this.setChild(index, leftChild);
-        this.setChild(index + 1, rightChild);
+        this.insertKeyAt(index, key);
+        this.insertChildAt(index + 1, rightChild);
     }
 
     /**
@@ -80,23 +278,42 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
      * @return
      */
     @Override
-    protected Node<TKey> split() {
-        int midIndex = this.getMiddleIndex();
-
-        InternalNode<TKey> newRNode = new InternalNode<TKey>();
-
-        // move keys and children to the new right node
-       while(this.keys.size() > midIndex) {
-            TKey movingKey = this.getKey(midIndex);
-            newRNode.addKey( movingKey);
-            this.keys.remove(movingKey);
+    protected Node<TKey> copy() {
+        this.loadChildren();
+        InternalNode<TKey> copy = new InternalNode<TKey>(this.config);
+        copy.keys = this.keys.clone();
+        copy.keyCount = this.keyCount;
+        copy.children = this.children.clone();
+        copy.childEntryCounts = this.childEntryCounts.clone();
+        copy.childCount = this.childCount;
+        for (int i = 0; i < copy.childCount; i++)
+            copy.children[i].setParent(copy);
+        return copy;
+    }
 
-            Node<TKey> movingChild = this.getChild(midIndex + 1);
-            movingChild.setParent(newRNode);
-            newRNode.addChild(movingChild);
-            this.children.remove(movingChild);
-        }
-        newRNode.keys.remove(0);
+    @Override
+    protected Node<TKey> split(int midIndex) {
+        InternalNode<TKey> newRNode = new InternalNode<TKey>(this.config);
+        newRNode.epoch = this.epoch;
+
+        // move keys and children after the middle key to the new right node
+        int movingKeys = this.keyCount - midIndex - 1;
+        int movingChildren = this.childCount - midIndex - 1;
+        newRNode.ensureCapacity(movingKeys);
+        System.arraycopy(this.keys, midIndex + 1, newRNode.keys, 0, movingKeys);
+        System.arraycopy(this.children, midIndex + 1, newRNode.children, 0, movingChildren);
+        System.arraycopy(this.childEntryCounts, midIndex + 1, newRNode.childEntryCounts, 0, movingChildren);
+        newRNode.keyCount = movingKeys;
+        newRNode.childCount = movingChildren;
+        for (int i = 0; i < movingChildren; i++)
+            newRNode.children[i].setParent(newRNode);
+
+        // the middle key is dropped, it is pushed up by dealOverflow
+        Arrays.fill(this.keys, midIndex, this.keyCount, null);
+        Arrays.fill(this.children, midIndex + 1, this.childCount, null);
+        Arrays.fill(this.childEntryCounts, midIndex + 1, this.childCount, 0);
+        this.keyCount = midIndex;
+        this.childCount = midIndex + 1;
 
         return newRNode;
     }
@@ -109,16 +326,20 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
      * @return
      */
     @Override
-    protected Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode) {
-        // find the target position of the new key
+    protected Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode, BtreeStatistics statistics) {
+        // find the target position of the new key, right after the split child :
+        // the search alone can pick another slot when separators are duplicated
         int index = this.search(key);
+        if (this.children[index] != leftChild)
+            index = this.indexOfChild(leftChild);
 
-        // insert the new key
+        // insert the new key, the entries of the split child are now counted in two
         this.insertAt(index, key, leftChild, rightNode);
+        this.recountChild(index);
 
         // check whether current node need to be split
         if (this.isOverflow()) {
-            return this.dealOverflow();
+            return this.dealOverflow(statistics);
         }
         else {
             return this.getParent() == null ? this : null;
@@ -131,35 +352,34 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
      * @return
      */
     private void deleteAt(int index) {
-        this.keys.remove(index);
-        this.children.remove(index + 1 );
+        this.removeKeyAt(index);
+        this.removeChildAt(index + 1);
     }
 
 
     @Override
     protected void processChildrenTransfer(Node<TKey> borrower, Node<TKey> lender, int borrowIndex) {
-        int borrowerChildIndex = 0;
-        while (borrowerChildIndex < this.getKeyCount() + 1 && this.getChild(borrowerChildIndex) != borrower)
-            ++borrowerChildIndex;
+        int borrowerChildIndex = this.indexOfChild(borrower);
 
         if (borrowIndex == 0) {
             // borrow a key from right sibling
             TKey upKey = borrower.transferFromSibling(this.getKey(borrowerChildIndex), lender, borrowIndex);
             this.setKey(borrowerChildIndex, upKey);
+            this.recountChild(borrowerChildIndex + 1);
         }
         else {
             // borrow a key from left sibling
             TKey upKey = borrower.transferFromSibling(this.getKey(borrowerChildIndex - 1), lender, borrowIndex);
             this.setKey(borrowerChildIndex - 1, upKey);
+            this.recountChild(borrowerChildIndex - 1);
         }
+        this.recountChild(borrowerChildIndex);
     }
 
 
     @Override
-    protected Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild) {
-        int index = 0;
-        while (index < this.getKeyCount() && this.getChild(index) != leftChild)
-            index++;
+    protected Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild, BtreeStatistics statistics) {
+        int index = this.indexOfChild(leftChild);
         TKey sinkKey = this.getKey(index);
 
         // merge two children and the sink key into the left child node
@@ -167,6 +387,7 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
 
         // remove the sink key, keep the left child and abandon the right child
         this.deleteAt(index);
+        this.recountChild(index);
 
         // check whether need to propagate borrow or fusion to parent
         if (this.isUnderflow()) {
@@ -174,6 +395,7 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
                 // current node is root, only remove keys or delete the whole root node
                 if (this.getKeyCount() == 0) {
                     leftChild.setParent(null);
+                    statistics.rootCollapsed();
                     return leftChild;
                 }
                 else {
@@ -181,7 +403,7 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
                 }
             }
 
-            return this.dealUnderflow();
+            return this.dealUnderflow(statistics);
         }
 
         return null;
@@ -191,16 +413,20 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
     @Override
     protected void fusionWithSibling(TKey sinkKey, Node<TKey> rightSibling) {
         InternalNode<TKey> rightSiblingNode = (InternalNode<TKey>)rightSibling;
+        // the right node is absorbed without being copied, it may still be shared and unread
+        rightSiblingNode.loadChildren();
+
+        int rightKeyCount = rightSiblingNode.keyCount;
+        this.ensureCapacity(this.keyCount + 1 + rightKeyCount);
+        this.keys[this.keyCount] = sinkKey;
+        System.arraycopy(rightSiblingNode.keys, 0, this.keys, this.keyCount + 1, rightKeyCount);
+        System.arraycopy(rightSiblingNode.children, 0, this.children, this.childCount, rightSiblingNode.childCount);
+        System.arraycopy(rightSiblingNode.childEntryCounts, 0, this.childEntryCounts, this.childCount, rightSiblingNode.childCount);
+        for (int i = this.childCount; i < this.childCount + rightSiblingNode.childCount; i++)
+            this.children[i].setParent(this);
+        this.keyCount += 1 + rightKeyCount;
+        this.childCount += rightSiblingNode.childCount;
 
-        int j = this.getKeyCount();
-        this.setKey(j++, sinkKey);
-
-        for (int i = 0; i < rightSiblingNode.getKeyCount(); i++) {
-            this.setKey(j + i, rightSiblingNode.getKey(i));
-        }
-        for (int i = 0; i < rightSiblingNode.getKeyCount() + 1; i++) {
-            this.setChild(j + i, rightSiblingNode.getChild(i));
-        }
         this.setRightSibling(rightSiblingNode.rightSibling);
         if (rightSiblingNode.rightSibling != null)
             rightSiblingNode.rightSibling.setLeftSibling(this);
@@ -212,21 +438,23 @@ public class InternalNode <TKey extends Comparable<TKey>> extends Node<TKey> {
 
         TKey upKey = null;
         if (borrowIndex == 0) {
-            // borrow the first key from right sibling, append it to tail
-            int index = this.getKeyCount();
-            this.setKey(index, sinkKey);
-            this.setChild(index + 1, siblingNode.getChild(borrowIndex));
+            // borrow the first key and child from right sibling, append them to tail
+            this.insertKeyAt(this.keyCount, sinkKey);
+            this.insertChildAt(this.childCount, siblingNode.getChild(0));
 
             upKey = siblingNode.getKey(0);
-            siblingNode.deleteAt(borrowIndex);
+            siblingNode.removeKeyAt(0);
+            siblingNode.removeChildAt(0);
         }
         else {
-            // borrow the last key from left sibling, insert it to head
-            this.insertAt(0, sinkKey, siblingNode.getChild(borrowIndex + 1), this.getChild(0));
+            // borrow the last key and child from left sibling, insert them to head
+            this.insertKeyAt(0, sinkKey);
+            this.insertChildAt(0, siblingNode.getChild(borrowIndex + 1));
+
             upKey = siblingNode.getKey(borrowIndex);
             siblingNode.deleteAt(borrowIndex);
         }
 
         return upKey;
     }
-}
\ No newline at end of file
+}
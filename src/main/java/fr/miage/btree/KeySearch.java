@@ -0,0 +1,102 @@
+package fr.miage.btree;
+
+/**
+ * Search kernels used to find a key inside a node.
+ * All of them return the lower bound of the key : the index of the first key greater than or equal to it,
+ * or the number of keys if every key is smaller.
+ */
+final class KeySearch {
+    /** Under this number of keys, interpolation is not worth its division */
+    private static final int INTERPOLATION_THRESHOLD = 16;
+    /** Interpolation steps before switching to a plain binary search, so skewed keys stay O(log n) */
+    private static final int MAX_INTERPOLATION_STEPS = 2;
+
+    private KeySearch() {
+    }
+
+    /**
+     * Binary search on the first keyCount keys of a node.
+     */
+    @SuppressWarnings("unchecked")
+    static <TKey extends Comparable<TKey>> int lowerBound(Object[] keys, int keyCount, TKey key) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (((TKey) keys[mid]).compareTo(key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Binary search of the index of the first key strictly greater than the given key.
+     */
+    @SuppressWarnings("unchecked")
+    static <TKey extends Comparable<TKey>> int upperBound(Object[] keys, int keyCount, TKey key) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (((TKey) keys[mid]).compareTo(key) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Branch-free binary search on primitive keys : the loop runs a fixed number of times for a given size
+     * and the comparison result only selects the next base, which the JIT compiles to a conditional move.
+     */
+    static int lowerBound(long[] keys, int from, int to, long key) {
+        int base = from;
+        int length = to - from;
+        if (length <= 0)
+            return from;
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = keys[base + half] < key ? base + half : base;
+            length -= half;
+        }
+        return keys[base] < key ? base + 1 : base;
+    }
+
+    static int lowerBound(long[] keys, int keyCount, long key) {
+        return lowerBound(keys, 0, keyCount, key);
+    }
+
+    /**
+     * Interpolation search for dense, roughly uniform numeric keys : the position of the key is guessed from its
+     * value, which needs a couple of probes instead of log2(n). A few interpolation steps narrow the window and
+     * the branch-free binary search finishes the job, so badly distributed keys never degrade past O(log n).
+     */
+    static int interpolationLowerBound(long[] keys, int keyCount, long key) {
+        int low = 0;
+        int high = keyCount;
+
+        for (int step = 0; step < MAX_INTERPOLATION_STEPS && high - low > INTERPOLATION_THRESHOLD; step++) {
+            long lowKey = keys[low];
+            long highKey = keys[high - 1];
+            if (key <= lowKey)
+                return low;
+            if (key > highKey)
+                return high;
+
+            // doubles avoid the overflow of (key - lowKey) on extreme values
+            double ratio = ((double) key - (double) lowKey) / ((double) highKey - (double) lowKey);
+            int guess = low + (int) (ratio * (high - 1 - low));
+
+            if (keys[guess] < key)
+                low = guess + 1;
+            else
+                high = guess;
+        }
+
+        return lowerBound(keys, low, high, key);
+    }
+}
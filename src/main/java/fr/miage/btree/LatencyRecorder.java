@@ -0,0 +1,14 @@
+package fr.miage.btree;
+
+/**
+ * Receives the duration of each operation of a tree, see {@link Btree#setLatencyRecorder(LatencyRecorder)}.
+ * Called by the thread which ran the operation, once it returns : it must be cheap and thread-safe.
+ */
+@FunctionalInterface
+public interface LatencyRecorder {
+    enum Operation {
+        INSERT, SEARCH, DELETE, UPDATE
+    }
+
+    void record(Operation operation, long nanos);
+}
@@ -0,0 +1,240 @@
+package fr.miage.btree;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filters of the keys of the leaf pages of a {@link PagedBtree}, kept on the heap by page number :
+ * a search for a missing key stops at the parent of its leaf when the filter of the leaf does not hold the key,
+ * the leaf page is not read (nor faulted in from the disk).
+ *
+ * A filter is built from the keys of its leaf the first time the leaf is searched, and rebuilt each time the leaf
+ * is written back (after a split, a merge or a compaction). An entry inserted in place is added to the filter,
+ * a deleted one stays in it until the filter is rebuilt : the filter of a leaf never misses one of its keys.
+ * Keys are hashed with hashCode, keys which compare equal must have the same hash code.
+ *
+ * Filters are updated under the exclusive lock of the tree. Searches, under the shared lock, only add the filters
+ * of the leaves they read : a filter is complete before it is published.
+ */
+public final class LeafFilters {
+    /**
+     * A filter is sized for twice the keys of its leaf, so that it is not rebuilt by every insert in place :
+     * the false positive rate is an upper bound, reached when the leaf doubled since the filter was built
+     */
+    private static final int GROWTH = 2;
+    private static final int MIN_KEYS = 16;
+
+    private final double falsePositiveRate;
+    private final int hashCount;
+    private final double bitsPerKey;
+
+    /** Filters by page number, null for pages which are not leaves or whose leaf was not searched yet */
+    private volatile Filter[] filters = new Filter[64];
+
+    private final LongAdder skipCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    /**
+     * @param falsePositiveRate the part of the searches of a missing key which still read its leaf, in ]0, 1[
+     */
+    LeafFilters(double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        this.falsePositiveRate = falsePositiveRate;
+        // optimal Bloom filter : -ln(p) / ln(2)^2 bits and ln(2) hashes per bit per key
+        this.bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.hashCount = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    /**
+     * Whether the leaf may hold the key : true when the leaf has no filter yet.
+     */
+    boolean mayContain(int pageId, Object key) {
+        Filter filter = this.get(pageId);
+        return filter == null || filter.mayContain(key.hashCode(), hashCount);
+    }
+
+    boolean hasFilter(int pageId) {
+        return this.get(pageId) != null;
+    }
+
+    /**
+     * Build the filter of a leaf from all its keys, replacing its previous one.
+     */
+    void build(int pageId, List<?> keys) {
+        Filter filter = new Filter((int) Math.ceil(Math.max(MIN_KEYS, GROWTH * keys.size()) * bitsPerKey), keys.size() * GROWTH);
+        for (Object key : keys)
+            filter.add(key.hashCode(), hashCount);
+        this.set(pageId, filter);
+    }
+
+    /**
+     * A key was inserted in place in a leaf. A full filter is dropped, it is rebuilt when the leaf is searched again.
+     */
+    void added(int pageId, Object key) {
+        Filter filter = this.get(pageId);
+        if (filter == null)
+            return;
+        if (filter.addedCount >= filter.capacity)
+            this.set(pageId, null);
+        else
+            filter.add(key.hashCode(), hashCount);
+    }
+
+    /**
+     * A key was deleted in place from a leaf. Once half of the keys of the filter are deleted, the filter is dropped.
+     */
+    void removed(int pageId) {
+        Filter filter = this.get(pageId);
+        if (filter != null && ++filter.removedCount > filter.addedCount / 2)
+            this.set(pageId, null);
+    }
+
+    /**
+     * The page no longer holds a leaf : it was freed, or reused for an internal node.
+     */
+    void remove(int pageId) {
+        this.set(pageId, null);
+    }
+
+    private Filter get(int pageId) {
+        Filter[] filters = this.filters;
+        return pageId < filters.length ? filters[pageId] : null;
+    }
+
+    /**
+     * Synchronized for the searches which add the filters of the leaves they read at the same time.
+     */
+    private synchronized void set(int pageId, Filter filter) {
+        Filter[] filters = this.filters;
+        if (pageId >= filters.length) {
+            if (filter == null)
+                return;
+            filters = Arrays.copyOf(filters, Math.max(pageId + 1, filters.length * 2));
+        }
+        filters[pageId] = filter;
+        this.filters = filters;
+    }
+
+    void skipped() {
+        skipCount.increment();
+    }
+
+    void falsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    /* The codes below read the statistics of the filters */
+
+    /**
+     * The false positive rate the filters are sized for.
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Searches of a missing key which did not read its leaf.
+     */
+    public long getSkipCount() {
+        return skipCount.sum();
+    }
+
+    /**
+     * Searches of a missing key which read its leaf, as its filter may have held the key.
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.sum();
+    }
+
+    /**
+     * Part of the searches of a missing key checked by a filter which read the leaf anyway, NaN before the first one.
+     */
+    public double getObservedFalsePositiveRate() {
+        long falsePositives = this.getFalsePositiveCount();
+        long negatives = falsePositives + this.getSkipCount();
+        return negatives == 0 ? Double.NaN : (double) falsePositives / negatives;
+    }
+
+    public int getFilterCount() {
+        int count = 0;
+        for (Filter filter : this.filters) {
+            if (filter != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Heap taken by the bits of the filters.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Filter filter : this.filters) {
+            if (filter != null)
+                bytes += 8L * filter.bits.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "LeafFilters{falsePositiveRate=" + falsePositiveRate + ", filters=" + getFilterCount() + ", bytes=" + getBytes()
+                + ", skips=" + getSkipCount() + ", falsePositives=" + getFalsePositiveCount() + "}";
+    }
+
+    /**
+     * The filter of a leaf : the bits of a key are picked by double hashing of its hash code.
+     */
+    private static final class Filter {
+        private final long[] bits;
+        private final int bitCount;
+        /** Number of keys the filter is sized for */
+        private final int capacity;
+        private int addedCount;
+        private int removedCount;
+
+        private Filter(int bitCount, int capacity) {
+            this.bits = new long[(bitCount + 63) >>> 6];
+            this.bitCount = this.bits.length * 64;
+            this.capacity = Math.max(MIN_KEYS, capacity);
+        }
+
+        private void add(int hashCode, int hashCount) {
+            long hash = mix(hashCode);
+            int first = (int) hash;
+            int second = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                int bit = Integer.remainderUnsigned(first + i * second, bitCount);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+            addedCount++;
+        }
+
+        private boolean mayContain(int hashCode, int hashCount) {
+            long hash = mix(hashCode);
+            int first = (int) hash;
+            int second = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                int bit = Integer.remainderUnsigned(first + i * second, bitCount);
+                if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Spread the hash code over 64 bits (the finalizer of MurmurHash3).
+         */
+        private static long mix(int hashCode) {
+            long hash = hashCode;
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            hash *= 0xC4CEB9FE1A85EC53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
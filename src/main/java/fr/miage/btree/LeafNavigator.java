@@ -0,0 +1,14 @@
+package fr.miage.btree;
+
+/**
+ * Moves a {@link BtreeCursor} from leaf to leaf when the links between leaves can not be followed.
+ */
+interface LeafNavigator<TKey extends Comparable<TKey>, TValue> {
+
+    /**
+     * The leaf after the current one, which becomes the current one, or null at the end of the tree.
+     */
+    LeafNode<TKey, TValue> nextLeaf();
+
+    LeafNode<TKey, TValue> previousLeaf();
+}
@@ -2,29 +2,85 @@ package fr.miage.btree;
 
 import com.fasterxml.jackson.annotation.JsonView;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class LeafNode<TKey extends Comparable<TKey>, TValue> extends Node<TKey> {
-    @JsonView(Views.Public.class)
-    private List<TValue> values;
+    /** Fixed-capacity value storage, values[i] is associated with keys[i] */
+    protected Object[] values;
+    /** Equal to keyCount, except while a leaf is rebuilt with addKey / addValue */
+    protected int valueCount;
 
     public LeafNode() {
-        this.keys = new ArrayList<TKey>();
-        this.values = new ArrayList<TValue>();
+        this(BtreeConfig.defaults());
+    }
+
+    public LeafNode(BtreeConfig config) {
+        super(config);
+        this.values = new Object[this.keys.length];
+    }
+
+    /**
+     * New empty leaf, its keys are prefix-compressed when the config asks for it (String keys only).
+     */
+    @SuppressWarnings("unchecked")
+    static <TKey extends Comparable<TKey>, TValue> LeafNode<TKey, TValue> create(BtreeConfig config) {
+        if (config.isPrefixCompression())
+            return (LeafNode<TKey, TValue>) (LeafNode<?, ?>) new PrefixLeafNode<TValue>(config);
+        return new LeafNode<>(config);
+    }
+
+    /**
+     * New empty leaf of the same kind as this one.
+     */
+    protected LeafNode<TKey, TValue> newLeaf() {
+        return new LeafNode<>(this.config);
     }
 
     @SuppressWarnings("unchecked")
     public TValue getValue(int index) {
-        return (TValue)this.values.get(index);
+        return (TValue)this.values[index];
     }
 
+    /**
+     * Append a value, used when a leaf is rebuilt key by key (the key is added separately).
+     */
     public void addValue(TValue value) {
-        this.values.add(value);
+        this.ensureCapacity(this.valueCount + 1);
+        this.values[this.valueCount++] = value;
     }
 
     public void setValue(int index, TValue value) {
-        this.values.add(index, value);
+        this.values[index] = value;
+    }
+
+    @Override
+    protected void ensureCapacity(int keyCapacity) {
+        super.ensureCapacity(keyCapacity);
+        this.ensureValueCapacity(this.keys.length);
+    }
+
+    protected void ensureValueCapacity(int valueCapacity) {
+        if (valueCapacity > this.values.length)
+            this.values = Arrays.copyOf(this.values, valueCapacity);
+    }
+
+    /**
+     * Next leaf in key order, whatever its parent : leaves form a doubly linked list used by range scans.
+     */
+    @SuppressWarnings("unchecked")
+    public LeafNode<TKey, TValue> getNextLeaf() {
+        return (LeafNode<TKey, TValue>) this.rightSibling;
+    }
+
+    /**
+     * Previous leaf in key order, whatever its parent.
+     */
+    @SuppressWarnings("unchecked")
+    public LeafNode<TKey, TValue> getPreviousLeaf() {
+        return (LeafNode<TKey, TValue>) this.leftSibling;
     }
 
     @Override
@@ -32,54 +88,155 @@ public class LeafNode<TKey extends Comparable<TKey>, TValue> extends Node<TKey>
         return NodeType.LeafNode;
     }
 
+    @Override
+    protected int getOrder() {
+        return this.config.getLeafOrder();
+    }
+
     @Override
     public int search(TKey key) {
-        for (int i = 0; i < this.getKeyCount(); i++) {
-            int cmp = this.getKey(i).compareTo(key);
-            if (cmp == 0) {
-                return i;
-            }
-            else if (cmp > 0) {
-                return -1;
-            }
-        }
+        int index = this.lowerBound(key);
+        if (index < this.getKeyCount() && this.getKey(index).compareTo(key) == 0)
+            return index;
 
         return -1;
     }
 
+    /**
+     * Whether a key comes after all the keys of this leaf, which is not empty.
+     */
+    boolean isAfterLastKey(TKey key) {
+        return key.compareTo(this.getKey(this.keyCount - 1)) > 0;
+    }
+
 
     /* The codes below are used to support insertion operation */
 
     public void insertKey(TKey key, TValue value) {
-        int index = 0;
-        while (index < this.getKeyCount() && this.getKey(index).compareTo(key) < 0)
-            index++;
+        // new keys go before their duplicates, as the search returns the first one
+        int index = this.lowerBound(key);
         this.insertAt(index, key, value);
     }
 
     private void insertAt(int index, TKey key, TValue value) {
-        this.setKey(index, key);
-        this.setValue(index, value);
+        this.insertKeyAt(index, key);
+        System.arraycopy(this.values, index, this.values, index + 1, this.keyCount - 1 - index);
+        this.values[index] = value;
+        this.valueCount = this.keyCount;
     }
 
 
+    @Override
+    protected Node<TKey> copy() {
+        LeafNode<TKey, TValue> copy = new LeafNode<TKey, TValue>(this.config);
+        copy.keys = this.keys.clone();
+        copy.keyCount = this.keyCount;
+        copy.values = this.values.clone();
+        copy.valueCount = this.valueCount;
+        return copy;
+    }
+
     /**
      * When splits a leaf node, the middle key is kept on new node and be pushed to parent node.
      */
     @Override
-    protected Node<TKey> split() {
-        int midIndex = getMiddleIndex();
+    protected Node<TKey> split(int midIndex) {
+        LeafNode<TKey, TValue> newRNode = this.newLeaf();
+        newRNode.epoch = this.epoch;
+        int moving = this.keyCount - midIndex;
+        newRNode.ensureCapacity(moving);
+        System.arraycopy(this.values, midIndex, newRNode.values, 0, moving);
+        newRNode.valueCount = moving;
+        Arrays.fill(this.values, midIndex, this.keyCount, null);
+        this.valueCount = midIndex;
 
-        LeafNode<TKey, TValue> newRNode = new LeafNode<TKey, TValue>();
-        while (this.getKeyCount() > midIndex) {
-            newRNode.insertKey(this.getKey(midIndex), this.getValue(midIndex));
-            this.deleteAt(midIndex);
-        }
+        this.moveKeys(newRNode, midIndex);
         return newRNode;
     }
 
+    /**
+     * Move the keys from index to the end to an empty leaf.
+     */
+    protected void moveKeys(LeafNode<TKey, TValue> target, int index) {
+        int moving = this.keyCount - index;
+        System.arraycopy(this.keys, index, target.keys, 0, moving);
+        target.keyCount = moving;
+        Arrays.fill(this.keys, index, this.keyCount, null);
+        this.keyCount = index;
+    }
+
+    /**
+     * The separator between the two halves of a split leaf only has to route lookups, so it is shortened when the keys
+     * are Strings (suffix truncation) : a shorter separator leaves more room in internal nodes.
+     */
+    @Override
+    protected TKey separatorAt(int splitIndex) {
+        if (splitIndex == 0)
+            return this.getKey(0);
+        return separator(this.getKey(splitIndex - 1), this.getKey(splitIndex));
+    }
+
+    /**
+     * Key between two neighbour keys : greater than lower and not greater than upper, upper itself unless both are Strings.
+     */
+    @SuppressWarnings("unchecked")
+    static <TKey extends Comparable<TKey>> TKey separator(TKey lower, TKey upper) {
+        if (lower instanceof String lowerString && upper instanceof String upperString)
+            return (TKey) shortestSeparator(lowerString, upperString);
+        return upper;
+    }
+
+    /**
+     * Shortest prefix of upper which is greater than lower, lower being before upper.
+     */
+    static String shortestSeparator(String lower, String upper) {
+        int common = 0;
+        int length = Math.min(lower.length(), upper.length());
+        while (common < length && lower.charAt(common) == upper.charAt(common))
+            common++;
+        // equal keys : no shorter key separates them
+        if (common == upper.length())
+            return upper;
+        // a surrogate pair is not cut, the separator stays a valid string
+        int end = common + 1;
+        if (Character.isHighSurrogate(upper.charAt(common)) && end < upper.length())
+            end++;
+        return upper.substring(0, end);
+    }
+
     @Override
-    protected Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode) {
+    protected void trimToOrder() {
+        super.trimToOrder();
+        if (this.values.length > this.keys.length)
+            this.values = Arrays.copyOf(this.values, this.keys.length);
+    }
+
+    /**
+     * Insert entries sorted by key in a single merge, from the end of the leaf : each entry goes before the keys
+     * equal to its own, as if inserted by insertKey in turn (entries of the same key are in reverse insertion order).
+     * The leaf may grow past its order, it is split afterwards.
+     */
+    void insertSorted(List<? extends Map.Entry<TKey, TValue>> entries) {
+        int total = this.keyCount + entries.size();
+        this.ensureCapacity(total);
+
+        int existing = this.keyCount - 1;
+        int position = total - 1;
+        for (int added = entries.size() - 1; added >= 0; added--) {
+            Map.Entry<TKey, TValue> entry = entries.get(added);
+            while (existing >= 0 && this.getKey(existing).compareTo(entry.getKey()) >= 0) {
+                this.keys[position] = this.keys[existing];
+                this.values[position--] = this.values[existing--];
+            }
+            this.keys[position] = entry.getKey();
+            this.values[position--] = entry.getValue();
+        }
+        this.keyCount = total;
+        this.valueCount = total;
+    }
+
+    @Override
+    protected Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode, BtreeStatistics statistics) {
         throw new UnsupportedOperationException();
     }
 
@@ -95,8 +252,10 @@ public class LeafNode<TKey extends Comparable<TKey>, TValue> extends Node<TKey>
     }
 
     private void deleteAt(int index) {
-        this.keys.remove(index);
-        this.values.remove(index);
+        System.arraycopy(this.values, index + 1, this.values, index, this.keyCount - index - 1);
+        this.values[this.keyCount - 1] = null;
+        this.removeKeyAt(index);
+        this.valueCount = this.keyCount;
     }
 
     @Override
@@ -105,7 +264,7 @@ public class LeafNode<TKey extends Comparable<TKey>, TValue> extends Node<TKey>
     }
 
     @Override
-    protected Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild) {
+    protected Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild, BtreeStatistics statistics) {
         throw new UnsupportedOperationException();
     }
 
@@ -117,32 +276,63 @@ public class LeafNode<TKey extends Comparable<TKey>, TValue> extends Node<TKey>
     protected void fusionWithSibling(TKey sinkKey, Node<TKey> rightSibling) {
         LeafNode<TKey, TValue> siblingLeaf = (LeafNode<TKey, TValue>)rightSibling;
 
-        for (int i = 0; i < siblingLeaf.getKeyCount(); i++) {
-            this.addKey(siblingLeaf.getKey(i));
-            this.addValue(siblingLeaf.getValue(i));
-        }
+        int siblingKeyCount = siblingLeaf.keyCount;
+        this.ensureCapacity(this.keyCount + siblingKeyCount);
+        System.arraycopy(siblingLeaf.values, 0, this.values, this.keyCount, siblingKeyCount);
+        this.appendKeys(siblingLeaf);
+        this.valueCount = this.keyCount;
 
         this.setRightSibling(siblingLeaf.rightSibling);
         if (siblingLeaf.rightSibling != null)
             siblingLeaf.rightSibling.setLeftSibling(this);
     }
 
+    /**
+     * Append the keys of another leaf, the room is already reserved.
+     */
+    protected void appendKeys(LeafNode<TKey, TValue> leaf) {
+        System.arraycopy(leaf.keys, 0, this.keys, this.keyCount, leaf.keyCount);
+        this.keyCount += leaf.keyCount;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     protected TKey transferFromSibling(TKey sinkKey, Node<TKey> sibling, int borrowIndex) {
         LeafNode<TKey, TValue> siblingNode = (LeafNode<TKey, TValue>)sibling;
 
-        this.insertKey(siblingNode.getKey(borrowIndex), siblingNode.getValue(borrowIndex));
+        // the lent entry is the first of the right sibling or the last of the left one, so positions are known
+        int index = borrowIndex == 0 ? this.keyCount : 0;
+        this.insertAt(index, siblingNode.getKey(borrowIndex), siblingNode.getValue(borrowIndex));
         siblingNode.deleteAt(borrowIndex);
 
-        return borrowIndex == 0 ? sibling.getKey(0) : this.getKey(0);
+        if (borrowIndex == 0)
+            return separator(this.getKey(this.keyCount - 1), siblingNode.getKey(0));
+        return separatorAfter(siblingNode, this);
     }
-    
+
+    /**
+     * Separator between two neighbour leaves, see {@link #separator(Comparable, Comparable)}.
+     */
+    static <TKey extends Comparable<TKey>> TKey separatorAfter(LeafNode<TKey, ?> left, LeafNode<TKey, ?> right) {
+        if (left == null || left.getKeyCount() == 0)
+            return right.getKey(0);
+        return separator(left.getKey(left.getKeyCount() - 1), right.getKey(0));
+    }
+
+    /**
+     * Read-only view of the values, used by the JSON serialization.
+     */
+    @JsonView(Views.Public.class)
+    @SuppressWarnings("unchecked")
     public List<TValue> getValues() {
-        return values;
+        return (List<TValue>) (List<?>) Collections.unmodifiableList(Arrays.asList(this.values).subList(0, this.valueCount));
     }
-    
+
     public void setValues(List<TValue> values) {
-        this.values = values;
+        this.ensureCapacity(values.size());
+        Arrays.fill(this.values, null);
+        for (int i = 0; i < values.size(); i++)
+            this.values[i] = values.get(i);
+        this.valueCount = values.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,115 @@
+package fr.miage.btree;
+
+import java.util.Arrays;
+
+/**
+ * Path from the root of a tree to one of its leaves, which moves to the next or previous leaf
+ * through the parents instead of the links between leaves.
+ */
+class LeafPath<TKey extends Comparable<TKey>, TValue> implements LeafNavigator<TKey, TValue> {
+    private final Node<TKey> root;
+    /** Internal nodes from the root down to the parent of the current leaf, and the child taken in each */
+    @SuppressWarnings("unchecked")
+    private InternalNode<TKey>[] nodes = new InternalNode[8];
+    private int[] childIndexes = new int[8];
+    private int depth;
+    /** Index in the leaf of the entry found by {@link #descendToPosition(long)} */
+    private int indexInLeaf;
+
+    LeafPath(Node<TKey> root) {
+        this.root = root;
+    }
+
+    /**
+     * Descend to the leaf of the first key greater than or equal to the given key (lowerBound),
+     * or of the first key strictly greater (upperBound). The leaf may not contain such a key when it is the last one
+     * before it in the tree.
+     */
+    @SuppressWarnings("unchecked")
+    LeafNode<TKey, TValue> descend(TKey key, boolean lowerBound) {
+        this.depth = 0;
+        Node<TKey> node = this.root;
+        while (node.getNodeType() == NodeType.InternalNode) {
+            InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+            int index = lowerBound ? internalNode.lowerBound(key) : internalNode.upperBound(key);
+            this.push(internalNode, index);
+            node = internalNode.getChild(index);
+        }
+        return (LeafNode<TKey, TValue>) node;
+    }
+
+    /**
+     * Descend to the leaf of the entry at a position in key order, by the entry counts of the children.
+     * A position out of the tree leads to an index out of the first or last leaf.
+     * @return the leaf, the index of the entry in it is then {@link #getIndexInLeaf()}
+     */
+    @SuppressWarnings("unchecked")
+    LeafNode<TKey, TValue> descendToPosition(long position) {
+        this.depth = 0;
+        Node<TKey> node = this.root;
+        while (node.getNodeType() == NodeType.InternalNode) {
+            InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+            int index = 0;
+            while (index < internalNode.getChildCount() - 1 && position >= internalNode.getChildEntryCount(index)) {
+                position -= internalNode.getChildEntryCount(index);
+                index++;
+            }
+            this.push(internalNode, index);
+            node = internalNode.getChild(index);
+        }
+        this.indexInLeaf = (int) Math.max(-1, Math.min(position, node.getKeyCount()));
+        return (LeafNode<TKey, TValue>) node;
+    }
+
+    int getIndexInLeaf() {
+        return indexInLeaf;
+    }
+
+    LeafNode<TKey, TValue> descendToEdge(boolean rightmost) {
+        this.depth = 0;
+        return this.descendToEdge(this.root, rightmost);
+    }
+
+    @Override
+    public LeafNode<TKey, TValue> nextLeaf() {
+        while (this.depth > 0 && this.childIndexes[this.depth - 1] == this.nodes[this.depth - 1].getChildCount() - 1)
+            this.depth--;
+        if (this.depth == 0)
+            return null;
+
+        InternalNode<TKey> parent = this.nodes[this.depth - 1];
+        return this.descendToEdge(parent.getChild(++this.childIndexes[this.depth - 1]), false);
+    }
+
+    @Override
+    public LeafNode<TKey, TValue> previousLeaf() {
+        while (this.depth > 0 && this.childIndexes[this.depth - 1] == 0)
+            this.depth--;
+        if (this.depth == 0)
+            return null;
+
+        InternalNode<TKey> parent = this.nodes[this.depth - 1];
+        return this.descendToEdge(parent.getChild(--this.childIndexes[this.depth - 1]), true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private LeafNode<TKey, TValue> descendToEdge(Node<TKey> node, boolean rightmost) {
+        while (node.getNodeType() == NodeType.InternalNode) {
+            InternalNode<TKey> internalNode = (InternalNode<TKey>) node;
+            int index = rightmost ? internalNode.getChildCount() - 1 : 0;
+            this.push(internalNode, index);
+            node = internalNode.getChild(index);
+        }
+        return (LeafNode<TKey, TValue>) node;
+    }
+
+    private void push(InternalNode<TKey> node, int childIndex) {
+        if (this.depth == this.nodes.length) {
+            this.nodes = Arrays.copyOf(this.nodes, this.depth * 2);
+            this.childIndexes = Arrays.copyOf(this.childIndexes, this.depth * 2);
+        }
+        this.nodes[this.depth] = node;
+        this.childIndexes[this.depth] = childIndex;
+        this.depth++;
+    }
+}
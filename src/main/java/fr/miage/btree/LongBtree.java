@@ -0,0 +1,534 @@
+package fr.miage.btree;
+
+import java.util.Arrays;
+
+/**
+ * B+ tree specialized for primitive long keys.
+ * Keys are stored in long[] arrays, so a comparison is a single machine instruction instead of a virtual compareTo
+ * on a boxed Long, and lookups never allocate.
+ * Values are stored in an array chosen by the {@link ValueLayout} of the tree : Object[], long[] or int[].
+ *
+ * The tree follows the same rules as {@link Btree} (node orders from a {@link BtreeConfig}, duplicated keys allowed,
+ * a lookup finds the first entry of a key even when a split left it before an equal separator), but nodes have
+ * no parent pointer : the path of the last descent is kept instead.
+ */
+public class LongBtree<TValue> {
+
+    /**
+     * How values are stored in leaves.
+     */
+    public enum ValueLayout {
+        /** values are objects, use {@link #insert(long, Object)} and {@link #search(long)} */
+        OBJECT,
+        /** values are primitive longs, use {@link #insertLong(long, long)} and {@link #searchLong(long, long)} */
+        LONG,
+        /** values are primitive ints, use {@link #insertInt(long, int)} and {@link #searchInt(long, int)} */
+        INT
+    }
+
+    private final BtreeConfig config;
+    private final ValueLayout valueLayout;
+    private final boolean interpolationSearch;
+
+    private LongNode root;
+    private int height;
+    private long size;
+
+    // path of the last descent : internal nodes and the index of the child taken in each of them
+    private LongInternalNode[] pathNodes = new LongInternalNode[8];
+    private int[] pathIndexes = new int[8];
+
+    public LongBtree() {
+        this(BtreeConfig.defaults(), ValueLayout.OBJECT, false);
+    }
+
+    public LongBtree(BtreeConfig config, ValueLayout valueLayout) {
+        this(config, valueLayout, false);
+    }
+
+    /**
+     * @param interpolationSearch use an interpolation search inside nodes, faster for dense, evenly spread keys
+     *                            (sequential ids for instance)
+     */
+    public LongBtree(BtreeConfig config, ValueLayout valueLayout, boolean interpolationSearch) {
+        this.config = config;
+        this.valueLayout = valueLayout;
+        this.interpolationSearch = interpolationSearch;
+        this.root = new LongLeafNode(config.getLeafOrder(), valueLayout);
+        this.height = 1;
+    }
+
+    /* The codes below are used to support search operation */
+
+    /**
+     * Search a key on the tree and return its associated value, or null if the key is not found.
+     */
+    @SuppressWarnings("unchecked")
+    public TValue search(long key) {
+        checkLayout(ValueLayout.OBJECT);
+        LongLeafNode leaf = this.findLeafNodeShouldContainKey(key);
+        int index = this.searchInLeaf(leaf, key);
+        return index == -1 ? null : (TValue) ((Object[]) leaf.values)[index];
+    }
+
+    /**
+     * Search a key on a tree with long values.
+     * @param absentValue the value returned when the key is not found
+     */
+    public long searchLong(long key, long absentValue) {
+        checkLayout(ValueLayout.LONG);
+        LongLeafNode leaf = this.findLeafNodeShouldContainKey(key);
+        int index = this.searchInLeaf(leaf, key);
+        return index == -1 ? absentValue : ((long[]) leaf.values)[index];
+    }
+
+    /**
+     * Search a key on a tree with int values.
+     * @param absentValue the value returned when the key is not found
+     */
+    public int searchInt(long key, int absentValue) {
+        checkLayout(ValueLayout.INT);
+        LongLeafNode leaf = this.findLeafNodeShouldContainKey(key);
+        int index = this.searchInLeaf(leaf, key);
+        return index == -1 ? absentValue : ((int[]) leaf.values)[index];
+    }
+
+    public boolean contains(long key) {
+        return this.searchInLeaf(this.findLeafNodeShouldContainKey(key), key) != -1;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ValueLayout getValueLayout() {
+        return valueLayout;
+    }
+
+    public BtreeConfig getConfig() {
+        return config;
+    }
+
+    /* The codes below are used to support insertion operation */
+
+    public void insert(long key, TValue value) {
+        checkLayout(ValueLayout.OBJECT);
+        LongLeafNode leaf = this.findLeafNodeForUpdate(key);
+        int index = leaf.openSlot(this.lowerBound(leaf, key), key);
+        ((Object[]) leaf.values)[index] = value;
+        this.afterInsert(leaf);
+    }
+
+    public void insertLong(long key, long value) {
+        checkLayout(ValueLayout.LONG);
+        LongLeafNode leaf = this.findLeafNodeForUpdate(key);
+        int index = leaf.openSlot(this.lowerBound(leaf, key), key);
+        ((long[]) leaf.values)[index] = value;
+        this.afterInsert(leaf);
+    }
+
+    public void insertInt(long key, int value) {
+        checkLayout(ValueLayout.INT);
+        LongLeafNode leaf = this.findLeafNodeForUpdate(key);
+        int index = leaf.openSlot(this.lowerBound(leaf, key), key);
+        ((int[]) leaf.values)[index] = value;
+        this.afterInsert(leaf);
+    }
+
+    private void afterInsert(LongLeafNode leaf) {
+        size++;
+        if (leaf.keyCount > config.getLeafOrder() - 1)
+            this.dealOverflow(leaf);
+    }
+
+    /**
+     * Split the overflowing leaf, then push the separators up the path of the last descent as long as
+     * internal nodes overflow.
+     */
+    private void dealOverflow(LongLeafNode leaf) {
+        LongLeafNode newRLeaf = leaf.split(this.getMiddleIndex(config.getLeafOrder()));
+        long upKey = newRLeaf.keys[0];
+        LongNode newRNode = newRLeaf;
+
+        int depth = height - 2;
+        while (depth >= 0) {
+            LongInternalNode parent = pathNodes[depth];
+            parent.insertAt(pathIndexes[depth], upKey, newRNode);
+            if (parent.keyCount <= config.getInnerOrder() - 1)
+                return;
+
+            int midIndex = this.getMiddleIndex(config.getInnerOrder());
+            upKey = parent.keys[midIndex];
+            newRNode = parent.split(midIndex);
+            depth--;
+        }
+
+        // the root has been split, the tree grows by one level
+        LongInternalNode newRoot = new LongInternalNode(config.getInnerOrder());
+        newRoot.keys[0] = upKey;
+        newRoot.children[0] = root;
+        newRoot.children[1] = newRNode;
+        newRoot.keyCount = 1;
+        root = newRoot;
+        height++;
+    }
+
+    /* The codes below are used to support deletion operation */
+
+    /**
+     * Delete a key and its associated value from the tree.
+     * @return true if the key was found
+     */
+    public boolean delete(long key) {
+        LongLeafNode leaf = this.findLeafNodeForUpdate(key);
+        int index = this.searchInLeaf(leaf, key);
+        if (index == -1)
+            return false;
+
+        leaf.deleteAt(index);
+        size--;
+
+        LongNode node = leaf;
+        int depth = height - 2;
+        while (depth >= 0 && node.keyCount < this.getMinKeyCount(node)) {
+            LongInternalNode parent = pathNodes[depth];
+            this.dealUnderflow(parent, pathIndexes[depth]);
+            node = parent;
+            depth--;
+        }
+
+        // an empty internal root is replaced by its only child
+        if (root instanceof LongInternalNode && root.keyCount == 0) {
+            root = ((LongInternalNode) root).children[0];
+            height--;
+        }
+        return true;
+    }
+
+    /**
+     * Borrow a key from a sibling of the child at childIndex, or merge it with a sibling if none can lend one.
+     */
+    private void dealUnderflow(LongInternalNode parent, int childIndex) {
+        LongNode child = parent.children[childIndex];
+        int minKeyCount = this.getMinKeyCount(child);
+
+        if (childIndex > 0 && parent.children[childIndex - 1].keyCount > minKeyCount) {
+            child.borrowFromLeft(parent, childIndex);
+        }
+        else if (childIndex < parent.keyCount && parent.children[childIndex + 1].keyCount > minKeyCount) {
+            child.borrowFromRight(parent, childIndex);
+        }
+        else if (childIndex > 0) {
+            parent.children[childIndex - 1].fusionWithRight(parent, childIndex - 1);
+        }
+        else {
+            child.fusionWithRight(parent, childIndex);
+        }
+    }
+
+    /* Descent and in-node search */
+
+    /**
+     * Leaf of the first entry of a key, or the leaf a missing key is inserted into : the descent takes the leftmost
+     * child which may hold the key, and moves to the next leaf when all the keys of the leaf it reached are lower
+     * while the separator on its right is equal to the key (its duplicates start there), as {@link Btree} does.
+     */
+    private LongLeafNode findLeafNodeShouldContainKey(long key) {
+        LongNode node = root;
+        // the lowest node where the descent did not take the last child
+        LongInternalNode fork = null;
+        int forkIndex = 0;
+        while (node instanceof LongInternalNode) {
+            LongInternalNode internalNode = (LongInternalNode) node;
+            int index = this.lowerBound(internalNode, key);
+            if (index < internalNode.keyCount) {
+                fork = internalNode;
+                forkIndex = index;
+            }
+            node = internalNode.children[index];
+        }
+
+        LongLeafNode leaf = (LongLeafNode) node;
+        if (fork == null || !this.startsAfter(leaf, key, fork.keys[forkIndex]))
+            return leaf;
+        node = fork.children[forkIndex + 1];
+        while (node instanceof LongInternalNode)
+            node = ((LongInternalNode) node).children[0];
+        return (LongLeafNode) node;
+    }
+
+    /**
+     * Same as findLeafNodeShouldContainKey, but remembers the path so that splits and fusions can go back up.
+     */
+    private LongLeafNode findLeafNodeForUpdate(long key) {
+        if (pathNodes.length < height) {
+            pathNodes = Arrays.copyOf(pathNodes, height * 2);
+            pathIndexes = Arrays.copyOf(pathIndexes, height * 2);
+        }
+
+        LongNode node = root;
+        int depth = 0;
+        int forkDepth = -1;
+        while (node instanceof LongInternalNode) {
+            LongInternalNode internalNode = (LongInternalNode) node;
+            int index = this.lowerBound(internalNode, key);
+            if (index < internalNode.keyCount)
+                forkDepth = depth;
+            pathNodes[depth] = internalNode;
+            pathIndexes[depth] = index;
+            depth++;
+            node = internalNode.children[index];
+        }
+
+        LongLeafNode leaf = (LongLeafNode) node;
+        if (forkDepth == -1 || !this.startsAfter(leaf, key, pathNodes[forkDepth].keys[pathIndexes[forkDepth]]))
+            return leaf;
+        // the path now goes through the child on the right of the separator, then down its leftmost children
+        depth = forkDepth;
+        node = pathNodes[depth].children[++pathIndexes[depth]];
+        while (node instanceof LongInternalNode) {
+            depth++;
+            pathNodes[depth] = (LongInternalNode) node;
+            pathIndexes[depth] = 0;
+            node = ((LongInternalNode) node).children[0];
+        }
+        return (LongLeafNode) node;
+    }
+
+    /**
+     * Whether the entries of a key start at the leaf after the one reached by a descent.
+     * @param separator the separator on the right of the leaf reached
+     */
+    private boolean startsAfter(LongLeafNode leaf, long key, long separator) {
+        return separator == key && leaf.keyCount > 0 && leaf.keys[leaf.keyCount - 1] < key;
+    }
+
+    private int searchInLeaf(LongLeafNode leaf, long key) {
+        int index = this.lowerBound(leaf, key);
+        return index < leaf.keyCount && leaf.keys[index] == key ? index : -1;
+    }
+
+    private int lowerBound(LongNode node, long key) {
+        return interpolationSearch
+                ? KeySearch.interpolationLowerBound(node.keys, node.keyCount, key)
+                : KeySearch.lowerBound(node.keys, node.keyCount, key);
+    }
+
+    private int getMiddleIndex(int order) {
+        return (order - 1) / 2;
+    }
+
+    private int getMinKeyCount(LongNode node) {
+        int order = node instanceof LongLeafNode ? config.getLeafOrder() : config.getInnerOrder();
+        return (order - 1) / 2;
+    }
+
+    private void checkLayout(ValueLayout expected) {
+        if (valueLayout != expected)
+            throw new IllegalStateException("This tree stores " + valueLayout + " values, not " + expected);
+    }
+
+    /* Nodes */
+
+    private static abstract class LongNode {
+        final long[] keys;
+        int keyCount;
+
+        LongNode(int keyCapacity) {
+            this.keys = new long[keyCapacity];
+        }
+
+        abstract void borrowFromLeft(LongInternalNode parent, int index);
+
+        abstract void borrowFromRight(LongInternalNode parent, int index);
+
+        /**
+         * Merge the right sibling (child index + 1 of parent) into this node and remove it from the parent.
+         */
+        abstract void fusionWithRight(LongInternalNode parent, int index);
+    }
+
+    private static final class LongInternalNode extends LongNode {
+        final LongNode[] children;
+
+        LongInternalNode(int order) {
+            // one extra slot holds the overflowing key until the node is split
+            super(order);
+            this.children = new LongNode[order + 1];
+        }
+
+        void insertAt(int index, long key, LongNode rightChild) {
+            System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+            System.arraycopy(children, index + 1, children, index + 2, keyCount - index);
+            keys[index] = key;
+            children[index + 1] = rightChild;
+            keyCount++;
+        }
+
+        void deleteAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, keyCount - index - 1);
+            System.arraycopy(children, index + 2, children, index + 1, keyCount - index - 1);
+            children[keyCount] = null;
+            keyCount--;
+        }
+
+        /**
+         * The middle key is kicked out : keys after it and their children move to the new right node.
+         */
+        LongInternalNode split(int midIndex) {
+            LongInternalNode newRNode = new LongInternalNode(children.length - 1);
+            int moved = keyCount - midIndex - 1;
+            System.arraycopy(keys, midIndex + 1, newRNode.keys, 0, moved);
+            System.arraycopy(children, midIndex + 1, newRNode.children, 0, moved + 1);
+            Arrays.fill(children, midIndex + 1, keyCount + 1, null);
+            newRNode.keyCount = moved;
+            keyCount = midIndex;
+            return newRNode;
+        }
+
+        @Override
+        void borrowFromLeft(LongInternalNode parent, int index) {
+            LongInternalNode lender = (LongInternalNode) parent.children[index - 1];
+            System.arraycopy(keys, 0, keys, 1, keyCount);
+            System.arraycopy(children, 0, children, 1, keyCount + 1);
+            keys[0] = parent.keys[index - 1];
+            children[0] = lender.children[lender.keyCount];
+            keyCount++;
+
+            parent.keys[index - 1] = lender.keys[lender.keyCount - 1];
+            lender.children[lender.keyCount] = null;
+            lender.keyCount--;
+        }
+
+        @Override
+        void borrowFromRight(LongInternalNode parent, int index) {
+            LongInternalNode lender = (LongInternalNode) parent.children[index + 1];
+            keys[keyCount] = parent.keys[index];
+            children[keyCount + 1] = lender.children[0];
+            keyCount++;
+
+            parent.keys[index] = lender.keys[0];
+            System.arraycopy(lender.keys, 1, lender.keys, 0, lender.keyCount - 1);
+            System.arraycopy(lender.children, 1, lender.children, 0, lender.keyCount);
+            lender.children[lender.keyCount] = null;
+            lender.keyCount--;
+        }
+
+        @Override
+        void fusionWithRight(LongInternalNode parent, int index) {
+            LongInternalNode rightSibling = (LongInternalNode) parent.children[index + 1];
+            keys[keyCount] = parent.keys[index];
+            System.arraycopy(rightSibling.keys, 0, keys, keyCount + 1, rightSibling.keyCount);
+            System.arraycopy(rightSibling.children, 0, children, keyCount + 1, rightSibling.keyCount + 1);
+            keyCount += rightSibling.keyCount + 1;
+            parent.deleteAt(index);
+        }
+    }
+
+    private static final class LongLeafNode extends LongNode {
+        final ValueLayout valueLayout;
+        /** Object[], long[] or int[] depending on the layout, System.arraycopy handles the three of them */
+        final Object values;
+        LongLeafNode leftSibling;
+        LongLeafNode rightSibling;
+
+        LongLeafNode(int order, ValueLayout valueLayout) {
+            // one extra slot holds the overflowing entry until the leaf is split
+            super(order);
+            this.valueLayout = valueLayout;
+            switch (valueLayout) {
+                case LONG:
+                    this.values = new long[order];
+                    break;
+                case INT:
+                    this.values = new int[order];
+                    break;
+                default:
+                    this.values = new Object[order];
+            }
+        }
+
+        /**
+         * Shift the entries to make room at index and write the key, the caller writes the value.
+         */
+        int openSlot(int index, long key) {
+            System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+            System.arraycopy(values, index, values, index + 1, keyCount - index);
+            keys[index] = key;
+            keyCount++;
+            return index;
+        }
+
+        void deleteAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, keyCount - index - 1);
+            System.arraycopy(values, index + 1, values, index, keyCount - index - 1);
+            keyCount--;
+            this.clearValues(keyCount, keyCount + 1);
+        }
+
+        /**
+         * The middle key is kept on the new right leaf, which is linked after this one.
+         */
+        LongLeafNode split(int midIndex) {
+            LongLeafNode newRNode = new LongLeafNode(keys.length, valueLayout);
+            int moved = keyCount - midIndex;
+            System.arraycopy(keys, midIndex, newRNode.keys, 0, moved);
+            System.arraycopy(values, midIndex, newRNode.values, 0, moved);
+            this.clearValues(midIndex, keyCount);
+            newRNode.keyCount = moved;
+            keyCount = midIndex;
+
+            newRNode.leftSibling = this;
+            newRNode.rightSibling = rightSibling;
+            if (rightSibling != null)
+                rightSibling.leftSibling = newRNode;
+            rightSibling = newRNode;
+            return newRNode;
+        }
+
+        @Override
+        void borrowFromLeft(LongInternalNode parent, int index) {
+            LongLeafNode lender = (LongLeafNode) parent.children[index - 1];
+            int last = lender.keyCount - 1;
+            this.openSlot(0, lender.keys[last]);
+            System.arraycopy(lender.values, last, values, 0, 1);
+            lender.deleteAt(last);
+            parent.keys[index - 1] = keys[0];
+        }
+
+        @Override
+        void borrowFromRight(LongInternalNode parent, int index) {
+            LongLeafNode lender = (LongLeafNode) parent.children[index + 1];
+            keys[keyCount] = lender.keys[0];
+            System.arraycopy(lender.values, 0, values, keyCount, 1);
+            keyCount++;
+            lender.deleteAt(0);
+            parent.keys[index] = lender.keys[0];
+        }
+
+        @Override
+        void fusionWithRight(LongInternalNode parent, int index) {
+            LongLeafNode rightLeaf = (LongLeafNode) parent.children[index + 1];
+            System.arraycopy(rightLeaf.keys, 0, keys, keyCount, rightLeaf.keyCount);
+            System.arraycopy(rightLeaf.values, 0, values, keyCount, rightLeaf.keyCount);
+            keyCount += rightLeaf.keyCount;
+
+            rightSibling = rightLeaf.rightSibling;
+            if (rightSibling != null)
+                rightSibling.leftSibling = this;
+            parent.deleteAt(index);
+        }
+
+        /**
+         * Object values are released so that the garbage collector can reclaim them, primitives need nothing.
+         */
+        private void clearValues(int from, int to) {
+            if (valueLayout == ValueLayout.OBJECT)
+                Arrays.fill((Object[]) values, from, to, null);
+        }
+    }
+}
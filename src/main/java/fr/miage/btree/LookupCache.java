@@ -0,0 +1,436 @@
+package fr.miage.btree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the values found by the searches of a tree, in front of its descent : the hot keys of a skewed
+ * workload are answered without reaching their leaf. Missing keys are cached too (as a null value).
+ *
+ * The cache follows W-TinyLFU :
+ * <ul>
+ *     <li>a new key enters a small LRU window (1% of the capacity), which absorbs bursts of recent keys;</li>
+ *     <li>a key leaving the window is admitted into the main SLRU cache only if it was searched more often than the key
+ *     the main cache would evict. The frequencies are estimated by a count-min sketch of 4 bits counters,
+ *     halved periodically so that the keys no longer searched are forgotten;</li>
+ *     <li>the main cache keeps the keys searched again in a protected segment (80%), the others in a probation one.</li>
+ * </ul>
+ * The keys are hashed to segments, each guarded by its own monitor.
+ *
+ * A search which missed takes a stamp of its segment before reading the tree, and caches the value it read only when
+ * no update invalidated the segment meanwhile : a value read before an update is never cached after it.
+ * Updates invalidate their keys once they are applied, before they return.
+ */
+public class LookupCache<TKey, TValue> {
+    /** Returned by {@link #get(Object)} for a key which is not cached, the cached value of a missing key is null */
+    static final Object NOT_CACHED = new Object();
+
+    private static final int MAX_SEGMENTS = 64;
+    /** Keys held by a segment at least, smaller segments would not keep enough keys to compare their frequencies */
+    private static final int MIN_SEGMENT_ENTRIES = 512;
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    /** Estimated cost of a cached entry besides its key and value : the node, its map entry and references */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    /** Size of an entry of unknown size, to size the sketch of a cache bounded in bytes */
+    private static final int AVERAGE_ENTRY_BYTES = 160;
+
+    private final long capacity;
+    private final boolean inBytes;
+    private final Segment<TKey, TValue>[] segments;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param capacity the number of keys cached, or their estimated size in bytes
+     * @param inBytes whether the capacity is in bytes
+     */
+    @SuppressWarnings("unchecked")
+    LookupCache(long capacity, boolean inBytes) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Lookup cache capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.inBytes = inBytes;
+
+        long entries = inBytes ? Math.max(1, capacity / AVERAGE_ENTRY_BYTES) : capacity;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && entries / (segmentCount * 2L) >= MIN_SEGMENT_ENTRIES)
+            segmentCount *= 2;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // the first segments take the remainder
+            long segmentCapacity = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+            long segmentEntries = entries / segmentCount + 1;
+            this.segments[i] = new Segment<>(this, segmentCapacity, (int) Math.min(segmentEntries, 1 << 24));
+        }
+    }
+
+    static <TKey, TValue> LookupCache<TKey, TValue> of(BtreeConfig config) {
+        return config.getLookupCacheCapacity() == 0 ? null
+                : new LookupCache<>(config.getLookupCacheCapacity(), config.isLookupCacheInBytes());
+    }
+
+    /**
+     * @return the cached value of the key (null for a missing key), or {@link #NOT_CACHED}
+     */
+    Object get(TKey key) {
+        int hash = spread(key.hashCode());
+        Object value = this.segmentOf(hash).get(key, hash);
+        if (value == NOT_CACHED)
+            missCount.increment();
+        else
+            hitCount.increment();
+        return value;
+    }
+
+    /**
+     * Stamp to take before the tree is searched for a key which is not cached, and to pass to {@link #put}.
+     */
+    long stamp(TKey key) {
+        return this.segmentOf(spread(key.hashCode())).invalidations;
+    }
+
+    /**
+     * Cache the value found in the tree, unless the key was invalidated since the stamp was taken.
+     */
+    void put(TKey key, TValue value, long stamp) {
+        int hash = spread(key.hashCode());
+        this.segmentOf(hash).put(key, value, hash, stamp, this.weigh(key, value));
+    }
+
+    /**
+     * Forget the key, after an update of the tree wrote it.
+     */
+    void invalidate(TKey key) {
+        this.segmentOf(spread(key.hashCode())).invalidate(key);
+    }
+
+    /**
+     * Forget every key, after the tree was replaced.
+     */
+    void clear() {
+        for (Segment<TKey, TValue> segment : segments)
+            segment.clear();
+    }
+
+    private long weigh(TKey key, TValue value) {
+        if (!inBytes)
+            return 1;
+        return ENTRY_OVERHEAD_BYTES + estimateBytes(key) + estimateBytes(value);
+    }
+
+    private static long estimateBytes(Object object) {
+        if (object == null)
+            return 0;
+        // a String is its object and its array of (at most 2 bytes) chars
+        if (object instanceof String string)
+            return 40 + 2L * string.length();
+        return BtreeConfig.estimateObjectBytes(object.getClass());
+    }
+
+    private Segment<TKey, TValue> segmentOf(int hash) {
+        // the low bits pick the counters of the sketch, the high bits the segment
+        return segments[(hash >>> 26) & (segments.length - 1)];
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /* The codes below read the statistics of the cache */
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Part of the searches answered by the cache, in [0, 1], or NaN before the first search.
+     */
+    public double getHitRate() {
+        long hits = this.getHitCount();
+        long lookups = hits + this.getMissCount();
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
+    /**
+     * Keys evicted to make room for others, or not admitted because they were searched less often.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getEntryCount() {
+        long entries = 0;
+        for (Segment<TKey, TValue> segment : segments)
+            entries += segment.entryCount();
+        return entries;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public boolean isInBytes() {
+        return inBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "LookupCache{capacity=" + capacity + (inBytes ? " bytes" : " entries") + ", entries=" + getEntryCount()
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    /**
+     * A W-TinyLFU cache of a part of the keys. The window, probation and protected lists are LRU lists, their most
+     * recently used node is next to the head.
+     */
+    private static final class Segment<TKey, TValue> {
+        private final LookupCache<TKey, TValue> cache;
+        private final long windowCapacity;
+        private final long mainCapacity;
+        private final long protectedCapacity;
+
+        private final Map<TKey, CacheNode<TKey, TValue>> nodes = new HashMap<>();
+        private final CacheNode<TKey, TValue> window = CacheNode.head();
+        private final CacheNode<TKey, TValue> probation = CacheNode.head();
+        private final CacheNode<TKey, TValue> protectedHead = CacheNode.head();
+        private long windowWeight;
+        private long probationWeight;
+        private long protectedWeight;
+
+        private final FrequencySketch sketch;
+
+        /** Incremented by each invalidation, read without the monitor by {@link LookupCache#stamp} */
+        private volatile long invalidations;
+
+        private Segment(LookupCache<TKey, TValue> cache, long capacity, int expectedEntries) {
+            this.cache = cache;
+            this.windowCapacity = Math.max(1, (long) (capacity * WINDOW_SHARE));
+            this.mainCapacity = Math.max(0, capacity - windowCapacity);
+            this.protectedCapacity = (long) (mainCapacity * PROTECTED_SHARE);
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        private synchronized Object get(TKey key, int hash) {
+            sketch.increment(hash);
+            CacheNode<TKey, TValue> node = nodes.get(key);
+            if (node == null)
+                return NOT_CACHED;
+
+            switch (node.queue) {
+                case WINDOW -> node.moveAfter(window);
+                case PROBATION -> {
+                    // searched again : the key is promoted, the least recently used protected key is demoted
+                    node.unlink();
+                    probationWeight -= node.weight;
+                    node.queue = Queue.PROTECTED;
+                    node.linkAfter(protectedHead);
+                    protectedWeight += node.weight;
+                    while (protectedWeight > protectedCapacity && protectedHead.previous != node) {
+                        CacheNode<TKey, TValue> demoted = protectedHead.previous;
+                        demoted.unlink();
+                        protectedWeight -= demoted.weight;
+                        demoted.queue = Queue.PROBATION;
+                        demoted.linkAfter(probation);
+                        probationWeight += demoted.weight;
+                    }
+                }
+                case PROTECTED -> node.moveAfter(protectedHead);
+            }
+            return node.value;
+        }
+
+        private synchronized void put(TKey key, TValue value, int hash, long stamp, long weight) {
+            // an update wrote a key of the segment since the value was read, it may be stale
+            if (invalidations != stamp || weight > windowCapacity + mainCapacity)
+                return;
+
+            CacheNode<TKey, TValue> node = nodes.get(key);
+            if (node != null) {
+                // cached by a concurrent search of the same key, which read the same value
+                return;
+            }
+            node = new CacheNode<>(key, value, hash, weight);
+            nodes.put(key, node);
+            node.queue = Queue.WINDOW;
+            node.linkAfter(window);
+            windowWeight += weight;
+            while (windowWeight > windowCapacity)
+                this.leaveWindow(window.previous);
+        }
+
+        /**
+         * The candidate leaves the window for the main cache, it takes the place of the victims of the probation
+         * segment when it was searched more often than them, otherwise it is evicted.
+         */
+        private void leaveWindow(CacheNode<TKey, TValue> candidate) {
+            candidate.unlink();
+            windowWeight -= candidate.weight;
+
+            long free = mainCapacity - probationWeight - protectedWeight;
+            int candidateFrequency = sketch.frequency(candidate.hash);
+            while (free < candidate.weight) {
+                // the least recently used probation key, or protected key once the probation segment is empty
+                CacheNode<TKey, TValue> victim = probation.previous != probation ? probation.previous : protectedHead.previous;
+                if (victim == protectedHead || candidateFrequency <= sketch.frequency(victim.hash))
+                    break;
+                free += victim.weight;
+                this.remove(victim);
+                cache.evictionCount.increment();
+            }
+
+            if (free < candidate.weight) {
+                nodes.remove(candidate.key);
+                cache.evictionCount.increment();
+                return;
+            }
+            candidate.queue = Queue.PROBATION;
+            candidate.linkAfter(probation);
+            probationWeight += candidate.weight;
+        }
+
+        private synchronized void invalidate(TKey key) {
+            invalidations++;
+            CacheNode<TKey, TValue> node = nodes.get(key);
+            if (node != null)
+                this.remove(node);
+        }
+
+        private synchronized void clear() {
+            invalidations++;
+            nodes.clear();
+            for (CacheNode<TKey, TValue> head : List.of(window, probation, protectedHead)) {
+                head.next = head;
+                head.previous = head;
+            }
+            windowWeight = 0;
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        private void remove(CacheNode<TKey, TValue> node) {
+            nodes.remove(node.key);
+            node.unlink();
+            switch (node.queue) {
+                case WINDOW -> windowWeight -= node.weight;
+                case PROBATION -> probationWeight -= node.weight;
+                case PROTECTED -> protectedWeight -= node.weight;
+            }
+        }
+
+        private synchronized int entryCount() {
+            return nodes.size();
+        }
+    }
+
+    private enum Queue {WINDOW, PROBATION, PROTECTED}
+
+    /**
+     * A cached key, in a circular doubly linked list whose head is a sentinel node.
+     */
+    private static final class CacheNode<TKey, TValue> {
+        private final TKey key;
+        private final TValue value;
+        private final int hash;
+        private final long weight;
+        private Queue queue;
+        private CacheNode<TKey, TValue> previous = this;
+        private CacheNode<TKey, TValue> next = this;
+
+        private CacheNode(TKey key, TValue value, int hash, long weight) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+            this.weight = weight;
+        }
+
+        private static <TKey, TValue> CacheNode<TKey, TValue> head() {
+            return new CacheNode<>(null, null, 0, 0);
+        }
+
+        private void linkAfter(CacheNode<TKey, TValue> head) {
+            this.previous = head;
+            this.next = head.next;
+            head.next.previous = this;
+            head.next = this;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+        private void moveAfter(CacheNode<TKey, TValue> head) {
+            this.unlink();
+            this.linkAfter(head);
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bits counters, 16 to a long : the estimated frequency of a key is the lowest of its
+     * 4 counters. Once the sketch counted 10 times as many searches as it has keys, every counter is halved.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int expectedEntries) {
+            // a long of 16 counters per key, rounded up to a power of two
+            this.table = new long[Integer.highestOneBit(Math.max(16, expectedEntries - 1) * 2)];
+            this.counterMask = table.length * 16 - 1;
+            this.sampleSize = 10 * Math.max(16, expectedEntries);
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int counter = this.counterOf(hash, row);
+                int shift = (counter & 15) << 2;
+                long word = table[counter >>> 4];
+                if (((word >>> shift) & 15) < 15) {
+                    table[counter >>> 4] = word + (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                this.reset();
+        }
+
+        private int frequency(int hash) {
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int counter = this.counterOf(hash, row);
+                frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 15));
+            }
+            return frequency;
+        }
+
+        private int counterOf(int hash, int row) {
+            long mixed = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (mixed ^ (mixed >>> 32)) & counterMask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions /= 2;
+        }
+    }
+}
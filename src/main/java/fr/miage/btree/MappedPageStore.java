@@ -0,0 +1,147 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages of a file mapped in memory with {@link FileChannel#map}.
+ * The file is mapped by segments of several pages, a new segment is mapped (and the file grown) when pages run out.
+ * Reads and writes go straight to the mapping, the operating system loads and writes back the pages :
+ * opening a store reads nothing but its first page.
+ */
+public class MappedPageStore implements PageStore {
+    private static final int PAGES_PER_SEGMENT = 1024;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final ByteBuffer meta;
+
+    private int pageCount;
+    private int freeListHead;
+
+    /**
+     * Open the store saved in a file, or create it when the file is missing or empty.
+     * @param pageSize the size of the pages of a new store, it must match the one of an existing store
+     */
+    public static MappedPageStore open(Path file, int pageSize) throws IOException {
+        return new MappedPageStore(FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), pageSize);
+    }
+
+    private MappedPageStore(FileChannel channel, int pageSize) throws IOException {
+        PageFileHeader.checkPageSize(pageSize);
+        this.channel = channel;
+        this.pageSize = pageSize;
+
+        boolean created = channel.size() == 0;
+        this.meta = this.page(0);
+        if (created) {
+            PageFileHeader.initialize(this.meta, pageSize);
+        }
+        else {
+            try {
+                PageFileHeader.validate(this.meta, pageSize);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        this.pageCount = this.meta.getInt(PageFileHeader.PAGE_COUNT_OFFSET);
+        this.freeListHead = this.meta.getInt(PageFileHeader.FREE_LIST_OFFSET);
+
+        // map every used page now, readers never have to map a segment
+        this.segment((pageCount - 1) / PAGES_PER_SEGMENT);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * The mapping is the cache : a pinned page is a view on it, there is nothing to release.
+     */
+    @Override
+    public ByteBuffer pin(int pageId) {
+        return this.page(pageId);
+    }
+
+    @Override
+    public void unpin(int pageId, boolean dirty) {
+    }
+
+    private ByteBuffer page(int pageId) {
+        int segmentIndex = pageId / PAGES_PER_SEGMENT;
+        MappedByteBuffer segment = this.segment(segmentIndex);
+        return segment.slice((pageId % PAGES_PER_SEGMENT) * pageSize, pageSize);
+    }
+
+    private MappedByteBuffer segment(int segmentIndex) {
+        while (segments.size() <= segmentIndex) {
+            long segmentBytes = (long) PAGES_PER_SEGMENT * pageSize;
+            try {
+                // mapping past the end of the file grows it
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentBytes, segmentBytes));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Can not map the page file", e);
+            }
+        }
+        return segments.get(segmentIndex);
+    }
+
+    @Override
+    public int allocatePage() {
+        int pageId;
+        if (freeListHead != NO_PAGE) {
+            // a free page holds the number of the next free page
+            pageId = freeListHead;
+            freeListHead = this.page(pageId).getInt(0);
+            meta.putInt(PageFileHeader.FREE_LIST_OFFSET, freeListHead);
+        }
+        else {
+            pageId = pageCount++;
+            meta.putInt(PageFileHeader.PAGE_COUNT_OFFSET, pageCount);
+            this.segment(pageId / PAGES_PER_SEGMENT);
+        }
+        return pageId;
+    }
+
+    @Override
+    public void freePage(int pageId) {
+        this.page(pageId).putInt(0, freeListHead);
+        freeListHead = pageId;
+        meta.putInt(PageFileHeader.FREE_LIST_OFFSET, freeListHead);
+    }
+
+    @Override
+    public int getRootPageId() {
+        return meta.getInt(PageFileHeader.ROOT_OFFSET);
+    }
+
+    @Override
+    public void setRootPageId(int pageId) {
+        meta.putInt(PageFileHeader.ROOT_OFFSET, pageId);
+    }
+
+    @Override
+    public void flush() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flush();
+        segments.clear();
+        channel.close();
+    }
+}
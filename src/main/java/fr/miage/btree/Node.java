@@ -3,9 +3,9 @@ package fr.miage.btree;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.annotation.JsonView;
-import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "nodeType")
@@ -14,35 +14,82 @@ import java.util.List;
         @JsonSubTypes.Type(value = LeafNode.class, name = "LeafNode")
 })
 public abstract class Node<TKey extends Comparable<TKey>> {
-    protected final static int INNER_ORDER = 5;
-    @JsonView(Views.Public.class)
-    protected List<TKey> keys;
+    /** Fixed-capacity key storage sized to the node order, only the first keyCount slots are used */
+    protected Object[] keys;
+    protected int keyCount;
+    protected BtreeConfig config;
     protected Node<TKey> parentNode;
     protected Node<TKey> leftSibling;
     protected Node<TKey> rightSibling;
+    /**
+     * Epoch of the tree when the node was created or copied. A node older than the tree may be shared
+     * with a snapshot : its keys, values and children must not change, it is copied first.
+     * The parent and sibling links are only followed by the live tree, they are updated in place.
+     */
+    protected long epoch;
 
-    protected Node() {
-        this.keys = new ArrayList<TKey>();
+    protected Node(BtreeConfig config) {
+        this.config = config;
+        // one extra slot holds the overflowing key until the node is split
+        this.keys = new Object[this.getOrder()];
+        this.keyCount = 0;
         this.parentNode = null;
         this.leftSibling = null;
         this.rightSibling = null;
     }
 
     public int getKeyCount() {
-        return this.keys.size();
+        return this.keyCount;
     }
 
     @SuppressWarnings("unchecked")
     public TKey getKey(int index) {
-        return (TKey)this.keys.get(index);
+        return (TKey)this.keys[index];
+    }
+
+    /**
+     * Read-only view of the keys, used by the JSON serialization.
+     */
+    @JsonView(Views.Public.class)
+    @SuppressWarnings("unchecked")
+    public List<TKey> getKeys() {
+        return (List<TKey>) (List<?>) Collections.unmodifiableList(Arrays.asList(this.keys).subList(0, this.keyCount));
     }
 
     public void addKey(TKey key) {
-        this.keys.add(key);
+        this.ensureCapacity(this.keyCount + 1);
+        this.keys[this.keyCount++] = key;
     }
 
     public void setKey(int index, TKey key) {
-        this.keys.add(index,key);
+        this.keys[index] = key;
+    }
+
+    /**
+     * Shift the keys after index to the right and write the key at index.
+     */
+    protected void insertKeyAt(int index, TKey key) {
+        this.ensureCapacity(this.keyCount + 1);
+        System.arraycopy(this.keys, index, this.keys, index + 1, this.keyCount - index);
+        this.keys[index] = key;
+        this.keyCount++;
+    }
+
+    /**
+     * Shift the keys after index to the left, overwriting the key at index.
+     */
+    protected void removeKeyAt(int index) {
+        System.arraycopy(this.keys, index + 1, this.keys, index, this.keyCount - index - 1);
+        this.keys[--this.keyCount] = null;
+    }
+
+    /**
+     * Nodes never grow past their order on the insertion path,
+     * only nodes built from an import with a larger order need to grow.
+     */
+    protected void ensureCapacity(int keyCapacity) {
+        if (keyCapacity > this.keys.length)
+            this.keys = Arrays.copyOf(this.keys, Math.max(keyCapacity, this.keys.length * 2));
     }
 
     public Node<TKey> getParent() {
@@ -64,26 +111,65 @@ public abstract class Node<TKey extends Comparable<TKey>> {
      */
     public abstract int search(TKey key);
 
+    /**
+     * Binary search of the index of the first key greater than or equal to the given key.
+     */
+    protected int lowerBound(TKey key) {
+        return KeySearch.lowerBound(this.keys, this.getKeyCount(), key);
+    }
+
+    /**
+     * Binary search of the index of the first key strictly greater than the given key.
+     */
+    protected int upperBound(TKey key) {
+        return KeySearch.upperBound(this.keys, this.getKeyCount(), key);
+    }
+
+
+    /**
+     * The maximum number of children of this node, a node holds at most (order - 1) keys.
+     */
+    protected abstract int getOrder();
+
+    /**
+     * The minimum number of keys of a non root node, chosen so that the fusion of an underflowing node
+     * with a sibling which can not lend a key always fits in a single node.
+     */
+    protected int getMinKeyCount() {
+        return (this.getOrder() - 1) / 2;
+    }
 
     public int getMiddleIndex() {
-        return (INNER_ORDER - 1) / 2;
+        return this.getMinKeyCount();
     }
 
     /* The codes below are used to support insertion operation */
 
     public boolean isOverflow() {
-        return this.getKeyCount() > INNER_ORDER-1;
+        return this.getKeyCount() > this.getOrder() - 1;
+    }
+
+    public Node<TKey> dealOverflow(BtreeStatistics statistics) {
+        return this.dealOverflow(this.getMiddleIndex(), statistics);
     }
 
-    public Node<TKey> dealOverflow() {
-        int midIndex = getMiddleIndex();
-        TKey upKey = this.getKey(midIndex);
+    /**
+     * Split the node at the given index and push up the key at this index, see {@link #split(int)}.
+     * @param statistics counts the splits, up to the root
+     * @return the new root if the root was split, null otherwise
+     */
+    Node<TKey> dealOverflow(int splitIndex, BtreeStatistics statistics) {
+        TKey upKey = this.separatorAt(splitIndex);
 
-        Node<TKey> newRNode = this.split();
+        Node<TKey> newRNode = this.split(splitIndex);
+        statistics.nodeSplit(this.getNodeType() == NodeType.LeafNode);
 
         // connect new sub-tree if new root is defined
         if (this.getParent() == null) {
-            this.setParent(new InternalNode<TKey>());
+            InternalNode<TKey> newRoot = new InternalNode<TKey>(this.config);
+            newRoot.epoch = this.epoch;
+            this.setParent(newRoot);
+            statistics.rootSplit();
         }
 
         // attach new right node to parent
@@ -91,31 +177,75 @@ public abstract class Node<TKey extends Comparable<TKey>> {
 
         // maintain links of sibling nodes
         newRNode.setLeftSibling(this);
-        if (this.getRightSibling() != null) {
+        if (this.rightSibling != null) {
             newRNode.setRightSibling(this.rightSibling);
-            this.getRightSibling().setLeftSibling(newRNode);
+            this.rightSibling.setLeftSibling(newRNode);
         }
         this.setRightSibling(newRNode);
 
         // push up a key to parent internal node
-        return this.getParent().pushUpKey(upKey, this, newRNode);
+        return this.getParent().pushUpKey(upKey, this, newRNode, statistics);
     }
 
-    protected abstract Node<TKey> split();
+    /**
+     * Key pushed up to the parent when the node is split at the given index.
+     */
+    protected TKey separatorAt(int splitIndex) {
+        return this.getKey(splitIndex);
+    }
 
-    protected abstract Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode);
+    /**
+     * Move the keys after the split index (and the one at this index for a leaf) to a new right node.
+     */
+    protected abstract Node<TKey> split(int splitIndex);
+
+    /**
+     * Give back the room of a node which grew past its order, once it was split.
+     */
+    protected void trimToOrder() {
+        if (this.keys.length > this.getOrder() && this.keyCount <= this.getOrder())
+            this.keys = Arrays.copyOf(this.keys, this.getOrder());
+    }
+
+    /**
+     * Node with the same keys and content (values or children), without any link.
+     */
+    protected abstract Node<TKey> copy();
+
+    /**
+     * Copy of this node which takes its place in the live tree : the neighbours are linked to the copy,
+     * the parent has to point to it too. The node itself is left untouched for the snapshots sharing it.
+     */
+    Node<TKey> privateCopy(long epoch) {
+        Node<TKey> copy = this.copy();
+        copy.epoch = epoch;
+        copy.parentNode = this.parentNode;
+        copy.leftSibling = this.leftSibling;
+        copy.rightSibling = this.rightSibling;
+        if (this.leftSibling != null)
+            this.leftSibling.rightSibling = copy;
+        if (this.rightSibling != null)
+            this.rightSibling.leftSibling = copy;
+        return copy;
+    }
+
+    protected abstract Node<TKey> pushUpKey(TKey key, Node<TKey> leftChild, Node<TKey> rightNode, BtreeStatistics statistics);
 
 
     /* The codes below are used to support deletion operation */
 
     public boolean isUnderflow() {
-        return this.getKeyCount() < (INNER_ORDER / 2);
+        return this.getKeyCount() < this.getMinKeyCount();
     }
 
     public boolean canLendAKey() {
-        return this.getKeyCount() > (INNER_ORDER / 2);
+        return this.getKeyCount() > this.getMinKeyCount();
     }
 
+    /**
+     * Left sibling sharing the same parent, the only one a node can borrow from or merge with.
+     * Use the raw leftSibling link to walk a whole level.
+     */
     public Node<TKey> getLeftSibling() {
         if (this.leftSibling != null && this.leftSibling.getParent() == this.getParent())
             return this.leftSibling;
@@ -126,6 +256,9 @@ public abstract class Node<TKey extends Comparable<TKey>> {
         this.leftSibling = sibling;
     }
 
+    /**
+     * Right sibling sharing the same parent, see {@link #getLeftSibling()}.
+     */
     public Node<TKey> getRightSibling() {
         if (this.rightSibling != null && this.rightSibling.getParent() == this.getParent())
             return this.rightSibling;
@@ -136,36 +269,44 @@ public abstract class Node<TKey extends Comparable<TKey>> {
         this.rightSibling = silbling;
     }
 
-    public Node<TKey> dealUnderflow() {
+    public Node<TKey> dealUnderflow(BtreeStatistics statistics) {
         if (this.getParent() == null)
             return null;
 
+        // the sibling which lends or absorbs keys may still be shared with a snapshot
+        InternalNode<TKey> parent = (InternalNode<TKey>) this.getParent();
+
         // try to borrow a key from sibling
         Node<TKey> leftSibling = this.getLeftSibling();
         if (leftSibling != null && leftSibling.canLendAKey()) {
-            this.getParent().processChildrenTransfer(this, leftSibling, leftSibling.getKeyCount() - 1);
+            leftSibling = parent.privateChild(leftSibling);
+            parent.processChildrenTransfer(this, leftSibling, leftSibling.getKeyCount() - 1);
+            statistics.keyBorrowed();
             return null;
         }
 
         Node<TKey> rightSibling = this.getRightSibling();
         if (rightSibling != null && rightSibling.canLendAKey()) {
-            this.getParent().processChildrenTransfer(this, rightSibling, 0);
+            rightSibling = parent.privateChild(rightSibling);
+            parent.processChildrenTransfer(this, rightSibling, 0);
+            statistics.keyBorrowed();
             return null;
         }
 
         // Can not borrow a key from any sibling, then do fusion with sibling
+        statistics.nodesMerged(this.getNodeType() == NodeType.LeafNode);
         if (leftSibling != null) {
-            return this.getParent().processChildrenFusion(leftSibling, this);
+            return parent.processChildrenFusion(parent.privateChild(leftSibling), this, statistics);
         }
         else {
-            return this.getParent().processChildrenFusion(this, rightSibling);
+            return parent.processChildrenFusion(this, rightSibling, statistics);
         }
     }
 
 
     protected abstract void processChildrenTransfer(Node<TKey> borrower, Node<TKey> lender, int borrowIndex);
 
-    protected abstract Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild);
+    protected abstract Node<TKey> processChildrenFusion(Node<TKey> leftChild, Node<TKey> rightChild, BtreeStatistics statistics);
 
     protected abstract void fusionWithSibling(TKey sinkKey, Node<TKey> rightSibling);
 
@@ -0,0 +1,116 @@
+package fr.miage.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of the keys or the values of a {@link PagedBtree} inside a page.
+ * Encoded values are self-delimiting : their length can be read back from the page.
+ * All positions are absolute, the position of the buffer is never used.
+ */
+public interface PageCodec<T> {
+
+    /**
+     * Number of bytes the value takes once encoded.
+     */
+    int size(T value);
+
+    void write(ByteBuffer buffer, int offset, T value);
+
+    T read(ByteBuffer buffer, int offset);
+
+    /**
+     * Number of bytes of the value encoded at offset, to step over it without decoding it.
+     */
+    int length(ByteBuffer buffer, int offset);
+
+    /** Strings as their UTF-8 bytes, prefixed by their length on 2 bytes */
+    PageCodec<String> STRING = new PageCodec<>() {
+        @Override
+        public int size(String value) {
+            int bytes = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80)
+                    bytes += 1;
+                else if (c < 0x800)
+                    bytes += 2;
+                else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                }
+                else
+                    bytes += 3;
+            }
+            return 2 + bytes;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > Character.MAX_VALUE)
+                throw new IllegalArgumentException("String too long for a page: " + bytes.length + " bytes");
+            buffer.putChar(offset, (char) bytes.length);
+            buffer.put(offset + 2, bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer buffer, int offset) {
+            // a heap buffer is decoded in place, without copying its bytes first
+            if (buffer.hasArray())
+                return new String(buffer.array(), buffer.arrayOffset() + offset + 2, buffer.getChar(offset), StandardCharsets.UTF_8);
+            byte[] bytes = new byte[buffer.getChar(offset)];
+            buffer.get(offset + 2, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int length(ByteBuffer buffer, int offset) {
+            return 2 + buffer.getChar(offset);
+        }
+    };
+
+    PageCodec<Long> LONG = new PageCodec<>() {
+        @Override
+        public int size(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Long value) {
+            buffer.putLong(offset, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int offset) {
+            return buffer.getLong(offset);
+        }
+
+        @Override
+        public int length(ByteBuffer buffer, int offset) {
+            return Long.BYTES;
+        }
+    };
+
+    PageCodec<Integer> INTEGER = new PageCodec<>() {
+        @Override
+        public int size(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Integer value) {
+            buffer.putInt(offset, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int offset) {
+            return buffer.getInt(offset);
+        }
+
+        @Override
+        public int length(ByteBuffer buffer, int offset) {
+            return Integer.BYTES;
+        }
+    };
+}
@@ -0,0 +1,48 @@
+package fr.miage.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the metadata page (page 0) of a page file, shared by the stores reading and writing page files.
+ */
+final class PageFileHeader {
+    private static final int MAGIC = 0x42505431; // "BPT1"
+    /** 2 : internal pages hold the entry counts of their children */
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int PAGE_SIZE_OFFSET = 8;
+    static final int PAGE_COUNT_OFFSET = 12;
+    static final int FREE_LIST_OFFSET = 16;
+    static final int ROOT_OFFSET = 20;
+
+    private PageFileHeader() {
+    }
+
+    static void checkPageSize(int pageSize) {
+        if (pageSize < PagedBtree.MIN_PAGE_SIZE || pageSize > PagedBtree.MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("Page size must be a power of 2 between " + PagedBtree.MIN_PAGE_SIZE
+                    + " and " + PagedBtree.MAX_PAGE_SIZE + ": " + pageSize);
+    }
+
+    /**
+     * Metadata of an empty file : only page 0 is used, there is no root.
+     */
+    static void initialize(ByteBuffer meta, int pageSize) {
+        meta.putInt(MAGIC_OFFSET, MAGIC);
+        meta.putInt(VERSION_OFFSET, VERSION);
+        meta.putInt(PAGE_SIZE_OFFSET, pageSize);
+        meta.putInt(PAGE_COUNT_OFFSET, 1);
+        meta.putInt(FREE_LIST_OFFSET, PageStore.NO_PAGE);
+        meta.putInt(ROOT_OFFSET, PageStore.NO_PAGE);
+    }
+
+    static void validate(ByteBuffer meta, int pageSize) throws IOException {
+        if (meta.getInt(MAGIC_OFFSET) != MAGIC || meta.getInt(VERSION_OFFSET) != VERSION)
+            throw new IOException("Not a page file, or written by another version");
+        if (meta.getInt(PAGE_SIZE_OFFSET) != pageSize)
+            throw new IOException("The file has pages of " + meta.getInt(PAGE_SIZE_OFFSET) + " bytes, not " + pageSize);
+    }
+}
@@ -0,0 +1,44 @@
+package fr.miage.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size pages identified by their number, the storage of a {@link PagedBtree}.
+ * Page 0 holds the metadata of the store, it is never handed out.
+ */
+public interface PageStore extends Closeable {
+    /** Page number used for "no page" : no root yet, no next leaf, end of the free list */
+    int NO_PAGE = -1;
+
+    int getPageSize();
+
+    /**
+     * The bytes of a page, from position 0 to getPageSize() excluded. The buffer stays valid until the page is unpinned,
+     * each pin must be followed by exactly one unpin.
+     */
+    ByteBuffer pin(int pageId);
+
+    /**
+     * Release a pinned page.
+     * @param dirty true if the buffer was written to, the page is then written back to the storage
+     */
+    void unpin(int pageId, boolean dirty);
+
+    /**
+     * A page to write a new node to, reused from the freed pages when there are some.
+     */
+    int allocatePage();
+
+    void freePage(int pageId);
+
+    int getRootPageId();
+
+    void setRootPageId(int pageId);
+
+    /**
+     * Write the modified pages to the disk.
+     */
+    void flush() throws IOException;
+}
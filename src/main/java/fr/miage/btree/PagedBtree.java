@@ -0,0 +1,1381 @@
+package fr.miage.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * B+ tree whose nodes are fixed-size pages of a {@link PageStore} (a memory-mapped file for instance) instead of
+ * objects on the heap. Child pointers are page numbers, keys and values are encoded with a {@link PageCodec}.
+ *
+ * A page is a slotted page : a header, the offset of each entry in key order growing from the header,
+ * and the entries growing from the end of the page. Lookups binary search the offsets and decode only the keys
+ * they compare. An internal page keeps the entry count of each child next to its page number, as the internal nodes
+ * of {@link Btree} : ranks and positions are found in a single descent.
+ * Inserts and deletes in a leaf update the page in place when the entry fits in the free space,
+ * other updates decode the node, change it and write it back compacted.
+ * Nodes are split when their entries no longer fit in a page, and merged with a sibling when they are less than
+ * a quarter full and the merge fits in a page (a node which can not be merged stays underfull, there is no
+ * redistribution between siblings).
+ *
+ * Pages are pinned while they are read or written, so that the store may cache a bounded number of them
+ * (see {@link BufferPool}) : a descent pins a child before it unpins its parent.
+ * With leaf filters (see {@link #setLeafFilters(double)}), a search for a missing key usually stops at the parent
+ * of its leaf, without reading the leaf page.
+ *
+ * Duplicated keys are allowed, a new duplicate goes before the existing ones as in {@link Btree}. The updates of a key
+ * (put, compute...) find its entry in a single descent, a value of the same size is overwritten in its page.
+ * Operations are thread-safe : lookups share a lock, updates take it exclusively. Cursors read one leaf at a time
+ * and fail with a ConcurrentModificationException if the tree is updated meanwhile.
+ */
+public class PagedBtree<TKey extends Comparable<TKey>, TValue> extends Btree<TKey, TValue> implements Closeable {
+    public static final int DEFAULT_PAGE_SIZE = 8192;
+    public static final int MIN_PAGE_SIZE = 512;
+    /** Entry offsets are stored on 2 bytes */
+    public static final int MAX_PAGE_SIZE = 65536;
+
+    // layout of a node page
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int TYPE_OFFSET = 0;
+    private static final int COUNT_OFFSET = 2;
+    /** Next leaf of a leaf, first child of an internal node */
+    private static final int NEXT_OFFSET = 4;
+    private static final int PREVIOUS_OFFSET = 8;
+    /** Start of the entries, the free space is between the offsets and the entries */
+    private static final int FREE_END_OFFSET = 12;
+    /** Bytes taken by the header, the offsets and the live entries : the bytes of deleted entries are not counted */
+    private static final int USED_BYTES_OFFSET = 16;
+    /** Entry count of the first child of an internal node, the counts of the others follow their page numbers */
+    private static final int FIRST_CHILD_ENTRIES_OFFSET = 20;
+    private static final int HEADER_BYTES = 28;
+    private static final int SLOT_BYTES = 2;
+    private static final int CHILD_BYTES = 4;
+    private static final int ENTRY_COUNT_BYTES = 8;
+
+    private final PageStore store;
+    private final PageCodec<TKey> keyCodec;
+    private final PageCodec<TValue> valueCodec;
+    /** An entry can take at most a quarter of a page, so that a split always leaves two valid halves */
+    private final int maxEntryBytes;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Incremented by each update, checked by cursors */
+    private int modCount;
+
+    // path of the last descent of an update : pages and the index of the child taken in each of them
+    private int[] pathPages = new int[8];
+    private int[] pathIndexes = new int[8];
+    private int pathDepth;
+
+    /** Bloom filters of the keys of the leaves, null when the tree has none */
+    private LeafFilters leafFilters;
+
+    public PagedBtree(PageStore store, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) {
+        super(BtreeConfig.defaults());
+        this.store = store;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.maxEntryBytes = (store.getPageSize() - HEADER_BYTES) / 4;
+
+        if (store.getRootPageId() == PageStore.NO_PAGE) {
+            int rootPageId = store.allocatePage();
+            this.write(rootPageId, new PageNode<>(true));
+            store.setRootPageId(rootPageId);
+        }
+        this.recountStatistics();
+    }
+
+    /**
+     * Open the tree saved in a page file, or create an empty one.
+     * The codecs must be the ones the tree was written with.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> PagedBtree<TKey, TValue> open(
+            Path file, int pageSize, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) throws IOException {
+        return new PagedBtree<>(MappedPageStore.open(file, pageSize), keyCodec, valueCodec);
+    }
+
+    /**
+     * Open the tree saved in a page file, read and written through a buffer pool : only the pages cached
+     * by the pool are in memory. Internal pages are kept in the pool longer than leaves.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> PagedBtree<TKey, TValue> open(
+            Path file, BufferPool pool, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec) throws IOException {
+        PageStore store = pool.attach(FilePageStore.open(file, pool.getPageSize()), PagedBtree::isInternalPage);
+        return new PagedBtree<>(store, keyCodec, valueCodec);
+    }
+
+    /**
+     * Whether a page holds an internal node, which a buffer pool should keep hot.
+     */
+    static boolean isInternalPage(ByteBuffer page) {
+        return page.get(TYPE_OFFSET) == INTERNAL;
+    }
+
+    /**
+     * Keep a Bloom filter of the keys of each leaf on the heap, about 20 bits per key for a 1% false positive rate
+     * (a filter has room for twice the keys of its leaf).
+     * The filters are built as the leaves are searched.
+     * @param falsePositiveRate the part of the searches of a missing key which still read its leaf, in ]0, 1[,
+     *                          or 0 to drop the filters
+     */
+    public void setLeafFilters(double falsePositiveRate) {
+        LeafFilters leafFilters = falsePositiveRate == 0 ? null : new LeafFilters(falsePositiveRate);
+        lock.writeLock().lock();
+        try {
+            this.leafFilters = leafFilters;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the leaf filters and their statistics, or null when the tree has none
+     */
+    public LeafFilters getLeafFilters() {
+        return leafFilters;
+    }
+
+    /**
+     * The pages are counted level by level when the tree is opened, only their headers are read.
+     */
+    @Override
+    BtreeStatistics countStatistics() {
+        long entries = 0;
+        long nodes = 0;
+        long leaves = 0;
+        int height = 0;
+        List<Integer> level = List.of(store.getRootPageId());
+        while (!level.isEmpty()) {
+            height++;
+            List<Integer> nextLevel = new ArrayList<>();
+            for (int pageId : level) {
+                ByteBuffer page = store.pin(pageId);
+                try {
+                    nodes++;
+                    if (page.get(TYPE_OFFSET) == INTERNAL) {
+                        for (int i = 0; i <= count(page); i++)
+                            nextLevel.add(this.child(page, i));
+                    }
+                    else {
+                        leaves++;
+                        entries += count(page);
+                    }
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+            }
+            level = nextLevel;
+        }
+        // leaves hold as many entries as fit in their bytes, their fill in keys is not known
+        return new BtreeStatistics(0, entries, nodes, leaves, height);
+    }
+
+    /* The codes below are used to support search operation */
+
+    @Override
+    TValue find(TKey key) {
+        lock.readLock().lock();
+        try {
+            LeafFilters leafFilters = this.leafFilters;
+            // the page and index of the nearest separator on the right of the path, the upper fence of the leaf
+            int fencePageId = PageStore.NO_PAGE;
+            int fenceIndex = 0;
+            int pageId = store.getRootPageId();
+            ByteBuffer page = store.pin(pageId);
+            try {
+                while (page.get(TYPE_OFFSET) == INTERNAL) {
+                    int childIndex = this.lowerBound(page, key);
+                    if (childIndex < count(page)) {
+                        fencePageId = pageId;
+                        fenceIndex = childIndex;
+                    }
+                    int childPageId = this.child(page, childIndex);
+                    if (leafFilters != null && !leafFilters.mayContain(childPageId, key)
+                            && !this.isFence(fencePageId, fenceIndex, pageId, page, key)) {
+                        leafFilters.skipped();
+                        return null;
+                    }
+                    ByteBuffer childPage = store.pin(childPageId);
+                    store.unpin(pageId, false);
+                    pageId = childPageId;
+                    page = childPage;
+                }
+
+                int leafPageId = pageId;
+                boolean filtered = leafFilters != null && leafFilters.hasFilter(pageId);
+                if (leafFilters != null && !filtered)
+                    leafFilters.build(pageId, this.keys(page));
+
+                // the leftmost leaf which may hold the key was reached, the first one may start the next leaf
+                int index = this.lowerBound(page, key);
+                if (index == count(page)) {
+                    int nextPageId = page.getInt(NEXT_OFFSET);
+                    if (nextPageId == PageStore.NO_PAGE) {
+                        this.countFalsePositive(filtered, leafPageId, key);
+                        return null;
+                    }
+                    ByteBuffer nextPage = store.pin(nextPageId);
+                    store.unpin(pageId, false);
+                    pageId = nextPageId;
+                    page = nextPage;
+                    index = 0;
+                }
+                if (index < count(page) && this.key(page, index).compareTo(key) == 0)
+                    return this.value(page, index);
+                this.countFalsePositive(filtered, leafPageId, key);
+                return null;
+            }
+            finally {
+                store.unpin(pageId, false);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A missing key was searched in a leaf whose filter held the key, not in a leaf read because the key is its fence.
+     */
+    private void countFalsePositive(boolean filtered, int leafPageId, TKey key) {
+        if (filtered && leafFilters.mayContain(leafPageId, key))
+            leafFilters.falsePositive();
+    }
+
+    /**
+     * Whether the key is the upper fence of the leaf : it may then be the first key of the next leaf,
+     * which the filter of the leaf does not hold. The keys of the next leaf are greater than or equal to the fence.
+     * @param page the pinned parent of the leaf
+     */
+    private boolean isFence(int fencePageId, int fenceIndex, int parentPageId, ByteBuffer page, TKey key) {
+        if (fencePageId == PageStore.NO_PAGE)
+            return false;
+        if (fencePageId == parentPageId)
+            return this.key(page, fenceIndex).compareTo(key) == 0;
+        // an ancestor, internal pages are the ones a buffer pool keeps
+        ByteBuffer fencePage = store.pin(fencePageId);
+        try {
+            return this.key(fencePage, fenceIndex).compareTo(key) == 0;
+        }
+        finally {
+            store.unpin(fencePageId, false);
+        }
+    }
+
+    /**
+     * The keys are searched in key order : the pages of the path to a leaf are found again in the cache
+     * (or the memory map) by the following keys.
+     */
+    @Override
+    public List<TValue> searchAll(Collection<TKey> keys) {
+        List<TKey> batch = new ArrayList<>(keys);
+        List<TValue> values = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        lock.readLock().lock();
+        try {
+            for (int index : sortedIndexes(batch, false))
+                values.set(index, this.find(batch.get(index)));
+            return values;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* The codes below are used to support insertion operation */
+
+    @Override
+    public void insert(TKey key, TValue value) {
+        long start = this.startTiming();
+        this.insertEntry(key, value);
+        this.recordLatency(LatencyRecorder.Operation.INSERT, start);
+    }
+
+    private void insertEntry(TKey key, TValue value) {
+        this.checkEntrySize(key, value);
+        lock.writeLock().lock();
+        try {
+            this.insertIntoLeafPage(this.descend(key, true), key, value);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkEntrySize(TKey key, TValue value) {
+        // the key is also copied to internal nodes, next to a child page number and its entry count
+        int largestEntryBytes = SLOT_BYTES + keyCodec.size(key) + Math.max(valueCodec.size(value), CHILD_BYTES + ENTRY_COUNT_BYTES);
+        if (largestEntryBytes > maxEntryBytes)
+            throw new IllegalArgumentException("Entry of " + largestEntryBytes + " bytes, a page of " + store.getPageSize()
+                    + " bytes holds entries of at most " + maxEntryBytes + " bytes");
+    }
+
+    /**
+     * Insert an entry into the leaf page at the end of the path, before the entries of the same key.
+     */
+    private void insertIntoLeafPage(int leafPageId, TKey key, TValue value) {
+        modCount++;
+        this.getStatistics().entriesAdded(1);
+        this.addToPathEntries(1);
+        ByteBuffer page = store.pin(leafPageId);
+        int index;
+        boolean inserted = false;
+        try {
+            index = this.lowerBound(page, key);
+            inserted = this.insertInPlace(page, index, key, value);
+            if (inserted && leafFilters != null)
+                leafFilters.added(leafPageId, key);
+        }
+        finally {
+            store.unpin(leafPageId, inserted);
+        }
+        if (inserted)
+            return;
+
+        // otherwise the leaf is written back compacted, or split
+        PageNode<TKey, TValue> leaf = this.read(leafPageId);
+        leaf.keys.add(index, key);
+        leaf.values.add(index, value);
+        if (this.size(leaf) <= store.getPageSize()) {
+            this.write(leafPageId, leaf);
+            return;
+        }
+        this.splitLeaf(leafPageId, leaf);
+    }
+
+    /**
+     * Insert an entry in the free space of a leaf page, false if it does not fit.
+     */
+    private boolean insertInPlace(ByteBuffer page, int index, TKey key, TValue value) {
+        int count = count(page);
+        int keyBytes = keyCodec.size(key);
+        int entryBytes = keyBytes + valueCodec.size(value);
+        int freeEnd = page.getInt(FREE_END_OFFSET);
+        if (freeEnd - slotOffset(count + 1) < entryBytes)
+            return false;
+
+        freeEnd -= entryBytes;
+        keyCodec.write(page, freeEnd, key);
+        valueCodec.write(page, freeEnd + keyBytes, value);
+        for (int i = count; i > index; i--)
+            page.putChar(slotOffset(i), page.getChar(slotOffset(i - 1)));
+        page.putChar(slotOffset(index), (char) freeEnd);
+        page.putChar(COUNT_OFFSET, (char) (count + 1));
+        page.putInt(FREE_END_OFFSET, freeEnd);
+        page.putInt(USED_BYTES_OFFSET, page.getInt(USED_BYTES_OFFSET) + SLOT_BYTES + entryBytes);
+        return true;
+    }
+
+    private void splitLeaf(int leafPageId, PageNode<TKey, TValue> leaf) {
+        int splitIndex = this.splitIndex(leaf, 1, leaf.keys.size() - 1);
+
+        PageNode<TKey, TValue> right = new PageNode<>(true);
+        right.keys.addAll(leaf.keys.subList(splitIndex, leaf.keys.size()));
+        right.values.addAll(leaf.values.subList(splitIndex, leaf.values.size()));
+        leaf.keys.subList(splitIndex, leaf.keys.size()).clear();
+        leaf.values.subList(splitIndex, leaf.values.size()).clear();
+
+        // maintain links of sibling leaves
+        int rightPageId = store.allocatePage();
+        right.next = leaf.next;
+        right.previous = leafPageId;
+        if (leaf.next != PageStore.NO_PAGE)
+            this.setPrevious(leaf.next, rightPageId);
+        leaf.next = rightPageId;
+
+        this.write(leafPageId, leaf);
+        this.write(rightPageId, right);
+        this.getStatistics().nodeSplit(true);
+        this.pushUpKey(this.pathDepth - 1, right.keys.get(0), leaf.keys.size(), rightPageId, right.keys.size());
+    }
+
+    /**
+     * Insert a separator and the page on its right into the parent at the given depth of the path,
+     * then split up the path as long as pages overflow.
+     * @param leftEntries the entries left in the page which split, rightEntries the ones moved to the right page
+     */
+    private void pushUpKey(int depth, TKey key, long leftEntries, int rightPageId, long rightEntries) {
+        if (depth < 0) {
+            // the root was split
+            PageNode<TKey, TValue> newRoot = new PageNode<>(false);
+            newRoot.children.add(store.getRootPageId());
+            newRoot.childEntries.add(leftEntries);
+            newRoot.keys.add(key);
+            newRoot.children.add(rightPageId);
+            newRoot.childEntries.add(rightEntries);
+            int newRootPageId = store.allocatePage();
+            this.write(newRootPageId, newRoot);
+            store.setRootPageId(newRootPageId);
+            this.getStatistics().rootSplit();
+            return;
+        }
+
+        int pageId = this.pathPages[depth];
+        int childIndex = this.pathIndexes[depth];
+        PageNode<TKey, TValue> node = this.read(pageId);
+        node.keys.add(childIndex, key);
+        node.children.add(childIndex + 1, rightPageId);
+        node.childEntries.set(childIndex, leftEntries);
+        node.childEntries.add(childIndex + 1, rightEntries);
+        if (this.size(node) <= store.getPageSize()) {
+            this.write(pageId, node);
+            return;
+        }
+
+        // the middle key is pushed up, it is kept in neither half
+        int midIndex = this.splitIndex(node, 1, node.keys.size() - 2);
+        TKey upKey = node.keys.get(midIndex);
+        PageNode<TKey, TValue> right = new PageNode<>(false);
+        right.keys.addAll(node.keys.subList(midIndex + 1, node.keys.size()));
+        right.children.addAll(node.children.subList(midIndex + 1, node.children.size()));
+        right.childEntries.addAll(node.childEntries.subList(midIndex + 1, node.childEntries.size()));
+        node.keys.subList(midIndex, node.keys.size()).clear();
+        node.children.subList(midIndex + 1, node.children.size()).clear();
+        node.childEntries.subList(midIndex + 1, node.childEntries.size()).clear();
+
+        int newRightPageId = store.allocatePage();
+        this.write(pageId, node);
+        this.write(newRightPageId, right);
+        this.getStatistics().nodeSplit(false);
+        this.pushUpKey(depth - 1, upKey, node.entryCount(), newRightPageId, right.entryCount());
+    }
+
+    /**
+     * Index of the first entry of the right half : the entries before it weigh about half of the node.
+     */
+    private int splitIndex(PageNode<TKey, TValue> node, int min, int max) {
+        int half = (this.size(node) - HEADER_BYTES) / 2;
+        int bytes = 0;
+        int index = 0;
+        while (index < node.keys.size() && bytes < half)
+            bytes += this.entrySize(node, index++);
+        return Math.min(Math.max(index, min), max);
+    }
+
+    /**
+     * The entries are inserted one by one in key order, under a single lock : consecutive entries update
+     * the same pages. Entries of the same key keep the order given.
+     */
+    @Override
+    public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        List<Map.Entry<TKey, TValue>> batch = new ArrayList<>(entries);
+        lock.writeLock().lock();
+        try {
+            for (int index : sortedIndexes(batch.stream().map(Map.Entry::getKey).toList(), false))
+                this.insertEntry(batch.get(index).getKey(), batch.get(index).getValue());
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* The codes below are used to support deletion operation */
+
+    @Override
+    public void delete(TKey key) {
+        long start = this.startTiming();
+        this.deleteEntry(key);
+        this.recordLatency(LatencyRecorder.Operation.DELETE, start);
+    }
+
+    private void deleteEntry(TKey key) {
+        lock.writeLock().lock();
+        try {
+            int leafPageId = this.descend(key, true);
+            if (this.startsNextLeaf(leafPageId, key) && this.nextLeafOnPath()) {
+                // the first entry of the key starts the next leaf
+                leafPageId = this.pathPages[this.pathDepth];
+            }
+            this.deleteFromLeafPage(leafPageId, key);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the first entry of a key from the leaf page at the end of the path, if it holds the key.
+     */
+    private void deleteFromLeafPage(int leafPageId, TKey key) {
+        ByteBuffer page = store.pin(leafPageId);
+        boolean removed = false;
+        int usedBytes;
+        try {
+            int index = this.lowerBound(page, key);
+            int count = count(page);
+            if (index == count || this.key(page, index).compareTo(key) != 0)
+                return;
+
+            // remove the offset of the entry, its bytes are reclaimed when the page is written back
+            modCount++;
+            int offset = slot(page, index);
+            int keyBytes = keyCodec.length(page, offset);
+            int entryBytes = keyBytes + valueCodec.length(page, offset + keyBytes);
+            for (int i = index; i < count - 1; i++)
+                page.putChar(slotOffset(i), page.getChar(slotOffset(i + 1)));
+            page.putChar(COUNT_OFFSET, (char) (count - 1));
+            usedBytes = page.getInt(USED_BYTES_OFFSET) - SLOT_BYTES - entryBytes;
+            page.putInt(USED_BYTES_OFFSET, usedBytes);
+            removed = true;
+            this.getStatistics().entryRemoved();
+            if (leafFilters != null)
+                leafFilters.removed(leafPageId);
+        }
+        finally {
+            store.unpin(leafPageId, removed);
+        }
+        this.addToPathEntries(-1);
+
+        if (this.pathDepth > 0 && usedBytes < store.getPageSize() / 4)
+            this.dealUnderflow(this.pathDepth, leafPageId, this.read(leafPageId));
+    }
+
+    /* The codes below are used to support the updates of a key */
+
+    /**
+     * The entry of the key is found by a single descent, under the exclusive lock.
+     */
+    @Override
+    TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                        LatencyRecorder.Operation operation) {
+        long start = this.startTiming();
+        TValue previous = null;
+        TValue value;
+        lock.writeLock().lock();
+        try {
+            int leafPageId = this.descend(key, true);
+            if (this.firstKeyOfNextLeaf(leafPageId, key) && this.nextLeafOnPath())
+                leafPageId = this.pathPages[this.pathDepth];
+
+            ByteBuffer page = store.pin(leafPageId);
+            try {
+                int index = this.lowerBound(page, key);
+                if (index < count(page) && this.key(page, index).compareTo(key) == 0)
+                    previous = this.value(page, index);
+            }
+            finally {
+                store.unpin(leafPageId, false);
+            }
+
+            value = function.apply(key, previous);
+            if (value != previous) {
+                if (value == null) {
+                    this.deleteFromLeafPage(leafPageId, key);
+                }
+                else {
+                    this.checkEntrySize(key, value);
+                    if (previous == null)
+                        this.insertIntoLeafPage(leafPageId, key, value);
+                    else
+                        this.replaceInLeafPage(leafPageId, key, value);
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        this.recordLatency(operation, start);
+        return returnsNew ? value : previous;
+    }
+
+    /**
+     * Whether the first entry of a key starts the leaf after the given one, which does not hold the key.
+     */
+    private boolean firstKeyOfNextLeaf(int leafPageId, TKey key) {
+        int nextPageId;
+        ByteBuffer page = store.pin(leafPageId);
+        try {
+            nextPageId = page.getInt(NEXT_OFFSET);
+            if (this.lowerBound(page, key) < count(page) || nextPageId == PageStore.NO_PAGE)
+                return false;
+        }
+        finally {
+            store.unpin(leafPageId, false);
+        }
+        ByteBuffer nextPage = store.pin(nextPageId);
+        try {
+            return count(nextPage) > 0 && this.key(nextPage, 0).compareTo(key) == 0;
+        }
+        finally {
+            store.unpin(nextPageId, false);
+        }
+    }
+
+    /**
+     * Replace the value of the first entry of a key in the leaf page at the end of the path : in place when the new
+     * value takes as many bytes as the previous one, otherwise the leaf is written back, and split if it no longer fits.
+     */
+    private void replaceInLeafPage(int leafPageId, TKey key, TValue value) {
+        modCount++;
+        ByteBuffer page = store.pin(leafPageId);
+        int index;
+        boolean replaced = false;
+        try {
+            index = this.lowerBound(page, key);
+            int offset = slot(page, index);
+            int valueOffset = offset + keyCodec.length(page, offset);
+            if (valueCodec.length(page, valueOffset) == valueCodec.size(value)) {
+                valueCodec.write(page, valueOffset, value);
+                replaced = true;
+            }
+        }
+        finally {
+            store.unpin(leafPageId, replaced);
+        }
+        if (replaced)
+            return;
+
+        PageNode<TKey, TValue> leaf = this.read(leafPageId);
+        leaf.values.set(index, value);
+        if (this.size(leaf) <= store.getPageSize())
+            this.write(leafPageId, leaf);
+        else
+            this.splitLeaf(leafPageId, leaf);
+    }
+
+    /**
+     * Write back a node which lost an entry, merging it with a sibling when it is less than a quarter full.
+     * @param depth the depth of the node in the path, equal to pathDepth for the leaf
+     */
+    private void dealUnderflow(int depth, int pageId, PageNode<TKey, TValue> node) {
+        if (depth == 0) {
+            // the root : an internal root left with a single child is replaced by it
+            if (!node.leaf && node.keys.isEmpty()) {
+                store.setRootPageId(node.children.get(0));
+                this.freePage(pageId);
+                this.getStatistics().rootCollapsed();
+            }
+            else {
+                this.write(pageId, node);
+            }
+            return;
+        }
+
+        int parentPageId = this.pathPages[depth - 1];
+        int childIndex = this.pathIndexes[depth - 1];
+        PageNode<TKey, TValue> parent = this.read(parentPageId);
+        if (this.size(node) >= store.getPageSize() / 4 || parent.children.size() == 1) {
+            this.write(pageId, node);
+            return;
+        }
+
+        // merge with the right sibling, or with the left one for the last child
+        int leftIndex = childIndex + 1 < parent.children.size() ? childIndex : childIndex - 1;
+        int leftPageId = parent.children.get(leftIndex);
+        int rightPageId = parent.children.get(leftIndex + 1);
+        PageNode<TKey, TValue> left = leftIndex == childIndex ? node : this.read(leftPageId);
+        PageNode<TKey, TValue> right = leftIndex == childIndex ? this.read(rightPageId) : node;
+        TKey sinkKey = parent.keys.get(leftIndex);
+
+        int mergedBytes = this.size(left) + this.size(right) - HEADER_BYTES
+                + (node.leaf ? 0 : SLOT_BYTES + keyCodec.size(sinkKey) + CHILD_BYTES + ENTRY_COUNT_BYTES);
+        if (mergedBytes > store.getPageSize()) {
+            this.write(pageId, node);
+            return;
+        }
+
+        if (node.leaf) {
+            left.keys.addAll(right.keys);
+            left.values.addAll(right.values);
+            left.next = right.next;
+            if (right.next != PageStore.NO_PAGE)
+                this.setPrevious(right.next, leftPageId);
+        }
+        else {
+            // the separator sinks between the keys of the two nodes
+            left.keys.add(sinkKey);
+            left.keys.addAll(right.keys);
+            left.children.addAll(right.children);
+            left.childEntries.addAll(right.childEntries);
+        }
+        this.write(leftPageId, left);
+        this.freePage(rightPageId);
+        this.getStatistics().nodesMerged(node.leaf);
+
+        parent.keys.remove(leftIndex);
+        parent.children.remove(leftIndex + 1);
+        parent.childEntries.set(leftIndex, parent.childEntries.get(leftIndex) + parent.childEntries.remove(leftIndex + 1));
+        this.dealUnderflow(depth - 1, parentPageId, parent);
+    }
+
+    /* The codes below are used to support range scans */
+
+    /**
+     * The entry count of the statistics, no page is read.
+     */
+    @Override
+    public long size() {
+        return this.getStatistics().getEntryCount();
+    }
+
+    /**
+     * A single descent : the entry counts of the children on the left of the path are added up, then the leaf of the key
+     * is searched.
+     */
+    @Override
+    long countBefore(TKey key, boolean inclusive) {
+        lock.readLock().lock();
+        try {
+            long count = 0;
+            int pageId = store.getRootPageId();
+            while (true) {
+                ByteBuffer page = store.pin(pageId);
+                int childPageId;
+                try {
+                    if (page.get(TYPE_OFFSET) != INTERNAL)
+                        return count + (inclusive ? this.upperBound(page, key) : this.lowerBound(page, key));
+                    // the children on the left of the descent only hold lower keys (or equal ones when inclusive)
+                    int childIndex = inclusive ? this.upperBound(page, key) : this.lowerBound(page, key);
+                    for (int i = 0; i < childIndex; i++)
+                        count += this.childEntries(page, i);
+                    childPageId = this.child(page, childIndex);
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+                pageId = childPageId;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * As countBefore, a single descent by the entry counts of the children.
+     */
+    @Override
+    BtreeCursor<TKey, TValue> cursorAt(long position, boolean descending, TKey to, boolean toInclusive) {
+        lock.readLock().lock();
+        try {
+            int pageId = position < 0 || position >= this.size() ? PageStore.NO_PAGE : store.getRootPageId();
+            while (pageId != PageStore.NO_PAGE) {
+                ByteBuffer page = store.pin(pageId);
+                int childPageId;
+                try {
+                    if (page.get(TYPE_OFFSET) != INTERNAL) {
+                        PageLeafNavigator navigator = new PageLeafNavigator(pageId);
+                        return BtreeCursor.overLeaves(navigator, this.toLeafNode(page), (int) position, descending, to, toInclusive);
+                    }
+                    int childIndex = 0;
+                    while (childIndex < count(page) && position >= this.childEntries(page, childIndex))
+                        position -= this.childEntries(page, childIndex++);
+                    childPageId = this.child(page, childIndex);
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+                pageId = childPageId;
+            }
+            // the position is out of the tree, the cursor is empty
+            return BtreeCursor.overLeaves(new PageLeafNavigator(PageStore.NO_PAGE), null, 0, descending, to, toInclusive);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.cursor(false, from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.cursor(true, from, fromInclusive, to, toInclusive);
+    }
+
+    private BtreeCursor<TKey, TValue> cursor(boolean descending, TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        lock.readLock().lock();
+        try {
+            // as for a snapshot, descend straight to the leaf of the first entry
+            boolean lowerBound = descending != fromInclusive;
+            int pageId = store.getRootPageId();
+            ByteBuffer page = store.pin(pageId);
+            try {
+                while (page.get(TYPE_OFFSET) == INTERNAL) {
+                    int childIndex;
+                    if (from == null)
+                        childIndex = descending ? count(page) : 0;
+                    else
+                        childIndex = lowerBound ? this.lowerBound(page, from) : this.upperBound(page, from);
+                    int childPageId = this.child(page, childIndex);
+                    ByteBuffer childPage = store.pin(childPageId);
+                    store.unpin(pageId, false);
+                    pageId = childPageId;
+                    page = childPage;
+                }
+
+                PageLeafNavigator navigator = new PageLeafNavigator(pageId);
+                LeafNode<TKey, TValue> leaf = this.toLeafNode(page);
+                int index;
+                if (from == null)
+                    index = descending ? leaf.getKeyCount() - 1 : 0;
+                else
+                    index = (lowerBound ? this.lowerBound(page, from) : this.upperBound(page, from)) - (descending ? 1 : 0);
+                return BtreeCursor.overLeaves(navigator, leaf, index, descending, to, toInclusive);
+            }
+            finally {
+                store.unpin(pageId, false);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Leaves of the page file are read one at a time, as heap leaves the cursor can walk.
+     */
+    private final class PageLeafNavigator implements LeafNavigator<TKey, TValue> {
+        private final int expectedModCount = modCount;
+        private int pageId;
+
+        private PageLeafNavigator(int pageId) {
+            this.pageId = pageId;
+        }
+
+        @Override
+        public LeafNode<TKey, TValue> nextLeaf() {
+            return this.moveTo(NEXT_OFFSET);
+        }
+
+        @Override
+        public LeafNode<TKey, TValue> previousLeaf() {
+            return this.moveTo(PREVIOUS_OFFSET);
+        }
+
+        private LeafNode<TKey, TValue> moveTo(int linkOffset) {
+            lock.readLock().lock();
+            try {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException("The tree was updated during the scan");
+                ByteBuffer page = store.pin(pageId);
+                int linkedPageId;
+                try {
+                    linkedPageId = page.getInt(linkOffset);
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+                if (linkedPageId == PageStore.NO_PAGE)
+                    return null;
+
+                pageId = linkedPageId;
+                page = store.pin(pageId);
+                try {
+                    return toLeafNode(page);
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private LeafNode<TKey, TValue> toLeafNode(ByteBuffer page) {
+        LeafNode<TKey, TValue> leaf = new LeafNode<>(this.getConfig());
+        int count = count(page);
+        for (int i = 0; i < count; i++) {
+            leaf.addKey(this.key(page, i));
+            leaf.addValue(this.value(page, i));
+        }
+        return leaf;
+    }
+
+    /**
+     * Heap nodes of the pages a window renders : the page at the path, and the pages under it down to the depth.
+     * The children of the nodes at the depth are read if they are asked for, unless the tree was updated meanwhile.
+     */
+    @Override
+    Node<TKey> nodeAt(List<Integer> path, int depth) {
+        lock.readLock().lock();
+        try {
+            int pageId = store.getRootPageId();
+            for (int index : path) {
+                ByteBuffer page = store.pin(pageId);
+                int childPageId;
+                try {
+                    if (page.get(TYPE_OFFSET) != INTERNAL || index < 0 || index > count(page))
+                        throw new IllegalArgumentException("Path must lead to a node of the tree: " + path);
+                    childPageId = this.child(page, index);
+                }
+                finally {
+                    store.unpin(pageId, false);
+                }
+                pageId = childPageId;
+            }
+            return this.readNode(pageId, depth, modCount);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Node<TKey> readNode(int pageId, int depth, int expectedModCount) {
+        InternalNode<TKey> node;
+        int[] childPageIds;
+        long[] childEntries;
+        ByteBuffer page = store.pin(pageId);
+        try {
+            if (page.get(TYPE_OFFSET) != INTERNAL)
+                return this.toLeafNode(page);
+            node = new InternalNode<>(this.getConfig());
+            int count = count(page);
+            childPageIds = new int[count + 1];
+            childEntries = new long[count + 1];
+            for (int i = 0; i < count; i++)
+                node.addKey(this.key(page, i));
+            for (int i = 0; i <= count; i++) {
+                childPageIds[i] = this.child(page, i);
+                childEntries[i] = this.childEntries(page, i);
+            }
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+
+        if (depth == 0) {
+            node.setChildLoader(parent -> this.readChildren(parent, childPageIds, childEntries, expectedModCount));
+            return node;
+        }
+        for (int i = 0; i < childPageIds.length; i++)
+            node.addChild(this.readNode(childPageIds[i], depth - 1, expectedModCount), childEntries[i]);
+        return node;
+    }
+
+    private void readChildren(InternalNode<TKey> node, int[] childPageIds, long[] childEntries, int expectedModCount) {
+        lock.readLock().lock();
+        try {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException("The tree was updated since the node was read");
+            for (int i = 0; i < childPageIds.length; i++)
+                node.addChild(this.readNode(childPageIds[i], 0, expectedModCount), childEntries[i]);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A copy of the tree on the heap : pages are not shared, the whole tree is read.
+     * Meant for the rendering of small trees.
+     */
+    @Override
+    public Btree<TKey, TValue> snapshot() {
+        lock.readLock().lock();
+        try {
+            List<Map.Entry<TKey, TValue>> entries = new ArrayList<>();
+            BtreeCursor<TKey, TValue> cursor = this.range(null, true, null, true);
+            while (cursor.hasNext())
+                entries.add(cursor.next());
+            return Btree.<TKey, TValue>bulkLoad(entries.iterator(), DEFAULT_FILL_FACTOR, this.getConfig()).snapshot();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setRoot(Node<TKey> root) {
+        throw new UnsupportedOperationException("The nodes of a paged tree are pages");
+    }
+
+    /**
+     * Records could not be replayed on the page file : pages written back before a crash may already hold them.
+     */
+    @Override
+    public void setLog(WriteAheadLog<TKey, TValue> log) {
+        throw new UnsupportedOperationException("A paged tree is persisted by its page file");
+    }
+
+    /**
+     * Write the modified pages to the disk.
+     */
+    public void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            store.flush();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            store.close();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* The codes below read and write pages */
+
+    /**
+     * Descend to the leaf page which should contain the key, recording the path.
+     * The pages are unpinned : the pages of the path are pinned again when they are updated.
+     * @param lowerBound take the leftmost child which may contain the key, otherwise the rightmost one
+     */
+    private int descend(TKey key, boolean lowerBound) {
+        this.pathDepth = 0;
+        int pageId = store.getRootPageId();
+        ByteBuffer page = store.pin(pageId);
+        try {
+            while (page.get(TYPE_OFFSET) == INTERNAL) {
+                int childIndex = lowerBound ? this.lowerBound(page, key) : this.upperBound(page, key);
+                this.pushPath(pageId, childIndex);
+                int childPageId = this.child(page, childIndex);
+                ByteBuffer childPage = store.pin(childPageId);
+                store.unpin(pageId, false);
+                pageId = childPageId;
+                page = childPage;
+            }
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+        this.pathPages[this.pathDepth] = pageId;
+        return pageId;
+    }
+
+    /**
+     * Whether the entries of a leaf page are all less than the key, while a next leaf exists.
+     */
+    private boolean startsNextLeaf(int leafPageId, TKey key) {
+        ByteBuffer page = store.pin(leafPageId);
+        try {
+            return this.lowerBound(page, key) == count(page) && page.getInt(NEXT_OFFSET) != PageStore.NO_PAGE;
+        }
+        finally {
+            store.unpin(leafPageId, false);
+        }
+    }
+
+    /**
+     * Move the path to the next leaf, false if it is the last one.
+     */
+    private boolean nextLeafOnPath() {
+        int depth = this.pathDepth;
+        while (depth > 0 && this.pathIndexes[depth - 1] == this.countOf(this.pathPages[depth - 1]))
+            depth--;
+        if (depth == 0)
+            return false;
+
+        this.pathDepth = depth - 1;
+        int pageId = this.pathPages[this.pathDepth];
+        int childIndex = this.pathIndexes[this.pathDepth] + 1;
+        while (true) {
+            this.pushPath(pageId, childIndex);
+            pageId = this.childOf(pageId, childIndex);
+            if (!this.isInternal(pageId))
+                break;
+            childIndex = 0;
+        }
+        this.pathPages[this.pathDepth] = pageId;
+        return true;
+    }
+
+    private void pushPath(int pageId, int childIndex) {
+        if (this.pathDepth + 1 >= this.pathPages.length) {
+            this.pathPages = Arrays.copyOf(this.pathPages, this.pathPages.length * 2);
+            this.pathIndexes = Arrays.copyOf(this.pathIndexes, this.pathIndexes.length * 2);
+        }
+        this.pathPages[this.pathDepth] = pageId;
+        this.pathIndexes[this.pathDepth] = childIndex;
+        this.pathDepth++;
+    }
+
+    /**
+     * Add to the entry counts of the children taken by the path, once an entry was added to or removed from its leaf.
+     */
+    private void addToPathEntries(long delta) {
+        for (int depth = 0; depth < this.pathDepth; depth++) {
+            int pageId = this.pathPages[depth];
+            ByteBuffer page = store.pin(pageId);
+            try {
+                int offset = this.childEntriesOffset(page, this.pathIndexes[depth]);
+                page.putLong(offset, page.getLong(offset) + delta);
+            }
+            finally {
+                store.unpin(pageId, true);
+            }
+        }
+    }
+
+    private int countOf(int pageId) {
+        ByteBuffer page = store.pin(pageId);
+        try {
+            return count(page);
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+    }
+
+    private int childOf(int pageId, int index) {
+        ByteBuffer page = store.pin(pageId);
+        try {
+            return this.child(page, index);
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+    }
+
+    private boolean isInternal(int pageId) {
+        ByteBuffer page = store.pin(pageId);
+        try {
+            return isInternalPage(page);
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+    }
+
+    private void setPrevious(int leafPageId, int previousPageId) {
+        ByteBuffer page = store.pin(leafPageId);
+        try {
+            page.putInt(PREVIOUS_OFFSET, previousPageId);
+        }
+        finally {
+            store.unpin(leafPageId, true);
+        }
+    }
+
+    private static int count(ByteBuffer page) {
+        return page.getChar(COUNT_OFFSET);
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_BYTES + index * SLOT_BYTES;
+    }
+
+    private static int slot(ByteBuffer page, int index) {
+        return page.getChar(slotOffset(index));
+    }
+
+    private TKey key(ByteBuffer page, int index) {
+        return keyCodec.read(page, slot(page, index));
+    }
+
+    private List<TKey> keys(ByteBuffer page) {
+        List<TKey> keys = new ArrayList<>(count(page));
+        for (int i = 0; i < count(page); i++)
+            keys.add(this.key(page, i));
+        return keys;
+    }
+
+    private TValue value(ByteBuffer page, int index) {
+        int offset = slot(page, index);
+        return valueCodec.read(page, offset + keyCodec.length(page, offset));
+    }
+
+    private int child(ByteBuffer page, int index) {
+        if (index == 0)
+            return page.getInt(NEXT_OFFSET);
+        int offset = slot(page, index - 1);
+        return page.getInt(offset + keyCodec.length(page, offset));
+    }
+
+    private long childEntries(ByteBuffer page, int index) {
+        return page.getLong(this.childEntriesOffset(page, index));
+    }
+
+    private int childEntriesOffset(ByteBuffer page, int index) {
+        if (index == 0)
+            return FIRST_CHILD_ENTRIES_OFFSET;
+        int offset = slot(page, index - 1);
+        return offset + keyCodec.length(page, offset) + CHILD_BYTES;
+    }
+
+    private int lowerBound(ByteBuffer page, TKey key) {
+        int low = 0;
+        int high = count(page);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.key(page, middle).compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private int upperBound(ByteBuffer page, TKey key) {
+        int low = 0;
+        int high = count(page);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.key(page, middle).compareTo(key) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private PageNode<TKey, TValue> read(int pageId) {
+        ByteBuffer page = store.pin(pageId);
+        try {
+            return this.decode(page);
+        }
+        finally {
+            store.unpin(pageId, false);
+        }
+    }
+
+    private PageNode<TKey, TValue> decode(ByteBuffer page) {
+        PageNode<TKey, TValue> node = new PageNode<>(page.get(TYPE_OFFSET) == LEAF);
+        int count = count(page);
+        if (node.leaf) {
+            node.next = page.getInt(NEXT_OFFSET);
+            node.previous = page.getInt(PREVIOUS_OFFSET);
+            for (int i = 0; i < count; i++) {
+                node.keys.add(this.key(page, i));
+                node.values.add(this.value(page, i));
+            }
+        }
+        else {
+            node.children.add(page.getInt(NEXT_OFFSET));
+            node.childEntries.add(page.getLong(FIRST_CHILD_ENTRIES_OFFSET));
+            for (int i = 0; i < count; i++) {
+                node.keys.add(this.key(page, i));
+                node.children.add(this.child(page, i + 1));
+                node.childEntries.add(this.childEntries(page, i + 1));
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Write a node to its page, and rebuild the filter of a leaf : a node is written back after a split, a merge
+     * or a compaction.
+     */
+    private void write(int pageId, PageNode<TKey, TValue> node) {
+        ByteBuffer page = store.pin(pageId);
+        try {
+            this.encode(page, node);
+        }
+        finally {
+            store.unpin(pageId, true);
+        }
+        if (leafFilters != null) {
+            if (node.leaf)
+                leafFilters.build(pageId, node.keys);
+            else
+                leafFilters.remove(pageId);
+        }
+    }
+
+    private void freePage(int pageId) {
+        store.freePage(pageId);
+        if (leafFilters != null)
+            leafFilters.remove(pageId);
+    }
+
+    private void encode(ByteBuffer page, PageNode<TKey, TValue> node) {
+        int count = node.keys.size();
+        page.put(TYPE_OFFSET, node.leaf ? LEAF : INTERNAL);
+        page.putChar(COUNT_OFFSET, (char) count);
+        page.putInt(NEXT_OFFSET, node.leaf ? node.next : node.children.get(0));
+        page.putInt(PREVIOUS_OFFSET, node.leaf ? node.previous : PageStore.NO_PAGE);
+        page.putLong(FIRST_CHILD_ENTRIES_OFFSET, node.leaf ? 0 : node.childEntries.get(0));
+
+        // entries are written from the end of the page
+        int offset = store.getPageSize();
+        for (int i = 0; i < count; i++) {
+            TKey key = node.keys.get(i);
+            int keyBytes = keyCodec.size(key);
+            if (node.leaf) {
+                TValue value = node.values.get(i);
+                offset -= keyBytes + valueCodec.size(value);
+                valueCodec.write(page, offset + keyBytes, value);
+            }
+            else {
+                offset -= keyBytes + CHILD_BYTES + ENTRY_COUNT_BYTES;
+                page.putInt(offset + keyBytes, node.children.get(i + 1));
+                page.putLong(offset + keyBytes + CHILD_BYTES, node.childEntries.get(i + 1));
+            }
+            keyCodec.write(page, offset, key);
+            page.putChar(slotOffset(i), (char) offset);
+        }
+        page.putInt(FREE_END_OFFSET, offset);
+        page.putInt(USED_BYTES_OFFSET, this.size(node));
+    }
+
+    /**
+     * Number of bytes of the node once written to a page.
+     */
+    private int size(PageNode<TKey, TValue> node) {
+        int bytes = HEADER_BYTES;
+        for (int i = 0; i < node.keys.size(); i++)
+            bytes += this.entrySize(node, i);
+        return bytes;
+    }
+
+    private int entrySize(PageNode<TKey, TValue> node, int index) {
+        return SLOT_BYTES + keyCodec.size(node.keys.get(index))
+                + (node.leaf ? valueCodec.size(node.values.get(index)) : CHILD_BYTES + ENTRY_COUNT_BYTES);
+    }
+
+    /**
+     * A page decoded on the heap, while it is updated.
+     */
+    private static final class PageNode<TKey extends Comparable<TKey>, TValue> {
+        private final boolean leaf;
+        private final List<TKey> keys = new ArrayList<>();
+        /** Values of a leaf */
+        private final List<TValue> values = new ArrayList<>();
+        /** Page numbers of the children of an internal node, one more than the keys */
+        private final List<Integer> children = new ArrayList<>();
+        /** Entry counts of the children of an internal node */
+        private final List<Long> childEntries = new ArrayList<>();
+        private int next = PageStore.NO_PAGE;
+        private int previous = PageStore.NO_PAGE;
+
+        private PageNode(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        private long entryCount() {
+            if (leaf)
+                return keys.size();
+            long count = 0;
+            for (long childCount : childEntries)
+                count += childCount;
+            return count;
+        }
+
+        private int lowerBound(TKey key) {
+            int low = 0;
+            int high = keys.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys.get(middle).compareTo(key) < 0)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.annotation.JsonView;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Leaf of String keys stored prefix-compressed : the prefix common to all the keys is kept once,
+ * the rest of each key (its suffix) is packed in a single char array.
+ * Lookups compare the searched key with the prefix once, then with the stored suffixes, without building any String;
+ * getKey builds the key it returns.
+ */
+public class PrefixLeafNode<TValue> extends LeafNode<String, TValue> {
+    private static final char[] NO_CHARS = new char[0];
+    private static final int INITIAL_SUFFIX_CAPACITY = 16;
+
+    /** Prefix shared by all the keys, never modified in place so copies can share it */
+    private char[] prefix = NO_CHARS;
+    /** Suffixes one after the other, the suffix of the key i ends at suffixEnds[i] and starts where the previous one ends */
+    private char[] suffixes;
+    private int[] suffixEnds;
+
+    public PrefixLeafNode(BtreeConfig config) {
+        super(config);
+        // the keys array of the node is not used
+        this.keys = new Object[0];
+        this.suffixEnds = new int[this.values.length];
+        this.suffixes = new char[INITIAL_SUFFIX_CAPACITY];
+    }
+
+    @Override
+    protected LeafNode<String, TValue> newLeaf() {
+        return new PrefixLeafNode<>(this.config);
+    }
+
+    @Override
+    public String getKey(int index) {
+        int start = this.suffixStart(index);
+        int length = this.suffixEnds[index] - start;
+        char[] key = Arrays.copyOf(this.prefix, this.prefix.length + length);
+        System.arraycopy(this.suffixes, start, key, this.prefix.length, length);
+        return new String(key);
+    }
+
+    @Override
+    @JsonView(Views.Public.class)
+    public List<String> getKeys() {
+        String[] keys = new String[this.keyCount];
+        for (int i = 0; i < this.keyCount; i++)
+            keys[i] = this.getKey(i);
+        return List.of(keys);
+    }
+
+    @Override
+    public void addKey(String key) {
+        this.insertKeyAt(this.keyCount, key);
+    }
+
+    @Override
+    public void setKey(int index, String key) {
+        this.removeKeyAt(index);
+        this.insertKeyAt(index, key);
+    }
+
+    @Override
+    protected void insertKeyAt(int index, String key) {
+        this.ensureCapacity(this.keyCount + 1);
+        if (this.keyCount == 0) {
+            this.prefix = key.toCharArray();
+        }
+        else {
+            int common = this.commonPrefixLength(key);
+            if (common < this.prefix.length)
+                this.shortenPrefix(common);
+        }
+
+        int length = key.length() - this.prefix.length;
+        int start = this.suffixStart(index);
+        int used = this.suffixStart(this.keyCount);
+        this.ensureSuffixCapacity(used + length);
+        System.arraycopy(this.suffixes, start, this.suffixes, start + length, used - start);
+        key.getChars(this.prefix.length, key.length(), this.suffixes, start);
+
+        System.arraycopy(this.suffixEnds, index, this.suffixEnds, index + 1, this.keyCount - index);
+        this.suffixEnds[index] = start + length;
+        this.keyCount++;
+        for (int i = index + 1; i < this.keyCount; i++)
+            this.suffixEnds[i] += length;
+    }
+
+    @Override
+    protected void removeKeyAt(int index) {
+        int start = this.suffixStart(index);
+        int length = this.suffixEnds[index] - start;
+        int used = this.suffixStart(this.keyCount);
+        System.arraycopy(this.suffixes, start + length, this.suffixes, start, used - start - length);
+
+        System.arraycopy(this.suffixEnds, index + 1, this.suffixEnds, index, this.keyCount - index - 1);
+        this.keyCount--;
+        for (int i = index; i < this.keyCount; i++)
+            this.suffixEnds[i] -= length;
+        // the prefix is kept : the remaining keys still share it
+    }
+
+    @Override
+    protected void ensureCapacity(int keyCapacity) {
+        if (keyCapacity > this.suffixEnds.length)
+            this.suffixEnds = Arrays.copyOf(this.suffixEnds, Math.max(keyCapacity, this.suffixEnds.length * 2));
+        this.ensureValueCapacity(this.suffixEnds.length);
+    }
+
+    private void ensureSuffixCapacity(int charCapacity) {
+        if (charCapacity > this.suffixes.length)
+            this.suffixes = Arrays.copyOf(this.suffixes, Math.max(charCapacity, this.suffixes.length * 2));
+    }
+
+    @Override
+    protected void trimToOrder() {
+        if (this.suffixEnds.length > this.getOrder() && this.keyCount <= this.getOrder()) {
+            this.suffixEnds = Arrays.copyOf(this.suffixEnds, this.getOrder());
+            this.values = Arrays.copyOf(this.values, this.getOrder());
+        }
+    }
+
+    private int suffixStart(int index) {
+        return index == 0 ? 0 : this.suffixEnds[index - 1];
+    }
+
+    private int commonPrefixLength(String key) {
+        int length = Math.min(this.prefix.length, key.length());
+        int common = 0;
+        while (common < length && this.prefix[common] == key.charAt(common))
+            common++;
+        return common;
+    }
+
+    /**
+     * Move the end of the prefix back to the front of every suffix.
+     */
+    private void shortenPrefix(int length) {
+        int moved = this.prefix.length - length;
+        char[] newSuffixes = new char[this.suffixStart(this.keyCount) + moved * this.keyCount];
+        int position = 0;
+        int start = 0;
+        for (int i = 0; i < this.keyCount; i++) {
+            int end = this.suffixEnds[i];
+            System.arraycopy(this.prefix, length, newSuffixes, position, moved);
+            System.arraycopy(this.suffixes, start, newSuffixes, position + moved, end - start);
+            position += moved + end - start;
+            this.suffixEnds[i] = position;
+            start = end;
+        }
+        this.suffixes = newSuffixes;
+        this.prefix = Arrays.copyOf(this.prefix, length);
+    }
+
+    /**
+     * Rebuild the keys of this leaf from the keys [from, to) of a leaf (possibly this one),
+     * with the longest prefix they share : the one of the first and the last key, as they are sorted.
+     */
+    private void copyKeys(PrefixLeafNode<TValue> source, int from, int to) {
+        int count = to - from;
+        char[] newPrefix = source.prefix;
+        int extra = 0;
+        if (count > 0) {
+            int firstStart = source.suffixStart(from);
+            int lastStart = source.suffixStart(to - 1);
+            int length = Math.min(source.suffixEnds[from] - firstStart, source.suffixEnds[to - 1] - lastStart);
+            while (extra < length && source.suffixes[firstStart + extra] == source.suffixes[lastStart + extra])
+                extra++;
+            newPrefix = Arrays.copyOf(source.prefix, source.prefix.length + extra);
+            System.arraycopy(source.suffixes, firstStart, newPrefix, source.prefix.length, extra);
+        }
+
+        int[] newEnds = new int[Math.max(this.suffixEnds.length, count)];
+        char[] newSuffixes = new char[Math.max(INITIAL_SUFFIX_CAPACITY,
+                source.suffixStart(to) - source.suffixStart(from) - extra * count)];
+        int position = 0;
+        for (int i = from; i < to; i++) {
+            int start = source.suffixStart(i) + extra;
+            int length = source.suffixEnds[i] - start;
+            System.arraycopy(source.suffixes, start, newSuffixes, position, length);
+            position += length;
+            newEnds[i - from] = position;
+        }
+        this.prefix = newPrefix;
+        this.suffixes = newSuffixes;
+        this.suffixEnds = newEnds;
+        this.keyCount = count;
+    }
+
+    /* The codes below compare the stored keys with a searched key */
+
+    /**
+     * Compare the prefix with the start of a key : 0 when the key starts with the prefix,
+     * otherwise the sign of the comparison of any key of the leaf with the searched key.
+     */
+    private int comparePrefix(String key) {
+        int length = Math.min(this.prefix.length, key.length());
+        for (int i = 0; i < length; i++) {
+            if (this.prefix[i] != key.charAt(i))
+                return this.prefix[i] - key.charAt(i);
+        }
+        // a key shorter than the prefix comes before all the keys
+        return this.prefix.length - length;
+    }
+
+    /**
+     * Compare the key at index with a key starting with the prefix, in the order of String.compareTo.
+     */
+    private int compareSuffix(int index, String key) {
+        int start = this.suffixStart(index);
+        int end = this.suffixEnds[index];
+        int keyOffset = this.prefix.length;
+        int length = Math.min(end - start, key.length() - keyOffset);
+        for (int i = 0; i < length; i++) {
+            char stored = this.suffixes[start + i];
+            char searched = key.charAt(keyOffset + i);
+            if (stored != searched)
+                return stored - searched;
+        }
+        return (end - start) - (key.length() - keyOffset);
+    }
+
+    /**
+     * Index of the first key greater than (or equal to, when not strict) the given key.
+     */
+    private int bound(String key, boolean strict) {
+        if (this.keyCount == 0)
+            return 0;
+        int prefixComparison = this.comparePrefix(key);
+        if (prefixComparison != 0)
+            return prefixComparison > 0 ? 0 : this.keyCount;
+
+        int low = 0;
+        int high = this.keyCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = this.compareSuffix(middle, key);
+            if (comparison < 0 || (strict && comparison == 0))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    protected int lowerBound(String key) {
+        return this.bound(key, false);
+    }
+
+    @Override
+    protected int upperBound(String key) {
+        return this.bound(key, true);
+    }
+
+    @Override
+    public int search(String key) {
+        int index = this.bound(key, false);
+        if (index < this.keyCount && this.comparePrefix(key) == 0 && this.compareSuffix(index, key) == 0)
+            return index;
+        return -1;
+    }
+
+    @Override
+    boolean isAfterLastKey(String key) {
+        int prefixComparison = this.comparePrefix(key);
+        if (prefixComparison != 0)
+            return prefixComparison < 0;
+        return this.compareSuffix(this.keyCount - 1, key) < 0;
+    }
+
+    /* The codes below move keys between leaves */
+
+    @Override
+    protected Node<String> copy() {
+        PrefixLeafNode<TValue> copy = new PrefixLeafNode<>(this.config);
+        copy.prefix = this.prefix;
+        copy.suffixes = this.suffixes.clone();
+        copy.suffixEnds = this.suffixEnds.clone();
+        copy.keyCount = this.keyCount;
+        copy.values = this.values.clone();
+        copy.valueCount = this.valueCount;
+        return copy;
+    }
+
+    /**
+     * Both halves get the longer prefix of their own keys.
+     */
+    @Override
+    protected void moveKeys(LeafNode<String, TValue> target, int index) {
+        ((PrefixLeafNode<TValue>) target).copyKeys(this, index, this.keyCount);
+        this.copyKeys(this, 0, index);
+    }
+
+    @Override
+    protected void appendKeys(LeafNode<String, TValue> leaf) {
+        for (int i = 0; i < leaf.getKeyCount(); i++)
+            this.insertKeyAt(this.keyCount, leaf.getKey(i));
+    }
+
+    /**
+     * Insert the entries one by one from the last, so that each goes before the keys equal to its own
+     * as with {@link LeafNode#insertSorted(List)}.
+     */
+    @Override
+    void insertSorted(List<? extends Map.Entry<String, TValue>> entries) {
+        this.ensureCapacity(this.keyCount + entries.size());
+        for (int i = entries.size() - 1; i >= 0; i--)
+            this.insertKey(entries.get(i).getKey(), entries.get(i).getValue());
+    }
+}
@@ -0,0 +1,1045 @@
+package fr.miage.btree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+/**
+ * Thread-safe tree split in range partitions (shards) : each shard is a {@link Btree} of the keys of its range,
+ * guarded by its own lock, so that writers of different ranges never wait for each other.
+ * A boundary table routes each key to its shard, equal keys are always in the same shard.
+ *
+ * The shards are rebalanced as they are updated :
+ * <ul>
+ *     <li>while there are fewer shards than requested, a shard of a few thousand entries is split at its median key;</li>
+ *     <li>then a shard which holds more than twice the average number of entries gives the difference to its
+ *     smaller neighbour, and a shard which takes more than twice its share of the writes (a hot range)
+ *     gives half of its entries to its smaller neighbour. A neighbour made too large passes entries on to the next shards.</li>
+ * </ul>
+ * A shard is checked every few thousand writes, and no sooner than after a quarter of its size in writes :
+ * the entries moved by the rebalancing are paid by the writes which made it necessary.
+ *
+ * Scans and exports read a snapshot of every shard, taken at once, and walk the shards in key order.
+ * The lookup cache of the config is kept by the sharded tree, in front of the shards : moving entries between shards
+ * changes no value, only the writes invalidate it.
+ */
+public class ShardedBtree<TKey extends Comparable<TKey>, TValue> extends Btree<TKey, TValue> {
+    /** Writes of a shard between two checks of its size and share of the writes, at least */
+    private static final int REBALANCE_CHECK_INTERVAL = 1024;
+    /** Shards smaller than this are not split nor rebalanced, moving their entries costs more than it saves */
+    private static final int MIN_REBALANCED_ENTRIES = 4096;
+    /** Ratio to the average (of entries or of writes) above which a shard is rebalanced */
+    private static final double IMBALANCE = 2.0;
+
+    private final int shardCount;
+    private volatile Partition<TKey, TValue> partition;
+    /** Taken by the splits and moves of entries between shards, and by snapshots which must see the shards at once */
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+    /** Writes of all the shards, the share of each shard is measured against it */
+    private final LongAdder writeCount = new LongAdder();
+
+    /**
+     * @param shardCount the number of shards the tree is split into as it grows
+     */
+    public ShardedBtree(BtreeConfig config, int shardCount) {
+        this(config, shardCount, List.of(new Shard<TKey, TValue>(new Btree<>(config.withoutLookupCache()), null, null)));
+    }
+
+    public ShardedBtree(int shardCount) {
+        this(BtreeConfig.defaults(), shardCount);
+    }
+
+    private ShardedBtree(BtreeConfig config, int shardCount, List<Shard<TKey, TValue>> shards) {
+        super(config);
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        this.shardCount = shardCount;
+        this.partition = Partition.of(shards);
+    }
+
+    /**
+     * Split the entries of a tree built by a single thread (by a bulk load or an import for instance) into shards
+     * of the same size, each of them bulk loaded.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> ShardedBtree<TKey, TValue> of(Btree<TKey, TValue> btree, int shardCount) {
+        return of(btree, shardCount, btree.getConfig());
+    }
+
+    /**
+     * Split the entries of a tree into shards, with another config : to add a lookup cache for instance.
+     * @param config a config with the node orders and the leaf layout of the tree
+     */
+    public static <TKey extends Comparable<TKey>, TValue> ShardedBtree<TKey, TValue> of(Btree<TKey, TValue> btree, int shardCount,
+                                                                                          BtreeConfig config) {
+        btree.getConfig().checkSameNodes(config);
+        long entriesPerShard = Math.max(1, (btree.getStatistics().getEntryCount() + shardCount - 1) / shardCount);
+        List<Shard<TKey, TValue>> shards = new ArrayList<>();
+        List<Map.Entry<TKey, TValue>> entries = new ArrayList<>();
+        TKey lowerBound = null;
+        BtreeCursor<TKey, TValue> cursor = btree.range(null, true, null, true);
+        while (cursor.hasNext()) {
+            Map.Entry<TKey, TValue> entry = cursor.next();
+            // a shard is only cut before a new key, equal keys stay in the same shard
+            if (entries.size() >= entriesPerShard && shards.size() < shardCount - 1
+                    && entry.getKey().compareTo(entries.get(entries.size() - 1).getKey()) != 0) {
+                shards.add(new Shard<>(loadShard(entries, config), lowerBound, entry.getKey()));
+                lowerBound = entry.getKey();
+                entries = new ArrayList<>();
+            }
+            entries.add(entry);
+        }
+        shards.add(new Shard<>(loadShard(entries, config), lowerBound, null));
+        return new ShardedBtree<>(config, shardCount, shards);
+    }
+
+    private static <TKey extends Comparable<TKey>, TValue> Btree<TKey, TValue> loadShard(
+            List<Map.Entry<TKey, TValue>> sortedEntries, BtreeConfig config) {
+        // the lookup cache is the one of the sharded tree, in front of the shards
+        return Btree.bulkLoad(sortedEntries.iterator(), DEFAULT_FILL_FACTOR, config.withoutLookupCache());
+    }
+
+    /* The codes below route the operations to the shards */
+
+    @Override
+    public void insert(TKey key, TValue value) {
+        if (!this.keepsDuplicates()) {
+            this.insertUnique(key, value);
+            return;
+        }
+        long start = this.startTiming();
+        long logPosition;
+        Shard<TKey, TValue> shard;
+        double writeShare;
+        while (true) {
+            shard = this.partition.shardOf(key);
+            long stamp = shard.lock.writeLock();
+            try {
+                // the bounds of the shard moved since the partition was read
+                if (!shard.contains(key))
+                    continue;
+                logPosition = this.logInsert(key, value);
+                shard.btree.insert(key, value);
+                writeShare = this.countWrites(shard, 1);
+                break;
+            }
+            finally {
+                shard.lock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        if (writeShare > 0)
+            this.rebalance(shard, writeShare);
+        this.recordLatency(LatencyRecorder.Operation.INSERT, start);
+    }
+
+    /**
+     * The entries are grouped by shard, each shard inserts its entries as a batch.
+     * With {@link BtreeConfig.DuplicateKeyPolicy#REJECT}, the keys are checked in all their shards before any entry is
+     * inserted : a rejected key leaves the tree unchanged.
+     */
+    @Override
+    public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+        if (this.getConfig().getDuplicateKeyPolicy() == BtreeConfig.DuplicateKeyPolicy.REJECT) {
+            this.insertAllOrReject(new ArrayList<>(entries));
+            return;
+        }
+
+        List<Map.Entry<TKey, TValue>> pending = new ArrayList<>(entries);
+        long logPosition = 0;
+        try {
+            while (!pending.isEmpty()) {
+                Partition<TKey, TValue> partition = this.partition;
+                List<Map.Entry<TKey, TValue>> batch = pending;
+                List<List<Integer>> groups = groupByShard(partition.boundaries(), batch.stream().map(Map.Entry::getKey).toList());
+                pending = new ArrayList<>();
+                for (int i = 0; i < groups.size(); i++) {
+                    if (groups.get(i).isEmpty())
+                        continue;
+
+                    Shard<TKey, TValue> shard = partition.shards().get(i);
+                    List<Map.Entry<TKey, TValue>> shardEntries = new ArrayList<>();
+                    double writeShare = 0;
+                    long stamp = shard.lock.writeLock();
+                    try {
+                        for (int index : groups.get(i)) {
+                            Map.Entry<TKey, TValue> entry = batch.get(index);
+                            if (shard.contains(entry.getKey()))
+                                shardEntries.add(entry);
+                            else
+                                pending.add(entry);
+                        }
+                        if (!shardEntries.isEmpty()) {
+                            shard.btree.insertAll(shardEntries);
+                            logPosition = this.logInserted(shardEntries);
+                            writeShare = this.countWrites(shard, shardEntries.size());
+                        }
+                    }
+                    finally {
+                        shard.lock.unlockWrite(stamp);
+                    }
+                    if (writeShare > 0)
+                        this.rebalance(shard, writeShare);
+                }
+            }
+        }
+        finally {
+            // the entries logged are in the tree, even when a later shard failed
+            this.invalidateCached(entries);
+            this.awaitDurable(logPosition);
+        }
+    }
+
+    /**
+     * Insert a batch into a tree rejecting the keys already in it : all the shards are locked at once, in key order
+     * as snapshots lock them, and none is rebalanced meanwhile, so that every key is checked before any is inserted.
+     */
+    private void insertAllOrReject(List<Map.Entry<TKey, TValue>> batch) {
+        List<Shard<TKey, TValue>> shards;
+        double[] writeShares;
+        long logPosition = 0;
+        rebalanceLock.lock();
+        try {
+            Partition<TKey, TValue> partition = this.partition;
+            shards = partition.shards();
+            writeShares = new double[shards.size()];
+            List<List<Integer>> groups = groupByShard(partition.boundaries(), batch.stream().map(Map.Entry::getKey).toList());
+            long[] stamps = new long[shards.size()];
+            for (int i = 0; i < shards.size(); i++)
+                stamps[i] = shards.get(i).lock.writeLock();
+            try {
+                List<List<Map.Entry<TKey, TValue>>> shardEntries = new ArrayList<>(groups.size());
+                for (int i = 0; i < groups.size(); i++) {
+                    List<Map.Entry<TKey, TValue>> entries = groups.get(i).stream().map(batch::get).toList();
+                    // equal keys go to the same shard, which also rejects a key twice in the batch
+                    shards.get(i).btree.checkMissing(entries);
+                    shardEntries.add(entries);
+                }
+                for (int i = 0; i < shards.size(); i++) {
+                    List<Map.Entry<TKey, TValue>> entries = shardEntries.get(i);
+                    if (entries.isEmpty())
+                        continue;
+                    shards.get(i).btree.insertAll(entries);
+                    logPosition = this.logInserted(entries);
+                    writeShares[i] = this.countWrites(shards.get(i), entries.size());
+                }
+            }
+            finally {
+                for (int i = shards.size() - 1; i >= 0; i--)
+                    shards.get(i).lock.unlockWrite(stamps[i]);
+            }
+        }
+        finally {
+            rebalanceLock.unlock();
+            this.invalidateCached(batch);
+            this.awaitDurable(logPosition);
+        }
+
+        for (int i = 0; i < shards.size(); i++) {
+            if (writeShares[i] > 0)
+                this.rebalance(shards.get(i), writeShares[i]);
+        }
+    }
+
+    /**
+     * Log the entries a shard took, a rejected batch is not replayed.
+     * @return the position to wait for
+     */
+    private long logInserted(List<Map.Entry<TKey, TValue>> entries) {
+        long logPosition = 0;
+        for (Map.Entry<TKey, TValue> entry : entries) {
+            logPosition = this.keepsDuplicates() ? this.logInsert(entry.getKey(), entry.getValue())
+                    : this.logPut(entry.getKey(), entry.getValue());
+        }
+        return logPosition;
+    }
+
+    @Override
+    TValue find(TKey key) {
+        while (true) {
+            Shard<TKey, TValue> shard = this.partition.shardOf(key);
+            long stamp = shard.lock.readLock();
+            try {
+                if (shard.contains(key))
+                    return shard.btree.search(key);
+            }
+            finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * The keys are grouped by shard, each shard searches its keys as a batch.
+     */
+    @Override
+    public List<TValue> searchAll(Collection<TKey> keys) {
+        List<TKey> batch = new ArrayList<>(keys);
+        List<TValue> values = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++)
+            pending.add(i);
+
+        while (!pending.isEmpty()) {
+            Partition<TKey, TValue> partition = this.partition;
+            List<Integer> indexes = pending;
+            List<List<Integer>> groups = groupByShard(partition.boundaries(), indexes.stream().map(batch::get).toList());
+            pending = new ArrayList<>();
+            for (int i = 0; i < groups.size(); i++) {
+                if (groups.get(i).isEmpty())
+                    continue;
+
+                Shard<TKey, TValue> shard = partition.shards().get(i);
+                List<Integer> shardIndexes = new ArrayList<>();
+                List<TKey> shardKeys = new ArrayList<>();
+                long stamp = shard.lock.readLock();
+                try {
+                    for (int groupIndex : groups.get(i)) {
+                        int index = indexes.get(groupIndex);
+                        if (shard.contains(batch.get(index))) {
+                            shardIndexes.add(index);
+                            shardKeys.add(batch.get(index));
+                        }
+                        else {
+                            pending.add(index);
+                        }
+                    }
+                    List<TValue> shardValues = shard.btree.searchAll(shardKeys);
+                    for (int j = 0; j < shardIndexes.size(); j++)
+                        values.set(shardIndexes.get(j), shardValues.get(j));
+                }
+                finally {
+                    shard.lock.unlockRead(stamp);
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void delete(TKey key) {
+        long start = this.startTiming();
+        long logPosition;
+        Shard<TKey, TValue> shard;
+        double writeShare;
+        while (true) {
+            shard = this.partition.shardOf(key);
+            long stamp = shard.lock.writeLock();
+            try {
+                if (!shard.contains(key))
+                    continue;
+                logPosition = this.logDelete(key);
+                shard.btree.delete(key);
+                writeShare = this.countWrites(shard, 1);
+                break;
+            }
+            finally {
+                shard.lock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition);
+        if (writeShare > 0)
+            this.rebalance(shard, writeShare);
+        this.recordLatency(LatencyRecorder.Operation.DELETE, start);
+    }
+
+    /**
+     * The update is applied by the shard of the key, under its lock, and logged by the sharded tree.
+     */
+    @Override
+    TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                        LatencyRecorder.Operation operation) {
+        long start = this.startTiming();
+        long[] logPosition = new long[1];
+        BiFunction<TKey, TValue, TValue> loggedFunction = (k, previous) -> {
+            TValue value = function.apply(k, previous);
+            logPosition[0] = this.logUpdate(k, previous, value);
+            return value;
+        };
+        TValue result;
+        Shard<TKey, TValue> shard;
+        double writeShare;
+        while (true) {
+            shard = this.partition.shardOf(key);
+            long stamp = shard.lock.writeLock();
+            try {
+                if (!shard.contains(key))
+                    continue;
+                result = shard.btree.update(key, loggedFunction, returnsNew, operation);
+                writeShare = this.countWrites(shard, 1);
+                break;
+            }
+            finally {
+                shard.lock.unlockWrite(stamp);
+            }
+        }
+        this.invalidateCached(key);
+        this.awaitDurable(logPosition[0]);
+        if (writeShare > 0)
+            this.rebalance(shard, writeShare);
+        this.recordLatency(operation, start);
+        return result;
+    }
+
+    /**
+     * Indexes of the keys grouped by the shard which holds them, in the order of the keys.
+     */
+    private static <TKey extends Comparable<TKey>> List<List<Integer>> groupByShard(List<TKey> boundaries, List<TKey> keys) {
+        List<List<Integer>> groups = new ArrayList<>(boundaries.size() + 1);
+        for (int i = 0; i <= boundaries.size(); i++)
+            groups.add(new ArrayList<>());
+        for (int i = 0; i < keys.size(); i++)
+            groups.get(shardIndex(boundaries, keys.get(i))).add(i);
+        return groups;
+    }
+
+    /**
+     * Index of the shard of a key : the number of boundaries lower than or equal to it.
+     */
+    private static <TKey extends Comparable<TKey>> int shardIndex(List<TKey> boundaries, TKey key) {
+        int low = 0;
+        int high = boundaries.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (boundaries.get(middle).compareTo(key) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /* The codes below rebalance the shards */
+
+    /**
+     * Count writes applied to a shard, under its write lock.
+     * @return the part of the writes of all the shards the shard took since its last check when it is due
+     * for a check, 0 otherwise
+     */
+    private double countWrites(Shard<TKey, TValue> shard, int writes) {
+        this.writeCount.add(writes);
+        shard.writesSinceCheck += writes;
+        if (shard.writesSinceCheck < REBALANCE_CHECK_INTERVAL
+                || shard.writesSinceCheck < entryCountOf(shard) / 4)
+            return 0;
+
+        long writeCount = this.writeCount.sum();
+        double writeShare = (double) shard.writesSinceCheck / Math.max(1, writeCount - shard.writeCountAtCheck);
+        shard.writesSinceCheck = 0;
+        shard.writeCountAtCheck = writeCount;
+        return writeShare;
+    }
+
+    /**
+     * Split a shard, or move entries to its smaller neighbour, when it is too large or too hot.
+     * Called without any lock : the checked shard may have been rebalanced meanwhile.
+     */
+    private void rebalance(Shard<TKey, TValue> shard, double writeShare) {
+        // a rebalancing is already running, the shard is checked again after its next writes
+        if (!rebalanceLock.tryLock())
+            return;
+        try {
+            List<Shard<TKey, TValue>> shards = this.partition.shards();
+            int index = shards.indexOf(shard);
+            long entryCount = entryCountOf(shard);
+            if (entryCount < MIN_REBALANCED_ENTRIES)
+                return;
+            if (shards.size() < shardCount) {
+                this.split(index);
+                return;
+            }
+
+            Shard<TKey, TValue> left = index > 0 ? shards.get(index - 1) : null;
+            Shard<TKey, TValue> right = index < shards.size() - 1 ? shards.get(index + 1) : null;
+            if (left == null && right == null)
+                return;
+            boolean toRight = left == null || (right != null && entryCountOf(right) <= entryCountOf(left));
+            Shard<TKey, TValue> neighbour = toRight ? right : left;
+            long neighbourEntryCount = entryCountOf(neighbour);
+
+            if (writeShare * shards.size() > IMBALANCE)
+                this.moveEntries(shard, neighbour, toRight, entryCount / 2);
+            else if (entryCount > IMBALANCE * this.averageEntryCount() && neighbourEntryCount < entryCount)
+                this.moveEntries(shard, neighbour, toRight, (entryCount - neighbourEntryCount) / 2);
+            else
+                return;
+            this.spread(index + (toRight ? 1 : -1), toRight);
+        }
+        finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Pass entries on from a shard which received some to the next shards in the same direction, while it is too large
+     * (the neighbour of a hot range at the edge of the keys, for instance). A shard only gives entries when it doubled
+     * since it was last rebuilt, so that rebuilding it is paid by the entries it received.
+     */
+    private void spread(int index, boolean toRight) {
+        List<Shard<TKey, TValue>> shards = this.partition.shards();
+        for (int i = index; toRight ? i < shards.size() - 1 : i > 0; i += toRight ? 1 : -1) {
+            Shard<TKey, TValue> shard = shards.get(i);
+            Shard<TKey, TValue> next = shards.get(toRight ? i + 1 : i - 1);
+            long entryCount = entryCountOf(shard);
+            long nextEntryCount = entryCountOf(next);
+            if (entryCount <= IMBALANCE * this.averageEntryCount() || entryCount < 2 * shard.entryCountAtRebuild
+                    || nextEntryCount >= entryCount)
+                return;
+            this.moveEntries(shard, next, toRight, (entryCount - nextEntryCount) / 2);
+        }
+    }
+
+    private static long entryCountOf(Shard<?, ?> shard) {
+        return shard.btree.getStatistics().getEntryCount();
+    }
+
+    private long averageEntryCount() {
+        List<Shard<TKey, TValue>> shards = this.partition.shards();
+        return shards.stream().mapToLong(ShardedBtree::entryCountOf).sum() / shards.size();
+    }
+
+    /**
+     * Split a shard at its median key, the upper half becomes a new shard.
+     */
+    private void split(int index) {
+        Shard<TKey, TValue> shard = this.partition.shards().get(index);
+        long stamp = shard.lock.writeLock();
+        try {
+            List<Map.Entry<TKey, TValue>> entries = entriesOf(shard.btree);
+            int cut = firstOfKey(entries, entries.size() / 2);
+            if (cut == 0)
+                return;
+
+            TKey boundary = entries.get(cut).getKey();
+            Shard<TKey, TValue> upperShard = new Shard<>(loadShard(entries.subList(cut, entries.size()), this.getConfig()),
+                    boundary, shard.upperBound);
+            upperShard.writeCountAtCheck = this.writeCount.sum();
+            shard.setBtree(this.rebuild(shard.btree, entries.subList(0, cut)));
+            shard.upperBound = boundary;
+
+            List<Shard<TKey, TValue>> shards = new ArrayList<>(this.partition.shards());
+            shards.add(index + 1, upperShard);
+            this.partition = Partition.of(shards);
+        }
+        finally {
+            shard.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Move about count entries of a shard, its greatest or smallest ones, to a neighbour.
+     * @param toRight whether the neighbour is the next shard, which takes the greatest entries
+     */
+    private void moveEntries(Shard<TKey, TValue> shard, Shard<TKey, TValue> neighbour, boolean toRight, long count) {
+        // shards are locked in key order, as snapshots lock them
+        Shard<TKey, TValue> first = toRight ? shard : neighbour;
+        Shard<TKey, TValue> second = toRight ? neighbour : shard;
+        long firstStamp = first.lock.writeLock();
+        long secondStamp = second.lock.writeLock();
+        try {
+            List<Map.Entry<TKey, TValue>> entries = entriesOf(shard.btree);
+            int cut = firstOfKey(entries, (int) (toRight ? entries.size() - count : count));
+            if (cut == 0)
+                return;
+
+            TKey boundary = entries.get(cut).getKey();
+            List<Map.Entry<TKey, TValue>> moved = new ArrayList<>(toRight ? entries.subList(cut, entries.size()) : entries.subList(0, cut));
+            List<Map.Entry<TKey, TValue>> kept = toRight ? entries.subList(0, cut) : entries.subList(cut, entries.size());
+            // inserted from the last, so that equal keys keep their order as each insert goes before the equal keys
+            Collections.reverse(moved);
+            // the keys moved are not in the neighbour, the duplicates of a key moved together are kept whatever the policy
+            neighbour.btree.insertBatch(moved, BtreeConfig.DuplicateKeyPolicy.MULTI_VALUE);
+            shard.setBtree(this.rebuild(shard.btree, kept));
+            if (toRight) {
+                shard.upperBound = boundary;
+                neighbour.lowerBound = boundary;
+            }
+            else {
+                neighbour.upperBound = boundary;
+                shard.lowerBound = boundary;
+            }
+            this.partition = Partition.of(this.partition.shards());
+        }
+        finally {
+            second.lock.unlockWrite(secondStamp);
+            first.lock.unlockWrite(firstStamp);
+        }
+    }
+
+    /**
+     * A tree of the entries a shard keeps, which takes over the counts of the structural changes of its previous tree.
+     */
+    private Btree<TKey, TValue> rebuild(Btree<TKey, TValue> btree, List<Map.Entry<TKey, TValue>> sortedEntries) {
+        Btree<TKey, TValue> rebuilt = loadShard(sortedEntries, this.getConfig());
+        rebuilt.getStatistics().addChanges(btree.getStatistics());
+        return rebuilt;
+    }
+
+    private static <TKey extends Comparable<TKey>, TValue> List<Map.Entry<TKey, TValue>> entriesOf(Btree<TKey, TValue> btree) {
+        List<Map.Entry<TKey, TValue>> entries = new ArrayList<>();
+        BtreeCursor<TKey, TValue> cursor = btree.range(null, true, null, true);
+        while (cursor.hasNext())
+            entries.add(cursor.next());
+        return entries;
+    }
+
+    /**
+     * Move a cut back to the first entry of its key, so that equal keys are not separated.
+     * @return the cut, 0 when it can not separate the entries : the entries before it all have its key, or it is past them
+     */
+    private static <TKey extends Comparable<TKey>, TValue> int firstOfKey(List<Map.Entry<TKey, TValue>> entries, int cut) {
+        if (cut >= entries.size())
+            return 0;
+        while (cut > 0 && entries.get(cut - 1).getKey().compareTo(entries.get(cut).getKey()) == 0)
+            cut--;
+        return cut;
+    }
+
+    /* The codes below read all the shards at once */
+
+    /**
+     * Snapshots of all the shards, taken while no shard is updated : a consistent view of the whole tree.
+     */
+    @Override
+    public Btree<TKey, TValue> snapshot() {
+        rebalanceLock.lock();
+        try {
+            List<Shard<TKey, TValue>> shards = this.partition.shards();
+            long[] stamps = new long[shards.size()];
+            for (int i = 0; i < shards.size(); i++)
+                stamps[i] = shards.get(i).lock.writeLock();
+            try {
+                List<Btree<TKey, TValue>> snapshots = new ArrayList<>(shards.size());
+                for (Shard<TKey, TValue> shard : shards)
+                    snapshots.add(shard.btree.snapshot());
+                return new ShardedSnapshot<>(this.getConfig(), this.partition.boundaries(), snapshots, this.getLogPosition());
+            }
+            finally {
+                for (int i = shards.size() - 1; i >= 0; i--)
+                    shards.get(i).lock.unlockWrite(stamps[i]);
+            }
+        }
+        finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.snapshot().range(from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.snapshot().descendingScan(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * The sum of the entry counts of the shards, no snapshot is taken.
+     */
+    @Override
+    public long size() {
+        return this.getStatistics().getEntryCount();
+    }
+
+    /**
+     * Read from a snapshot, as the ranges.
+     */
+    @Override
+    public long rank(TKey key) {
+        return this.snapshot().rank(key);
+    }
+
+    @Override
+    public Map.Entry<TKey, TValue> select(long index) {
+        return this.snapshot().select(index);
+    }
+
+    @Override
+    public long count(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+        return this.snapshot().count(from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        return this.snapshot().range(from, fromInclusive, to, toInclusive, offset);
+    }
+
+    @Override
+    public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive, long offset) {
+        return this.snapshot().descendingScan(from, fromInclusive, to, toInclusive, offset);
+    }
+
+    /**
+     * The sums of the statistics of the shards, read at each call.
+     */
+    @Override
+    public BtreeStatistics getStatistics() {
+        List<BtreeStatistics> statistics = new ArrayList<>();
+        for (Shard<TKey, TValue> shard : this.partition.shards())
+            statistics.add(shard.btree.getStatistics());
+        return BtreeStatistics.sum(this.getConfig(), statistics);
+    }
+
+    /**
+     * The nodes of the window are copied from each shard under its shared lock, without a snapshot. The first index
+     * of the path is the one of a shard, as in {@link ShardedSnapshot#nodeAt(List, int)}.
+     */
+    @Override
+    Node<TKey> nodeAt(List<Integer> path, int depth) {
+        // no entry moves between the shards while their nodes are copied
+        rebalanceLock.lock();
+        try {
+            Partition<TKey, TValue> partition = this.partition;
+            List<Shard<TKey, TValue>> shards = partition.shards();
+            if (shards.size() == 1)
+                return this.copyShardWindow(shards.get(0), path, depth);
+            if (path.isEmpty()) {
+                InternalNode<TKey> node = new InternalNode<>(this.getConfig());
+                for (TKey boundary : partition.boundaries())
+                    node.addKey(boundary);
+                if (depth > 0) {
+                    for (Shard<TKey, TValue> shard : shards)
+                        node.addChild(this.copyShardWindow(shard, path, depth - 1));
+                }
+                return node;
+            }
+            int shard = path.get(0);
+            if (shard < 0 || shard >= shards.size())
+                throw new IllegalArgumentException("Path must lead to a node of the tree: " + path);
+            return this.copyShardWindow(shards.get(shard), path.subList(1, path.size()), depth);
+        }
+        finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    private Node<TKey> copyShardWindow(Shard<TKey, TValue> shard, List<Integer> path, int depth) {
+        long stamp = shard.lock.readLock();
+        try {
+            return copyWindow(nodeAt(shard.btree.getRoot(), path), depth, node -> { });
+        }
+        finally {
+            shard.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The nodes of the shards merged in a single tree, see {@link ShardedSnapshot#getRoot()}.
+     */
+    @Override
+    Node<TKey> getRoot() {
+        return this.snapshot().getRoot();
+    }
+
+    @Override
+    public void setRoot(Node<TKey> root) {
+        throw new UnsupportedOperationException("The nodes of a sharded tree are the ones of its shards");
+    }
+
+    /**
+     * Number of shards the tree is split into now.
+     */
+    public int getShardCount() {
+        return this.partition.shards().size();
+    }
+
+    @Override
+    public String toString() {
+        return this.snapshot().toString();
+    }
+
+    /**
+     * A shard : the tree of the keys between its bounds, and the lock which guards both.
+     */
+    private static final class Shard<TKey extends Comparable<TKey>, TValue> {
+        private final StampedLock lock = new StampedLock();
+        /** Replaced by a rebuilt tree when the shard gives entries to another one */
+        private volatile Btree<TKey, TValue> btree;
+        /** The keys of the shard are greater than or equal to the lower bound and lower than the upper one, null when unbounded */
+        private TKey lowerBound;
+        private TKey upperBound;
+
+        // counted under the write lock
+        private int writesSinceCheck;
+        private long writeCountAtCheck;
+        /** Entries of the tree when it was built */
+        private long entryCountAtRebuild;
+
+        private Shard(Btree<TKey, TValue> btree, TKey lowerBound, TKey upperBound) {
+            this.setBtree(btree);
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        private void setBtree(Btree<TKey, TValue> btree) {
+            this.btree = btree;
+            this.entryCountAtRebuild = btree.getStatistics().getEntryCount();
+        }
+
+        private boolean contains(TKey key) {
+            return (lowerBound == null || key.compareTo(lowerBound) >= 0) && (upperBound == null || key.compareTo(upperBound) < 0);
+        }
+    }
+
+    /**
+     * The shards in key order and the lower bound of each shard but the first, replaced as a whole when they change.
+     */
+    private record Partition<TKey extends Comparable<TKey>, TValue>(List<TKey> boundaries, List<Shard<TKey, TValue>> shards) {
+        private static <TKey extends Comparable<TKey>, TValue> Partition<TKey, TValue> of(List<Shard<TKey, TValue>> shards) {
+            List<TKey> boundaries = new ArrayList<>(shards.size() - 1);
+            for (int i = 1; i < shards.size(); i++)
+                boundaries.add(shards.get(i).lowerBound);
+            return new Partition<>(Collections.unmodifiableList(boundaries), List.copyOf(shards));
+        }
+
+        private Shard<TKey, TValue> shardOf(TKey key) {
+            return shards.get(shardIndex(boundaries, key));
+        }
+    }
+
+    /**
+     * Read-only view returned by {@link ShardedBtree#snapshot()} : a snapshot of each shard and the boundaries between them.
+     */
+    private static final class ShardedSnapshot<TKey extends Comparable<TKey>, TValue> extends Btree<TKey, TValue> {
+        private final List<TKey> boundaries;
+        private final List<Btree<TKey, TValue>> shards;
+        private final long logPosition;
+        /** The shards merged in a single tree, built the first time the nodes are asked for */
+        private volatile Btree<TKey, TValue> merged;
+
+        private ShardedSnapshot(BtreeConfig config, List<TKey> boundaries, List<Btree<TKey, TValue>> shards, long logPosition) {
+            super(config, null, 0);
+            this.boundaries = boundaries;
+            this.shards = shards;
+            this.logPosition = logPosition;
+        }
+
+        @Override
+        public void insert(TKey key, TValue value) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        public void insertAll(Collection<? extends Map.Entry<TKey, TValue>> entries) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        public void delete(TKey key) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        TValue update(TKey key, BiFunction<? super TKey, ? super TValue, ? extends TValue> function, boolean returnsNew,
+                            LatencyRecorder.Operation operation) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        public void setRoot(Node<TKey> root) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        public void setLog(WriteAheadLog<TKey, TValue> log) {
+            throw new UnsupportedOperationException("A snapshot is read-only");
+        }
+
+        @Override
+        long getLogPosition() {
+            return logPosition;
+        }
+
+        @Override
+        public Btree<TKey, TValue> snapshot() {
+            return this;
+        }
+
+        @Override
+        public TValue search(TKey key) {
+            return shards.get(shardIndex(boundaries, key)).search(key);
+        }
+
+        @Override
+        public List<TValue> searchAll(Collection<TKey> keys) {
+            List<TKey> batch = new ArrayList<>(keys);
+            List<TValue> values = new ArrayList<>(Collections.nCopies(batch.size(), null));
+            List<List<Integer>> groups = groupByShard(boundaries, batch);
+            for (int i = 0; i < groups.size(); i++) {
+                List<TValue> shardValues = shards.get(i).searchAll(groups.get(i).stream().map(batch::get).toList());
+                for (int j = 0; j < shardValues.size(); j++)
+                    values.set(groups.get(i).get(j), shardValues.get(j));
+            }
+            return values;
+        }
+
+        @Override
+        public BtreeCursor<TKey, TValue> range(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+            return this.cursor(false, from, fromInclusive, to, toInclusive);
+        }
+
+        @Override
+        public BtreeCursor<TKey, TValue> descendingScan(TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+            return this.cursor(true, from, fromInclusive, to, toInclusive);
+        }
+
+        /**
+         * The entries of the shards before the shard of the key, and the ones lower than the key in its shard.
+         */
+        @Override
+        long countBefore(TKey key, boolean inclusive) {
+            int shard = shardIndex(boundaries, key);
+            long count = 0;
+            for (int i = 0; i < shard; i++)
+                count += shards.get(i).size();
+            return count + shards.get(shard).countBefore(key, inclusive);
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (Btree<TKey, TValue> shard : shards)
+                size += shard.size();
+            return size;
+        }
+
+        /**
+         * Cursor from the position in the shard holding it, which then walks the neighbour shards.
+         */
+        @Override
+        BtreeCursor<TKey, TValue> cursorAt(long position, boolean descending, TKey to, boolean toInclusive) {
+            int shard = 0;
+            while (shard < shards.size() - 1 && position >= shards.get(shard).size()) {
+                position -= shards.get(shard).size();
+                shard++;
+            }
+            ShardNavigator navigator = new ShardNavigator(shard);
+            LeafNode<TKey, TValue> leaf = navigator.path.descendToPosition(position);
+            return BtreeCursor.overLeaves(navigator, leaf, navigator.path.getIndexInLeaf(), descending, to, toInclusive);
+        }
+
+        /**
+         * Cursor which starts in the shard of the first bound, then walks the next shards (previous ones when descending)
+         * from leaf to leaf : shards hold consecutive ranges, their entries follow each other in key order.
+         */
+        private BtreeCursor<TKey, TValue> cursor(boolean descending, TKey from, boolean fromInclusive, TKey to, boolean toInclusive) {
+            int shard = from != null ? shardIndex(boundaries, from) : descending ? shards.size() - 1 : 0;
+            ShardNavigator navigator = new ShardNavigator(shard);
+            LeafNode<TKey, TValue> leaf;
+            int index;
+            if (from == null) {
+                leaf = navigator.path.descendToEdge(descending);
+                index = descending ? leaf.getKeyCount() - 1 : 0;
+            }
+            else {
+                // as a cursor of a single snapshot, see BtreeCursor.fromRoot
+                boolean lowerBound = descending != fromInclusive;
+                leaf = navigator.path.descend(from, lowerBound);
+                index = (lowerBound ? leaf.lowerBound(from) : leaf.upperBound(from)) - (descending ? 1 : 0);
+            }
+            return BtreeCursor.overLeaves(navigator, leaf, index, descending, to, toInclusive);
+        }
+
+        /**
+         * Moves from leaf to leaf through the parents inside a shard, then to the edge of the neighbour shard.
+         */
+        private final class ShardNavigator implements LeafNavigator<TKey, TValue> {
+            private int shard;
+            private LeafPath<TKey, TValue> path;
+
+            private ShardNavigator(int shard) {
+                this.shard = shard;
+                this.path = new LeafPath<>(shards.get(shard).getRoot());
+            }
+
+            @Override
+            public LeafNode<TKey, TValue> nextLeaf() {
+                LeafNode<TKey, TValue> leaf = path.nextLeaf();
+                while (leaf == null && shard < shards.size() - 1) {
+                    path = new LeafPath<>(shards.get(++shard).getRoot());
+                    leaf = path.descendToEdge(false);
+                }
+                return leaf;
+            }
+
+            @Override
+            public LeafNode<TKey, TValue> previousLeaf() {
+                LeafNode<TKey, TValue> leaf = path.previousLeaf();
+                while (leaf == null && shard > 0) {
+                    path = new LeafPath<>(shards.get(--shard).getRoot());
+                    leaf = path.descendToEdge(true);
+                }
+                return leaf;
+            }
+        }
+
+        /**
+         * The roots of the shards under a node of the boundaries, the first index of the path being the one of a shard :
+         * a window reads the nodes of the shards themselves, the shards are not merged. A single shard is its own root.
+         */
+        @Override
+        Node<TKey> nodeAt(List<Integer> path, int depth) {
+            if (shards.size() == 1)
+                return nodeAt(shards.get(0).getRoot(), path);
+            if (path.isEmpty()) {
+                InternalNode<TKey> node = new InternalNode<>(this.getConfig());
+                for (TKey boundary : boundaries)
+                    node.addKey(boundary);
+                // the roots are shared with the shards, they keep no parent
+                for (Btree<TKey, TValue> shard : shards)
+                    node.addSharedChild(shard.getRoot());
+                return node;
+            }
+            int shard = path.get(0);
+            if (shard < 0 || shard >= shards.size())
+                throw new IllegalArgumentException("Path must lead to a node of the tree: " + path);
+            return nodeAt(shards.get(shard).getRoot(), path.subList(1, path.size()));
+        }
+
+        /**
+         * The entries of the shards bulk loaded in a single tree : the nodes of the shards can not be linked
+         * together, the JSON of the tree is written from these ones.
+         */
+        @Override
+        Node<TKey> getRoot() {
+            return this.merged().getRoot();
+        }
+
+        @Override
+        long getEpoch() {
+            return this.merged().getEpoch();
+        }
+
+        private Btree<TKey, TValue> merged() {
+            Btree<TKey, TValue> merged = this.merged;
+            if (merged == null) {
+                // a snapshot of the merged tree : a tree taking over its nodes copies them before updating them
+                merged = Btree.bulkLoad(this.range(null, true, null, true), DEFAULT_FILL_FACTOR, this.getConfig().withoutLookupCache())
+                        .snapshot();
+                this.merged = merged;
+            }
+            return merged;
+        }
+
+        @Override
+        BtreeStatistics countStatistics() {
+            List<BtreeStatistics> statistics = new ArrayList<>();
+            for (Btree<TKey, TValue> shard : shards)
+                statistics.add(shard.getStatistics());
+            return BtreeStatistics.sum(this.getConfig(), statistics);
+        }
+
+        @Override
+        public String toString() {
+            return this.getRoot().toString();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package fr.miage.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the updates of a tree, so that they survive a crash without rewriting the whole tree.
+ *
+ * A tree with a log (see {@link Btree#setLog(WriteAheadLog)}) appends each insert, put and delete to the log while it
+ * applies it, so records are in the order the updates were applied, then waits until the record is durable as the
+ * {@link SyncPolicy} requires before it returns. Writers waiting for a sync are committed as a group : the first
+ * one forces the file for all the records appended so far, the others find theirs already durable.
+ *
+ * The log starts at a checkpoint : a saved snapshot of the tree (or none for an empty tree), and the position of the
+ * log it matches. Recovery loads the snapshot and replays the records. Positions are counted from the creation of
+ * the log, a checkpoint drops the records before its position.
+ */
+public class WriteAheadLog<TKey extends Comparable<TKey>, TValue> implements Closeable {
+    private static final int MAGIC = 0x42505457; // "BPTW"
+    private static final int VERSION = 1;
+
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    /** The value of a key replaced, or inserted when it is missing */
+    private static final byte PUT = 3;
+    /** Length and checksum of the record */
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * When the records appended by writers are forced to the disk.
+     */
+    public static final class SyncPolicy {
+        private final Duration interval;
+        private final long bytes;
+
+        private SyncPolicy(Duration interval, long bytes) {
+            this.interval = interval;
+            this.bytes = bytes;
+        }
+
+        /** Each update returns once its record is durable, concurrent writers share the syncs */
+        public static SyncPolicy everyWrite() {
+            return new SyncPolicy(null, 0);
+        }
+
+        /** Records are forced in the background : the updates of the last interval may be lost by a crash */
+        public static SyncPolicy every(Duration interval) {
+            if (interval.isNegative() || interval.isZero())
+                throw new IllegalArgumentException("Sync interval must be positive: " + interval);
+            return new SyncPolicy(interval, 0);
+        }
+
+        /** The writer which appends the given number of bytes since the last sync forces them, the others do not wait */
+        public static SyncPolicy everyBytes(long bytes) {
+            if (bytes <= 0)
+                throw new IllegalArgumentException("Sync size must be positive: " + bytes);
+            return new SyncPolicy(null, bytes);
+        }
+    }
+
+    private final Path file;
+    private final PageCodec<TKey> keyCodec;
+    private final PageCodec<TValue> valueCodec;
+    private final SyncPolicy syncPolicy;
+    private final ScheduledExecutorService syncer;
+
+    private FileChannel channel;
+    private Path snapshotFile;
+    /** Position of the first record in the file */
+    private long startPosition;
+    /** Position of the end of the header in the file */
+    private long headerBytes;
+
+    // records are appended to the buffer, which is written to the channel when it is full or before a sync
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private long appendedPosition;
+    private long recordCount;
+    private final CRC32 crc = new CRC32();
+
+    /** Syncs are serialized on this lock, writers waiting for it join the next group */
+    private final Object syncLock = new Object();
+    private volatile long durablePosition;
+    private long syncCount;
+
+    private WriteAheadLog(Path file, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec, SyncPolicy syncPolicy) {
+        this.file = file;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.syncPolicy = syncPolicy;
+        this.syncer = syncPolicy.interval == null ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the log of a file, or create an empty one.
+     * The records are not read : {@link #replay(Btree)} applies them to the tree loaded from the snapshot.
+     */
+    public static <TKey extends Comparable<TKey>, TValue> WriteAheadLog<TKey, TValue> open(
+            Path file, PageCodec<TKey> keyCodec, PageCodec<TValue> valueCodec, SyncPolicy syncPolicy) throws IOException {
+        WriteAheadLog<TKey, TValue> log = new WriteAheadLog<>(file, keyCodec, valueCodec, syncPolicy);
+        if (Files.exists(file) && Files.size(file) > 0) {
+            log.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                log.readHeader();
+            }
+            catch (IOException e) {
+                log.channel.close();
+                throw e;
+            }
+        }
+        else {
+            log.channel = writeHeader(file, 0, null);
+            log.headerBytes = log.channel.size();
+        }
+        log.appendedPosition = log.startPosition + log.channel.size() - log.headerBytes;
+        log.durablePosition = log.appendedPosition;
+
+        if (log.syncer != null) {
+            long intervalMillis = Math.max(1, syncPolicy.interval.toMillis());
+            log.syncer.scheduleWithFixedDelay(log::syncInBackground, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return log;
+    }
+
+    /**
+     * The snapshot the records apply to, null when they apply to an empty tree.
+     */
+    public Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Apply the records of the log to the tree loaded from the snapshot, which must not have a log yet.
+     * A record torn by a crash ends the log : it is cut there.
+     * @return the number of records applied
+     */
+    public synchronized long replay(Btree<TKey, TValue> btree) throws IOException {
+        long applied = 0;
+        long position = headerBytes;
+        long end = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(BUFFER_BYTES);
+        while (position + RECORD_HEADER_BYTES <= end) {
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            readFully(recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > end)
+                break;
+            if (record.capacity() < length)
+                record = ByteBuffer.allocate(length);
+            record.clear().limit(length);
+            readFully(record, position + RECORD_HEADER_BYTES);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != recordHeader.getInt(4))
+                break;
+
+            TKey key = keyCodec.read(record, 1);
+            byte type = record.get(0);
+            if (type == DELETE)
+                btree.delete(key);
+            else if (type == PUT)
+                btree.put(key, valueCodec.read(record, 1 + keyCodec.length(record, 1)));
+            else
+                btree.insert(key, valueCodec.read(record, 1 + keyCodec.length(record, 1)));
+            applied++;
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        if (position < end) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        appendedPosition = startPosition + position - headerBytes;
+        durablePosition = appendedPosition;
+        return applied;
+    }
+
+    /* The codes below append records */
+
+    long appendInsert(TKey key, TValue value) {
+        return this.append(INSERT, key, value);
+    }
+
+    long appendDelete(TKey key) {
+        return this.append(DELETE, key, null);
+    }
+
+    long appendPut(TKey key, TValue value) {
+        return this.append(PUT, key, value);
+    }
+
+    /**
+     * @return the position of the end of the record, to wait for with {@link #awaitDurable(long)}
+     */
+    private synchronized long append(byte type, TKey key, TValue value) {
+        int keyBytes = keyCodec.size(key);
+        int length = 1 + keyBytes + (type != DELETE ? valueCodec.size(value) : 0);
+        int recordBytes = RECORD_HEADER_BYTES + length;
+        if (buffer.remaining() < recordBytes) {
+            this.writeBuffer();
+            if (buffer.capacity() < recordBytes)
+                buffer = ByteBuffer.allocate(recordBytes);
+        }
+
+        // the payload is encoded after the header, then checksummed
+        int start = buffer.position();
+        int payload = start + RECORD_HEADER_BYTES;
+        buffer.put(payload, type);
+        keyCodec.write(buffer, payload + 1, key);
+        if (type != DELETE)
+            valueCodec.write(buffer, payload + 1 + keyBytes, value);
+        crc.reset();
+        crc.update(buffer.array(), payload, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.position(start + recordBytes);
+
+        recordCount++;
+        appendedPosition += recordBytes;
+        return appendedPosition;
+    }
+
+    /**
+     * Wait until the record ending at the given position is durable, as required by the sync policy.
+     */
+    void awaitDurable(long position) {
+        if (syncPolicy.interval != null)
+            return;
+        if (syncPolicy.bytes > 0 && position - durablePosition < syncPolicy.bytes)
+            return;
+        this.sync(position);
+    }
+
+    /**
+     * Force the records up to the given position to the disk, along with the ones appended meanwhile.
+     */
+    private void sync(long position) {
+        if (durablePosition >= position)
+            return;
+        synchronized (syncLock) {
+            // the previous sync may have covered the record
+            if (durablePosition >= position)
+                return;
+            long target;
+            synchronized (this) {
+                this.writeBuffer();
+                target = appendedPosition;
+            }
+            try {
+                channel.force(false);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Can not sync the log", e);
+            }
+            durablePosition = target;
+            syncCount++;
+        }
+    }
+
+    private void syncInBackground() {
+        try {
+            this.sync(this.getAppendedPosition());
+        }
+        catch (RuntimeException e) {
+            // the next run retries, an update never waits for these syncs
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Can not write the log", e);
+        }
+        finally {
+            buffer.clear();
+        }
+    }
+
+    synchronized long getAppendedPosition() {
+        return appendedPosition;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Number of times the file was forced : with concurrent writers, one sync commits a group of records.
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    /* The codes below maintain the file */
+
+    /**
+     * Start the log at a snapshot of the tree : the records before its position are dropped.
+     * @param position the position of the log when the snapshot was taken, see {@link Btree#getLogPosition()}
+     * @param snapshotFile the file the snapshot was saved to, null for an empty tree
+     */
+    public void checkpoint(long position, Path snapshotFile) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (position < startPosition || position > appendedPosition)
+                    throw new IllegalArgumentException("Position " + position + " is not in the log ["
+                            + startPosition + ", " + appendedPosition + "]");
+                this.writeBuffer();
+
+                // the records after the snapshot are copied to a new log, which then replaces this one
+                Path checkpointFile = file.resolveSibling(file.getFileName() + ".checkpoint");
+                FileChannel checkpointChannel = writeHeader(checkpointFile, position, snapshotFile);
+                long newHeaderBytes = checkpointChannel.size();
+                try {
+                    long from = headerBytes + position - startPosition;
+                    long to = channel.size();
+                    while (from < to)
+                        from += channel.transferTo(from, to - from, checkpointChannel);
+                    checkpointChannel.force(false);
+                }
+                finally {
+                    checkpointChannel.close();
+                }
+                Files.move(checkpointFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                this.snapshotFile = snapshotFile;
+                this.startPosition = position;
+                this.headerBytes = newHeaderBytes;
+                durablePosition = appendedPosition;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null)
+            syncer.shutdown();
+        this.sync(this.getAppendedPosition());
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Create a log file holding only a header, its channel is positioned after it.
+     */
+    private static FileChannel writeHeader(Path file, long startPosition, Path snapshotFile) throws IOException {
+        byte[] snapshotPath = snapshotFile == null ? new byte[0]
+                : snapshotFile.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 4 + snapshotPath.length);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startPosition).putInt(snapshotPath.length).put(snapshotPath);
+        header.flip();
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        while (header.hasRemaining())
+            channel.write(header);
+        channel.force(false);
+        return channel;
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 4);
+        readFully(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException("Not a log file, or written by another version: " + file);
+        this.startPosition = header.getLong(8);
+
+        ByteBuffer snapshotPath = ByteBuffer.allocate(header.getInt(16));
+        readFully(snapshotPath, header.capacity());
+        this.snapshotFile = snapshotPath.capacity() == 0 ? null
+                : Paths.get(new String(snapshotPath.array(), StandardCharsets.UTF_8));
+        this.headerBytes = header.capacity() + snapshotPath.capacity();
+        channel.position(channel.size());
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        target.position(0);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0)
+                throw new IOException("Unexpected end of the log: " + file);
+        }
+    }
+}
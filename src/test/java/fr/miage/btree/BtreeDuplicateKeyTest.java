@@ -0,0 +1,268 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Trees keeping duplicates (the default policy) against a reference model : the entries of each key, newest first.
+ * Small orders make the duplicates of a key span several leaves, which splits, borrows and merges then move around.
+ */
+class BtreeDuplicateKeyTest {
+
+    @Test
+    void searchFindsTheDuplicatesASplitLeftInThePreviousLeaf() {
+        Btree<Integer, String> btree = new Btree<>(3);
+        Model model = new Model();
+        for (int i = 0; i < 300; i++)
+            model.insert(btree, i % 7, "v" + i);
+
+        model.check(btree);
+        // every key spans several leaves, and some start at the end of a leaf followed by an equal separator
+        assertTrue(btree.getStatistics().getLeafCount() > 7 * 2);
+    }
+
+    @Test
+    void deleteRemovesEveryEntryAndCollapsesTheTree() {
+        for (int order = 3; order <= 6; order++) {
+            Btree<Integer, String> btree = new Btree<>(order);
+            Model model = new Model();
+            Random random = new Random(order);
+            for (int i = 0; i < 2000; i++)
+                model.insert(btree, random.nextInt(40), "v" + i);
+
+            // delete each key in turn, an entry at a time, until the tree is empty
+            while (!model.isEmpty()) {
+                int key = model.randomKey(random);
+                model.delete(btree, key);
+                if (model.size() % 97 == 0)
+                    model.check(btree);
+            }
+            model.check(btree);
+            assertEquals(0, btree.size());
+            assertEquals(1, btree.getStatistics().getHeight());
+            assertEquals(1, btree.getStatistics().getNodeCount());
+        }
+    }
+
+    @Test
+    void updatesChangeTheEntrySearchReturns() {
+        Btree<Integer, String> btree = new Btree<>(4);
+        Model model = new Model();
+        for (int i = 0; i < 400; i++)
+            model.insert(btree, i % 5, "v" + i);
+
+        for (int key = 0; key < 5; key++) {
+            String previous = model.first(key);
+            assertEquals(previous, btree.put(key, "put" + key));
+            model.replaceFirst(key, "put" + key);
+            assertEquals("put" + key + "!", btree.merge(key, "!", String::concat));
+            model.replaceFirst(key, "put" + key + "!");
+        }
+        model.check(btree);
+
+        // a null result removes the entry search returned, the next one of the key is then found
+        for (int key = 0; key < 5; key++) {
+            assertNull(btree.compute(key, (k, value) -> null));
+            model.delete(key);
+        }
+        model.check(btree);
+    }
+
+    @Test
+    void randomUpdatesMatchTheModel() {
+        for (int seed = 0; seed < 12; seed++) {
+            Random random = new Random(seed);
+            BtreeConfig config = new BtreeConfig(3 + random.nextInt(5), 3 + random.nextInt(5));
+            Btree<Integer, String> btree = seed % 2 == 0 ? new Btree<>(config) : new ConcurrentBtree<>(config);
+            runRandomUpdates(btree, random, "seed " + seed);
+        }
+    }
+
+    @Test
+    void snapshotsKeepTheDuplicatesOfTheirEpoch() {
+        Btree<Integer, String> btree = new Btree<>(3);
+        Model model = new Model();
+        Random random = new Random(7);
+        List<Btree<Integer, String>> snapshots = new ArrayList<>();
+        List<Model> snapshotModels = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(30);
+            if (random.nextInt(3) == 0 && model.contains(key))
+                model.delete(btree, key);
+            else
+                model.insert(btree, key, "v" + i);
+            if (i % 500 == 0) {
+                // the nodes shared with the snapshot are copied by the next updates, duplicates included
+                snapshots.add(btree.snapshot());
+                snapshotModels.add(model.copy());
+            }
+        }
+
+        model.check(btree);
+        for (int i = 0; i < snapshots.size(); i++)
+            snapshotModels.get(i).check(snapshots.get(i));
+    }
+
+    @Test
+    void batchInsertsPutTheDuplicatesWhereSingleInsertsDo() {
+        Random random = new Random(3);
+        for (int order = 3; order <= 5; order++) {
+            Btree<Integer, String> batched = new Btree<>(order);
+            Btree<Integer, String> single = new Btree<>(order);
+            Model model = new Model();
+            for (int round = 0; round < 40; round++) {
+                List<Map.Entry<Integer, String>> batch = new ArrayList<>();
+                for (int i = 0; i < 25; i++)
+                    batch.add(Map.entry(random.nextInt(20), "v" + round + "." + i));
+                batched.insertAll(batch);
+                for (Map.Entry<Integer, String> entry : batch)
+                    model.insert(single, entry.getKey(), entry.getValue());
+
+                // deletes leave stale separators equal to keys of the next batches
+                for (int i = 0; i < 10; i++) {
+                    int key = model.randomKey(random);
+                    batched.delete(key);
+                    model.delete(single, key);
+                }
+            }
+            model.check(single);
+            model.check(batched);
+        }
+    }
+
+    /**
+     * Random inserts, deletes and updates, most of them on a few keys, checked against the model as they go.
+     */
+    private static void runRandomUpdates(Btree<Integer, String> btree, Random random, String context) {
+        Model model = new Model();
+        int keys = 1 + random.nextInt(60);
+        for (int i = 0; i < 4000; i++) {
+            int key = random.nextInt(keys);
+            switch (random.nextInt(10)) {
+                case 0, 1, 2, 3, 4 -> model.insert(btree, key, "v" + i);
+                case 5, 6 -> model.delete(btree, key);
+                case 7 -> {
+                    assertEquals(model.first(key), btree.put(key, "p" + i), context);
+                    model.replaceFirst(key, "p" + i);
+                }
+                case 8 -> {
+                    String value = btree.compute(key, (k, previous) -> previous == null || previous.length() > 6 ? null : previous + "c");
+                    String expected = model.first(key) == null || model.first(key).length() > 6 ? null : model.first(key) + "c";
+                    assertEquals(expected, value, context);
+                    if (expected == null)
+                        model.delete(key);
+                    else
+                        model.replaceFirst(key, expected);
+                }
+                default -> assertEquals(model.first(key), btree.search(key), context);
+            }
+            if (i % 500 == 0)
+                model.check(btree);
+        }
+        model.check(btree);
+
+        while (!model.isEmpty())
+            model.delete(btree, model.randomKey(random));
+        model.check(btree);
+        assertEquals(1, btree.getStatistics().getHeight(), context);
+    }
+
+    /**
+     * Entries of each key, newest first : a new entry goes before the ones of its key, and the first one is
+     * the one search returns, updates change and delete removes.
+     */
+    private static final class Model {
+        private final TreeMap<Integer, Deque<String>> entries = new TreeMap<>();
+        private int size;
+
+        void insert(Btree<Integer, String> btree, int key, String value) {
+            btree.insert(key, value);
+            this.entries.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(value);
+            this.size++;
+        }
+
+        void delete(Btree<Integer, String> btree, int key) {
+            btree.delete(key);
+            this.delete(key);
+        }
+
+        void delete(int key) {
+            Deque<String> values = this.entries.get(key);
+            if (values == null)
+                return;
+            values.removeFirst();
+            this.size--;
+            if (values.isEmpty())
+                this.entries.remove(key);
+        }
+
+        void replaceFirst(int key, String value) {
+            Deque<String> values = this.entries.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (values.isEmpty())
+                this.size++;
+            else
+                values.removeFirst();
+            values.addFirst(value);
+        }
+
+        String first(int key) {
+            Deque<String> values = this.entries.get(key);
+            return values == null ? null : values.peekFirst();
+        }
+
+        boolean contains(int key) {
+            return this.entries.containsKey(key);
+        }
+
+        boolean isEmpty() {
+            return this.entries.isEmpty();
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        int randomKey(Random random) {
+            List<Integer> keys = new ArrayList<>(this.entries.keySet());
+            return keys.get(random.nextInt(keys.size()));
+        }
+
+        Model copy() {
+            Model copy = new Model();
+            this.entries.forEach((key, values) -> copy.entries.put(key, new ArrayDeque<>(values)));
+            copy.size = this.size;
+            return copy;
+        }
+
+        /**
+         * Compare the whole tree with the model : each key, the scan of all the entries and the counts.
+         */
+        void check(Btree<Integer, String> btree) {
+            List<Map.Entry<Integer, String>> expected = new ArrayList<>();
+            this.entries.forEach((key, values) -> values.forEach(value -> expected.add(Map.entry(key, value))));
+            List<Map.Entry<Integer, String>> scanned = new ArrayList<>();
+            btree.range(null, true, null, true).forEachRemaining(entry -> scanned.add(Map.entry(entry.getKey(), entry.getValue())));
+            assertEquals(expected, scanned);
+            assertEquals(this.size, btree.size());
+
+            int maxKey = this.entries.isEmpty() ? 0 : this.entries.lastKey();
+            for (int key = 0; key <= maxKey + 1; key++) {
+                assertEquals(this.first(key), btree.search(key), "search " + key);
+                Deque<String> values = this.entries.get(key);
+                assertEquals(values == null ? List.of() : new ArrayList<>(values), btree.searchValues(key), "values of " + key);
+                assertEquals(values == null ? 0 : values.size(), btree.count(key, true, key, true), "count of " + key);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package fr.miage.btree;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Windows walked from the root down to every leaf render all the entries of the tree in key order,
+ * whatever the tree keeps its nodes in.
+ */
+class BtreeWindowTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void windowsOfAShardedTreeRenderItsShards() throws IOException {
+        ShardedBtree<String, String> btree = new ShardedBtree<>(new BtreeConfig(8, 8), 4);
+        List<String> keys = insertKeys(btree, 30_000);
+        assertEquals(4, btree.getShardCount());
+
+        // the shards are the children of the root, separated by the boundaries
+        JsonNode root = window(btree, List.of(), 0);
+        assertEquals(4, root.get("childCount").asInt());
+        assertEquals(3, root.get("keys").size());
+        assertEquals(keys, keysUnder(btree, new ArrayList<>()));
+
+        // the windows copy the nodes of the shards down to their depth
+        JsonNode deeper = window(btree, List.of(), 2);
+        assertEquals(4, deeper.get("children").size());
+        for (JsonNode shard : deeper.get("children"))
+            assertEquals(shard.get("childCount").asInt(), shard.get("children").size());
+    }
+
+    @Test
+    void windowsOfAConcurrentTreeCopyItsNodesWithoutASnapshot() throws IOException {
+        ConcurrentBtree<String, String> btree = new ConcurrentBtree<>(new BtreeConfig(8, 8));
+        List<String> keys = insertKeys(btree, 20_000);
+        long epoch = btree.getEpoch();
+        assertEquals(keys, keysUnder(btree, new ArrayList<>()));
+        // a snapshot would make the next updates copy the nodes they change
+        assertEquals(epoch, btree.getEpoch());
+
+        // the window is written as it was built, whatever the updates in between
+        List<Integer> firstLeaf = new ArrayList<>();
+        for (Node<String> node = btree.getRoot(); node instanceof InternalNode<String> internalNode; node = internalNode.getChild(0))
+            firstLeaf.add(0);
+        BtreeWindow window = new BtreeWindow(btree, firstLeaf, 0, 1000, 0);
+        btree.insert("a", "v");
+        JsonNode leaf = MAPPER.readTree(MAPPER.writeValueAsString(window)).get("node");
+        assertEquals(keys.get(0), leaf.get("keys").get(0).asText());
+    }
+
+    @Test
+    void windowsOfAPagedTreeReadItsPages() throws IOException {
+        try (PagedBtree<String, String> btree = PagedBtree.open(directory.resolve("tree.pages"), 512, PageCodec.STRING, PageCodec.STRING)) {
+            List<String> keys = insertKeys(btree, 5_000);
+            assertEquals(keys, keysUnder(btree, new ArrayList<>()));
+            assertThrows(IllegalArgumentException.class, () -> new BtreeWindow(btree, List.of(0, 0, 0, 0, 0, 0, 0, 0), 1, 1, 0));
+        }
+    }
+
+    @Test
+    void theDepthIsClampedToTheNodesAWindowWrites() throws IOException {
+        Btree<String, String> btree = new Btree<>(new BtreeConfig(4, 4));
+        insertKeys(btree, 100_000);
+        JsonNode window = MAPPER.readTree(MAPPER.writeValueAsString(new BtreeWindow(btree, List.of(), 1000, 1, 0)));
+        // 4^8 nodes at the depth, as many as a window writes
+        assertEquals(8, window.get("depth").asInt());
+        assertEquals(8, BtreeWindow.maxDepth(new BtreeConfig(4, 4)));
+        assertEquals(2, BtreeWindow.maxDepth(new BtreeConfig(4, 256)));
+        assertEquals(1, BtreeWindow.maxDepth(new BtreeConfig(4, 4096)));
+    }
+
+    private static List<String> insertKeys(Btree<String, String> btree, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String key = String.format("k%06d", (i * 7919L) % count);
+            btree.insert(key, "v");
+            keys.add(key);
+        }
+        keys.sort(null);
+        return keys;
+    }
+
+    /**
+     * The keys of the leaves under the node at a path, each node being fetched by a window of its own.
+     */
+    private static List<String> keysUnder(Btree<String, String> btree, List<Integer> path) throws IOException {
+        JsonNode node = window(btree, path, 0);
+        List<String> keys = new ArrayList<>();
+        if (node.get("nodeType").asText().equals("LeafNode")) {
+            node.get("keys").forEach(key -> keys.add(key.asText()));
+            return keys;
+        }
+        for (int i = 0; i < node.get("childCount").asInt(); i++) {
+            path.add(i);
+            keys.addAll(keysUnder(btree, path));
+            path.remove(path.size() - 1);
+        }
+        return keys;
+    }
+
+    private static JsonNode window(Btree<String, String> btree, List<Integer> path, int depth) throws IOException {
+        JsonNode node = MAPPER.readTree(MAPPER.writeValueAsString(new BtreeWindow(btree, path, depth, 1000, 0))).get("node");
+        assertEquals(path, MAPPER.convertValue(node.get("path"), List.class));
+        return node;
+    }
+}
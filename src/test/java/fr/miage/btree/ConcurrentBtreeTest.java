@@ -0,0 +1,426 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Threads updating a shared tree against a model of their own keys : the keys of a thread are the ones congruent to
+ * its index, so what it reads of them only depends on its own updates. Small orders make most inserts split a leaf
+ * under its parent latch, and most deletes borrow or merge under the exclusive tree lock.
+ */
+class ConcurrentBtreeTest {
+    private static final int THREADS = 8;
+
+    @Test
+    void threadsUpdatingTheirOwnKeysMatchTheirModels() throws Exception {
+        for (int order = 3; order <= 6; order++) {
+            ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(order));
+            List<TreeMap<Integer, String>> models = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                TreeMap<Integer, String> model = new TreeMap<>();
+                models.add(model);
+                int index = thread;
+                tasks.add(() -> {
+                    runUpdates(btree, model, index, new Random(index));
+                    return null;
+                });
+            }
+            runTogether(tasks);
+
+            TreeMap<Integer, String> expected = new TreeMap<>();
+            models.forEach(expected::putAll);
+            checkTree(btree, expected);
+            checkNodes(btree);
+        }
+    }
+
+    @Test
+    void aLeafSplitWaitsForTheWritersOfTheOtherLeavesOfItsParent() throws Exception {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(8));
+        for (int key = 0; key < 20; key++)
+            btree.insert(100 * key, "v" + key);
+        InternalNode<Integer> parent = (InternalNode<Integer>) btree.getRoot();
+        LeafNode<Integer, String> updated = (LeafNode<Integer, String>) parent.getChild(0);
+        LeafNode<Integer, String> full = (LeafNode<Integer, String>) parent.getChild(1);
+        // the first leaf can be updated without merging, the next insert into the second one splits it into the parent,
+        // which has room left
+        btree.insert(1, "u");
+        for (int key = full.getKey(0) + 1; full.getKeyCount() < full.getOrder() - 1; key++)
+            btree.insert(key, "f" + key);
+        assertTrue(parent.getKeyCount() < parent.getOrder() - 1);
+        assertTrue(updated.getKeyCount() > updated.getMinKeyCount());
+        int childCount = parent.getChildCount();
+        int splitKey = full.getKey(0) + 1;
+
+        CountDownLatch updating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the update of the first leaf shares the latch of the parent until it is released
+            Future<String> update = executor.submit(() -> btree.compute(updated.getKey(0), (key, value) -> {
+                updating.countDown();
+                await(release);
+                return value + "!";
+            }));
+            await(updating);
+            Future<?> split = executor.submit(() -> btree.insert(splitKey, "split"));
+            assertThrows(TimeoutException.class, () -> split.get(200, TimeUnit.MILLISECONDS),
+                    "the split went on while another writer shared its parent");
+            assertEquals(childCount, parent.getChildCount());
+
+            release.countDown();
+            split.get(10, TimeUnit.SECONDS);
+            assertEquals("v0!", update.get(10, TimeUnit.SECONDS));
+        }
+        finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertSame(parent, btree.getRoot());
+        assertEquals(childCount + 1, parent.getChildCount());
+        assertEquals("split", btree.search(splitKey));
+        checkNodes(btree);
+    }
+
+    @Test
+    void leavesSplittingTogetherIntoTheSameParentKeepItConsistent() throws Exception {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(new BtreeConfig(4, 64));
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int round = 0; round < 40; round++) {
+            // the threads fill the same leaves, a key in THREADS going to each of them
+            int base = 1000 * round;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int index = thread;
+                tasks.add(() -> {
+                    for (int i = 0; i < 60; i++)
+                        btree.insert(base + THREADS * i + index, "r" + round(base) + "." + index);
+                    return null;
+                });
+                for (int i = 0; i < 60; i++)
+                    expected.put(base + THREADS * i + thread, "r" + round(base) + "." + thread);
+            }
+            runTogether(tasks);
+            checkNodes(btree);
+        }
+        checkTree(btree, expected);
+    }
+
+    @Test
+    void readersFindTheKeysWhileWritersSplitAndMergeTheirLeaves() throws Exception {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(4));
+        // the even keys stay in the tree, the writers insert and delete the odd ones between them
+        for (int key = 0; key < 4000; key += 2)
+            btree.insert(key, "v" + key);
+
+        AtomicInteger writers = new AtomicInteger(THREADS / 2);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int index = thread;
+            if (thread % 2 == 0) {
+                tasks.add(() -> {
+                    Random random = new Random(index);
+                    for (int i = 0; i < 20000; i++) {
+                        int key = 2 * random.nextInt(2000) + 1;
+                        if (btree.search(key) == null)
+                            btree.insert(key, "v" + key);
+                        else
+                            btree.delete(key);
+                    }
+                    writers.decrementAndGet();
+                    return null;
+                });
+            }
+            else {
+                tasks.add(() -> {
+                    Random random = new Random(index);
+                    while (writers.get() > 0) {
+                        int key = 2 * random.nextInt(2000);
+                        assertEquals("v" + key, btree.search(key), "search " + key);
+                    }
+                    return null;
+                });
+            }
+        }
+        runTogether(tasks);
+
+        for (int key = 0; key < 4000; key += 2)
+            assertEquals("v" + key, btree.search(key), "search " + key);
+    }
+
+    @Test
+    void duplicatesInsertedTogetherAreAllKept() throws Exception {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(3));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int index = thread;
+            tasks.add(() -> {
+                for (int i = 0; i < 2000; i++)
+                    btree.insert(i % 13, "t" + index + "." + i);
+                return null;
+            });
+        }
+        runTogether(tasks);
+
+        // each thread inserted its entries of a key newest first, the threads interleave in any order
+        for (int key = 0; key < 13; key++) {
+            List<String> values = btree.searchValues(key);
+            Map<Integer, Integer> lastOfThread = new HashMap<>();
+            for (String value : values) {
+                int thread = Integer.parseInt(value.substring(1, value.indexOf('.')));
+                int i = Integer.parseInt(value.substring(value.indexOf('.') + 1));
+                Integer newer = lastOfThread.put(thread, i);
+                assertTrue(newer == null || newer > i, "order of the entries of " + key);
+            }
+            assertEquals(THREADS * (2000 / 13 + (key < 2000 % 13 ? 1 : 0)), values.size(), "entries of " + key);
+            assertNotNull(btree.search(key));
+        }
+        assertEquals(THREADS * 2000, btree.size());
+        assertEquals(THREADS * 2000, btree.count(0, true, 12, true));
+    }
+
+    @Test
+    void batchSearchesFindWhatSearchFindsWithoutASnapshot() {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(3));
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++)
+            btree.insert(random.nextInt(500), "v" + i);
+        for (int i = 0; i < 1000; i++)
+            btree.delete(random.nextInt(500));
+
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            keys.add(random.nextInt(520) - 10);
+        long epoch = btree.getEpoch();
+        List<String> values = btree.searchAll(keys);
+        // a snapshot would make the next updates copy the nodes they change
+        assertEquals(epoch, btree.getEpoch());
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(btree.search(keys.get(i)), values.get(i), "search " + keys.get(i));
+    }
+
+    @Test
+    void ranksAndCountsMatchTheHeapTreeWithoutASnapshot() {
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(4));
+        Btree<Integer, String> expected = new Btree<>(BtreeConfig.of(4));
+        Random random = new Random(12);
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(800);
+            btree.insert(key, "v" + i);
+            expected.insert(key, "v" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int key = random.nextInt(800);
+            btree.delete(key);
+            expected.delete(key);
+        }
+
+        long epoch = btree.getEpoch();
+        for (int key = -5; key < 810; key++) {
+            assertEquals(expected.rank(key), btree.rank(key), "rank of " + key);
+            assertEquals(expected.count(key, true, key + 40, false), btree.count(key, true, key + 40, false), "count from " + key);
+            assertEquals(expected.count(key, false, key + 40, true), btree.count(key, false, key + 40, true), "count after " + key);
+        }
+        for (long index = 0; index < expected.size(); index++)
+            assertEquals(expected.select(index), btree.select(index), "select " + index);
+        // a snapshot would make the next updates copy the nodes they change
+        assertEquals(epoch, btree.getEpoch());
+    }
+
+    @Test
+    void ranksStayInBoundsWhileWritersSplitTheLeaves() throws Exception {
+        // the even keys stay in the tree, the writers insert and delete the odd ones
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(4));
+        for (int key = 0; key < 4000; key += 2)
+            btree.insert(key, "even");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 2; thread++) {
+                int writer = thread;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(writer);
+                    for (int i = 0; i < 20000; i++) {
+                        int key = 2 * (random.nextInt(1000) * 2 + writer) + 1;
+                        if (random.nextBoolean())
+                            btree.put(key, "odd");
+                        else
+                            btree.delete(key);
+                    }
+                }));
+            }
+            for (int thread = 0; thread < 2; thread++) {
+                int reader = thread;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(10 + reader);
+                    for (int i = 0; i < 20000; i++) {
+                        int even = random.nextInt(2000);
+                        long rank = btree.rank(2 * even);
+                        assertTrue(rank >= even && rank <= 2 * even, "rank of " + 2 * even + ": " + rank);
+                        assertTrue(btree.select(even).getKey() <= 2 * even, "select " + even);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get(60, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        checkNodes(btree);
+        for (int even = 0; even < 2000; even += 37)
+            assertEquals(btree.snapshot().rank(2 * even), btree.rank(2 * even), "rank of " + 2 * even);
+    }
+
+    /**
+     * Inserts, deletes, puts and searches on the keys of a thread, most inserts in increasing order so that the
+     * threads split the same leaves. Searches are checked as they go.
+     */
+    private static void runUpdates(ConcurrentBtree<Integer, String> btree, TreeMap<Integer, String> model, int thread,
+                                   Random random) {
+        for (int i = 0; i < 6000; i++) {
+            int key = THREADS * (random.nextInt(4) == 0 ? random.nextInt(1500) : i / 4) + thread;
+            String value = "t" + thread + "." + i;
+            switch (random.nextInt(8)) {
+                case 0, 1, 2 -> {
+                    if (!model.containsKey(key)) {
+                        btree.insert(key, value);
+                        model.put(key, value);
+                    }
+                }
+                case 3, 4 -> {
+                    btree.delete(key);
+                    model.remove(key);
+                }
+                case 5 -> assertEquals(model.put(key, value), btree.put(key, value), "put " + key);
+                default -> assertEquals(model.get(key), btree.search(key), "search " + key);
+            }
+        }
+    }
+
+    /**
+     * Compare the tree with the model : the scan of all the entries, each key and the entry counts of the internal nodes.
+     */
+    private static void checkTree(ConcurrentBtree<Integer, String> btree, TreeMap<Integer, String> expected) {
+        List<Map.Entry<Integer, String>> scanned = new ArrayList<>();
+        btree.range(null, true, null, true).forEachRemaining(entry -> scanned.add(Map.entry(entry.getKey(), entry.getValue())));
+        assertEquals(new ArrayList<>(expected.entrySet()), scanned);
+        assertEquals(expected.size(), btree.size());
+        if (!expected.isEmpty())
+            assertEquals(expected.size(), btree.count(expected.firstKey(), true, expected.lastKey(), true));
+
+        int position = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), btree.search(entry.getKey()), "search " + entry.getKey());
+            if (position % 97 == 0) {
+                assertEquals(position, btree.rank(entry.getKey()), "rank of " + entry.getKey());
+                assertEquals(entry.getKey(), btree.select(position).getKey(), "select " + position);
+            }
+            position++;
+        }
+    }
+
+    private static int round(int base) {
+        return base / 1000;
+    }
+
+    /**
+     * Check the nodes themselves : the keys of each node in order, the parent links, the entry counts the internal nodes
+     * keep for their children against the entries under them, and the links between the leaves in the order of the tree.
+     */
+    private static void checkNodes(ConcurrentBtree<Integer, String> btree) {
+        List<LeafNode<Integer, String>> leaves = new ArrayList<>();
+        assertEquals(btree.size(), checkNode(btree.getRoot(), leaves));
+        for (int i = 0; i < leaves.size(); i++) {
+            assertSame(i == 0 ? null : leaves.get(i - 1), leaves.get(i).getPreviousLeaf(), "left link of leaf " + i);
+            assertSame(i == leaves.size() - 1 ? null : leaves.get(i + 1), leaves.get(i).getNextLeaf(), "right link of leaf " + i);
+        }
+    }
+
+    /**
+     * @return the number of entries under the node
+     */
+    @SuppressWarnings("unchecked")
+    private static long checkNode(Node<Integer> node, List<LeafNode<Integer, String>> leaves) {
+        for (int i = 1; i < node.getKeyCount(); i++)
+            assertTrue(node.getKey(i - 1) <= node.getKey(i), "keys of a node out of order: " + node.getKey(i - 1) + ", " + node.getKey(i));
+        if (node.getNodeType() == NodeType.LeafNode) {
+            leaves.add((LeafNode<Integer, String>) node);
+            return node.getKeyCount();
+        }
+
+        InternalNode<Integer> internalNode = (InternalNode<Integer>) node;
+        assertEquals(internalNode.getKeyCount() + 1, internalNode.getChildCount());
+        long count = 0;
+        for (int i = 0; i < internalNode.getChildCount(); i++) {
+            Node<Integer> child = internalNode.getChild(i);
+            assertSame(internalNode, child.getParent());
+            long childCount = checkNode(child, leaves);
+            assertEquals(childCount, internalNode.getChildEntryCount(i), "entry count of child " + i);
+            count += childCount;
+        }
+        return count;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start the tasks at once, and rethrow the first failure.
+     */
+    private static void runTogether(List<Callable<Void>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error error)
+                        throw error;
+                    throw (Exception) e.getCause();
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Long trees keeping duplicates against a reference model : the values of each key, newest first, for the three
+ * value layouts. Small orders make the duplicates of a key span several leaves.
+ */
+class LongBtreeTest {
+
+    @Test
+    void searchFindsTheDuplicatesASplitLeftInThePreviousLeaf() {
+        for (LongBtree.ValueLayout layout : LongBtree.ValueLayout.values()) {
+            LongBtree<Long> btree = new LongBtree<>(BtreeConfig.of(3), layout);
+            Model model = new Model(layout);
+            for (int i = 0; i < 300; i++)
+                model.insert(btree, i % 7, i);
+            model.check(btree, layout.toString());
+        }
+    }
+
+    @Test
+    void deleteRemovesEveryEntryAndCollapsesTheTree() {
+        for (LongBtree.ValueLayout layout : LongBtree.ValueLayout.values()) {
+            for (int order = 3; order <= 6; order++) {
+                String context = layout + " order " + order;
+                LongBtree<Long> btree = new LongBtree<>(BtreeConfig.of(order), layout, order % 2 == 0);
+                Model model = new Model(layout);
+                Random random = new Random(order);
+                for (int i = 0; i < 2000; i++)
+                    model.insert(btree, random.nextInt(40), i);
+
+                while (!model.isEmpty()) {
+                    model.delete(btree, model.randomKey(random), context);
+                    if (model.size() % 97 == 0)
+                        model.check(btree, context);
+                }
+                model.check(btree, context);
+                assertEquals(0, btree.size(), context);
+                assertEquals(1, btree.getHeight(), context);
+            }
+        }
+    }
+
+    @Test
+    void randomUpdatesMatchTheModel() {
+        for (int seed = 0; seed < 12; seed++) {
+            Random random = new Random(seed);
+            LongBtree.ValueLayout layout = LongBtree.ValueLayout.values()[seed % 3];
+            BtreeConfig config = new BtreeConfig(3 + random.nextInt(5), 3 + random.nextInt(5));
+            LongBtree<Long> btree = new LongBtree<>(config, layout, random.nextBoolean());
+            Model model = new Model(layout);
+            String context = "seed " + seed;
+            int keys = 1 + random.nextInt(60);
+            for (int i = 0; i < 4000; i++) {
+                // spread keys, so that the interpolation search does not only see a dense range
+                long key = random.nextInt(keys) * 1_000_003L - 20_000_000L;
+                if (random.nextInt(10) < 6)
+                    model.insert(btree, key, i);
+                else
+                    model.delete(btree, key, context);
+                if (i % 500 == 0)
+                    model.check(btree, context);
+            }
+            model.check(btree, context);
+        }
+    }
+
+    /**
+     * Values of each key, newest first : a new entry goes before the ones of its key, and the first one is
+     * the one search returns and delete removes.
+     */
+    private static final class Model {
+        private final LongBtree.ValueLayout layout;
+        private final TreeMap<Long, Deque<Integer>> entries = new TreeMap<>();
+        private int size;
+
+        Model(LongBtree.ValueLayout layout) {
+            this.layout = layout;
+        }
+
+        void insert(LongBtree<Long> btree, long key, int value) {
+            switch (layout) {
+                case OBJECT -> btree.insert(key, (long) value);
+                case LONG -> btree.insertLong(key, value);
+                case INT -> btree.insertInt(key, value);
+            }
+            this.entries.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(value);
+            this.size++;
+        }
+
+        void delete(LongBtree<Long> btree, long key, String context) {
+            Deque<Integer> values = this.entries.get(key);
+            assertEquals(values != null, btree.delete(key), context + ", delete " + key);
+            if (values == null)
+                return;
+            values.removeFirst();
+            this.size--;
+            if (values.isEmpty())
+                this.entries.remove(key);
+        }
+
+        boolean isEmpty() {
+            return this.entries.isEmpty();
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        long randomKey(Random random) {
+            List<Long> keys = new ArrayList<>(this.entries.keySet());
+            return keys.get(random.nextInt(keys.size()));
+        }
+
+        /**
+         * Compare each key of the model, and the keys around them, with the tree.
+         */
+        void check(LongBtree<Long> btree, String context) {
+            assertEquals(this.size, btree.size(), context);
+            for (long key : this.entries.keySet()) {
+                for (long probe = key - 1; probe <= key + 1; probe++) {
+                    Deque<Integer> values = this.entries.get(probe);
+                    Integer expected = values == null ? null : values.peekFirst();
+                    assertEquals(expected, this.search(btree, probe), context + ", search " + probe);
+                    assertEquals(expected != null, btree.contains(probe), context + ", contains " + probe);
+                }
+            }
+            if (this.entries.isEmpty())
+                assertFalse(btree.contains(0), context);
+        }
+
+        private Integer search(LongBtree<Long> btree, long key) {
+            return switch (layout) {
+                case OBJECT -> {
+                    Long value = btree.search(key);
+                    yield value == null ? null : value.intValue();
+                }
+                case LONG -> {
+                    long value = btree.searchLong(key, Long.MIN_VALUE);
+                    yield value == Long.MIN_VALUE ? null : (int) value;
+                }
+                case INT -> {
+                    int value = btree.searchInt(key, Integer.MIN_VALUE);
+                    yield value == Integer.MIN_VALUE ? null : value;
+                }
+            };
+        }
+    }
+}
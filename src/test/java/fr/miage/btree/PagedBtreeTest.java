@@ -0,0 +1,122 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Order statistics of a paged tree, whose internal pages hold the entry counts of their children, against a heap tree
+ * of the same entries.
+ */
+class PagedBtreeTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void orderStatisticsMatchTheHeapTree() throws IOException {
+        Random random = new Random(5);
+        try (PagedBtree<Integer, String> paged = PagedBtree.open(directory.resolve("tree.pages"), 512, PageCodec.INTEGER, PageCodec.STRING)) {
+            Btree<Integer, String> heap = new Btree<>(BtreeConfig.of(8));
+            // few keys, so that duplicates span several leaves
+            for (int i = 0; i < 6000; i++) {
+                int key = random.nextInt(400);
+                if (random.nextInt(4) == 0) {
+                    paged.delete(key);
+                    heap.delete(key);
+                }
+                else {
+                    paged.insert(key, "v" + i);
+                    heap.insert(key, "v" + i);
+                }
+            }
+            assertEquals(heap.size(), paged.size());
+
+            for (int i = 0; i < 300; i++) {
+                int key = random.nextInt(402) - 1;
+                assertEquals(heap.rank(key), paged.rank(key), "rank " + key);
+                Integer from = random.nextInt(5) == 0 ? null : key;
+                Integer to = random.nextInt(5) == 0 ? null : random.nextInt(402) - 1;
+                boolean fromInclusive = random.nextBoolean();
+                boolean toInclusive = random.nextBoolean();
+                assertEquals(heap.count(from, fromInclusive, to, toInclusive), paged.count(from, fromInclusive, to, toInclusive));
+
+                long offset = random.nextInt(200);
+                assertEquals(entries(heap.range(from, fromInclusive, to, toInclusive, offset), 50),
+                        entries(paged.range(from, fromInclusive, to, toInclusive, offset), 50), "range from " + from);
+                assertEquals(entries(heap.descendingScan(to, toInclusive, from, fromInclusive, offset), 50),
+                        entries(paged.descendingScan(to, toInclusive, from, fromInclusive, offset), 50), "descending from " + to);
+            }
+
+            for (long index = 0; index < heap.size(); index += 37)
+                assertEquals(heap.select(index), paged.select(index), "select " + index);
+            assertFalse(paged.range(null, true, null, true, heap.size()).hasNext());
+        }
+    }
+
+    @Test
+    void entryCountsOfThePagesFollowSplitsAndMerges() throws IOException {
+        Path file = directory.resolve("counts.pages");
+        Random random = new Random(6);
+        Btree<Integer, String> heap = new Btree<>(BtreeConfig.of(8));
+        try (PagedBtree<Integer, String> paged = PagedBtree.open(file, 512, PageCodec.INTEGER, PageCodec.STRING)) {
+            for (int i = 0; i < 8000; i++) {
+                int key = random.nextInt(5000);
+                paged.insert(key, "v" + i);
+                heap.insert(key, "v" + i);
+                if (i % 1000 == 0)
+                    assertEquals(paged.size(), checkCounts(paged.nodeAt(List.of(), Integer.MAX_VALUE)));
+            }
+            // most entries are deleted : leaves and internal pages merge, the root collapses
+            for (int i = 0; i < 40000 && heap.size() > 50; i++) {
+                int key = random.nextInt(5000);
+                paged.delete(key);
+                heap.delete(key);
+                if (i % 1000 == 0)
+                    assertEquals(paged.size(), checkCounts(paged.nodeAt(List.of(), Integer.MAX_VALUE)));
+            }
+            assertEquals(heap.size(), checkCounts(paged.nodeAt(List.of(), Integer.MAX_VALUE)));
+        }
+
+        // the counts are read back with the pages
+        try (PagedBtree<Integer, String> paged = PagedBtree.open(file, 512, PageCodec.INTEGER, PageCodec.STRING)) {
+            for (int key = -1; key <= 5000; key += 7)
+                assertEquals(heap.rank(key), paged.rank(key), "rank " + key);
+            for (long index = 0; index < heap.size(); index++)
+                assertEquals(heap.select(index), paged.select(index), "select " + index);
+        }
+    }
+
+    /**
+     * @return the number of entries under the node, checked against the counts its parent keeps
+     */
+    private static long checkCounts(Node<Integer> node) {
+        if (!(node instanceof InternalNode<Integer> internalNode))
+            return node.getKeyCount();
+        long count = 0;
+        for (int i = 0; i < internalNode.getChildCount(); i++) {
+            long childCount = checkCounts(internalNode.getChild(i));
+            assertEquals(childCount, internalNode.getChildEntryCount(i), "entry count of child " + i);
+            count += childCount;
+        }
+        return count;
+    }
+
+    private static List<Map.Entry<Integer, String>> entries(Iterator<Map.Entry<Integer, String>> cursor, int limit) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        while (entries.size() < limit && cursor.hasNext()) {
+            Map.Entry<Integer, String> entry = cursor.next();
+            entries.add(Map.entry(entry.getKey(), entry.getValue()));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,89 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batches rejected by a sharded tree leave all its shards unchanged, while the shards are split and rebalanced
+ * by the batches accepted.
+ */
+class ShardedBtreeTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void aRejectedBatchInsertsNothingInAnyShard() throws IOException {
+        Path logFile = directory.resolve("sharded.wal");
+        BtreeConfig config = BtreeConfig.of(8).withDuplicateKeyPolicy(BtreeConfig.DuplicateKeyPolicy.REJECT);
+        ShardedBtree<Integer, String> btree = new ShardedBtree<>(config, 4);
+        WriteAheadLog<Integer, String> log = WriteAheadLog.open(logFile, PageCodec.INTEGER, PageCodec.STRING,
+                WriteAheadLog.SyncPolicy.everyBytes(64 * 1024));
+        btree.setLog(log);
+        TreeMap<Integer, String> model = new TreeMap<>();
+        Random random = new Random(4);
+
+        for (int round = 0; round < 120; round++) {
+            // new keys over the whole range, and some more in a hot range which makes its shard rebalance
+            List<Map.Entry<Integer, String>> batch = new ArrayList<>();
+            TreeMap<Integer, String> added = new TreeMap<>();
+            while (batch.size() < 400) {
+                int key = random.nextInt(4) == 0 ? 1_000_000 + random.nextInt(200_000) : random.nextInt(10_000_000);
+                if (!model.containsKey(key) && !added.containsKey(key)) {
+                    batch.add(Map.entry(key, "v" + round));
+                    added.put(key, "v" + round);
+                }
+            }
+
+            if (round % 3 == 2) {
+                // the rejected key is in the last shard, after the keys of all the others
+                List<Map.Entry<Integer, String>> rejected = new ArrayList<>(batch);
+                rejected.add(Map.entry(model.lastKey(), "rejected"));
+                assertThrows(IllegalArgumentException.class, () -> btree.insertAll(rejected));
+                List<Map.Entry<Integer, String>> twice = new ArrayList<>(batch);
+                twice.add(batch.get(0));
+                assertThrows(IllegalArgumentException.class, () -> btree.insertAll(twice));
+                assertEquals(model.size(), btree.size());
+                assertNull(btree.search(batch.get(0).getKey()));
+            }
+
+            btree.insertAll(batch);
+            model.putAll(added);
+            if (round % 20 == 0)
+                assertEquals(entriesOf(model), entries(btree));
+        }
+        assertEquals(entriesOf(model), entries(btree));
+        assertTrue(btree.getShardCount() > 1);
+        log.close();
+
+        // the rejected batches were not logged
+        WriteAheadLog<Integer, String> reopened = WriteAheadLog.open(logFile, PageCodec.INTEGER, PageCodec.STRING,
+                WriteAheadLog.SyncPolicy.everyBytes(64 * 1024));
+        ShardedBtree<Integer, String> recovered = new ShardedBtree<>(config, 4);
+        assertEquals(model.size(), reopened.replay(recovered));
+        assertEquals(entriesOf(model), entries(recovered));
+        reopened.close();
+    }
+
+    private static List<Map.Entry<Integer, String>> entriesOf(TreeMap<Integer, String> model) {
+        return new ArrayList<>(model.entrySet());
+    }
+
+    private static List<Map.Entry<Integer, String>> entries(Btree<Integer, String> btree) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        btree.range(null, true, null, true).forEachRemaining(entry -> entries.add(Map.entry(entry.getKey(), entry.getValue())));
+        return entries;
+    }
+}
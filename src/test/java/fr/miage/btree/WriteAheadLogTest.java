@@ -0,0 +1,156 @@
+package fr.miage.btree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery rebuilds the tree which logged the updates : from an empty tree, or from a checkpoint saved
+ * with {@link BtreeBinaryFormat}, whose tree is bulk loaded and so has another shape than the live one.
+ */
+class WriteAheadLogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayRebuildsTheTreeFromAnEmptyLog() throws IOException {
+        Path logFile = directory.resolve("tree.wal");
+        ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(BtreeConfig.of(4));
+        WriteAheadLog<Integer, String> log = openLog(logFile);
+        btree.setLog(log);
+        runUpdates(btree, new Random(1), 5000);
+        List<Map.Entry<Integer, String>> expected = entries(btree);
+        log.close();
+
+        WriteAheadLog<Integer, String> reopened = openLog(logFile);
+        assertNull(reopened.getSnapshotFile());
+        ConcurrentBtree<Integer, String> recovered = new ConcurrentBtree<>(BtreeConfig.of(4));
+        assertEquals(5000, reopened.replay(recovered));
+        assertEquals(expected, entries(recovered));
+        reopened.close();
+    }
+
+    @Test
+    void replayAfterACheckpointRebuildsTheSameTree() throws IOException {
+        for (BtreeConfig.DuplicateKeyPolicy policy : BtreeConfig.DuplicateKeyPolicy.values()) {
+            Path logFile = directory.resolve(policy + ".wal");
+            Path snapshotFile = directory.resolve(policy + ".bin");
+            BtreeConfig config = BtreeConfig.of(4).withDuplicateKeyPolicy(policy);
+            ConcurrentBtree<Integer, String> btree = new ConcurrentBtree<>(config);
+            WriteAheadLog<Integer, String> log = openLog(logFile);
+            btree.setLog(log);
+            Random random = new Random(2);
+            runUpdates(btree, random, 3000);
+
+            // the updates applied while the snapshot is saved are kept by the checkpoint
+            Btree<Integer, String> snapshot = btree.snapshot();
+            runUpdates(btree, random, 500);
+            BtreeBinaryFormat.save(snapshot, snapshotFile, PageCodec.INTEGER, PageCodec.STRING);
+            log.checkpoint(snapshot.getLogPosition(), snapshotFile);
+            runUpdates(btree, random, 2000);
+            List<Map.Entry<Integer, String>> expected = entries(btree);
+            log.close();
+
+            WriteAheadLog<Integer, String> reopened = openLog(logFile);
+            assertEquals(snapshotFile.toAbsolutePath(), reopened.getSnapshotFile());
+            Btree<Integer, String> loaded = BtreeBinaryFormat.load(reopened.getSnapshotFile(), PageCodec.INTEGER, PageCodec.STRING);
+            // the policy is saved with the tree, the replay applies the updates as the logged tree did
+            assertEquals(policy, loaded.getConfig().getDuplicateKeyPolicy());
+            ConcurrentBtree<Integer, String> recovered = ConcurrentBtree.of(loaded, loaded.getConfig());
+            assertEquals(2500, reopened.replay(recovered), policy.toString());
+            assertEquals(expected, entries(recovered), policy.toString());
+            assertEquals(expected.size(), recovered.size(), policy.toString());
+            reopened.close();
+        }
+    }
+
+    @Test
+    void aTornLastRecordIsCutOnRecovery() throws IOException {
+        Path logFile = directory.resolve("torn.wal");
+        Btree<Integer, String> btree = new Btree<>(BtreeConfig.of(4));
+        WriteAheadLog<Integer, String> log = openLog(logFile);
+        btree.setLog(log);
+        runUpdates(btree, new Random(3), 1000);
+        List<Map.Entry<Integer, String>> beforeLastUpdate = entries(btree);
+        long positionBeforeLastUpdate = log.getAppendedPosition();
+        btree.insert(5, "last");
+        long lastRecordBytes = log.getAppendedPosition() - positionBeforeLastUpdate;
+        log.close();
+        long sizeBeforeLastUpdate = Files.size(logFile) - lastRecordBytes;
+
+        // a crash in the middle of the last record
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        WriteAheadLog<Integer, String> reopened = openLog(logFile);
+        Btree<Integer, String> recovered = new Btree<>(BtreeConfig.of(4));
+        assertEquals(1000, reopened.replay(recovered));
+        assertEquals(beforeLastUpdate, entries(recovered));
+        assertEquals(sizeBeforeLastUpdate, Files.size(logFile));
+
+        // the records appended after the cut are replayed by the next recovery
+        recovered.setLog(reopened);
+        recovered.insert(5, "after");
+        List<Map.Entry<Integer, String>> expected = entries(recovered);
+        reopened.close();
+
+        WriteAheadLog<Integer, String> again = openLog(logFile);
+        Btree<Integer, String> recoveredAgain = new Btree<>(BtreeConfig.of(4));
+        assertEquals(1001, again.replay(recoveredAgain));
+        assertEquals(expected, entries(recoveredAgain));
+        assertTrue(recoveredAgain.searchValues(5).contains("after"));
+        again.close();
+    }
+
+    private static WriteAheadLog<Integer, String> openLog(Path file) throws IOException {
+        return WriteAheadLog.open(file, PageCodec.INTEGER, PageCodec.STRING, WriteAheadLog.SyncPolicy.everyBytes(64 * 1024));
+    }
+
+    /**
+     * Inserts, deletes and puts on a few keys : the trees keeping duplicates hold several entries per key,
+     * the deletes and puts of the replay have to reach the same ones. Each update appends a single record.
+     */
+    private static void runUpdates(Btree<Integer, String> btree, Random random, int count) {
+        boolean rejects = btree.getConfig().getDuplicateKeyPolicy() == BtreeConfig.DuplicateKeyPolicy.REJECT;
+        for (int i = 0; i < count; i++) {
+            int key = random.nextInt(200);
+            String value = "v" + random.nextInt(1000);
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    // only the keys in the tree are deleted, each update appends a record
+                    if (btree.search(key) == null)
+                        btree.insert(key, value);
+                    else
+                        btree.delete(key);
+                }
+                case 1 -> btree.put(key, value);
+                default -> {
+                    if (rejects && btree.search(key) != null)
+                        btree.put(key, value);
+                    else
+                        btree.insert(key, value);
+                }
+            }
+        }
+    }
+
+    private static List<Map.Entry<Integer, String>> entries(Btree<Integer, String> btree) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        btree.range(null, true, null, true).forEachRemaining(entry -> entries.add(Map.entry(entry.getKey(), entry.getValue())));
+        return entries;
+    }
+}